@@ -41,6 +41,9 @@ public class XMPPDecoder extends CumulativeProtocolDecoder {
 
     public static final String SESSION_ATTRIBUTE_NAME = "xmppParser";
 
+    /** set on the session when the peer has closed its stream, before the session is closed */
+    public static final String SESSION_ATTRIBUTE_STREAM_CLOSED = "xmppStreamClosed";
+
     private XMLElementBuilderFactory builderFactory = new XMLElementBuilderFactory();
 
     public XMPPDecoder() {
@@ -105,6 +108,7 @@ public class XMPPDecoder extends CumulativeProtocolDecoder {
         reader.parse(in, CharsetUtil.UTF8_DECODER());
         
         if (listener.isClosed()) {
+            session.setAttribute(SESSION_ATTRIBUTE_STREAM_CLOSED, Boolean.TRUE);
             session.close(true);
             return true;
         } else {
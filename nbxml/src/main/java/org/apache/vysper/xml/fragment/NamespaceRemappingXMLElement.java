@@ -0,0 +1,124 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+
+package org.apache.vysper.xml.fragment;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * a view on an existing XML element, which translates one namespace URI into another on access.
+ * nothing is copied: name, attributes and texts are shared with the original, inner elements
+ * in the remapped namespace are lazily wrapped into views themselves.
+ * elements in other namespaces (and everything below them) are passed through unchanged.
+ * <br/>
+ * since the {@link Renderer} only accesses elements through their getters, the view renders with
+ * the remapped namespace.
+ *
+ * @author The Apache MINA Project (dev@mina.apache.org)
+ */
+public class NamespaceRemappingXMLElement extends XMLElement {
+
+    private final String fromNamespaceURI;
+
+    private final String toNamespaceURI;
+
+    private List<XMLFragment> remappedInnerFragments;
+
+    private Map<String, String> remappedNamespaces;
+
+    public NamespaceRemappingXMLElement(XMLElement original, String fromNamespaceURI, String toNamespaceURI) {
+        super(original);
+        this.fromNamespaceURI = fromNamespaceURI;
+        this.toNamespaceURI = toNamespaceURI;
+    }
+
+    @Override
+    public String getNamespaceURI() {
+        return remapNamespaceURI(super.getNamespaceURI(), fromNamespaceURI, toNamespaceURI);
+    }
+
+    @Override
+    public List<XMLFragment> getInnerFragments() {
+        // racy, but idempotent
+        if (remappedInnerFragments == null) {
+            remappedInnerFragments = remapInnerFragments(super.getInnerFragments(), fromNamespaceURI, toNamespaceURI);
+        }
+        return remappedInnerFragments;
+    }
+
+    @Override
+    public Map<String, String> getDeclaredNamespaces() {
+        if (remappedNamespaces == null) {
+            remappedNamespaces = remapDeclaredNamespaces(super.getDeclaredNamespaces(), fromNamespaceURI,
+                    toNamespaceURI);
+        }
+        return remappedNamespaces;
+    }
+
+    public static String remapNamespaceURI(String namespaceURI, String fromNamespaceURI, String toNamespaceURI) {
+        return fromNamespaceURI.equals(namespaceURI) ? toNamespaceURI : namespaceURI;
+    }
+
+    /**
+     * @return the given fragments, if none of them needs remapping, otherwise an unmodifiable list where all elements
+     * in the 'from' namespace are replaced by remapping views
+     */
+    public static List<XMLFragment> remapInnerFragments(List<XMLFragment> innerFragments, String fromNamespaceURI,
+            String toNamespaceURI) {
+        List<XMLFragment> remapped = null;
+        for (int i = 0; i < innerFragments.size(); i++) {
+            XMLFragment fragment = innerFragments.get(i);
+            if (fragment instanceof XMLElement
+                    && fromNamespaceURI.equals(((XMLElement) fragment).getNamespaceURI())) {
+                if (remapped == null) {
+                    remapped = new ArrayList<XMLFragment>(innerFragments.size());
+                    remapped.addAll(innerFragments.subList(0, i));
+                }
+                remapped.add(new NamespaceRemappingXMLElement((XMLElement) fragment, fromNamespaceURI,
+                        toNamespaceURI));
+            } else if (remapped != null) {
+                remapped.add(fragment);
+            }
+        }
+        if (remapped == null)
+            return innerFragments;
+        return Collections.unmodifiableList(remapped);
+    }
+
+    /**
+     * @return the given declarations, if none of them declares the 'from' namespace, otherwise an unmodifiable copy 
+     * with all these declarations pointing to the 'to' namespace
+     */
+    public static Map<String, String> remapDeclaredNamespaces(Map<String, String> namespaces, String fromNamespaceURI,
+            String toNamespaceURI) {
+        if (!namespaces.containsValue(fromNamespaceURI))
+            return namespaces;
+        Map<String, String> remapped = new HashMap<String, String>();
+        for (Entry<String, String> entry : namespaces.entrySet()) {
+            remapped.put(entry.getKey(), remapNamespaceURI(entry.getValue(), fromNamespaceURI, toNamespaceURI));
+        }
+        return Collections.unmodifiableMap(remapped);
+    }
+}
@@ -87,6 +87,20 @@ public class XMLElement implements XMLFragment {
         this.innerFragments = (innerFragments == null) ? Collections.EMPTY_LIST : Collections
                 .unmodifiableList(innerFragments);
     }
+
+    /**
+     * creates a shallow copy of the given element, sharing its (immutable) name, namespace, attributes
+     * and inner fragments. no validation is done, since the original has already been validated.
+     * intended for subclasses presenting a different view on an existing element.
+     */
+    protected XMLElement(XMLElement original) {
+        this.name = original.name;
+        this.namespaceURI = original.namespaceURI;
+        this.namespacePrefix = original.namespacePrefix;
+        this.attributes = original.attributes;
+        this.namespaces = original.namespaces;
+        this.innerFragments = original.innerFragments;
+    }
     
     private static final String NAME_START_CHAR = "A-Za-z\\_\\:";
     private static final String NAME_CHAR = NAME_START_CHAR + "\\-\\.0-9";
@@ -156,11 +170,13 @@ public class XMLElement implements XMLFragment {
     }
 
     public List<XMLFragment> getInnerFragments() {
-        return Collections.unmodifiableList(innerFragments);
+        // already unmodifiable, see constructor
+        return innerFragments;
     }
 
     public XMLElement getFirstInnerElement() {
-        if (innerFragments == null || innerFragments.size() < 1)
+        List<XMLFragment> innerFragments = getInnerFragments();
+        if (innerFragments.size() < 1)
             return null;
         for (XMLFragment xmlFragment : innerFragments) {
             if (xmlFragment instanceof XMLElement)
@@ -170,7 +186,8 @@ public class XMLElement implements XMLFragment {
     }
 
     public List<XMLElement> getInnerElements() {
-        if (innerFragments == null || innerFragments.size() < 1)
+        List<XMLFragment> innerFragments = getInnerFragments();
+        if (innerFragments.size() < 1)
             return Collections.emptyList();
         List<XMLElement> innerElements = new ArrayList<XMLElement>();
         for (XMLFragment xmlFragment : innerFragments) {
@@ -181,7 +198,8 @@ public class XMLElement implements XMLFragment {
     }
 
     public List<XMLText> getInnerTexts() {
-        if (innerFragments == null || innerFragments.size() < 1)
+        List<XMLFragment> innerFragments = getInnerFragments();
+        if (innerFragments.size() < 1)
             return Collections.emptyList();
         List<XMLText> innerTexts = new ArrayList<XMLText>();
         for (XMLFragment xmlFragment : innerFragments) {
@@ -192,7 +210,8 @@ public class XMLElement implements XMLFragment {
     }
 
     public XMLText getFirstInnerText() {
-        if (innerFragments == null || innerFragments.size() < 1)
+        List<XMLFragment> innerFragments = getInnerFragments();
+        if (innerFragments.size() < 1)
             return null;
         for (XMLFragment xmlFragment : innerFragments) {
             if (xmlFragment instanceof XMLText)
@@ -329,7 +348,7 @@ public class XMLElement implements XMLFragment {
             return false;
         }
         
-        if (innerFragments != null ? !innerFragments.equals(that.innerFragments) : that.innerFragments != null) {
+        if (!getInnerFragments().equals(that.getInnerFragments())) {
             return false;
         }
         if (name != null ? !name.equals(that.name) : that.name != null)
@@ -348,6 +367,8 @@ public class XMLElement implements XMLFragment {
         result = (name != null ? name.hashCode() : 0);
         result = 29 * result + (namespacePrefix != null ? namespacePrefix.hashCode() : 0);
         result = 29 * result + (attributes != null ? attributes.hashCode() : 0);
+        // like equals, reads the inner fragments through the accessor, which views override
+        List<XMLFragment> innerFragments = getInnerFragments();
         result = 29 * result + (innerFragments != null ? innerFragments.hashCode() : 0);
         return result;
     }
@@ -0,0 +1,96 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.vysper.xml.fragment;
+
+import junit.framework.TestCase;
+
+/**
+ */
+public class NamespaceRemappingXMLElementTestCase extends TestCase {
+
+    private static final String FROM_NS = "jabber:server";
+
+    private static final String TO_NS = "jabber:client";
+
+    private static final String OTHER_NS = "http://example.com";
+
+    private XMLElement original = new XMLElementBuilder("message", FROM_NS).addAttribute("to", "a@vysper.org")
+            .startInnerElement("body", FROM_NS).addText("hello").endInnerElement()
+            .startInnerElement("x", OTHER_NS).startInnerElement("y", FROM_NS).endInnerElement().endInnerElement()
+            .addText("text").build();
+
+    public void testRemapped() {
+        XMLElement remapped = new NamespaceRemappingXMLElement(original, FROM_NS, TO_NS);
+
+        assertEquals(TO_NS, remapped.getNamespaceURI());
+        assertEquals("message", remapped.getName());
+        assertEquals("a@vysper.org", remapped.getAttributeValue("to"));
+        assertEquals(3, remapped.getInnerFragments().size());
+
+        XMLElement body = remapped.getInnerElementsNamed("body", TO_NS).get(0);
+        assertEquals("hello", body.getInnerText().getText());
+
+        // elements in other namespaces, and their inner elements, are passed through
+        XMLElement x = remapped.getInnerElementsNamed("x").get(0);
+        assertSame(original.getInnerElementsNamed("x").get(0), x);
+        assertEquals(FROM_NS, x.getFirstInnerElement().getNamespaceURI());
+
+        // original is not changed
+        assertEquals(FROM_NS, original.getNamespaceURI());
+        assertEquals(FROM_NS, original.getFirstInnerElement().getNamespaceURI());
+    }
+
+    public void testEqualElementsHashEqually() {
+        XMLElement remapped = new NamespaceRemappingXMLElement(original, FROM_NS, TO_NS);
+        XMLElement expected = new XMLElementBuilder("message", TO_NS).addAttribute("to", "a@vysper.org")
+                .startInnerElement("body", TO_NS).addText("hello").endInnerElement()
+                .startInnerElement("x", OTHER_NS).startInnerElement("y", FROM_NS).endInnerElement().endInnerElement()
+                .addText("text").build();
+
+        assertEquals(expected, remapped);
+        assertEquals(expected.hashCode(), remapped.hashCode());
+    }
+
+    public void testNothingToRemap() {
+        XMLElement element = new XMLElementBuilder("foo", OTHER_NS).startInnerElement("bar", OTHER_NS)
+                .endInnerElement().build();
+        XMLElement remapped = new NamespaceRemappingXMLElement(element, FROM_NS, TO_NS);
+
+        assertEquals(OTHER_NS, remapped.getNamespaceURI());
+        assertSame(element.getInnerFragments(), remapped.getInnerFragments());
+    }
+
+    public void testRendering() {
+        XMLElement remapped = new NamespaceRemappingXMLElement(original, FROM_NS, TO_NS);
+
+        assertEquals("<message xmlns=\"jabber:client\" to=\"a@vysper.org\"><body>hello</body>"
+                + "<x xmlns=\"http://example.com\"><y xmlns=\"jabber:server\"></y></x>text</message>", new Renderer(
+                remapped).getComplete());
+    }
+
+    public void testRemappedPrefixDeclaration() {
+        XMLElement element = new XMLElement(FROM_NS, "foo", "s", (Attribute[]) null, null,
+                java.util.Collections.singletonMap("s", FROM_NS));
+        XMLElement remapped = new NamespaceRemappingXMLElement(element, FROM_NS, TO_NS);
+
+        assertEquals(TO_NS, remapped.getDeclaredNamespaces().get("s"));
+        assertEquals("<s:foo xmlns:s=\"jabber:client\"></s:foo>", new Renderer(remapped).getComplete());
+    }
+}
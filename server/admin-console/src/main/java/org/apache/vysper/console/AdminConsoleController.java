@@ -64,6 +64,7 @@ public class AdminConsoleController {
         COMMANDS.put("get-online-users-num", "Get online users");
         COMMANDS.put("add-user", "Add user");
         COMMANDS.put("change-user-password", "Change user password");
+        COMMANDS.put("get-stage-latencies", "Get stage latencies");
     }
     
     private ConnectionConfiguration connectionConfiguration;
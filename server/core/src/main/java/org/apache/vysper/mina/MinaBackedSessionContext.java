@@ -24,6 +24,7 @@ import java.util.concurrent.TimeUnit;
 import org.apache.mina.core.future.CloseFuture;
 import org.apache.mina.core.future.IoFuture;
 import org.apache.mina.core.future.IoFutureListener;
+import org.apache.mina.core.future.WriteFuture;
 import org.apache.mina.core.session.IoSession;
 import org.apache.mina.filter.ssl.SslFilter;
 import org.apache.vysper.mina.codec.StanzaWriteInfo;
@@ -32,6 +33,7 @@ import org.apache.vysper.xmpp.server.AbstractSessionContext;
 import org.apache.vysper.xmpp.server.ServerRuntimeContext;
 import org.apache.vysper.xmpp.server.SessionState;
 import org.apache.vysper.xmpp.stanza.Stanza;
+import org.apache.vysper.xmpp.writer.FlowControlledStanzaWriter;
 import org.apache.vysper.xmpp.writer.StanzaWriter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -41,7 +43,8 @@ import org.slf4j.LoggerFactory;
  *
  * @author The Apache MINA Project (dev@mina.apache.org)
  */
-public class MinaBackedSessionContext extends AbstractSessionContext implements StanzaWriter, IoFutureListener {
+public class MinaBackedSessionContext extends AbstractSessionContext implements FlowControlledStanzaWriter,
+        IoFutureListener {
 
     final Logger logger = LoggerFactory.getLogger(MinaBackedSessionContext.class);
 
@@ -54,6 +57,9 @@ public class MinaBackedSessionContext extends AbstractSessionContext implements
 
     protected CloseFuture closeFuture;
 
+    /** MINA writes in order, so this completes after all previous writes */
+    private volatile WriteFuture lastWriteFuture = null;
+
     public MinaBackedSessionContext(ServerRuntimeContext serverRuntimeContext, SessionStateHolder sessionStateHolder,
             IoSession minaSession) {
         super(serverRuntimeContext, sessionStateHolder);
@@ -64,7 +70,7 @@ public class MinaBackedSessionContext extends AbstractSessionContext implements
     }
 
     public StanzaWriter getResponseWriter() {
-        return this;
+        return filterResponseWriter(this);
     }
 
     public void switchToTLS(boolean delayed, boolean clientTls) {
@@ -103,10 +109,28 @@ public class MinaBackedSessionContext extends AbstractSessionContext implements
             switchToTLS = false;
         }
 
-        minaSession.write(new StanzaWriteInfo(stanza, !openingStanzaWritten));
+        lastWriteFuture = minaSession.write(new StanzaWriteInfo(stanza, !openingStanzaWritten));
         openingStanzaWritten = true;
     }
 
+    public boolean whenWritten(final WriteListener listener) {
+        WriteFuture writeFuture = lastWriteFuture;
+        if (writeFuture == null || writeFuture.isDone()) {
+            return false;
+        }
+        writeFuture.addListener(new IoFutureListener<WriteFuture>() {
+            public void operationComplete(WriteFuture future) {
+                if (future.isWritten()) {
+                    listener.written();
+                } else {
+                    logger.warn("stanzas have not been written, session " + getSessionId(), future.getException());
+                    listener.failed();
+                }
+            }
+        });
+        return true;
+    }
+
     public void close() {
         logger.info("session will be closed now");
         closeFuture.setClosed();
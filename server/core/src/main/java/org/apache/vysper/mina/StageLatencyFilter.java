@@ -0,0 +1,68 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.vysper.mina;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.apache.mina.core.filterchain.IoFilterAdapter;
+import org.apache.mina.core.session.IoSession;
+import org.apache.vysper.xmpp.server.metrics.StageLatencies;
+import org.apache.vysper.xmpp.stanza.Stanza;
+
+/**
+ * timestamps decoded stanzas on the I/O thread, so that {@link XmppIoHandlerAdapter} can measure how long they 
+ * have been waiting for the executor, see {@link StageLatencies.Stage#DISPATCH}.
+ * must be placed between codec and executor filter. since the executor keeps the order of messages per session, 
+ * timestamps are correlated in FIFO order.
+ *
+ * @author The Apache MINA Project (dev@mina.apache.org)
+ */
+public class StageLatencyFilter extends IoFilterAdapter {
+
+    private static final String ATTRIBUTE_DECODED_TIMESTAMPS = "vysperDecodedTimestamps";
+
+    @SuppressWarnings("unchecked")
+    public void messageReceived(NextFilter nextFilter, IoSession session, Object message) throws Exception {
+        if (message instanceof Stanza) {
+            // only the I/O thread of this session creates the queue
+            Queue<Long> timestamps = (Queue<Long>) session.getAttribute(ATTRIBUTE_DECODED_TIMESTAMPS);
+            if (timestamps == null) {
+                timestamps = new ConcurrentLinkedQueue<Long>();
+                session.setAttribute(ATTRIBUTE_DECODED_TIMESTAMPS, timestamps);
+            }
+            timestamps.offer(System.nanoTime());
+        }
+
+        nextFilter.messageReceived(session, message);
+    }
+
+    /**
+     * @return the time the next stanza of the session has been decoded, or -1 if not known
+     */
+    @SuppressWarnings("unchecked")
+    public static long pollDecodedTimestamp(IoSession session) {
+        Queue<Long> timestamps = (Queue<Long>) session.getAttribute(ATTRIBUTE_DECODED_TIMESTAMPS);
+        if (timestamps == null)
+            return -1;
+        Long timestamp = timestamps.poll();
+        return timestamp == null ? -1 : timestamp;
+    }
+}
@@ -85,6 +85,7 @@ public class TCPEndpoint implements Endpoint {
         DefaultIoFilterChainBuilder filterChainBuilder = new DefaultIoFilterChainBuilder();
         filterChainBuilder.addLast("xmppCodec", new ProtocolCodecFilter(new XMPPProtocolCodecFactory()));
         filterChainBuilder.addLast("loggingFilter", new StanzaLoggingFilter());
+        filterChainBuilder.addLast("latencyFilter", new StageLatencyFilter());
         
         int coreThreadCount = 20;
         int maxThreadCount = 72;
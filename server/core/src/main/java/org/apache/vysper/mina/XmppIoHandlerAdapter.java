@@ -26,12 +26,15 @@ import org.apache.mina.core.session.IdleStatus;
 import org.apache.mina.core.session.IoSession;
 import org.apache.mina.core.write.WriteToClosedSessionException;
 import org.apache.mina.filter.ssl.SslFilter;
+import org.apache.vysper.mina.codec.StanzaWriteInfo;
+import org.apache.vysper.xml.decoder.XMPPDecoder;
 import org.apache.vysper.xml.fragment.XMLText;
 import org.apache.vysper.xmpp.protocol.SessionStateHolder;
 import org.apache.vysper.xmpp.protocol.StreamErrorCondition;
 import org.apache.vysper.xmpp.server.ServerRuntimeContext;
 import org.apache.vysper.xmpp.server.SessionContext;
 import org.apache.vysper.xmpp.server.SessionContext.SessionTerminationCause;
+import org.apache.vysper.xmpp.server.metrics.StageLatencies;
 import org.apache.vysper.xmpp.server.response.ServerErrorResponses;
 import org.apache.vysper.xmpp.stanza.Stanza;
 import org.slf4j.Logger;
@@ -72,6 +75,10 @@ public class XmppIoHandlerAdapter implements IoHandler {
         }
 
         Stanza stanza = (Stanza) message;
+        long decodedTimestamp = StageLatencyFilter.pollDecodedTimestamp(ioSession);
+        if (decodedTimestamp >= 0) {
+            StageLatencies.getInstance().record(StageLatencies.Stage.DISPATCH, stanza, decodedTimestamp);
+        }
         SessionContext session = extractSession(ioSession);
         SessionStateHolder stateHolder = (SessionStateHolder) ioSession
                 .getAttribute(ATTRIBUTE_VYSPER_SESSIONSTATEHOLDER);
@@ -101,7 +108,11 @@ public class XmppIoHandlerAdapter implements IoHandler {
     }
 
     public void messageSent(IoSession ioSession, Object o) throws Exception {
-        // TODO implement
+        if (o instanceof StanzaWriteInfo) {
+            StanzaWriteInfo stanzaWriteInfo = (StanzaWriteInfo) o;
+            StageLatencies.getInstance().record(StageLatencies.Stage.WRITE, stanzaWriteInfo.getStanza(),
+                    stanzaWriteInfo.getCreatedTimestamp());
+        }
     }
 
     public void sessionCreated(IoSession ioSession) throws Exception {
@@ -109,7 +120,6 @@ public class XmppIoHandlerAdapter implements IoHandler {
         SessionContext sessionContext = new MinaBackedSessionContext(serverRuntimeContext, stateHolder, ioSession);
         ioSession.setAttribute(ATTRIBUTE_VYSPER_SESSION, sessionContext);
         ioSession.setAttribute(ATTRIBUTE_VYSPER_SESSIONSTATEHOLDER, stateHolder);
-        ioSession.setAttribute(ATTRIBUTE_VYSPER_TERMINATE_REASON, SessionTerminationCause.CLIENT_BYEBYE);
     }
 
     public void sessionOpened(IoSession ioSession) throws Exception {
@@ -119,6 +129,11 @@ public class XmppIoHandlerAdapter implements IoHandler {
     public void sessionClosed(IoSession ioSession) throws Exception {
         SessionContext sessionContext = extractSession(ioSession);
         SessionTerminationCause cause = (SessionTerminationCause) ioSession.getAttribute(ATTRIBUTE_VYSPER_TERMINATE_REASON);
+        if (cause == null) {
+            // without an error, only a closed stream tells a regular logout from a lost connection
+            boolean streamClosed = ioSession.getAttribute(XMPPDecoder.SESSION_ATTRIBUTE_STREAM_CLOSED) != null;
+            cause = streamClosed ? SessionTerminationCause.CLIENT_BYEBYE : SessionTerminationCause.CONNECTION_ABORT;
+        }
         String sessionId = "UNKNOWN";
         if (sessionContext != null) {
             sessionId = sessionContext.getSessionId();
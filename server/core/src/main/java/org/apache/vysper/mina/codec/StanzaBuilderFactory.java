@@ -26,10 +26,13 @@ import org.apache.vysper.xml.decoder.XMLElementBuilderFactory;
 import org.apache.vysper.xml.fragment.AbstractXMLElementBuilder;
 import org.apache.vysper.xml.fragment.Attribute;
 import org.apache.vysper.xml.fragment.XMLFragment;
+import org.apache.vysper.xmpp.server.metrics.StageLatencies;
 import org.apache.vysper.xmpp.stanza.Stanza;
 import org.apache.vysper.xmpp.stanza.StanzaBuilder;
 
 /**
+ * creates {@link StanzaBuilder}s for the decoder, so that iq, message and presence stanzas are parsed directly
+ * into their typed {@link org.apache.vysper.xmpp.stanza.XMPPCoreStanza} classes
  *
  * @author The Apache MINA Project (dev@mina.apache.org)
  */
@@ -37,6 +40,26 @@ public class StanzaBuilderFactory extends XMLElementBuilderFactory {
 
     public AbstractXMLElementBuilder<StanzaBuilder, Stanza> createBuilder(String elementName, String namespaceURI,
             String namespacePrefix, List<Attribute> attributes, List<XMLFragment> innerFragments) {
-        return new StanzaBuilder(elementName, namespaceURI, namespacePrefix, attributes, innerFragments);
+        return new DecodingStanzaBuilder(elementName, namespaceURI, namespacePrefix, attributes, innerFragments);
+    }
+
+    /**
+     * measures the time from the start tag until the stanza is built, see {@link StageLatencies.Stage#DECODE}
+     */
+    private static class DecodingStanzaBuilder extends StanzaBuilder {
+
+        private final long started = System.nanoTime();
+
+        DecodingStanzaBuilder(String stanzaName, String namespaceURI, String namespacePrefix,
+                List<Attribute> attributes, List<XMLFragment> innerFragments) {
+            super(stanzaName, namespaceURI, namespacePrefix, attributes, innerFragments);
+        }
+
+        @Override
+        public Stanza build() {
+            Stanza stanza = super.build();
+            StageLatencies.getInstance().record(StageLatencies.Stage.DECODE, stanza, started);
+            return stanza;
+        }
     }
 }
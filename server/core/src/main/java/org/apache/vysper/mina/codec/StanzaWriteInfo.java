@@ -39,6 +39,8 @@ public class StanzaWriteInfo {
 
     private boolean writeClosingElement = true;
 
+    private final long createdTimestamp = System.nanoTime();
+
     public StanzaWriteInfo(Stanza stanza) {
         this.stanza = stanza;
     }
@@ -53,6 +55,13 @@ public class StanzaWriteInfo {
         return stanza;
     }
 
+    /**
+     * @return the time the stanza has been handed over for writing, as taken from System.nanoTime()
+     */
+    public long getCreatedTimestamp() {
+        return createdTimestamp;
+    }
+
     public boolean isWriteProlog() {
         return writeProlog;
     }
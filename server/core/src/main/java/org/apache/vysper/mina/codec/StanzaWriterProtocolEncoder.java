@@ -29,6 +29,7 @@ import org.apache.mina.filter.codec.ProtocolEncoderOutput;
 import org.apache.vysper.charset.CharsetUtil;
 import org.apache.vysper.mina.XmppIoHandlerAdapter;
 import org.apache.vysper.xml.fragment.Renderer;
+import org.apache.vysper.xmpp.server.metrics.StageLatencies;
 import org.apache.vysper.xmpp.stanza.Stanza;
 import org.apache.vysper.xmpp.writer.StanzaWriter;
 import org.slf4j.Logger;
@@ -48,6 +49,7 @@ public class StanzaWriterProtocolEncoder implements ProtocolEncoder {
             throw new IllegalArgumentException("StanzaWriterProtocolEncoder only handles StanzaWriteInfo objects");
         }
         StanzaWriteInfo stanzaWriteInfo = (StanzaWriteInfo) o;
+        long encodeStarted = System.nanoTime();
 
         Stanza element = stanzaWriteInfo.getStanza();
         Renderer renderer = new Renderer(element);
@@ -63,6 +65,7 @@ public class StanzaWriterProtocolEncoder implements ProtocolEncoder {
             byteBuffer.putString(renderer.getClosingElement(), getSessionEncoder());
 
         byteBuffer.flip();
+        StageLatencies.getInstance().record(StageLatencies.Stage.ENCODE, element, encodeStarted);
         protocolEncoderOutput.write(byteBuffer);
     }
 
@@ -19,9 +19,11 @@
  */
 package org.apache.vysper.spring;
 
+import java.util.Collection;
 import java.util.List;
 
 import org.apache.vysper.xmpp.addressing.Entity;
+import org.apache.vysper.xmpp.delivery.DirectDeliveryRecorder;
 import org.apache.vysper.xmpp.delivery.StanzaRelay;
 import org.apache.vysper.xmpp.delivery.failure.DeliveryException;
 import org.apache.vysper.xmpp.delivery.failure.DeliveryFailureStrategy;
@@ -37,7 +39,7 @@ import org.apache.vysper.xmpp.state.resourcebinding.ResourceRegistry;
  */
 public class SpringCompatibleDefaultServerRuntimeContext extends DefaultServerRuntimeContext {
 
-    private static class StanzaRelayHull implements StanzaRelay {
+    private static class StanzaRelayHull implements StanzaRelay, DirectDeliveryRecorder {
 
         protected StanzaRelay stanzaRelay;
 
@@ -53,6 +55,20 @@ public class SpringCompatibleDefaultServerRuntimeContext extends DefaultServerRu
             stanzaRelay.relay(receiver, stanza, deliveryFailureStrategy);
         }
 
+        public void relayToMany(Collection<Entity> receivers, Stanza stanza,
+                DeliveryFailureStrategy deliveryFailureStrategy) throws DeliveryException {
+            if (!isRelaying()) {
+                throw new ServiceNotAvailableException("relay is not relaying");
+            }
+            stanzaRelay.relayToMany(receivers, stanza, deliveryFailureStrategy);
+        }
+
+        public void recordDirectDelivery(Entity receiver, Stanza stanza) {
+            if (stanzaRelay instanceof DirectDeliveryRecorder) {
+                ((DirectDeliveryRecorder) stanzaRelay).recordDirectDelivery(receiver, stanza);
+            }
+        }
+
         public boolean isRelaying() {
             return stanzaRelay.isRelaying();
         }
@@ -44,7 +44,7 @@ public class StanzaSessionContext extends AbstractSessionContext implements Stan
     }
 
     public StanzaWriter getResponseWriter() {
-        return this;
+        return filterResponseWriter(this);
     }
 
     public void sendStanzaToServer(Stanza stanza) {
@@ -178,6 +178,7 @@ public class JcrRosterManager extends AbstractRosterManager {
             setOrRemoveAttribute(contactNode, "askType", askSubscriptionTypeValue);
             contactNode.save();
             logger.info("JCR node created/updated: " + contactNode);
+            contactWritten(jid, rosterItem);
         } catch (RepositoryException e) {
             throw new RosterException("failed to add contact node to roster for user = " + jid.getFullQualifiedName()
                     + " and contact jid = " + rosterItem.getJid().getFullQualifiedName(), e);
@@ -253,5 +254,7 @@ public class JcrRosterManager extends AbstractRosterManager {
         }
         if (!foundOne)
             logger.warn("failed to remove from roster for user " + jidUser + " the contact jid " + jidContact);
+        else
+            contactRemoved(jidUser, jidContact);
     }
 }
@@ -0,0 +1,280 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.vysper.storage.logstanzas;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.vysper.storage.logstanzas.BatchLogStorageProvider.Entry;
+import org.apache.vysper.xmpp.addressing.Entity;
+import org.apache.vysper.xmpp.server.resources.BackgroundFlusher;
+import org.apache.vysper.xmpp.stanza.Stanza;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * logs stanzas in the background, so that logging adds no latency to the thread relaying the stanza.
+ * stanzas are put into a bounded ring buffer, from where background writers take them in batches and 
+ * hand them to the actual provider. a {@link BatchLogStorageProvider} gets every batch in one call.
+ * with more than one writer, stanzas are not necessarily logged in the order they were relayed.
+ * when the buffer is full, the {@link OverflowPolicy} applies, by default the relaying thread waits.
+ *
+ * @author The Apache MINA Project (dev@mina.apache.org)
+ */
+public class AsyncLogStorageProvider implements LogStorageProvider {
+
+    final Logger logger = LoggerFactory.getLogger(AsyncLogStorageProvider.class);
+
+    /**
+     * what happens to a stanza which does not fit into the buffer anymore
+     */
+    public enum OverflowPolicy {
+        /** the stanza is not logged, the relaying thread is not held up */
+        DROP,
+        /** the relaying thread waits for space in the buffer, no stanza is lost */
+        BLOCK
+    }
+
+    public static final int DEFAULT_CAPACITY = 8192;
+
+    public static final int DEFAULT_BATCH_SIZE = 256;
+
+    private static final long IDLE_POLL_MILLIS = 1000;
+
+    private static final long STOP_TIMEOUT_MILLIS = 10000;
+
+    /**
+     * after the first one, only every so many dropped stanzas are logged
+     */
+    private static final long DROP_LOG_INTERVAL = 1000;
+
+    /**
+     * buffered on stop, one per writer, to wake the writers up immediately
+     */
+    private static final Entry STOP = new Entry(null, null);
+
+    protected final LogStorageProvider logStorageProvider;
+
+    protected final BlockingQueue<Entry> buffer;
+
+    protected final int writerCount;
+
+    protected int batchSize = DEFAULT_BATCH_SIZE;
+
+    protected OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+
+    private final BackgroundFlusher writers;
+
+    private final AtomicLong loggedCount = new AtomicLong();
+
+    private final AtomicLong droppedCount = new AtomicLong();
+
+    private final AtomicLong blockedCount = new AtomicLong();
+
+    private final AtomicLong failedCount = new AtomicLong();
+
+    public AsyncLogStorageProvider(LogStorageProvider logStorageProvider) {
+        this(logStorageProvider, DEFAULT_CAPACITY, 1);
+    }
+
+    public AsyncLogStorageProvider(LogStorageProvider logStorageProvider, int capacity, int writerCount) {
+        if (writerCount < 1) {
+            throw new IllegalArgumentException("at least one writer is required");
+        }
+        this.logStorageProvider = logStorageProvider;
+        this.buffer = new ArrayBlockingQueue<Entry>(capacity);
+        this.writerCount = writerCount;
+        this.writers = new BufferWriters();
+    }
+
+    public void setBatchSize(int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batch size must be positive");
+        }
+        this.batchSize = batchSize;
+    }
+
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    public LogStorageProvider getLogStorageProvider() {
+        return logStorageProvider;
+    }
+
+    public void logStanza(Entity receiver, Stanza stanza) {
+        Entry entry = new Entry(receiver, stanza);
+        if (writers.isStopped()) {
+            deliver(entry);
+            return;
+        }
+        writers.start();
+        if (buffer.offer(entry)) {
+            if (writers.isStopped()) {
+                // stopped in the meantime, the writers might already be gone
+                deliverRemaining();
+            }
+            return;
+        }
+
+        switch (overflowPolicy) {
+        case DROP:
+            dropped();
+            break;
+        case BLOCK:
+            blockedCount.incrementAndGet();
+            try {
+                buffer.put(entry);
+                if (writers.isStopped()) {
+                    deliverRemaining();
+                }
+            } catch (InterruptedException e) {
+                dropped();
+                Thread.currentThread().interrupt();
+            }
+            break;
+        }
+    }
+
+    private void dropped() {
+        long dropped = droppedCount.incrementAndGet();
+        if (dropped % DROP_LOG_INTERVAL == 1) {
+            logger.warn("stanza log buffer is full, {} stanzas have not been logged so far", dropped);
+        }
+    }
+
+    /**
+     * logs all buffered stanzas and stops the writers. stanzas logged from now on are handed to the 
+     * provider immediately.
+     */
+    public void stop() {
+        writers.stop(STOP_TIMEOUT_MILLIS);
+    }
+
+    private void deliverRemaining() {
+        List<Entry> remaining = new ArrayList<Entry>();
+        buffer.drainTo(remaining);
+        remaining.removeAll(Collections.singleton(STOP));
+        deliver(remaining);
+    }
+
+    public int getBuffered() {
+        return buffer.size();
+    }
+
+    public long getLoggedCount() {
+        return loggedCount.get();
+    }
+
+    /**
+     * @return the number of stanzas which were not logged because the buffer was full
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * @return how often a relaying thread had to wait for space in the buffer
+     */
+    public long getBlockedCount() {
+        return blockedCount.get();
+    }
+
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    public void writeInfo(Writer writer) throws IOException {
+        writer.append("logBuffered=\t").append(Integer.toString(getBuffered())).append("\n");
+        writer.append("logLogged=\t").append(Long.toString(getLoggedCount())).append("\n");
+        writer.append("logDropped=\t").append(Long.toString(getDroppedCount())).append("\n");
+        writer.append("logBlocked=\t").append(Long.toString(getBlockedCount())).append("\n");
+        writer.append("logFailed=\t").append(Long.toString(getFailedCount())).append("\n");
+    }
+
+    private void deliver(Entry entry) {
+        List<Entry> single = new ArrayList<Entry>(1);
+        single.add(entry);
+        deliver(single);
+    }
+
+    protected void deliver(List<Entry> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        try {
+            if (logStorageProvider instanceof BatchLogStorageProvider) {
+                ((BatchLogStorageProvider) logStorageProvider).logStanzas(batch);
+            } else {
+                for (Entry entry : batch) {
+                    logStorageProvider.logStanza(entry.getReceiver(), entry.getStanza());
+                }
+            }
+            loggedCount.addAndGet(batch.size());
+        } catch (RuntimeException e) {
+            failedCount.addAndGet(batch.size());
+            logger.warn("failed to log " + batch.size() + " stanzas", e);
+        }
+    }
+
+    private class BufferWriters extends BackgroundFlusher {
+
+        BufferWriters() {
+            super("AsyncLogStorageProvider", writerCount);
+        }
+
+        @Override
+        protected void wakeUp() {
+            // not waiting for room, writers which have left already would never make it. 
+            // if the buffer is full, no writer is waiting on it anyway
+            for (int i = 0; i < writerCount; i++) {
+                if (!buffer.offer(STOP)) {
+                    return;
+                }
+            }
+        }
+
+        @Override
+        protected void flushRound() throws InterruptedException {
+            Entry first = buffer.poll(IDLE_POLL_MILLIS, TimeUnit.MILLISECONDS);
+            if (first == null || first == STOP) {
+                return;
+            }
+            List<Entry> batch = new ArrayList<Entry>(batchSize);
+            batch.add(first);
+            // whatever else is buffered right now goes into the same batch
+            buffer.drainTo(batch, batchSize - 1);
+            batch.removeAll(Collections.singleton(STOP));
+            deliver(batch);
+        }
+
+        @Override
+        protected void flushRemaining() {
+            deliverRemaining();
+        }
+    }
+}
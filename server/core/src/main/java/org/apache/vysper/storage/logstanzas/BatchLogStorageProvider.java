@@ -0,0 +1,61 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.vysper.storage.logstanzas;
+
+import java.util.List;
+
+import org.apache.vysper.xmpp.addressing.Entity;
+import org.apache.vysper.xmpp.stanza.Stanza;
+
+/**
+ * a {@link LogStorageProvider} which can log many stanzas at once.
+ * used by {@link AsyncLogStorageProvider} to deliver its batches.
+ *
+ * @author The Apache MINA Project (dev@mina.apache.org)
+ */
+public interface BatchLogStorageProvider extends LogStorageProvider {
+
+    /**
+     * a stanza and the receiver it was relayed to
+     */
+    public static class Entry {
+        private final Entity receiver;
+
+        private final Stanza stanza;
+
+        public Entry(Entity receiver, Stanza stanza) {
+            this.receiver = receiver;
+            this.stanza = stanza;
+        }
+
+        public Entity getReceiver() {
+            return receiver;
+        }
+
+        public Stanza getStanza() {
+            return stanza;
+        }
+    }
+
+    /**
+     * logs all entries, in the given order
+     */
+    void logStanzas(List<Entry> entries);
+}
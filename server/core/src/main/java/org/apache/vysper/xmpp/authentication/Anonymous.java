@@ -28,7 +28,7 @@ import org.apache.vysper.xmpp.protocol.SessionStateHolder;
 import org.apache.vysper.xmpp.server.SessionContext;
 import org.apache.vysper.xmpp.server.SessionState;
 import org.apache.vysper.xmpp.stanza.Stanza;
-import org.apache.vysper.xmpp.uuid.JVMBuiltinUUIDGenerator;
+import org.apache.vysper.xmpp.uuid.ThreadLocalSecureRandomUUIDGenerator;
 import org.apache.vysper.xmpp.uuid.UUIDGenerator;
 
 /**
@@ -39,7 +39,7 @@ import org.apache.vysper.xmpp.uuid.UUIDGenerator;
 @SpecCompliant(spec = "rfc4505", status = FINISHED, coverage = COMPLETE)
 public class Anonymous implements SASLMechanism {
 
-    UUIDGenerator uuidGenerator = new JVMBuiltinUUIDGenerator();
+    UUIDGenerator uuidGenerator = new ThreadLocalSecureRandomUUIDGenerator();
 
     public String getName() {
         return "ANONYMOUS";
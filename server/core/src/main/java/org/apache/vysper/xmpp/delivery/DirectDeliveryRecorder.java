@@ -0,0 +1,40 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+
+package org.apache.vysper.xmpp.delivery;
+
+import org.apache.vysper.xmpp.addressing.Entity;
+import org.apache.vysper.xmpp.stanza.Stanza;
+
+/**
+ * implemented by relays which do more than delivering a stanza, like logging it or persisting it to 
+ * online storage. stanzas which are written to a session directly, without being relayed, like replayed 
+ * offline stanzas, are reported to the relay, so that these side effects happen for them as well.
+ *
+ * @author The Apache MINA Project (dev@mina.apache.org)
+ */
+public interface DirectDeliveryRecorder {
+
+    /**
+     * @param receiver the entity the stanza has been written to
+     * @param stanza the stanza as written
+     */
+    public void recordDirectDelivery(Entity receiver, Stanza stanza);
+}
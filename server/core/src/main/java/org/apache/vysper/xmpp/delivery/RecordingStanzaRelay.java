@@ -20,6 +20,7 @@
 package org.apache.vysper.xmpp.delivery;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Iterator;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -48,6 +49,11 @@ public class RecordingStanzaRelay implements StanzaRelay {
         entityStanzaPairs.add(new Triple(receiver, stanza, deliveryFailureStrategy));
     }
 
+    public void relayToMany(Collection<Entity> receivers, Stanza stanza,
+            DeliveryFailureStrategy deliveryFailureStrategy) throws DeliveryException {
+        StanzaRelayUtil.relayOneByOne(this, receivers, stanza, deliveryFailureStrategy);
+    }
+
     public boolean isRelaying() {
         return isRelaying.get();
     }
@@ -0,0 +1,38 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.vysper.xmpp.delivery;
+
+import org.apache.vysper.xmpp.delivery.failure.DeliveryException;
+import org.apache.vysper.xmpp.stanza.Stanza;
+
+/**
+ * an offline stanza receiver which might refuse to take a stanza, for example because the receiver's 
+ * quota is exceeded
+ *
+ * @author The Apache MINA Project (dev@mina.apache.org)
+ */
+public interface RejectingOfflineStanzaReceiver extends OfflineStanzaReceiver {
+
+    /**
+     * @throws DeliveryException if the stanza is refused, to be handled by the delivery failure strategy
+     */
+    public void receiveOrReject(Stanza stanza) throws DeliveryException;
+
+}
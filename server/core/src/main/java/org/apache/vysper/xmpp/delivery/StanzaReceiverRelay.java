@@ -19,6 +19,7 @@
  */
 package org.apache.vysper.xmpp.delivery;
 
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -85,6 +86,11 @@ public class StanzaReceiverRelay implements StanzaRelay {
         receiverMap.get(receiver).deliver(stanza);
     }
 
+    public void relayToMany(Collection<Entity> receivers, Stanza stanza,
+            DeliveryFailureStrategy deliveryFailureStrategy) throws DeliveryException {
+        StanzaRelayUtil.relayOneByOne(this, receivers, stanza, deliveryFailureStrategy);
+    }
+
     public boolean isRelaying() {
         return acceptingMode.get();
     }
@@ -20,6 +20,8 @@
 
 package org.apache.vysper.xmpp.delivery;
 
+import java.util.Collection;
+
 import org.apache.vysper.xmpp.addressing.Entity;
 import org.apache.vysper.xmpp.delivery.failure.DeliveryException;
 import org.apache.vysper.xmpp.delivery.failure.DeliveryFailureStrategy;
@@ -43,6 +45,19 @@ public interface StanzaRelay {
     public void relay(Entity receiver, Stanza stanza, DeliveryFailureStrategy deliveryFailureStrategy)
             throws DeliveryException;
 
+    /**
+     * relaying the same stanza to many receivers, for example a presence broadcast or a room message.
+     * each receiver gets the stanza with its 'to' attribute replaced by the receiver.
+     * relaying continues for the remaining receivers if relaying to one of them fails.
+     * @param receivers the stanza receivers
+     * @param stanza the payload, used as a template
+     * @param deliveryFailureStrategy what to do in case of errors, applied per receiver
+     * @throws ServiceNotAvailableException relaying is stopped
+     * @throws PartialDeliveryException relaying failed for some of the receivers, lists each of them with its error
+     */
+    public void relayToMany(Collection<Entity> receivers, Stanza stanza,
+            DeliveryFailureStrategy deliveryFailureStrategy) throws DeliveryException;
+
     /**
      * @return TRUE iff the relay is live (started and not stopped)
      */
@@ -23,6 +23,7 @@ import org.apache.vysper.xmpp.addressing.Entity;
 import org.apache.vysper.xmpp.addressing.EntityUtils;
 import org.apache.vysper.xmpp.delivery.failure.DeliveryException;
 import org.apache.vysper.xmpp.delivery.failure.DeliveryFailureStrategy;
+import org.apache.vysper.xmpp.delivery.failure.PartialDeliveryException;
 import org.apache.vysper.xmpp.delivery.failure.ServiceNotAvailableException;
 import org.apache.vysper.xmpp.server.ServerRuntimeContext;
 import org.apache.vysper.xmpp.server.resources.ManagedThreadPool;
@@ -30,6 +31,11 @@ import org.apache.vysper.xmpp.stanza.Stanza;
 
 import java.io.IOException;
 import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
@@ -39,7 +45,7 @@ import java.util.concurrent.atomic.AtomicBoolean;
  *
  * @author The Apache MINA Project (dev@mina.apache.org)
  */
-public class StanzaRelayBroker implements StanzaRelay {
+public class StanzaRelayBroker implements StanzaRelay, DirectDeliveryRecorder {
 
     protected StanzaRelay internalRelay;
 
@@ -74,10 +80,72 @@ public class StanzaRelayBroker implements StanzaRelay {
             throw new ServiceNotAvailableException("relay is not relaying");
         }
 
+        if (isRelayedInternally(receiver)) {
+            internalRelay.relay(receiver, stanza, deliveryFailureStrategy);
+        } else {
+            checkRelayingToExternal();
+            externalRelay.relay(receiver, stanza, deliveryFailureStrategy);
+        }
+    }
+
+    /**
+     * splits the receivers into local and remote ones and hands each group to the internal or external relay 
+     * as a whole, so that they can fan out the stanza in batches.
+     */
+    public void relayToMany(Collection<Entity> receivers, Stanza stanza,
+            DeliveryFailureStrategy deliveryFailureStrategy) throws DeliveryException {
+
+        if (!isRelaying()) {
+            throw new ServiceNotAvailableException("relay is not relaying");
+        }
+
+        List<Entity> internalReceivers = new ArrayList<Entity>(receivers.size());
+        List<Entity> externalReceivers = null;
+        for (Entity receiver : receivers) {
+            if (isRelayedInternally(receiver)) {
+                internalReceivers.add(receiver);
+            } else {
+                if (externalReceivers == null)
+                    externalReceivers = new ArrayList<Entity>();
+                externalReceivers.add(receiver);
+            }
+        }
+
+        Map<Entity, DeliveryException> failures = new LinkedHashMap<Entity, DeliveryException>();
+        if (!internalReceivers.isEmpty()) {
+            try {
+                internalRelay.relayToMany(internalReceivers, stanza, deliveryFailureStrategy);
+            } catch (PartialDeliveryException e) {
+                failures.putAll(e.getFailures());
+            } catch (DeliveryException e) {
+                for (Entity receiver : internalReceivers) {
+                    failures.put(receiver, e);
+                }
+            }
+        }
+        if (externalReceivers != null) {
+            checkRelayingToExternal();
+            try {
+                externalRelay.relayToMany(externalReceivers, stanza, deliveryFailureStrategy);
+            } catch (PartialDeliveryException e) {
+                failures.putAll(e.getFailures());
+            } catch (DeliveryException e) {
+                for (Entity receiver : externalReceivers) {
+                    failures.put(receiver, e);
+                }
+            }
+        }
+        if (!failures.isEmpty())
+            throw new PartialDeliveryException(failures);
+    }
+
+    /**
+     * @return TRUE, if the receiver is this server or one of its components, FALSE, if it is a remote entity
+     */
+    private boolean isRelayedInternally(Entity receiver) {
         boolean toServerTLD = receiver == null
                 || (!receiver.isNodeSet() && EntityUtils.isAddressingServer(receiver, serverRuntimeContext.getServerEnitity()));
         
-        boolean toComponent = receiver != null && EntityUtils.isAddressingServerComponent(receiver, serverRuntimeContext.getServerEnitity());
         if (toServerTLD) {
             // TODO handle by server
 
@@ -89,14 +157,19 @@ public class StanzaRelayBroker implements StanzaRelay {
             //return;
         }
 
+        boolean toComponent = EntityUtils.isAddressingServerComponent(receiver, serverRuntimeContext.getServerEnitity());
+        return EntityUtils.isAddressingServer(receiver, serverRuntimeContext.getServerEnitity()) || toComponent;
+    }
+
+    private void checkRelayingToExternal() {
         boolean relayToExternal = serverRuntimeContext.getServerFeatures().isRelayingToFederationServers();
+        if (!relayToExternal)
+            throw new IllegalStateException("this server is not relaying to external currently");
+    }
 
-        if (EntityUtils.isAddressingServer(receiver, serverRuntimeContext.getServerEnitity()) || toComponent) {
-            internalRelay.relay(receiver, stanza, deliveryFailureStrategy);
-        } else {
-            if (!relayToExternal)
-                throw new IllegalStateException("this server is not relaying to external currently");
-            externalRelay.relay(receiver, stanza, deliveryFailureStrategy);
+    public void recordDirectDelivery(Entity receiver, Stanza stanza) {
+        if (internalRelay instanceof DirectDeliveryRecorder) {
+            ((DirectDeliveryRecorder) internalRelay).recordDirectDelivery(receiver, stanza);
         }
     }
 
@@ -0,0 +1,64 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.vysper.xmpp.delivery;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.vysper.xmpp.addressing.Entity;
+import org.apache.vysper.xmpp.delivery.failure.DeliveryException;
+import org.apache.vysper.xmpp.delivery.failure.DeliveryFailureStrategy;
+import org.apache.vysper.xmpp.delivery.failure.PartialDeliveryException;
+import org.apache.vysper.xmpp.delivery.failure.ServiceNotAvailableException;
+import org.apache.vysper.xmpp.stanza.Stanza;
+import org.apache.vysper.xmpp.stanza.StanzaBuilder;
+
+/**
+ * helpers for {@link StanzaRelay} implementations
+ *
+ * @author The Apache MINA Project (dev@mina.apache.org)
+ */
+public class StanzaRelayUtil {
+
+    /**
+     * implements {@link StanzaRelay#relayToMany(Collection, Stanza, DeliveryFailureStrategy)} for relays which 
+     * have no cheaper way than relaying to every receiver on its own.
+     * the stanza is not copied, every receiver gets an attribute overlay with its own 'to'.
+     */
+    public static void relayOneByOne(StanzaRelay relay, Collection<Entity> receivers, Stanza stanza,
+            DeliveryFailureStrategy deliveryFailureStrategy) throws DeliveryException {
+        if (!relay.isRelaying())
+            throw new ServiceNotAvailableException("relay is not relaying");
+        Map<Entity, DeliveryException> failures = null;
+        for (Entity receiver : receivers) {
+            try {
+                relay.relay(receiver, StanzaBuilder.createForwardStanza(stanza, null, receiver),
+                        deliveryFailureStrategy);
+            } catch (DeliveryException e) {
+                if (failures == null)
+                    failures = new LinkedHashMap<Entity, DeliveryException>();
+                failures.put(receiver, e);
+            }
+        }
+        if (failures != null)
+            throw new PartialDeliveryException(failures);
+    }
+}
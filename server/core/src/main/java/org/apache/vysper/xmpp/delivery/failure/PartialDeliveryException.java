@@ -0,0 +1,53 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.vysper.xmpp.delivery.failure;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.vysper.xmpp.addressing.Entity;
+
+/**
+ * relaying to many receivers failed for some of them. 
+ * all receivers which are not listed have been accepted for delivery.
+ *
+ * @author The Apache MINA Project (dev@mina.apache.org)
+ */
+public class PartialDeliveryException extends DeliveryException {
+
+    private final Map<Entity, DeliveryException> failures;
+
+    public PartialDeliveryException(Map<Entity, DeliveryException> failures) {
+        super("relaying failed for " + failures.size() + " receiver(s)", firstOf(failures));
+        this.failures = Collections.unmodifiableMap(new LinkedHashMap<Entity, DeliveryException>(failures));
+    }
+
+    private static DeliveryException firstOf(Map<Entity, DeliveryException> failures) {
+        return failures.isEmpty() ? null : failures.values().iterator().next();
+    }
+
+    /**
+     * @return every receiver which the stanza has not been relayed to, with its failure, in relaying order
+     */
+    public Map<Entity, DeliveryException> getFailures() {
+        return failures;
+    }
+}
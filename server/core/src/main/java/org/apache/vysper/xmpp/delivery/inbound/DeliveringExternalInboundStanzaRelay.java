@@ -21,6 +21,12 @@ package org.apache.vysper.xmpp.delivery.inbound;
 
 import java.io.IOException;
 import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
@@ -148,12 +154,46 @@ public class DeliveringExternalInboundStanzaRelay implements StanzaRelay, Manage
         XMPPCoreStanza coreStanza = XMPPCoreStanza.getWrapper(stanza);
 
         if(coreStanza != null) {
-            Future<RelayResult> resultFuture = executor.submit(new OutboundRelayCallable(coreStanza, deliveryFailureStrategy));
+            Future<RelayResult> resultFuture = executor.submit(new OutboundRelayCallable(Collections
+                    .singletonList(coreStanza), deliveryFailureStrategy));
         } else {
             // ignore non-core stanzas
         }
     }
 
+    /**
+     * submits one task per remote domain, which connects to the domain only once and writes the stanza 
+     * for all receivers within that domain.
+     */
+    public void relayToMany(Collection<Entity> receivers, Stanza stanza,
+            DeliveryFailureStrategy deliveryFailureStrategy) throws DeliveryException {
+
+        if (!isRelaying()) {
+            throw new ServiceNotAvailableException("external inbound relay is not relaying");
+        }
+        if (XMPPCoreStanza.getWrapper(stanza) == null) {
+            // ignore non-core stanzas
+            return;
+        }
+
+        Map<String, List<XMPPCoreStanza>> stanzasByDomain = new HashMap<String, List<XMPPCoreStanza>>();
+        for (Entity receiver : receivers) {
+            List<XMPPCoreStanza> domainStanzas = stanzasByDomain.get(receiver.getDomain());
+            if (domainStanzas == null) {
+                domainStanzas = new ArrayList<XMPPCoreStanza>();
+                stanzasByDomain.put(receiver.getDomain(), domainStanzas);
+            }
+            // only the 'to' differs, the rest of the stanza is shared
+            Stanza receiverStanza = StanzaBuilder.rewriteNamespace(StanzaBuilder.createForwardStanza(stanza, null,
+                    receiver), NamespaceURIs.JABBER_CLIENT, NamespaceURIs.JABBER_SERVER);
+            domainStanzas.add(XMPPCoreStanza.getWrapper(receiverStanza));
+        }
+
+        for (List<XMPPCoreStanza> domainStanzas : stanzasByDomain.values()) {
+            executor.submit(new OutboundRelayCallable(domainStanzas, deliveryFailureStrategy));
+        }
+    }
+
     public boolean isRelaying() {
         return !executor.isShutdown();
     }
@@ -162,13 +202,16 @@ public class DeliveringExternalInboundStanzaRelay implements StanzaRelay, Manage
         this.executor.shutdown();
     }
 
+    /**
+     * writes stanzas which are all addressed to the same remote domain
+     */
     private class OutboundRelayCallable implements Callable<RelayResult> {
-        private XMPPCoreStanza stanza;
+        private List<XMPPCoreStanza> stanzas;
 
         private DeliveryFailureStrategy deliveryFailureStrategy;
 
-        OutboundRelayCallable(XMPPCoreStanza stanza, DeliveryFailureStrategy deliveryFailureStrategy) {
-            this.stanza = stanza;
+        OutboundRelayCallable(List<XMPPCoreStanza> stanzas, DeliveryFailureStrategy deliveryFailureStrategy) {
+            this.stanzas = stanzas;
             this.deliveryFailureStrategy = deliveryFailureStrategy;
         }
 
@@ -184,13 +227,20 @@ public class DeliveringExternalInboundStanzaRelay implements StanzaRelay, Manage
 
         private RelayResult runFailureStrategy(RelayResult relayResult) {
             if (deliveryFailureStrategy != null) {
-                try {
-                    deliveryFailureStrategy.process(stanza, relayResult.getProcessingErrors());
-                } catch (DeliveryException e) {
-                    return new RelayResult(e);
-                } catch (RuntimeException e) {
-                    return new RelayResult(new DeliveryException(e));
+                RelayResult failureResult = null;
+                for (XMPPCoreStanza stanza : stanzas) {
+                    try {
+                        deliveryFailureStrategy.process(stanza, relayResult.getProcessingErrors());
+                    } catch (DeliveryException e) {
+                        if (failureResult == null)
+                            failureResult = new RelayResult(e);
+                    } catch (RuntimeException e) {
+                        if (failureResult == null)
+                            failureResult = new RelayResult(new DeliveryException(e));
+                    }
                 }
+                if (failureResult != null)
+                    return failureResult;
             }
             // TODO throw relayResult.getProcessingError() in some appropriate context
             return relayResult;
@@ -203,9 +253,11 @@ public class DeliveringExternalInboundStanzaRelay implements StanzaRelay, Manage
         protected RelayResult deliver() {
             try {
                 RelayResult relayResult = new RelayResult();
-                XMPPServerConnector connector = serverRuntimeContext.getServerConnectorRegistry().connect(EntityImpl.parseUnchecked(stanza.getTo().getDomain()));
+                XMPPServerConnector connector = serverRuntimeContext.getServerConnectorRegistry().connect(EntityImpl.parseUnchecked(stanzas.get(0).getTo().getDomain()));
 
-                connector.write(stanza);
+                for (XMPPCoreStanza stanza : stanzas) {
+                    connector.write(stanza);
+                }
                 return relayResult.setProcessed();
             } catch (DeliveryException e) {
                 return new RelayResult(e);
@@ -21,31 +21,46 @@ package org.apache.vysper.xmpp.delivery.inbound;
 
 import java.io.IOException;
 import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Future;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.RejectedExecutionHandler;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.vysper.compliance.SpecCompliant;
 import org.apache.vysper.storage.StorageProviderRegistry;
+import org.apache.vysper.storage.logstanzas.AsyncLogStorageProvider;
 import org.apache.vysper.storage.logstanzas.LogStorageProvider;
 import org.apache.vysper.xmpp.addressing.Entity;
 import org.apache.vysper.xmpp.addressing.EntityUtils;
 import org.apache.vysper.xmpp.authentication.AccountManagement;
+import org.apache.vysper.xmpp.delivery.DirectDeliveryRecorder;
 import org.apache.vysper.xmpp.delivery.OfflineStanzaReceiver;
+import org.apache.vysper.xmpp.delivery.RejectingOfflineStanzaReceiver;
 import org.apache.vysper.xmpp.delivery.StanzaRelay;
 import org.apache.vysper.xmpp.delivery.failure.DeliveredToOfflineReceiverException;
 import org.apache.vysper.xmpp.delivery.failure.DeliveryException;
 import org.apache.vysper.xmpp.delivery.failure.DeliveryFailureStrategy;
 import org.apache.vysper.xmpp.delivery.failure.LocalRecipientOfflineException;
 import org.apache.vysper.xmpp.delivery.failure.NoSuchLocalUserException;
+import org.apache.vysper.xmpp.delivery.failure.PartialDeliveryException;
 import org.apache.vysper.xmpp.delivery.failure.ServiceNotAvailableException;
 import org.apache.vysper.xmpp.modules.extension.xep0160_offline_storage.OfflineStorageProvider;
 import org.apache.vysper.xmpp.modules.extension.xep0160_offline_storage.OnlineStorageProvider;
+import org.apache.vysper.xmpp.modules.extension.xep0160_offline_storage.OnlineStorageWriteBehind;
 import org.apache.vysper.xmpp.protocol.SessionStateHolder;
 import org.apache.vysper.xmpp.protocol.StanzaHandler;
 import org.apache.vysper.xmpp.protocol.StanzaProcessor;
@@ -53,27 +68,36 @@ import org.apache.vysper.xmpp.protocol.worker.InboundStanzaProtocolWorker;
 import org.apache.vysper.xmpp.server.ServerRuntimeContext;
 import org.apache.vysper.xmpp.server.SessionContext;
 import org.apache.vysper.xmpp.server.SessionState;
+import org.apache.vysper.xmpp.server.metrics.StageLatencies;
 import org.apache.vysper.xmpp.server.resources.ManagedThreadPool;
 import org.apache.vysper.xmpp.server.resources.ManagedThreadPoolUtil;
-import org.apache.vysper.xmpp.stanza.IQStanza;
+import org.apache.vysper.xmpp.server.resources.StanzaExecutor;
+import org.apache.vysper.xmpp.server.resources.StanzaLane;
+import org.apache.vysper.xmpp.server.resources.StanzaLaneQueue;
+import org.apache.vysper.xmpp.server.resources.StanzaLaneTask;
 import org.apache.vysper.xmpp.stanza.MessageStanza;
 import org.apache.vysper.xmpp.stanza.MessageStanzaType;
-import org.apache.vysper.xmpp.stanza.PresenceStanza;
 import org.apache.vysper.xmpp.stanza.Stanza;
+import org.apache.vysper.xmpp.stanza.StanzaBuilder;
 import org.apache.vysper.xmpp.stanza.XMPPCoreStanza;
+import org.apache.vysper.xmpp.stanza.XMPPCoreStanzaKind;
 import org.apache.vysper.xmpp.state.resourcebinding.ResourceRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * relays all 'incoming' stanzas to internal sessions, acts as a 'stage' by using a ThreadPoolExecutor
+ * with a {@link StanzaLaneQueue}, which serves IQs, messages, presences and pubsub events weighted-fair.
+ * stanzas to the same user (bare JID) are relayed one after the other in the order they were 
+ * handed to the relay, see {@link RecipientLane}. stanzas to different users are relayed in parallel.
+ * a stanza relayed to many users at once is relayed by only a few tasks, see {@link FanOut}.
  * 'incoming' here means:
  * a. stanzas coming in from other servers
  * b. stanzas coming from other (local) sessions and are targeted to clients on this server
  *
  * @author The Apache MINA Project (dev@mina.apache.org)
  */
-public class DeliveringInternalInboundStanzaRelay implements StanzaRelay, ManagedThreadPool {
+public class DeliveringInternalInboundStanzaRelay implements StanzaRelay, ManagedThreadPool, DirectDeliveryRecorder {
 
     final Logger logger = LoggerFactory.getLogger(DeliveringInternalInboundStanzaRelay.class);
 
@@ -89,6 +113,8 @@ public class DeliveringInternalInboundStanzaRelay implements StanzaRelay, Manage
 
         public void rejectedExecution(Runnable runnable, ThreadPoolExecutor threadPoolExecutor) {
             logger.info("relaying of internal inbound stanza has been rejected");
+            // let the relaying party know, so that the failure strategy can be applied
+            throw new RejectedExecutionException("internal inbound stanza rejected");
         }
     }
 
@@ -96,6 +122,8 @@ public class DeliveringInternalInboundStanzaRelay implements StanzaRelay, Manage
 
     private static final Integer PRIO_THRESHOLD = 0;
 
+    private static final int DEFAULT_FAN_OUT_GROUP_SIZE = 100;
+
     protected ResourceRegistry resourceRegistry;
 
     protected ExecutorService executor;
@@ -110,9 +138,34 @@ public class DeliveringInternalInboundStanzaRelay implements StanzaRelay, Manage
 
     protected LogStorageProvider logStorageProvider = null;
 
+    protected OnlineStorageWriteBehind onlineStorageWriteBehind = null;
+
+    protected int fanOutGroupSize = DEFAULT_FAN_OUT_GROUP_SIZE;
+
     protected long lastCompleted = 0;
     protected long lastDumpTimestamp = 0;
 
+    /**
+     * lanes of all users with stanzas pending, keyed by bare JID
+     */
+    protected final ConcurrentMap<Entity, RecipientLane> recipientLanes = new ConcurrentHashMap<Entity, RecipientLane>();
+
+    /**
+     * maximum number of pending stanzas per recipient, indexed by {@link StanzaLane} ordinal
+     */
+    protected final int[] recipientLaneCapacities = new int[StanzaLane.values().length];
+
+    /**
+     * stanzas not accepted because the recipient's lane was full
+     */
+    protected final AtomicLong recipientLaneRejects = new AtomicLong();
+
+    {
+        for (StanzaLane lane : StanzaLane.values()) {
+            recipientLaneCapacities[lane.ordinal()] = lane.getDefaultRecipientCapacity();
+        }
+    }
+
     public DeliveringInternalInboundStanzaRelay(Entity serverEntity, ResourceRegistry resourceRegistry,
                                                 StorageProviderRegistry storageProviderRegistry) {
         this(serverEntity, resourceRegistry, (AccountManagement) storageProviderRegistry
@@ -125,11 +178,20 @@ public class DeliveringInternalInboundStanzaRelay implements StanzaRelay, Manage
         this.resourceRegistry = resourceRegistry;
         this.accountVerification = accountVerification;
         this.offlineStanzaReceiver =offlineStanzaReceiver;
-        int coreThreadCount = 36;
-        int maxThreadCount = 72;
+        if (offlineStanzaReceiver instanceof OnlineStorageProvider) {
+            // relayed stanzas are persisted in the background, not on the relaying threads
+            this.onlineStorageWriteBehind = new OnlineStorageWriteBehind((OnlineStorageProvider) offlineStanzaReceiver);
+        }
+        int threadCount = 36;
         int threadTimeoutSeconds = 2 * 60 * 1000;
-        this.executor = new ThreadPoolExecutor(coreThreadCount, maxThreadCount, threadTimeoutSeconds, TimeUnit.SECONDS,
-                new LinkedBlockingQueue<Runnable>(), new RejectedDeliveryHandler(this, logger));
+        // stanzas are queued per lane, so that presence bursts do not delay messages and IQs.
+        // the pool does not grow beyond its core size, otherwise it would add threads instead of applying the 
+        // lane capacities
+        ThreadPoolExecutor threadPoolExecutor = new ThreadPoolExecutor(threadCount, threadCount,
+                threadTimeoutSeconds, TimeUnit.SECONDS, new StanzaLaneQueue(), new RejectedDeliveryHandler(this,
+                        logger));
+        threadPoolExecutor.allowCoreThreadTimeOut(true);
+        this.executor = threadPoolExecutor;
     }
 
     /*package*/ DeliveringInternalInboundStanzaRelay(ExecutorService executor) {
@@ -144,13 +206,31 @@ public class DeliveringInternalInboundStanzaRelay implements StanzaRelay, Manage
         this.logStorageProvider = logStorageProvider;
     }
 
+    /**
+     * @param onlineStorageWriteBehind persists relayed stanzas, if the offline receiver is an {@link OnlineStorageProvider}.
+     * if NULL, stanzas are persisted on the relaying threads.
+     */
+    public void setOnlineStorageWriteBehind(OnlineStorageWriteBehind onlineStorageWriteBehind) {
+        this.onlineStorageWriteBehind = onlineStorageWriteBehind;
+    }
+
+    public OnlineStorageWriteBehind getOnlineStorageWriteBehind() {
+        return onlineStorageWriteBehind;
+    }
+
     public void setMaxThreadCount(int maxThreadPoolCount) {
         if (!(executor instanceof ThreadPoolExecutor)) {
             throw new IllegalStateException("cannot set max thread count for " + executor.getClass());
         }
         ThreadPoolExecutor threadPoolExecutor = (ThreadPoolExecutor)executor;
-        threadPoolExecutor.setCorePoolSize(maxThreadPoolCount);
-        threadPoolExecutor.setMaximumPoolSize(2*maxThreadPoolCount);
+        // core and maximum size are kept equal, see constructor
+        if (maxThreadPoolCount > threadPoolExecutor.getMaximumPoolSize()) {
+            threadPoolExecutor.setMaximumPoolSize(maxThreadPoolCount);
+            threadPoolExecutor.setCorePoolSize(maxThreadPoolCount);
+        } else {
+            threadPoolExecutor.setCorePoolSize(maxThreadPoolCount);
+            threadPoolExecutor.setMaximumPoolSize(maxThreadPoolCount);
+        }
     }
 
     public void setThreadTimeoutSeconds(int threadTimeoutSeconds) {
@@ -161,6 +241,62 @@ public class DeliveringInternalInboundStanzaRelay implements StanzaRelay, Manage
         threadPoolExecutor.setKeepAliveTime(threadTimeoutSeconds, TimeUnit.SECONDS);
     }
 
+    public void setLaneWeight(StanzaLane lane, int weight) {
+        getLaneQueue().setWeight(lane, weight);
+    }
+
+    public void setLaneCapacity(StanzaLane lane, int capacity) {
+        getLaneQueue().setCapacity(lane, capacity);
+    }
+
+    /**
+     * @param fanOutGroupSize the maximum number of receivers relayed to by one fan-out task 
+     */
+    public void setFanOutGroupSize(int fanOutGroupSize) {
+        if (fanOutGroupSize < 1) {
+            throw new IllegalArgumentException("fan-out group size must be positive");
+        }
+        this.fanOutGroupSize = fanOutGroupSize;
+    }
+
+    /**
+     * @param capacity the maximum number of stanzas of the given lane pending for one recipient. when the 
+     * recipient's lane is full, {@link #relay} rejects further stanzas just like a full {@link StanzaLaneQueue} 
+     * lane does, and {@link #relayToMany} applies the failure strategy to the receiver
+     */
+    public void setRecipientLaneCapacity(StanzaLane lane, int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("recipient lane capacity must be at least 1");
+        synchronized (recipientLaneCapacities) {
+            recipientLaneCapacities[lane.ordinal()] = capacity;
+        }
+    }
+
+    public int getRecipientLaneCapacity(StanzaLane lane) {
+        synchronized (recipientLaneCapacities) {
+            return recipientLaneCapacities[lane.ordinal()];
+        }
+    }
+
+    public long getRecipientLaneRejects() {
+        return recipientLaneRejects.get();
+    }
+
+    private StanzaLaneQueue getLaneQueue() {
+        if (!(executor instanceof ThreadPoolExecutor)
+                || !(((ThreadPoolExecutor) executor).getQueue() instanceof StanzaLaneQueue)) {
+            throw new IllegalStateException("no stanza lanes for " + executor.getClass());
+        }
+        return (StanzaLaneQueue) ((ThreadPoolExecutor) executor).getQueue();
+    }
+
+    /**
+     * @return the relay's stage, for work which should be queued like relayed stanzas, see {@link StanzaExecutor}
+     */
+    public Executor getExecutor() {
+        return executor;
+    }
+
     public void dumpThreadPoolInfo(Writer writer) throws IOException {
         if (!(executor instanceof ThreadPoolExecutor)) {
             throw new IllegalStateException("cannot dump info for " + executor.getClass());
@@ -170,6 +306,9 @@ public class DeliveringInternalInboundStanzaRelay implements StanzaRelay, Manage
         final long now = System.currentTimeMillis();
         writer.append("==== internalRelay:").append("\n");
         ManagedThreadPoolUtil.writeThreadPoolInfo(writer, pool);
+        if (pool.getQueue() instanceof StanzaLaneQueue) {
+            ManagedThreadPoolUtil.writeLaneInfo(writer, (StanzaLaneQueue) pool.getQueue());
+        }
         final long completedTaskCount = pool.getCompletedTaskCount();
         if (lastDumpTimestamp > 0) {
             writer.append("throughput=\t").append(Long.toString(completedTaskCount - lastCompleted))
@@ -177,6 +316,55 @@ public class DeliveringInternalInboundStanzaRelay implements StanzaRelay, Manage
         }
         lastDumpTimestamp = now;
         lastCompleted = completedTaskCount;
+
+        int lanes = 0;
+        int queued = 0;
+        int maxDepth = 0;
+        Entity deepest = null;
+        for (RecipientLane recipientLane : recipientLanes.values()) {
+            int depth = recipientLane.getDepth();
+            lanes++;
+            queued += depth;
+            if (depth > maxDepth) {
+                maxDepth = depth;
+                deepest = recipientLane.getRecipient();
+            }
+        }
+        writer.append("recipientLanes=\t").append(Integer.toString(lanes)).append("\n");
+        writer.append("laneQueued=\t").append(Integer.toString(queued)).append("\n");
+        writer.append("maxLaneDepth=\t").append(Integer.toString(maxDepth));
+        if (deepest != null) {
+            writer.append(" (").append(deepest.getFullQualifiedName()).append(")");
+        }
+        writer.append("\n");
+        writer.append("laneRejects=\t").append(Long.toString(recipientLaneRejects.get())).append("\n");
+
+        if (onlineStorageWriteBehind != null) {
+            onlineStorageWriteBehind.writeInfo(writer);
+        }
+        if (logStorageProvider instanceof AsyncLogStorageProvider) {
+            ((AsyncLogStorageProvider) logStorageProvider).writeInfo(writer);
+        }
+    }
+
+    /**
+     * logs the stanza and persists it to online storage, as if it had been relayed
+     */
+    public void recordDirectDelivery(Entity receiver, Stanza stanza) {
+        if (this.logStorageProvider != null) {
+            this.logStorageProvider.logStanza(receiver, stanza);
+        }
+        if (offlineStanzaReceiver instanceof OnlineStorageProvider) {
+            storeOnline(stanza);
+        }
+    }
+
+    private void storeOnline(Stanza stanza) {
+        if (onlineStorageWriteBehind != null) {
+            onlineStorageWriteBehind.storeStanza(stanza, true);
+        } else {
+            ((OnlineStorageProvider) offlineStanzaReceiver).storeStanza(stanza, true);
+        }
     }
 
     public void relay(Entity receiver, Stanza stanza, DeliveryFailureStrategy deliveryFailureStrategy)
@@ -185,18 +373,343 @@ public class DeliveringInternalInboundStanzaRelay implements StanzaRelay, Manage
             throw new ServiceNotAvailableException("internal inbound relay is not relaying");
         }
 
-        Future<RelayResult> resultFuture = executor.submit(new Relay(receiver, stanza, deliveryFailureStrategy));
+        StanzaLane lane = StanzaLane.classify(stanza);
+        StanzaLaneTask<RelayResult> relayTask = new StanzaLaneTask<RelayResult>(new Relay(receiver, stanza,
+                deliveryFailureStrategy), lane);
+        try {
+            if (receiver.getNode() == null) {
+                // servers and components are not users, they need no ordering
+                executor.execute(relayTask);
+            } else {
+                RecipientLane recipientLane = enqueueForRecipient(receiver.getBareJID(), relayTask);
+                if (recipientLane != null) {
+                    recipientLane.schedule(relayTask);
+                }
+            }
+        } catch (RejectedExecutionException e) {
+            throw new ServiceNotAvailableException("internal inbound relay cannot take more " + lane + " stanzas");
+        }
         if (this.logStorageProvider != null) {
             this.logStorageProvider.logStanza(receiver, stanza);
         }
     }
 
+    /**
+     * the stanza is relayed to the receivers in groups of at most {@link #setFanOutGroupSize(int)} receivers.
+     * every receiver gets an attribute overlay of the stanza with its own 'to'. it is still placed into the 
+     * receiver's {@link RecipientLane} to keep the per-user ordering, but lanes which are idle are not 
+     * scheduled one by one. instead, they are driven by one {@link FanOut} task per group, which is charged 
+     * against the stage's lane capacity with one stanza per receiver.
+     * <br/>
+     * a receiver whose recipient lane is full, or whose group is rejected by the stage, gets the failure 
+     * strategy applied. relaying continues with the next receiver, and all of them are reported in a 
+     * {@link PartialDeliveryException} at the end.
+     */
+    public void relayToMany(Collection<Entity> receivers, Stanza stanza,
+            DeliveryFailureStrategy deliveryFailureStrategy) throws DeliveryException {
+        if (!isRelaying()) {
+            throw new ServiceNotAvailableException("internal inbound relay is not relaying");
+        }
+
+        StanzaLane lane = StanzaLane.classify(stanza);
+        Map<Entity, DeliveryException> failures = new LinkedHashMap<Entity, DeliveryException>();
+        FanOut fanOut = new FanOut();
+        for (Entity receiver : receivers) {
+            Stanza receiverStanza = StanzaBuilder.createForwardStanza(stanza, null, receiver);
+            StanzaLaneTask<RelayResult> relayTask = new StanzaLaneTask<RelayResult>(new Relay(receiver,
+                    receiverStanza, deliveryFailureStrategy), lane);
+            if (receiver.getNode() == null) {
+                fanOut.add(relayTask, relayTask, receiver, receiverStanza);
+            } else {
+                RecipientLane recipientLane;
+                try {
+                    recipientLane = enqueueForRecipient(receiver.getBareJID(), relayTask);
+                } catch (ServiceNotAvailableException e) {
+                    // the other receivers are not held up by one with a full lane
+                    bounce(receiverStanza, e, deliveryFailureStrategy);
+                    failures.put(receiver, e);
+                    continue;
+                }
+                if (recipientLane != null) {
+                    fanOut.add(recipientLane, relayTask, receiver, receiverStanza);
+                } else if (this.logStorageProvider != null) {
+                    // queued behind the receiver's pending stanzas, accepted already
+                    this.logStorageProvider.logStanza(receiver, receiverStanza);
+                }
+            }
+
+            if (fanOut.size() >= fanOutGroupSize) {
+                submit(fanOut, lane, failures, deliveryFailureStrategy);
+                fanOut = new FanOut();
+            }
+        }
+        if (fanOut.size() > 0) {
+            submit(fanOut, lane, failures, deliveryFailureStrategy);
+        }
+        if (!failures.isEmpty()) {
+            throw new PartialDeliveryException(failures);
+        }
+    }
+
+    private void submit(FanOut fanOut, StanzaLane lane, Map<Entity, DeliveryException> failures,
+            DeliveryFailureStrategy deliveryFailureStrategy) {
+        try {
+            executor.execute(new StanzaLaneTask<Object>(fanOut, lane, fanOut.size()));
+        } catch (RejectedExecutionException e) {
+            fanOut.withdraw();
+            ServiceNotAvailableException cause = new ServiceNotAvailableException(
+                    "internal inbound relay cannot take more " + lane + " stanzas");
+            for (int i = 0; i < fanOut.size(); i++) {
+                bounce(fanOut.stanzas.get(i), cause, deliveryFailureStrategy);
+                failures.put(fanOut.receivers.get(i), cause);
+            }
+            return;
+        }
+        if (this.logStorageProvider != null) {
+            for (int i = 0; i < fanOut.size(); i++) {
+                this.logStorageProvider.logStanza(fanOut.receivers.get(i), fanOut.stanzas.get(i));
+            }
+        }
+    }
+
+    private void bounce(Stanza stanza, DeliveryException cause, DeliveryFailureStrategy deliveryFailureStrategy) {
+        if (deliveryFailureStrategy == null)
+            return;
+        try {
+            deliveryFailureStrategy.process(stanza, Collections.singletonList(cause));
+        } catch (DeliveryException e) {
+            logger.warn("failure strategy could not process rejected stanza", e);
+        } catch (RuntimeException e) {
+            logger.warn("failure strategy could not process rejected stanza", e);
+        }
+    }
+
+    /**
+     * @return the recipient's lane, if the task was the first in the lane, which then has to be scheduled
+     * by the caller, or NULL, if the lane is already scheduled 
+     * @throws ServiceNotAvailableException if the recipient has too many stanzas of the task's lane pending
+     */
+    private RecipientLane enqueueForRecipient(Entity bareJID, StanzaLaneTask<RelayResult> relayTask)
+            throws ServiceNotAvailableException {
+        while (true) {
+            RecipientLane recipientLane = recipientLanes.get(bareJID);
+            if (recipientLane == null) {
+                RecipientLane newLane = new RecipientLane(bareJID);
+                recipientLane = recipientLanes.putIfAbsent(bareJID, newLane);
+                if (recipientLane == null)
+                    recipientLane = newLane;
+            }
+            // the lane might just have been drained and discarded, then retry with a new one
+            switch (recipientLane.enqueue(relayTask)) {
+            case RecipientLane.DISCARDED:
+                continue;
+            case RecipientLane.TO_BE_SCHEDULED:
+                return recipientLane;
+            case RecipientLane.FULL:
+                recipientLaneRejects.incrementAndGet();
+                throw new ServiceNotAvailableException("too many " + relayTask.getLane() + " stanzas pending for "
+                        + bareJID.getFullQualifiedName());
+            default:
+                return null;
+            }
+        }
+    }
+
     public boolean isRelaying() {
         return !executor.isShutdown();
     }
 
+    /**
+     * serial queue of relay tasks for one recipient.
+     * at most one of its tasks is handed to the executor at any time, the next one is scheduled when it is 
+     * completed. every task is scheduled in its own {@link StanzaLane}, so that lane priorities still apply.
+     * when drained, the lane removes itself from {@link DeliveringInternalInboundStanzaRelay#recipientLanes}.
+     */
+    protected class RecipientLane implements Runnable {
+
+        private final Entity recipient;
+
+        private final Queue<StanzaLaneTask<RelayResult>> tasks = new ArrayDeque<StanzaLaneTask<RelayResult>>();
+
+        /**
+         * number of pending tasks per {@link StanzaLane}
+         */
+        private final int[] depths = new int[StanzaLane.values().length];
+
+        private boolean scheduled = false;
+
+        private boolean discarded = false;
+
+        RecipientLane(Entity recipient) {
+            this.recipient = recipient;
+        }
+
+        public Entity getRecipient() {
+            return recipient;
+        }
+
+        public synchronized int getDepth() {
+            return tasks.size();
+        }
+
+        static final int DISCARDED = 0;
+
+        static final int SCHEDULED = 1;
+
+        static final int TO_BE_SCHEDULED = 2;
+
+        static final int FULL = 3;
+
+        /**
+         * @return DISCARDED, if the lane has already been discarded and must not be used anymore, 
+         * FULL, if the task has not been enqueued because the recipient has too many tasks of its lane pending,
+         * TO_BE_SCHEDULED, if the caller now owns the lane and has to either {@link #schedule(StanzaLaneTask)} 
+         * or {@link #run()} it, SCHEDULED otherwise 
+         */
+        synchronized int enqueue(StanzaLaneTask<RelayResult> relayTask) {
+            if (discarded)
+                return DISCARDED;
+            int lane = relayTask.getLane().ordinal();
+            if (depths[lane] >= getRecipientLaneCapacity(relayTask.getLane()))
+                return FULL;
+            tasks.add(relayTask);
+            depths[lane]++;
+            if (scheduled)
+                return SCHEDULED;
+            scheduled = true;
+            return TO_BE_SCHEDULED;
+        }
+
+        /**
+         * hands the lane to the executor, after {@link #enqueue(StanzaLaneTask)} returned TO_BE_SCHEDULED
+         * @throws RejectedExecutionException if the executor rejected the lane, the task is then removed again
+         */
+        void schedule(StanzaLaneTask<RelayResult> relayTask) {
+            try {
+                executor.execute(new StanzaLaneTask<Object>(this, relayTask.getLane()));
+            } catch (RejectedExecutionException e) {
+                withdraw(relayTask);
+                throw e;
+            }
+        }
+
+        /**
+         * takes back a task which was enqueued by an owner which cannot run the lane
+         */
+        void withdraw(StanzaLaneTask<RelayResult> relayTask) {
+            StanzaLane nextLane;
+            synchronized (this) {
+                if (tasks.remove(relayTask))
+                    depths[relayTask.getLane().ordinal()]--;
+                if (tasks.isEmpty()) {
+                    scheduled = false;
+                    discardIfEmpty();
+                    return;
+                }
+                nextLane = tasks.peek().getLane();
+            }
+            // others have queued tasks in the meantime, relying on the lane being scheduled
+            try {
+                executor.execute(new StanzaLaneTask<Object>(this, nextLane));
+            } catch (RejectedExecutionException e) {
+                run();
+            }
+        }
+
+        public void run() {
+            while (true) {
+                StanzaLaneTask<RelayResult> task;
+                synchronized (this) {
+                    task = tasks.poll();
+                    if (task != null)
+                        depths[task.getLane().ordinal()]--;
+                }
+                if (task != null)
+                    task.run();
+
+                StanzaLane nextLane;
+                synchronized (this) {
+                    StanzaLaneTask<RelayResult> next = tasks.peek();
+                    if (next == null) {
+                        scheduled = false;
+                        discardIfEmpty();
+                        return;
+                    }
+                    nextLane = next.getLane();
+                }
+                try {
+                    executor.execute(new StanzaLaneTask<Object>(this, nextLane));
+                    return;
+                } catch (RejectedExecutionException e) {
+                    // the pending tasks have already been accepted, so they are relayed on this thread
+                }
+            }
+        }
+
+        /**
+         * must be called while holding the lane's monitor
+         */
+        private void discardIfEmpty() {
+            if (tasks.isEmpty() && !scheduled) {
+                discarded = true;
+                recipientLanes.remove(recipient, this);
+            }
+        }
+    }
+
+    /**
+     * relays one stanza to a group of receivers on a single thread.
+     * the group consists of recipient lanes which were idle when the stanza was enqueued, and therefore have 
+     * the stanza at their head, and of relay tasks for receivers which are not users.
+     * every lane runs its head task and is then scheduled on its own again, if further tasks are pending.
+     */
+    private class FanOut implements Runnable {
+
+        private final List<Runnable> steps = new ArrayList<Runnable>();
+
+        private final List<StanzaLaneTask<RelayResult>> relayTasks = new ArrayList<StanzaLaneTask<RelayResult>>();
+
+        private final List<Entity> receivers = new ArrayList<Entity>();
+
+        private final List<Stanza> stanzas = new ArrayList<Stanza>();
+
+        void add(Runnable step, StanzaLaneTask<RelayResult> relayTask, Entity receiver, Stanza receiverStanza) {
+            steps.add(step);
+            relayTasks.add(relayTask);
+            receivers.add(receiver);
+            stanzas.add(receiverStanza);
+        }
+
+        int size() {
+            return steps.size();
+        }
+
+        public void run() {
+            for (Runnable step : steps) {
+                step.run();
+            }
+        }
+
+        /**
+         * releases the lanes of a group which could not be submitted
+         */
+        void withdraw() {
+            for (int i = 0; i < steps.size(); i++) {
+                if (steps.get(i) instanceof RecipientLane) {
+                    ((RecipientLane) steps.get(i)).withdraw(relayTasks.get(i));
+                }
+            }
+        }
+    }
+
     public void stop() {
         this.executor.shutdown();
+        if (onlineStorageWriteBehind != null) {
+            onlineStorageWriteBehind.stop();
+        }
+        if (logStorageProvider instanceof AsyncLogStorageProvider) {
+            ((AsyncLogStorageProvider) logStorageProvider).stop();
+        }
     }
 
     private class Relay implements Callable<RelayResult> {
@@ -208,6 +721,8 @@ public class DeliveringInternalInboundStanzaRelay implements StanzaRelay, Manage
 
         protected final UnmodifyableSessionStateHolder sessionStateHolder = new UnmodifyableSessionStateHolder();
 
+        private final long enqueued = System.nanoTime();
+
         Relay(Entity receiver, Stanza stanza, DeliveryFailureStrategy deliveryFailureStrategy) {
             this.receiver = receiver;
             this.stanza = stanza;
@@ -227,11 +742,22 @@ public class DeliveringInternalInboundStanzaRelay implements StanzaRelay, Manage
         }
 
         public RelayResult call() {
+            StageLatencies stageLatencies = StageLatencies.getInstance();
+            stageLatencies.record(StageLatencies.Stage.RELAY_QUEUE, stanza, enqueued);
+            long dequeued = System.nanoTime();
+            try {
+                return relay();
+            } finally {
+                stageLatencies.record(StageLatencies.Stage.RELAY_DELIVERY, stanza, dequeued);
+            }
+        }
+
+        private RelayResult relay() {
             RelayResult relayResult = deliver();
             if (relayResult == null || !relayResult.hasProcessingErrors()) {
                 if (offlineStanzaReceiver instanceof OnlineStorageProvider) {
                     logger.debug("About to persist stanza to OnlineStorageProvider because there were no processing errors but we always persist to OnlineStorageProvider");
-                    ((OnlineStorageProvider) offlineStanzaReceiver).storeStanza(stanza, true);
+                    storeOnline(stanza);
                 }
                 return relayResult;
             } else {
@@ -241,11 +767,11 @@ public class DeliveringInternalInboundStanzaRelay implements StanzaRelay, Manage
                     // get lost
                    if (offlineStanzaReceiver instanceof OnlineStorageProvider) {
                         logger.debug("About to persist stanza to OnlineStorageProvider");
-                        ((OnlineStorageProvider) offlineStanzaReceiver).storeStanza(stanza, true);
+                        storeOnline(stanza);
                     }
                 } else if (offlineStanzaReceiver instanceof OnlineStorageProvider) {
                     logger.debug("About to persist stanza to OnlineStorageProvider");
-                    ((OnlineStorageProvider) offlineStanzaReceiver).storeStanza(stanza, true);
+                    storeOnline(stanza);
                 } else {
                     logger.debug("Not persisting to OnlineStorageProvider because offlineStorageProvider is not castable to OnlineStorageProvider");
                 }
@@ -321,9 +847,10 @@ public class DeliveringInternalInboundStanzaRelay implements StanzaRelay, Manage
                 return new RelayResult(new DeliveryException(
                         "unable to deliver stanza which is not IQ, presence or message"));
 
-            if (PresenceStanza.isOfType(stanza)) {
+            XMPPCoreStanzaKind kind = xmppStanza.getKind();
+            if (kind == XMPPCoreStanzaKind.PRESENCE) {
                 return relayToAllSessions();
-            } else if (MessageStanza.isOfType(stanza)) {
+            } else if (kind == XMPPCoreStanzaKind.MESSAGE) {
                 MessageStanza messageStanza = (MessageStanza) xmppStanza;
                 MessageStanzaType messageStanzaType = messageStanza.getMessageType();
                 switch (messageStanzaType) {
@@ -345,7 +872,7 @@ public class DeliveringInternalInboundStanzaRelay implements StanzaRelay, Manage
                     default:
                         throw new RuntimeException("unhandled message type " + messageStanzaType.value());
                 }
-            } else if (IQStanza.isOfType(stanza)) {
+            } else if (kind == XMPPCoreStanzaKind.IQ) {
                 // TODO handle on behalf of the user/client
                 return relayToBestSessions(true);
             }
@@ -357,15 +884,17 @@ public class DeliveringInternalInboundStanzaRelay implements StanzaRelay, Manage
         private RelayResult deliverToFullJID() {
             XMPPCoreStanza xmppStanza = XMPPCoreStanza.getWrapper(stanza);
             if (xmppStanza == null)
-                new RelayResult(new DeliveryException("unable to deliver stanza which is not IQ, presence or message"));
+                return new RelayResult(new DeliveryException(
+                        "unable to deliver stanza which is not IQ, presence or message"));
 
             // all special cases are handled by the inbound handlers!
-            if (PresenceStanza.isOfType(stanza)) {
+            XMPPCoreStanzaKind kind = xmppStanza.getKind();
+            if (kind == XMPPCoreStanzaKind.PRESENCE) {
                 // TODO cannot deliver presence with type  AVAIL or UNAVAIL: silently ignore
                 // TODO cannot deliver presence with type  SUBSCRIBE: see 3921bis section 3.1.3
                 // TODO cannot deliver presence with type  (UN)SUBSCRIBED, UNSUBSCRIBE: silently ignore
                 return relayToBestSessions(false);
-            } else if (MessageStanza.isOfType(stanza)) {
+            } else if (kind == XMPPCoreStanzaKind.MESSAGE) {
                 MessageStanza messageStanza = (MessageStanza) xmppStanza;
                 MessageStanzaType messageStanzaType = messageStanza.getMessageType();
                 boolean fallbackToBareJIDAllowed = messageStanzaType == MessageStanzaType.CHAT
@@ -375,7 +904,7 @@ public class DeliveringInternalInboundStanzaRelay implements StanzaRelay, Manage
                 // TODO cannot deliver GROUPCHAT: service n/a
                 return relayToBestSessions(fallbackToBareJIDAllowed);
 
-            } else if (IQStanza.isOfType(stanza)) {
+            } else if (kind == XMPPCoreStanzaKind.IQ) {
                 // TODO no resource matches: service n/a
                 return relayToBestSessions(true);
             }
@@ -389,6 +918,15 @@ public class DeliveringInternalInboundStanzaRelay implements StanzaRelay, Manage
                 logger.warn("cannot relay to unexisting receiver {} stanza {}", receiver.getFullQualifiedName(), stanza
                         .toString());
                 return new RelayResult(new NoSuchLocalUserException());
+            } else if (offlineStanzaReceiver instanceof RejectingOfflineStanzaReceiver) {
+                try {
+                    ((RejectingOfflineStanzaReceiver) offlineStanzaReceiver).receiveOrReject(stanza);
+                } catch (DeliveryException e) {
+                    logger.info("offline receiver {} refused stanza: {}", receiver.getFullQualifiedName(), e
+                            .getMessage());
+                    return new RelayResult(e);
+                }
+                return new RelayResult(new DeliveredToOfflineReceiverException());
             } else if (offlineStanzaReceiver != null) {
                 offlineStanzaReceiver.receive(stanza);
                 return new RelayResult(new DeliveredToOfflineReceiverException());
@@ -23,6 +23,7 @@ package org.apache.vysper.xmpp.modules.core.base.handler;
 import org.apache.vysper.xml.fragment.Attribute;
 import org.apache.vysper.xml.fragment.XMLElement;
 import org.apache.vysper.xml.fragment.XMLElementBuilder;
+import org.apache.vysper.xml.fragment.XMLFragment;
 import org.apache.vysper.xml.fragment.XMLSemanticError;
 import org.apache.vysper.xmpp.addressing.Entity;
 import org.apache.vysper.xmpp.addressing.EntityImpl;
@@ -32,6 +33,9 @@ import org.apache.vysper.xmpp.modules.extension.mobile_device_metadata.MessageSt
 import org.apache.vysper.xmpp.modules.extension.xep0160_offline_storage.OfflineStorageProvider;
 import org.apache.vysper.xmpp.modules.extension.xep0160_offline_storage.OnlineStorageProvider;
 import org.apache.vysper.xmpp.modules.extension.xep0184_message_receipts.MessageDeliveryReceiptsStorageProvider;
+import org.apache.vysper.xmpp.modules.extension.xep0184_message_receipts.ReceiptConfirmationAggregator;
+import org.apache.vysper.xmpp.modules.extension.xep0184_message_receipts.RecentMessageIndex;
+import org.apache.vysper.xmpp.protocol.NamespaceURIs;
 import org.apache.vysper.xmpp.server.ServerRuntimeContext;
 import org.apache.vysper.xmpp.server.SessionContext;
 import org.apache.vysper.xmpp.stanza.MessageStanza;
@@ -41,6 +45,7 @@ import org.apache.vysper.xmpp.stanza.XMPPCoreStanza;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
@@ -57,6 +62,14 @@ public class MessageHandler extends XMPPCoreStanzaHandler {
 
     public static final int MINIMUM_XMPP_BUILD_VERSION = 23;
 
+    /**
+     * @return the server's index of messages relayed lately, most receipts refer to one of them. 
+     * NULL, if the server does not run one.
+     */
+    protected RecentMessageIndex getRecentMessageIndex(ServerRuntimeContext serverRuntimeContext) {
+        return (RecentMessageIndex) serverRuntimeContext.getServerRuntimeContextService(RecentMessageIndex.SERVICE_NAME);
+    }
+
     public String getName() {
         return "message";
     }
@@ -121,7 +134,9 @@ public class MessageHandler extends XMPPCoreStanzaHandler {
                 return null;
             }
 
-            StanzaBuilder stanzaBuilder = new StanzaBuilder(stanza.getName(), stanza.getNamespaceURI());
+            // the relayed stanza only differs from the original in some top-level attributes (and possibly a 
+            // rewritten receipt), so it is derived as an overlay instead of being rebuilt 
+            List<Attribute> replacingAttributes = new ArrayList<Attribute>(2);
 
             Entity from = stanza.getFrom();
             Stanza originalMessageStanza = null;
@@ -133,21 +148,8 @@ public class MessageHandler extends XMPPCoreStanzaHandler {
                     throw new IllegalStateException("could not determine unique resource");
                 from = new EntityImpl(sessionContext.getInitiatingEntity(), resource);
                 logger.debug("No from set on stanza: " + stanza.toString() + " using from: " + from.toString());
-                for (Attribute attribute : stanza.getAttributes()) {
-                    if ("from".equals(attribute.getName()))
-                        continue;
-                    stanzaBuilder.addAttribute(attribute);
-                }
-                stanzaBuilder.addAttribute("from", from.getFullQualifiedName());
-
-            } else {
-                for (Attribute attribute : stanza.getAttributes()) {
-                    if ("from".equals(attribute.getName()))
-                        continue;
-                    stanzaBuilder.addAttribute(attribute);
-                }
-                stanzaBuilder.addAttribute("from", from.getFullQualifiedName());
             }
+            replacingAttributes.add(new Attribute("from", from.getFullQualifiedName()));
             String serverDeliveryTime = null;
             boolean isReceipt = false;
 
@@ -168,7 +170,7 @@ public class MessageHandler extends XMPPCoreStanzaHandler {
                     if (serverDeliveryTime != null) {
                         logger.debug("Found original Message serverDeliveryTime of: " + serverDeliveryTime);
                     }
-                    MessageDeliveryReceiptsStorageProvider messageDeliveryReceiptsStorageProvider = (MessageDeliveryReceiptsStorageProvider) serverRuntimeContext.getStorageProvider(MessageDeliveryReceiptsStorageProvider.class);
+                    MessageDeliveryReceiptsStorageProvider messageDeliveryReceiptsStorageProvider = getMessageDeliveryReceiptsStorageProvider(serverRuntimeContext);
                     if (messageDeliveryReceiptsStorageProvider != null) {
                         logger.debug("Confirming delivery receipt for message: " + originalMessageId);
                         List<XMPPCoreStanza> stanzaList = Collections.singletonList(originalMessageStanzaWrapper);
@@ -189,7 +191,7 @@ public class MessageHandler extends XMPPCoreStanzaHandler {
                 originalMessageStanza = getOriginalMessageFromReceipt(serverRuntimeContext, viewedReceipts, from);
                 if (originalMessageStanza != null) {
                     logger.debug("Found original message for viewed receipt with messageId: " + originalMessageId + " stanza: " + originalMessageStanza.toString());
-                    MessageDeliveryReceiptsStorageProvider messageDeliveryReceiptsStorageProvider = (MessageDeliveryReceiptsStorageProvider) serverRuntimeContext.getStorageProvider(MessageDeliveryReceiptsStorageProvider.class);
+                    MessageDeliveryReceiptsStorageProvider messageDeliveryReceiptsStorageProvider = getMessageDeliveryReceiptsStorageProvider(serverRuntimeContext);
                     if (messageDeliveryReceiptsStorageProvider != null) {
                         logger.debug("Confirming viewed receipt for message: " + originalMessageId);
                         List<XMPPCoreStanza> stanzaList = Collections.singletonList(XMPPCoreStanza.getWrapper(originalMessageStanza));
@@ -212,24 +214,32 @@ public class MessageHandler extends XMPPCoreStanzaHandler {
                 } else {
                     serverDeliveryTime = String.valueOf(System.currentTimeMillis());
                     logger.debug("No existing serverDeliveryTime in message so using serverDeliveryTime of: " + serverDeliveryTime);
-                    stanzaBuilder.addAttribute(SERVER_DELIVERY_TIME, serverDeliveryTime);
+                    replacingAttributes.add(new Attribute(SERVER_DELIVERY_TIME, serverDeliveryTime));
                 }
             }
 
-            for (XMLElement preparedElement : stanza.getInnerElements()) {
-                if (preparedElement.getName().equalsIgnoreCase("received")) {
+            // inner fragments are shared with the original, unless a receipt has to be rewritten
+            List<XMLFragment> innerFragments = null;
+            // text nodes are kept, so the fragments are walked instead of the elements
+            List<XMLFragment> originalFragments = stanza.getInnerFragments();
+            for (int i = 0; i < originalFragments.size(); i++) {
+                XMLFragment fragment = originalFragments.get(i);
+                if (fragment instanceof XMLElement && ((XMLElement) fragment).getName().equalsIgnoreCase("received")) {
+                    XMLElement preparedElement = (XMLElement) fragment;
+                    if (innerFragments == null)
+                        innerFragments = new ArrayList<XMLFragment>(originalFragments.subList(0, i));
                     XMLElementBuilder receivedBuilder = new XMLElementBuilder(preparedElement.getName(), preparedElement.getNamespaceURI(), preparedElement.getNamespacePrefix());
                     if (preparedElement.getAttribute("id") != null)
                         receivedBuilder.addAttribute("id", preparedElement.getAttributeValue("id"));
                     if (serverDeliveryTime != null)
                         receivedBuilder.addAttribute(SERVER_DELIVERY_TIME, serverDeliveryTime);
-                    stanzaBuilder.addPreparedElement(receivedBuilder.build());
-                } else {
-                    stanzaBuilder.addPreparedElement(preparedElement);
+                    innerFragments.add(receivedBuilder.build());
+                } else if (innerFragments != null) {
+                    innerFragments.add(fragment);
                 }
             }
 
-            stanza = XMPPCoreStanza.getWrapper(stanzaBuilder.build());
+            stanza = XMPPCoreStanza.getWrapper(StanzaBuilder.createAttributeOverlay(stanza, replacingAttributes, innerFragments));
 
 
             boolean relayMessage = true;
@@ -240,6 +250,17 @@ public class MessageHandler extends XMPPCoreStanzaHandler {
 
             logger.debug("Message receipt status: " + isReceipt);
 
+            RecentMessageIndex recentMessageIndex = getRecentMessageIndex(serverRuntimeContext);
+            if (relayMessage && !isReceipt && recentMessageIndex != null && stanza.getTo() != null) {
+                // indexed before relaying, a receipt might come back right after the delivery 
+                try {
+                    recentMessageIndex.put(stanza.getTo().getBareJID().getFullQualifiedName(), stanza.getID(),
+                            from.getFullQualifiedName(), Long.parseLong(serverDeliveryTime));
+                } catch (NumberFormatException e) {
+                    logger.debug("Not indexing message with serverDeliveryTime of: " + serverDeliveryTime);
+                }
+            }
+
             StanzaRelay stanzaRelay = serverRuntimeContext.getStanzaRelay();
             try {
                 if (relayMessage && !isReceipt)
@@ -258,7 +279,37 @@ public class MessageHandler extends XMPPCoreStanzaHandler {
         return null;
     }
 
+    /**
+     * @return the receipt aggregator, if the server runs one, which writes confirmations in batches, 
+     * or the storage provider itself
+     */
+    protected MessageDeliveryReceiptsStorageProvider getMessageDeliveryReceiptsStorageProvider(ServerRuntimeContext serverRuntimeContext) {
+        ReceiptConfirmationAggregator receiptConfirmationAggregator = (ReceiptConfirmationAggregator) serverRuntimeContext.getServerRuntimeContextService(ReceiptConfirmationAggregator.SERVICE_NAME);
+        if (receiptConfirmationAggregator != null) {
+            return receiptConfirmationAggregator;
+        }
+        return (MessageDeliveryReceiptsStorageProvider) serverRuntimeContext.getStorageProvider(MessageDeliveryReceiptsStorageProvider.class);
+    }
+
     public Stanza getOriginalMessageFromReceipt(ServerRuntimeContext serverRuntimeContext, List<XMLElement> receipts, Entity originalMessageRecipient) {
+        RecentMessageIndex recentMessageIndex = getRecentMessageIndex(serverRuntimeContext);
+        if (recentMessageIndex != null) {
+            RecentMessageIndex.Entry recentMessage = recentMessageIndex.get(originalMessageRecipient.getBareJID()
+                    .getFullQualifiedName(), receipts.get(0).getAttributeValue("id"));
+            if (recentMessage != null) {
+                logger.debug("Found original message for receipt in recent message index");
+                // the index only knows what receipts need, which stands in for the original message 
+                StanzaBuilder originalMessage = new StanzaBuilder("message", NamespaceURIs.JABBER_CLIENT)
+                        .addAttribute("id", recentMessage.getMessageId())
+                        .addAttribute("to", originalMessageRecipient.getBareJID().getFullQualifiedName())
+                        .addAttribute(SERVER_DELIVERY_TIME, Long.toString(recentMessage.getServerDeliveryTime()));
+                if (recentMessage.getFrom() != null) {
+                    originalMessage.addAttribute("from", recentMessage.getFrom());
+                }
+                return originalMessage.build();
+            }
+        }
+
         OfflineStorageProvider offlineStorageProvider = (OfflineStorageProvider) serverRuntimeContext.getStorageProvider(OfflineStorageProvider.class);
         if (offlineStorageProvider != null && offlineStorageProvider instanceof OnlineStorageProvider) {
             logger.debug("Found offlineStorageProvider for message delivery receipt");
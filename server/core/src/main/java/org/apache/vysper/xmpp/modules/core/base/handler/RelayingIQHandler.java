@@ -86,7 +86,7 @@ public class RelayingIQHandler extends IQHandler {
                             stanza, StanzaErrorType.CANCEL, null, null, null);
                 }
 
-                Stanza forwardedStanza = StanzaBuilder.createForward(stanza, from, null).build();
+                Stanza forwardedStanza = StanzaBuilder.createForwardStanza(stanza, from, null);
                 serverRuntimeContext.getStanzaRelay().relay(to, forwardedStanza,
                         new ReturnErrorToSenderFailureStrategy(serverRuntimeContext.getStanzaRelay()));
             } catch (DeliveryException e) {
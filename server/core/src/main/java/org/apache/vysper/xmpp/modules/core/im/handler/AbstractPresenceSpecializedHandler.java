@@ -19,6 +19,7 @@
  */
 package org.apache.vysper.xmpp.modules.core.im.handler;
 
+import java.util.Collection;
 import java.util.List;
 
 import org.apache.vysper.xml.fragment.XMLElement;
@@ -64,6 +65,15 @@ public abstract class AbstractPresenceSpecializedHandler {
         }
     }
 
+    protected void relayStanzaToMany(Collection<Entity> receivers, Stanza stanza, SessionContext sessionContext) {
+        try {
+            sessionContext.getServerRuntimeContext().getStanzaRelay().relayToMany(receivers, stanza,
+                    new IgnoreFailureStrategy());
+        } catch (DeliveryException e) {
+            logger.warn("presence relaying failed ", e);
+        }
+    }
+
     abstract/*package*/Stanza executeCorePresence(ServerRuntimeContext serverRuntimeContext, boolean isOutboundStanza,
             SessionContext sessionContext, PresenceStanza presenceStanza, RosterManager rosterManager);
 
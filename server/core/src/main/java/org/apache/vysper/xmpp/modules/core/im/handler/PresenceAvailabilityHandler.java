@@ -27,29 +27,32 @@ import static org.apache.vysper.xmpp.stanza.PresenceStanzaType.UNSUBSCRIBED;
 import static org.apache.vysper.xmpp.stanza.PresenceStanzaType.isSubscriptionType;
 
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
 
 import org.apache.vysper.compliance.SpecCompliance;
 import org.apache.vysper.compliance.SpecCompliant;
-import org.apache.vysper.xml.fragment.Attribute;
+import org.apache.vysper.xml.fragment.Renderer;
+import org.apache.vysper.xml.fragment.XMLElement;
 import org.apache.vysper.xmpp.addressing.Entity;
 import org.apache.vysper.xmpp.addressing.EntityImpl;
+import org.apache.vysper.xmpp.addressing.EntityUtils;
+import org.apache.vysper.xmpp.delivery.DirectDeliveryRecorder;
 import org.apache.vysper.xmpp.delivery.failure.DeliveryException;
 import org.apache.vysper.xmpp.delivery.failure.IgnoreFailureStrategy;
 import org.apache.vysper.xmpp.modules.core.base.handler.XMPPCoreStanzaHandler;
+import org.apache.vysper.xmpp.modules.extension.xep0160_offline_storage.OfflineStanzaCursor;
+import org.apache.vysper.xmpp.modules.extension.xep0160_offline_storage.OfflineStanzaReplay;
 import org.apache.vysper.xmpp.modules.extension.xep0160_offline_storage.OfflineStorageProvider;
 import org.apache.vysper.xmpp.modules.roster.RosterException;
 import org.apache.vysper.xmpp.modules.roster.RosterItem;
 import org.apache.vysper.xmpp.modules.roster.RosterUtils;
-import org.apache.vysper.xmpp.modules.roster.SubscriptionType;
 import org.apache.vysper.xmpp.modules.roster.persistence.RosterManager;
 import org.apache.vysper.xmpp.protocol.commandstanza.EndOfSessionCommandStanza;
 import org.apache.vysper.xmpp.server.ServerRuntimeContext;
 import org.apache.vysper.xmpp.server.SessionContext;
+import org.apache.vysper.xmpp.server.resources.StanzaExecutor;
 import org.apache.vysper.xmpp.server.response.ServerErrorResponses;
 import org.apache.vysper.xmpp.stanza.PresenceStanza;
 import org.apache.vysper.xmpp.stanza.PresenceStanzaType;
@@ -59,6 +62,7 @@ import org.apache.vysper.xmpp.stanza.StanzaErrorCondition;
 import org.apache.vysper.xmpp.stanza.StanzaErrorType;
 import org.apache.vysper.xmpp.stanza.XMPPCoreStanza;
 import org.apache.vysper.xmpp.stanza.XMPPCoreStanzaVerifier;
+import org.apache.vysper.xmpp.state.presence.PresenceDamper;
 import org.apache.vysper.xmpp.state.resourcebinding.ResourceRegistry;
 import org.apache.vysper.xmpp.state.resourcebinding.ResourceState;
 import org.slf4j.Logger;
@@ -165,6 +169,9 @@ public class PresenceAvailabilityHandler extends AbstractPresenceSpecializedHand
             return null;
 
         sessionContext.getServerRuntimeContext().getPresenceCache().remove(user);
+        PresenceDamper damper = (PresenceDamper) serverRuntimeContext
+                .getServerRuntimeContextService(PresenceDamper.SERVICE_NAME);
+        if (damper != null) damper.cancel(user);
 
         SessionContext.SessionTerminationCause terminationCause = null;
         if (presenceStanza instanceof EndOfSessionCommandStanza) {
@@ -176,22 +183,11 @@ public class PresenceAvailabilityHandler extends AbstractPresenceSpecializedHand
 
         List<Entity> contacts = new ArrayList<Entity>();
 
-        Map<SubscriptionType, List<RosterItem>> itemMap = RosterUtils.getRosterItemsByState(rosterManager, user);
-        List<RosterItem> item_FROM = itemMap.get(SubscriptionType.FROM);
-        List<RosterItem> item_TO = itemMap.get(SubscriptionType.TO);
-        List<RosterItem> item_BOTH = itemMap.get(SubscriptionType.BOTH);
-
         // broadcast presence from full JID to contacts
         // in roster with 'subscription' either 'from' or 'both'
         // TODO (for pres updates): ...and last presence stanza received from the contact during the user's
         // presence session was not of type "error" or "unsubscribe".
-
-        List<RosterItem> rosterContacts_FROM = new ArrayList<RosterItem>();
-        rosterContacts_FROM.addAll(item_FROM);
-        rosterContacts_FROM.addAll(item_BOTH);
-        for (RosterItem rosterContact : rosterContacts_FROM) {
-            contacts.add(rosterContact.getJid());
-        }
+        contacts.addAll(RosterUtils.getPresenceSubscribers(rosterManager, user));
 
         // broadcast unavailable to all directed-presence contacts
         Set<Entity> entitySet = getDirectedPresenceMap(sessionContext, user);
@@ -228,9 +224,9 @@ public class PresenceAvailabilityHandler extends AbstractPresenceSpecializedHand
     }
 
     @SpecCompliant(spec = "RFC3921bis-08", section = "4.2.2", status = IN_PROGRESS)
-    private PresenceStanza handleOutboundAvailable(PresenceStanza presenceStanza,
-            ServerRuntimeContext serverRuntimeContext, SessionContext sessionContext, RosterManager rosterManager,
-            Entity user, ResourceRegistry registry) {
+    private PresenceStanza handleOutboundAvailable(final PresenceStanza presenceStanza,
+            ServerRuntimeContext serverRuntimeContext, final SessionContext sessionContext,
+            final RosterManager rosterManager, final Entity user, final ResourceRegistry registry) {
         boolean hasTo = presenceStanza.getCoreVerifier().attributePresent("to");
         if (hasTo)
             return handleOutboundDirectedPresence(presenceStanza, serverRuntimeContext, sessionContext, rosterManager,
@@ -238,16 +234,24 @@ public class PresenceAvailabilityHandler extends AbstractPresenceSpecializedHand
 
         if (!user.isResourceSet())
             throw new RuntimeException("resource id not available");
-        String resourceId = user.getResource();
+        final String resourceId = user.getResource();
         ResourceState resourceState = registry.getResourceState(resourceId);
 
         boolean isPresenceUpdate = resourceState != null && ResourceState.isAvailable(resourceState);
 
+        String signature = presenceSignature(presenceStanza);
+        PresenceStanza previousPresence = isPresenceUpdate ? serverRuntimeContext.getPresenceCache().get(user) : null;
+
         // TODO in case of !isPresenceUpdate, should we check for resourceState != ResourceState.AVAILABLE_INTERESTED ?
         // RFC3921bis-04#4.2.2 Initial Presence
         // RFC3921bis-04#4.4.2 Initial Presence
 
         updateLatestPresence(sessionContext, user, presenceStanza);
+        if (previousPresence != null && signature.equals(presenceSignature(previousPresence))) {
+            // nothing has changed, don't bother the contacts
+            logger.debug("suppressing duplicate presence from {}", user);
+            return null;
+        }
         if (!isPresenceUpdate) {
             // things to be done for initial presence
 
@@ -267,32 +271,76 @@ public class PresenceAvailabilityHandler extends AbstractPresenceSpecializedHand
 		if (offlineProvider == null) {
 			logger.warn("No Offline Storage Provider configured");
 		} else {
-			Collection<Stanza> offlineStanzas = offlineProvider.getStanzasFor(user);
-			for (Stanza stanza : offlineStanzas) {
-				logger.debug("Sending out delayed offline stanza");
-				relayStanza(user, stanza, sessionContext);
+			// page through the stanzas, written directly to the session so that they are only removed 
+			// from storage after having been written
+			OfflineStanzaCursor cursor = offlineProvider.openCursor(user);
+			if (cursor == null) {
+				logger.debug("offline stanzas for {} are replayed to another session already", user);
+			} else {
+				StanzaExecutor stanzaExecutor = (StanzaExecutor) serverRuntimeContext
+						.getServerRuntimeContextService(StanzaExecutor.SERVICE_NAME);
+				OfflineStanzaReplay replay = new OfflineStanzaReplay(cursor, sessionContext.getResponseWriter(),
+						stanzaExecutor);
+				// not relayed, but logged and persisted like relayed stanzas
+				if (serverRuntimeContext.getStanzaRelay() instanceof DirectDeliveryRecorder) {
+					replay.setDeliveryRecorder(user, (DirectDeliveryRecorder) serverRuntimeContext.getStanzaRelay());
+				}
+				replay.run();
 			}
 		}
 
-        List<Entity> contacts = new ArrayList<Entity>();
+        // and send them out, unless updates are damped
+        PresenceDamper damper = (PresenceDamper) serverRuntimeContext
+                .getServerRuntimeContextService(PresenceDamper.SERVICE_NAME);
+        if (damper == null) {
+            relayTo(user, getAvailabilityReceivers(rosterManager, user, registry), presenceStanza, sessionContext);
+        } else if (!isPresenceUpdate) {
+            relayTo(user, getAvailabilityReceivers(rosterManager, user, registry), presenceStanza, sessionContext);
+            damper.recordBroadcast(user, signature);
+        } else {
+            boolean deferred = damper.defer(user, signature, new Runnable() {
+                public void run() {
+                    // the resource might have gone meanwhile
+                    if (!ResourceState.isAvailable(registry.getResourceState(resourceId))) return;
+                    // contacts and resources as they are now, not as they were when the update was deferred
+                    relayTo(user, getAvailabilityReceivers(rosterManager, user, registry), presenceStanza,
+                            sessionContext);
+                }
+            });
+            if (!deferred) {
+                relayTo(user, getAvailabilityReceivers(rosterManager, user, registry), presenceStanza, sessionContext);
+            }
+        }
 
-        Map<SubscriptionType, List<RosterItem>> itemMap = RosterUtils.getRosterItemsByState(rosterManager, user);
-        List<RosterItem> item_FROM = itemMap.get(SubscriptionType.FROM);
-        List<RosterItem> item_TO = itemMap.get(SubscriptionType.TO);
-        List<RosterItem> item_BOTH = itemMap.get(SubscriptionType.BOTH);
+        if (!isPresenceUpdate) {
+            // initial presence only:
+            // send probes to all contacts of the current jid where
+            // 'subscription' is either 'to' or 'both'
+            // TODO: ...and jid is not blocking inbound presence notification
+            // server-local probes are answered right away, without relaying probe and answer
+            for (Entity contact_TO : RosterUtils.getPresenceSubscriptions(rosterManager, user)) {
+                if (answerLocalProbe(user, contact_TO, serverRuntimeContext, sessionContext, rosterManager)) continue;
+                Stanza probeStanza = buildPresenceStanza(user, contact_TO, PresenceStanzaType.PROBE, null);
+                relayStanza(contact_TO, probeStanza, sessionContext);
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * @return the contacts in the user's roster with 'subscription' either 'from' or 'both', 
+     * and all resources of the user
+     */
+    private List<Entity> getAvailabilityReceivers(RosterManager rosterManager, Entity user, ResourceRegistry registry) {
+        List<Entity> contacts = new ArrayList<Entity>();
 
         // broadcast presence from full JID to contacts
         // in roster with 'subscription' either 'from' or 'both'
         // TODO: ...and user is not blocking outbound presence notifications above
         // TODO (for pres updates): ...and last presence stanza received from the contact during the user's
         // presence session was not of type "error" or "unsubscribe".
-
-        List<RosterItem> rosterContacts_FROM = new ArrayList<RosterItem>();
-        rosterContacts_FROM.addAll(item_FROM);
-        rosterContacts_FROM.addAll(item_BOTH);
-        for (RosterItem rosterContact : rosterContacts_FROM) {
-            contacts.add(rosterContact.getJid());
-        }
+        contacts.addAll(RosterUtils.getPresenceSubscribers(rosterManager, user));
 
         // broadcast presence notification to all resources of
         // current entity.
@@ -301,27 +349,37 @@ public class PresenceAvailabilityHandler extends AbstractPresenceSpecializedHand
             Entity otherResource = new EntityImpl(user, resource);
             contacts.add(otherResource);
         }
+        return contacts;
+    }
 
-        // and send them out
-        relayTo(user, contacts, presenceStanza, sessionContext);
+    /**
+     * answers the presence probe for a contact hosted on this server from the presence cache, the answer
+     * is written directly to the probing session. this is what {@link #handleInboundPresenceProbe} would
+     * have relayed back.
+     * @return false, if the probe has to be relayed, because the contact is not local or the user is not
+     * subscribed to the contact. in the latter case, the 'unsubscribed' answer must be handled as inbound
+     * subscription stanza.
+     */
+    private boolean answerLocalProbe(Entity user, Entity contact, ServerRuntimeContext serverRuntimeContext,
+            SessionContext sessionContext, RosterManager rosterManager) {
+        if (!contact.isNodeSet() || !EntityUtils.isAddressingServer(contact, serverRuntimeContext.getServerEnitity())) {
+            return false;
+        }
 
-        if (!isPresenceUpdate) {
-            // initial presence only:
-            // send probes to all contacts of the current jid where
-            // 'subscription' is either 'to' or 'both'
-            // TODO: ...and jid is not blocking inbound presence notification
-            // TODO: optimize: don't send server-local probes when contact's presence is known locally
-            List<RosterItem> rosterContacts_TO = new ArrayList<RosterItem>();
-            rosterContacts_TO.addAll(item_TO);
-            rosterContacts_TO.addAll(item_BOTH);
-            for (RosterItem rosterItem : rosterContacts_TO) {
-                Entity contact_TO = rosterItem.getJid();
-                Stanza probeStanza = buildPresenceStanza(user, contact_TO, PresenceStanzaType.PROBE, null);
-                relayStanza(contact_TO, probeStanza, sessionContext);
-            }
+        Entity contactBareJID = contact.getBareJID();
+        if (!RosterUtils.getPresenceSubscribers(rosterManager, contactBareJID).contains(user.getBareJID())) {
+            return false;
         }
 
-        return null;
+        PresenceStanza latestPresenceStanza = retrieveLatestPresence(sessionContext, contactBareJID);
+        PresenceStanza answer;
+        if (latestPresenceStanza == null) {
+            answer = buildPresenceStanza(contactBareJID, user, UNAVAILABLE, null);
+        } else {
+            answer = buildPresenceStanza(contactBareJID, user, null, latestPresenceStanza.getInnerElements());
+        }
+        sessionContext.getResponseWriter().write(answer);
+        return true;
     }
 
     @SpecCompliant(spec = "RFC3921bis-08", section = "4.6.2")
@@ -436,6 +494,19 @@ public class PresenceAvailabilityHandler extends AbstractPresenceSpecializedHand
         return null;
     }
 
+    /**
+     * @return a string identifying the content of a presence, regardless of its addressing
+     */
+    private String presenceSignature(PresenceStanza presenceStanza) {
+        StringBuilder signature = new StringBuilder();
+        String type = presenceStanza.getType();
+        if (type != null) signature.append(type);
+        for (XMLElement innerElement : presenceStanza.getInnerElements()) {
+            signature.append(new Renderer(innerElement).getComplete());
+        }
+        return signature.toString();
+    }
+
     private void updateLatestPresence(SessionContext sessionContext, Entity user, PresenceStanza stanza) {
         sessionContext.getServerRuntimeContext().getPresenceCache().put(user, stanza);
     }
@@ -459,15 +530,9 @@ public class PresenceAvailabilityHandler extends AbstractPresenceSpecializedHand
     }
 
     private void relayTo(Entity from, List<Entity> tos, PresenceStanza original, SessionContext sessionContext) {
-        List<Attribute> toFromReplacements = new ArrayList<Attribute>(2);
-        toFromReplacements.add(new Attribute("from", from.getFullQualifiedName()));
-
-        for (Entity to : tos) {
-            toFromReplacements.add(new Attribute("to", to.getFullQualifiedName()));
-            Stanza outgoingStanza = StanzaBuilder.createClone(original, true, toFromReplacements).build();
-            relayStanza(to, outgoingStanza, sessionContext);
-            toFromReplacements.remove(toFromReplacements.size() - 1); // clear space for new 'to' attribute
-        }
+        // the relay puts in the 'to' for every contact
+        Stanza outgoingStanza = StanzaBuilder.createForwardStanza(original, from, null);
+        relayStanzaToMany(tos, outgoingStanza, sessionContext);
     }
 
 }
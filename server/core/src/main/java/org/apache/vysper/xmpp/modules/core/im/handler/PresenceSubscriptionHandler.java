@@ -45,6 +45,7 @@ import org.apache.vysper.xmpp.modules.roster.RosterException;
 import org.apache.vysper.xmpp.modules.roster.RosterItem;
 import org.apache.vysper.xmpp.modules.roster.RosterStanzaUtils;
 import org.apache.vysper.xmpp.modules.roster.RosterSubscriptionMutator;
+import org.apache.vysper.xmpp.modules.roster.RosterUtils;
 import org.apache.vysper.xmpp.modules.roster.persistence.RosterManager;
 import org.apache.vysper.xmpp.server.ServerRuntimeContext;
 import org.apache.vysper.xmpp.server.SessionContext;
@@ -195,13 +196,16 @@ public class PresenceSubscriptionHandler extends AbstractPresenceSpecializedHand
             return;
         }
 
+        // write the change back, this also keeps the subscription index current
+        writeRosterItem(rosterManager, userBareJid, rosterItem);
+
         // send roster push to all interested resources
         // TODO do this only once, since inbound is multiplexed on DeliveringInboundStanzaRelay level already
         List<String> resources = registry.getInterestedResources(user);
         for (String resource : resources) {
             Entity userResource = new EntityImpl(user, resource);
             Stanza push = RosterStanzaUtils.createRosterItemPushIQ(userResource, sessionContext.nextSequenceValue(),
-                    rosterItem);
+                    rosterItem, RosterUtils.getPushVersion(sessionContext.getServerRuntimeContext(), userResource));
             LocalDeliveryUtils.relayToResourceDirectly(registry, resource, push);
         }
 
@@ -238,11 +242,22 @@ public class PresenceSubscriptionHandler extends AbstractPresenceSpecializedHand
             return;
         }
 
+        // write the change back, this also keeps the subscription index current
+        writeRosterItem(rosterManager, userBareJid, rosterItem);
+
         relayStanza(contact, stanza, sessionContext);
 
         sendRosterUpdate(sessionContext, registry, user, rosterItem);
     }
 
+    private void writeRosterItem(RosterManager rosterManager, Entity userBareJid, RosterItem rosterItem) {
+        try {
+            rosterManager.addContact(userBareJid, rosterItem);
+        } catch (RosterException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     /**
      * send roster push to all of the user's interested resources
      */
@@ -253,7 +268,7 @@ public class PresenceSubscriptionHandler extends AbstractPresenceSpecializedHand
         for (String resource : resources) {
             Entity userResource = new EntityImpl(user, resource);
             Stanza push = RosterStanzaUtils.createRosterItemPushIQ(userResource, sessionContext.nextSequenceValue(),
-                    rosterItem);
+                    rosterItem, RosterUtils.getPushVersion(sessionContext.getServerRuntimeContext(), userResource));
             LocalDeliveryUtils.relayToResourceDirectly(registry, resource, push);
         }
     }
@@ -289,13 +304,16 @@ public class PresenceSubscriptionHandler extends AbstractPresenceSpecializedHand
             return;
         }
 
+        // write the change back, this also keeps the subscription index current
+        writeRosterItem(rosterManager, userBareJid, rosterItem);
+
         // send roster push to all interested resources
         // TODO do this only once, since inbound is multiplexed on DeliveringInboundStanzaRelay level already
         List<String> resources = registry.getInterestedResources(user);
         for (String resource : resources) {
             Entity userResource = new EntityImpl(user, resource);
             Stanza push = RosterStanzaUtils.createRosterItemPushIQ(userResource, sessionContext.nextSequenceValue(),
-                    rosterItem);
+                    rosterItem, RosterUtils.getPushVersion(sessionContext.getServerRuntimeContext(), userResource));
             LocalDeliveryUtils.relayToResourceDirectly(registry, resource, push);
         }
     }
@@ -330,6 +348,9 @@ public class PresenceSubscriptionHandler extends AbstractPresenceSpecializedHand
             return;
         }
 
+        // write the change back, this also keeps the subscription index current
+        writeRosterItem(rosterManager, userBareJid, rosterItem);
+
         relayStanza(contact, stanza, sessionContext);
 
         // send roster push to all of the user's interested resources
@@ -431,7 +452,8 @@ public class PresenceSubscriptionHandler extends AbstractPresenceSpecializedHand
             for (String resource : resources) {
                 Entity userResource = new EntityImpl(user, resource);
                 Stanza push = RosterStanzaUtils.createRosterItemPushIQ(userResource,
-                        sessionContext.nextSequenceValue(), rosterItem);
+                        sessionContext.nextSequenceValue(), rosterItem, RosterUtils.getPushVersion(
+                                sessionContext.getServerRuntimeContext(), userResource));
                 LocalDeliveryUtils.relayToResourceDirectly(registry, resource, push);
             }
         } else {
@@ -521,7 +543,7 @@ public class PresenceSubscriptionHandler extends AbstractPresenceSpecializedHand
         for (String resource : resources) {
             Entity userResource = new EntityImpl(user, resource);
             Stanza push = RosterStanzaUtils.createRosterItemPushIQ(userResource, sessionContext.nextSequenceValue(),
-                    rosterItem);
+                    rosterItem, RosterUtils.getPushVersion(sessionContext.getServerRuntimeContext(), userResource));
             LocalDeliveryUtils.relayToResourceDirectly(registry, resource, push);
         }
     }
@@ -23,14 +23,14 @@ import org.apache.vysper.xmpp.protocol.NamespaceURIs;
 import org.apache.vysper.xmpp.stanza.dataforms.DataForm;
 import org.apache.vysper.xmpp.stanza.dataforms.DataFormEncoder;
 import org.apache.vysper.xmpp.stanza.dataforms.Field;
-import org.apache.vysper.xmpp.uuid.JVMBuiltinUUIDGenerator;
+import org.apache.vysper.xmpp.uuid.ThreadLocalSecureRandomUUIDGenerator;
 import org.apache.vysper.xmpp.uuid.UUIDGenerator;
 
 /**
  */
 public abstract class AbstractAdhocCommandHandler implements AdhocCommandHandler {
     
-    private static UUIDGenerator SESSION_ID_GENERATOR = new JVMBuiltinUUIDGenerator();
+    private static UUIDGenerator SESSION_ID_GENERATOR = new ThreadLocalSecureRandomUUIDGenerator();
     protected static final DataFormEncoder DATA_FORM_ENCODER = new DataFormEncoder();
     
     protected boolean isExecuting = true;
@@ -40,8 +40,10 @@ import org.apache.vysper.xmpp.modules.extension.xep0050_adhoc_commands.CommandIn
 import org.apache.vysper.xmpp.modules.extension.xep0133_service_administration.command.AddUserCommandHandler;
 import org.apache.vysper.xmpp.modules.extension.xep0133_service_administration.command.ChangeUserPasswordCommandHandler;
 import org.apache.vysper.xmpp.modules.extension.xep0133_service_administration.command.GetOnlineUsersCommandHandler;
+import org.apache.vysper.xmpp.modules.extension.xep0133_service_administration.command.GetStageLatenciesCommandHandler;
 import org.apache.vysper.xmpp.modules.servicediscovery.management.InfoRequest;
 import org.apache.vysper.xmpp.server.ServerRuntimeContext;
+import org.apache.vysper.xmpp.server.metrics.StageLatencies;
 import org.apache.vysper.xmpp.state.resourcebinding.ResourceRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -58,6 +60,7 @@ public class ServiceAdministrationModule extends DefaultModule implements AdhocC
     public static final String COMMAND_NODE_ADD_USER = "http://jabber.org/protocol/admin#add-user";
     public static final String COMMAND_GET_ONLINE_USERS_NUM = "http://jabber.org/protocol/admin#get-online-users-num";
     public static final String COMMAND_CHANGE_USER_PASSWORD = "http://jabber.org/protocol/admin#change-user-password";
+    public static final String COMMAND_GET_STAGE_LATENCIES = "http://jabber.org/protocol/admin#get-stage-latencies";
     
     private ServerRuntimeContext serverRuntimeContext;
 
@@ -68,6 +71,7 @@ public class ServiceAdministrationModule extends DefaultModule implements AdhocC
         /* XEP-133 4.1  */ allCommandInfos.put(COMMAND_NODE_ADD_USER, new CommandInfo(COMMAND_NODE_ADD_USER, "Add User"));
         /* XEP-133 4.7  */ allCommandInfos.put(COMMAND_CHANGE_USER_PASSWORD, new CommandInfo(COMMAND_CHANGE_USER_PASSWORD, "Change User Password"));
         /* XEP-133 4.15 */ allCommandInfos.put(COMMAND_GET_ONLINE_USERS_NUM, new CommandInfo(COMMAND_GET_ONLINE_USERS_NUM, "Get Number of Online Users"));
+        /* Vysper specific */ allCommandInfos.put(COMMAND_GET_STAGE_LATENCIES, new CommandInfo(COMMAND_GET_STAGE_LATENCIES, "Get Stage Latencies"));
     }
 
     /**
@@ -151,6 +155,8 @@ public class ServiceAdministrationModule extends DefaultModule implements AdhocC
             return new ChangeUserPasswordCommandHandler(accountManagement, null);
         } else if (commandNode.equals(COMMAND_GET_ONLINE_USERS_NUM)) {
             return new GetOnlineUsersCommandHandler(resourceRegistry);
+        } else if (commandNode.equals(COMMAND_GET_STAGE_LATENCIES)) {
+            return new GetStageLatenciesCommandHandler(StageLatencies.getInstance());
         }
         return null;
     }
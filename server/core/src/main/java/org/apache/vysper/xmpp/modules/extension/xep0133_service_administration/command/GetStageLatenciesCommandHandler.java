@@ -0,0 +1,68 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.vysper.xmpp.modules.extension.xep0133_service_administration.command;
+
+import java.util.List;
+
+import org.apache.vysper.xml.fragment.XMLElement;
+import org.apache.vysper.xmpp.modules.extension.xep0050_adhoc_commands.AbstractAdhocCommandHandler;
+import org.apache.vysper.xmpp.modules.extension.xep0050_adhoc_commands.Note;
+import org.apache.vysper.xmpp.server.metrics.LatencyHistogram;
+import org.apache.vysper.xmpp.server.metrics.StageLatencies;
+import org.apache.vysper.xmpp.stanza.XMPPCoreStanzaKind;
+import org.apache.vysper.xmpp.stanza.dataforms.DataForm;
+import org.apache.vysper.xmpp.stanza.dataforms.Field;
+
+/**
+ * reports the latency histograms of all stanza processing stages, one field per stage and stanza kind
+ */
+public class GetStageLatenciesCommandHandler extends AbstractAdhocCommandHandler {
+
+    protected final StageLatencies stageLatencies;
+
+    public GetStageLatenciesCommandHandler(StageLatencies stageLatencies) {
+        this.stageLatencies = stageLatencies;
+    }
+
+    public XMLElement process(List<XMLElement> commandElements, List<Note> notes) {
+        final DataForm dataForm = createResultForm();
+
+        for (StageLatencies.Stage stage : StageLatencies.Stage.values()) {
+            for (XMPPCoreStanzaKind kind : XMPPCoreStanzaKind.values()) {
+                addField(dataForm, stage, kind);
+            }
+            addField(dataForm, stage, null);
+        }
+
+        isExecuting = false;
+
+        return DATA_FORM_ENCODER.getXML(dataForm);
+    }
+
+    private void addField(DataForm dataForm, StageLatencies.Stage stage, XMPPCoreStanzaKind kind) {
+        LatencyHistogram histogram = stageLatencies.getHistogram(stage, kind);
+        if (histogram.getCount() == 0)
+            return;
+        String stageName = stage.name().toLowerCase();
+        String kindName = kind == null ? "other" : kind.value();
+        dataForm.addField(new Field(stageName + " " + kindName, Field.Type.FIXED, stageName + "-" + kindName,
+                StageLatencies.formatHistogram(histogram)));
+    }
+}
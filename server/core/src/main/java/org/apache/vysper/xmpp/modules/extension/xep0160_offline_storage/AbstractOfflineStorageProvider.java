@@ -19,6 +19,18 @@
  */
 package org.apache.vysper.xmpp.modules.extension.xep0160_offline_storage;
 
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.vysper.xml.fragment.Renderer;
+import org.apache.vysper.xmpp.addressing.Entity;
+import org.apache.vysper.xmpp.delivery.RejectingOfflineStanzaReceiver;
+import org.apache.vysper.xmpp.delivery.failure.OfflineStorageQuotaExceededException;
 import org.apache.vysper.xmpp.stanza.MessageStanza;
 import org.apache.vysper.xmpp.stanza.MessageStanzaType;
 import org.apache.vysper.xmpp.stanza.PresenceStanza;
@@ -28,12 +40,64 @@ import org.apache.vysper.xmpp.stanza.XMPPCoreStanza;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-public abstract class AbstractOfflineStorageProvider implements OfflineStorageProvider {
+public abstract class AbstractOfflineStorageProvider implements OfflineStorageProvider, RejectingOfflineStanzaReceiver {
 
     final Logger logger = LoggerFactory.getLogger(AbstractOfflineStorageProvider.class);
 
-    /** checks if a stanza should be stored for offline receivers */
+    /**
+     * what is currently stored for a bare JID. updated while holding its lock, read without.
+     */
+    private static class Usage {
+        private final AtomicInteger stanzas = new AtomicInteger();
+
+        private final AtomicLong bytes = new AtomicLong();
+
+        /** removed from the usages, because nothing is stored anymore */
+        private boolean removed = false;
+    }
+
+    private volatile OfflineStorageQuota quota = null;
+
+    /**
+     * maintained by the implementations through {@link #addUsage(String, int, long)} and 
+     * {@link #releaseUsage(String, int, long)}, so that checking the quota never looks at the stored stanzas. 
+     * only holds bare JIDs which have stanzas stored.
+     */
+    private final ConcurrentMap<String, Usage> usages = new ConcurrentHashMap<String, Usage>();
+
+    /**
+     * the cursor open for a bare JID, see {@link #openCursor(Entity)}
+     */
+    private final ConcurrentMap<String, OfflineStanzaCursor> openCursors = new ConcurrentHashMap<String, OfflineStanzaCursor>();
+
+    private final AtomicLong droppedCount = new AtomicLong();
+
+    private final AtomicLong evictedCount = new AtomicLong();
+
+    private final AtomicLong bouncedCount = new AtomicLong();
+
+    /**
+     * @param quota limits what is stored per bare JID, NULL for no limits
+     */
+    public void setQuota(OfflineStorageQuota quota) {
+        this.quota = quota;
+    }
+
+    public OfflineStorageQuota getQuota() {
+        return quota;
+    }
+
+    /** checks if a stanza should be stored for offline receivers, stanzas exceeding the quota are dropped */
     public void receive(Stanza stanza) {
+        try {
+            receiveOrReject(stanza);
+        } catch (OfflineStorageQuotaExceededException e) {
+            logger.info("Offline storage quota exceeded for {}, stanza dropped", stanza.getTo());
+        }
+    }
+
+    /** checks if a stanza should be stored for offline receivers, and if the receiver's quota allows it */
+    public void receiveOrReject(Stanza stanza) throws OfflineStorageQuotaExceededException {
         stanza = XMPPCoreStanza.getWrapper(stanza);
         
         // according to XEP-0160 only certain stanzas should be stored
@@ -83,11 +147,237 @@ public abstract class AbstractOfflineStorageProvider implements OfflineStoragePr
             logger.debug("Stanza is not intended for offline storage");
             return;
         }
+        byte[] rendered = render(stanza);
+        if (!checkQuota(stanza, rendered)) {
+            return;
+        }
         logger.debug("Stanza will be stored offline");
-        storeStanza(stanza);
+        if (rendered != null) {
+            storeRendered(stanza, rendered);
+        } else {
+            storeStanza(stanza);
+        }
+    }
+
+    /**
+     * @param rendered the stanza as rendered by {@link #render(Stanza)}, or NULL
+     * @return TRUE, if the stanza is to be stored
+     */
+    private boolean checkQuota(Stanza stanza, byte[] rendered) throws OfflineStorageQuotaExceededException {
+        OfflineStorageQuota quota = this.quota;
+        if (quota == null) {
+            return true;
+        }
+        String bareJID = stanza.getTo().getBareJID().getFullQualifiedName();
+        long size = 0;
+        if (quota.isLimitingBytes()) {
+            size = rendered != null ? rendered.length : sizeOf(stanza);
+        }
+        if (quota.isTooLarge(size)) {
+            // evicting would not make room, but only lose stanzas
+            if (quota.getPolicy() == OfflineStorageQuota.Policy.BOUNCE) {
+                bouncedCount.incrementAndGet();
+                throw new OfflineStorageQuotaExceededException("stanza exceeds offline storage quota for " + bareJID);
+            }
+            droppedCount.incrementAndGet();
+            logger.info("Stanza exceeds offline storage quota for {}, stanza dropped", bareJID);
+            return false;
+        }
+        Usage usage = usages.get(bareJID);
+        // concurrent stores for the same receiver might exceed the quota slightly
+        while (usage != null && quota.isExceededBy(usage.stanzas.get(), usage.bytes.get(), size)) {
+            if (quota.getPolicy() == OfflineStorageQuota.Policy.BOUNCE) {
+                bouncedCount.incrementAndGet();
+                throw new OfflineStorageQuotaExceededException("offline storage quota exceeded for " + bareJID);
+            } else if (quota.getPolicy() == OfflineStorageQuota.Policy.EVICT_OLDEST && evictOldest(bareJID)) {
+                evictedCount.incrementAndGet();
+            } else {
+                droppedCount.incrementAndGet();
+                logger.info("Offline storage quota exceeded for {}, stanza dropped", bareJID);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the size of the stanza as accounted against the byte quota, 0 if there is no byte quota
+     */
+    protected long accountedSizeOf(Stanza stanza) {
+        OfflineStorageQuota quota = this.quota;
+        return quota != null && quota.isLimitingBytes() ? sizeOf(stanza) : 0;
+    }
+
+    protected long sizeOf(Stanza stanza) {
+        return new Renderer(stanza).getComplete().length();
+    }
+
+    /**
+     * to be called by implementations after stanzas have been stored
+     */
+    protected void addUsage(String bareJID, int stanzas, long bytes) {
+        while (true) {
+            Usage usage = usages.get(bareJID);
+            if (usage == null) {
+                usage = new Usage();
+                Usage existing = usages.putIfAbsent(bareJID, usage);
+                if (existing != null) {
+                    usage = existing;
+                }
+            }
+            synchronized (usage) {
+                if (usage.removed) {
+                    // emptied and removed meanwhile, start over with a new one
+                    continue;
+                }
+                usage.stanzas.addAndGet(stanzas);
+                usage.bytes.addAndGet(bytes);
+                return;
+            }
+        }
+    }
+
+    /**
+     * to be called by implementations after stanzas have been removed, with the sizes they were added with
+     */
+    protected void releaseUsage(String bareJID, int stanzas, long bytes) {
+        Usage usage = usages.get(bareJID);
+        if (usage == null) {
+            return;
+        }
+        synchronized (usage) {
+            if (usage.stanzas.addAndGet(-stanzas) <= 0) {
+                usage.removed = true;
+                usages.remove(bareJID, usage);
+            } else {
+                usage.bytes.addAndGet(-bytes);
+            }
+        }
+    }
+
+    /**
+     * @return the number of bare JIDs which have stanzas stored
+     */
+    /*package*/ int getUsageCount() {
+        return usages.size();
+    }
+
+    /**
+     * removes the oldest stanza stored for the bare JID, for the {@link OfflineStorageQuota.Policy#EVICT_OLDEST} 
+     * policy. implementations not supporting this drop the new stanza instead.
+     * @return TRUE, if a stanza has been removed
+     */
+    protected boolean evictOldest(String bareJID) {
+        return false;
+    }
+
+    /**
+     * @return the number of stanzas stored for the bare JID of the given entity
+     */
+    public int getStoredCount(Entity jid) {
+        Usage usage = usages.get(jid.getBareJID().getFullQualifiedName());
+        return usage == null ? 0 : usage.stanzas.get();
+    }
+
+    /**
+     * @return the accounted size of the stanzas stored for the bare JID of the given entity
+     */
+    public long getStoredBytes(Entity jid) {
+        Usage usage = usages.get(jid.getBareJID().getFullQualifiedName());
+        return usage == null ? 0 : usage.bytes.get();
+    }
+
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    public long getEvictedCount() {
+        return evictedCount.get();
+    }
+
+    public long getBouncedCount() {
+        return bouncedCount.get();
     }
 
     /** does the actual storage mechanism */
     protected abstract void storeStanza(Stanza stanza);
 
+    /**
+     * implementations which store stanzas in their rendered form override this together with 
+     * {@link #storeRendered(Stanza, byte[])}, so that a stanza is rendered only once, for the byte quota 
+     * and for storing it
+     * @return the stanza as it is going to be stored, or NULL if the implementation does not store it rendered
+     */
+    protected byte[] render(Stanza stanza) {
+        return null;
+    }
+
+    /**
+     * stores the stanza, which has been rendered by {@link #render(Stanza)} already
+     */
+    protected void storeRendered(Stanza stanza, byte[] rendered) {
+        storeStanza(stanza);
+    }
+
+    /**
+     * only one cursor is open per bare JID at a time, so that concurrent logins of the same user do not both 
+     * replay the stanzas. the cursor is released by closing it.
+     * @return NULL, if a cursor is open for the JID already
+     */
+    public final OfflineStanzaCursor openCursor(Entity jid) {
+        String bareJID = jid.getBareJID().getFullQualifiedName();
+        OfflineStanzaCursor cursor = createCursor(jid);
+        if (openCursors.putIfAbsent(bareJID, cursor) != null) {
+            return null;
+        }
+        return cursor;
+    }
+
+    /**
+     * creates a cursor without reading or removing anything yet. the cursor has to call 
+     * {@link #cursorClosed(String, OfflineStanzaCursor)} when it is closed. 
+     * this one pages through the stanzas returned by {@link #getStanzasFor(Entity)}, which removes them all at once. 
+     * providers which can page through their storage should override this.
+     */
+    protected OfflineStanzaCursor createCursor(Entity jid) {
+        return new CollectionCursor(jid);
+    }
+
+    /**
+     * releases the JID's claim on the cursor, so that a new one can be opened
+     */
+    protected void cursorClosed(String bareJID, OfflineStanzaCursor cursor) {
+        openCursors.remove(bareJID, cursor);
+    }
+
+    private class CollectionCursor implements OfflineStanzaCursor {
+
+        private final Entity jid;
+
+        private Iterator<Stanza> stanzas = null;
+
+        CollectionCursor(Entity jid) {
+            this.jid = jid;
+        }
+
+        public List<Stanza> nextPage(int maxSize) {
+            if (stanzas == null) {
+                stanzas = getStanzasFor(jid).iterator();
+            }
+            List<Stanza> page = new ArrayList<Stanza>();
+            while (page.size() < maxSize && stanzas.hasNext()) {
+                page.add(stanzas.next());
+            }
+            return page;
+        }
+
+        public void acknowledge() {
+            // already removed
+        }
+
+        public void close() {
+            cursorClosed(jid.getBareJID().getFullQualifiedName(), this);
+        }
+    }
+
 }
@@ -0,0 +1,859 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.vysper.xmpp.modules.extension.xep0160_offline_storage;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.vysper.xml.fragment.Renderer;
+import org.apache.vysper.xml.fragment.XMLElement;
+import org.apache.vysper.xmpp.addressing.Entity;
+import org.apache.vysper.xmpp.parser.XMLParserUtil;
+import org.apache.vysper.xmpp.stanza.Stanza;
+import org.apache.vysper.xmpp.stanza.XMPPCoreStanza;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * stores offline stanzas on the local file system, in append-only segment files.
+ * <p>
+ * every stored stanza is appended to the active segment, together with its receiver's bare JID, a sequence 
+ * number and a timestamp. when stanzas are retrieved, a 'consumed' record is appended for the receiver. 
+ * the segment is sealed and a new one is started when it has reached its maximum size or age. 
+ * sealed segments are read through read-only memory maps. 
+ * an in-memory index per bare JID locates the pending stanzas, it is rebuilt from the segments on startup, 
+ * so that pending stanzas survive a restart.
+ * <p>
+ * a background task deletes the oldest segment when all of its stanzas have timed out or have been retrieved. 
+ * when only few of its stanzas are still pending, they are copied to the active segment first (compaction). 
+ * only the oldest segment is ever deleted, which ensures that no retrieved stanza is restored from an older 
+ * segment after its 'consumed' record is gone.
+ *
+ * @author The Apache MINA Project (dev@mina.apache.org)
+ */
+public class FileOfflineStorageProvider extends AbstractOfflineStorageProvider {
+
+    final Logger logger = LoggerFactory.getLogger(FileOfflineStorageProvider.class);
+
+    public static final long DEFAULT_TIMEOUT_MILLIS = 7L * 24 * 3600 * 1000;
+
+    public static final long DEFAULT_MAX_SEGMENT_BYTES = 64L * 1024 * 1024;
+
+    public static final long DEFAULT_MAX_SEGMENT_AGE_MILLIS = 3600 * 1000;
+
+    public static final double DEFAULT_COMPACTION_THRESHOLD = 0.5;
+
+    private static final long MAINTENANCE_PERIOD_MILLIS = 60 * 1000;
+
+    private static final String SEGMENT_PREFIX = "offline-";
+
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private static final byte RECORD_STANZA = 1;
+
+    private static final byte RECORD_CONSUMED = 2;
+
+    /**
+     * every record starts with: int length (of the remainder), byte type, long sequence, long timestamp, 
+     * short JID length. it continues with the JID and, for stanza records, the stanza, both UTF-8 encoded. 
+     */
+    private static final int RECORD_HEADER_BYTES = 4 + 1 + 8 + 8 + 2;
+
+    private static final String UTF8 = "UTF-8";
+
+    /**
+     * where a pending stanza is stored
+     */
+    private static class Location {
+        private final Segment segment;
+
+        private final long offset;
+
+        private final int length;
+
+        private final long sequence;
+
+        private final long timestamp;
+
+        Location(Segment segment, long offset, int length, long sequence, long timestamp) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.sequence = sequence;
+            this.timestamp = timestamp;
+        }
+    }
+
+    private static class Segment {
+        private final long id;
+
+        private final File file;
+
+        private final RandomAccessFile randomAccessFile;
+
+        private final FileChannel channel;
+
+        private final long created = System.currentTimeMillis();
+
+        private long size;
+
+        private long newestTimestamp = 0;
+
+        /** number of stanza records */
+        private int stanzaCount = 0;
+
+        /** number of stanza records which are still pending */
+        private int liveCount = 0;
+
+        /** number of reads in progress outside the write lock, the segment is not deleted while there are any */
+        private int readers = 0;
+
+        private volatile MappedByteBuffer mapped = null;
+
+        private volatile boolean deleted = false;
+
+        Segment(long id, File file) throws IOException {
+            this.id = id;
+            this.file = file;
+            this.randomAccessFile = new RandomAccessFile(file, "rw");
+            this.channel = randomAccessFile.getChannel();
+            this.size = channel.size();
+        }
+
+        long append(ByteBuffer record) throws IOException {
+            long position = size;
+            while (record.hasRemaining()) {
+                size += channel.write(record, size);
+            }
+            return position;
+        }
+
+        void seal() throws IOException {
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+
+        boolean isSealed() {
+            return mapped != null;
+        }
+
+        byte[] read(long offset, int length) throws IOException {
+            byte[] bytes = new byte[length];
+            MappedByteBuffer mapped = this.mapped;
+            if (mapped != null) {
+                ByteBuffer view = mapped.duplicate();
+                view.position((int) offset);
+                view.get(bytes);
+            } else {
+                ByteBuffer buffer = ByteBuffer.wrap(bytes);
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, offset + buffer.position()) < 0) {
+                        throw new IOException("unexpected end of segment " + file);
+                    }
+                }
+            }
+            return bytes;
+        }
+
+        void delete() {
+            deleted = true;
+            mapped = null;
+            try {
+                randomAccessFile.close();
+            } catch (IOException e) {
+                // ignore
+            }
+            file.delete();
+        }
+    }
+
+    protected final File directory;
+
+    protected final long timeout;
+
+    protected long maxSegmentBytes = DEFAULT_MAX_SEGMENT_BYTES;
+
+    protected long maxSegmentAgeMillis = DEFAULT_MAX_SEGMENT_AGE_MILLIS;
+
+    protected double compactionThreshold = DEFAULT_COMPACTION_THRESHOLD;
+
+    protected boolean syncOnWrite = false;
+
+    /**
+     * guards the segments, the index lists and all writes. stanzas are read from the segments outside of it.
+     */
+    private final Object writeLock = new Object();
+
+    /** oldest first, the last one might be the active segment */
+    private final LinkedList<Segment> segments = new LinkedList<Segment>();
+
+    private Segment activeSegment = null;
+
+    private long nextSegmentId = 0;
+
+    private long nextSequence = 0;
+
+    /** pending stanzas per bare JID, in sequence order */
+    private final ConcurrentMap<String, List<Location>> index = new ConcurrentHashMap<String, List<Location>>();
+
+    private final Timer maintenanceTimer;
+
+    public FileOfflineStorageProvider(File directory) throws IOException {
+        this(directory, DEFAULT_TIMEOUT_MILLIS);
+    }
+
+    public FileOfflineStorageProvider(File directory, long timeout) throws IOException {
+        this.directory = directory;
+        this.timeout = timeout;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("cannot create offline storage directory " + directory);
+        }
+        recover();
+
+        maintenanceTimer = new Timer("OfflineSegmentMaintenance", true);
+        maintenanceTimer.schedule(new Maintenance(), MAINTENANCE_PERIOD_MILLIS, MAINTENANCE_PERIOD_MILLIS);
+    }
+
+    public void setMaxSegmentBytes(long maxSegmentBytes) {
+        this.maxSegmentBytes = maxSegmentBytes;
+    }
+
+    public void setMaxSegmentAgeMillis(long maxSegmentAgeMillis) {
+        this.maxSegmentAgeMillis = maxSegmentAgeMillis;
+    }
+
+    /**
+     * @param compactionThreshold the oldest segment is compacted, when the share of its stanzas which are still 
+     * pending has fallen to this value
+     */
+    public void setCompactionThreshold(double compactionThreshold) {
+        this.compactionThreshold = compactionThreshold;
+    }
+
+    /**
+     * @param syncOnWrite if TRUE, every write is forced to the storage device before returning
+     */
+    public void setSyncOnWrite(boolean syncOnWrite) {
+        this.syncOnWrite = syncOnWrite;
+    }
+
+    @Override
+    protected void storeStanza(Stanza stanza) {
+        byte[] stanzaBytes = render(stanza);
+        if (stanzaBytes != null) {
+            storeRendered(stanza, stanzaBytes);
+        }
+    }
+
+    /**
+     * renders the stanza UTF-8 encoded, as it is stored and accounted against the byte quota
+     */
+    @Override
+    protected byte[] render(Stanza stanza) {
+        try {
+            return new Renderer(stanza).getComplete().getBytes(UTF8);
+        } catch (UnsupportedEncodingException e) {
+            logger.error("failed to render offline stanza for " + stanza.getTo(), e);
+            return null;
+        }
+    }
+
+    @Override
+    protected void storeRendered(Stanza stanza, byte[] stanzaBytes) {
+        String bareJID = stanza.getTo().getBareJID().getFullQualifiedName();
+        long now = System.currentTimeMillis();
+        try {
+            synchronized (writeLock) {
+                Location location = append(RECORD_STANZA, nextSequence++, now, bareJID, stanzaBytes);
+                List<Location> locations = index.get(bareJID);
+                if (locations == null) {
+                    locations = new ArrayList<Location>();
+                    index.put(bareJID, locations);
+                }
+                locations.add(location);
+                // accounted before the stanza can be retrieved and released
+                addUsage(bareJID, 1, stanzaBytes.length);
+            }
+        } catch (IOException e) {
+            logger.error("failed to store offline stanza for " + bareJID, e);
+        }
+    }
+
+    public Collection<Stanza> getStanzasFor(Entity jid) {
+        String bareJID = jid.getBareJID().getFullQualifiedName();
+        long expiredBefore = System.currentTimeMillis() - timeout;
+
+        List<Location> locations;
+        synchronized (writeLock) {
+            locations = index.remove(bareJID);
+            if (locations == null || locations.isEmpty()) {
+                return Collections.emptyList();
+            }
+            long size = 0;
+            for (Location location : locations) {
+                location.segment.liveCount--;
+                size += location.length;
+            }
+            appendConsumed(bareJID, locations.get(locations.size() - 1).sequence);
+            releaseUsage(bareJID, locations.size(), size);
+            addReaders(locations);
+        }
+        return parse(readStanzas(bareJID, locations, expiredBefore));
+    }
+
+    @Override
+    protected boolean evictOldest(String bareJID) {
+        synchronized (writeLock) {
+            List<Location> locations = index.get(bareJID);
+            if (locations == null || locations.isEmpty()) {
+                return false;
+            }
+            Location evicted = locations.remove(0);
+            if (locations.isEmpty()) {
+                index.remove(bareJID);
+            }
+            evicted.segment.liveCount--;
+            // there are no older stanzas left for the JID, so this only marks the evicted one
+            appendConsumed(bareJID, evicted.sequence);
+            releaseUsage(bareJID, 1, evicted.length);
+            return true;
+        }
+    }
+
+    @Override
+    protected OfflineStanzaCursor createCursor(Entity jid) {
+        return new Cursor(jid.getBareJID().getFullQualifiedName());
+    }
+
+    private class Cursor implements OfflineStanzaCursor {
+
+        private final String bareJID;
+
+        private long lastReturnedSequence = -1;
+
+        Cursor(String bareJID) {
+            this.bareJID = bareJID;
+        }
+
+        public List<Stanza> nextPage(int maxSize) {
+            long expiredBefore = System.currentTimeMillis() - timeout;
+            List<Location> page = new ArrayList<Location>();
+            synchronized (writeLock) {
+                List<Location> locations = index.get(bareJID);
+                if (locations == null) {
+                    return new ArrayList<Stanza>();
+                }
+                for (Location location : locations) {
+                    if (page.size() >= maxSize) {
+                        break;
+                    }
+                    if (location.sequence > lastReturnedSequence) {
+                        page.add(location);
+                        lastReturnedSequence = location.sequence;
+                    }
+                }
+                addReaders(page);
+            }
+            return parse(readStanzas(bareJID, page, expiredBefore));
+        }
+
+        public void acknowledge() {
+            synchronized (writeLock) {
+                List<Location> locations = index.get(bareJID);
+                if (locations == null) {
+                    return;
+                }
+                int removed = 0;
+                long size = 0;
+                while (removed < locations.size() && locations.get(removed).sequence <= lastReturnedSequence) {
+                    Location location = locations.get(removed);
+                    location.segment.liveCount--;
+                    removed++;
+                    size += location.length;
+                }
+                // removes the page from the front at once, not one by one
+                locations.subList(0, removed).clear();
+                if (locations.isEmpty()) {
+                    index.remove(bareJID);
+                }
+                if (removed > 0) {
+                    appendConsumed(bareJID, lastReturnedSequence);
+                    releaseUsage(bareJID, removed, size);
+                }
+            }
+        }
+
+        public void close() {
+            cursorClosed(bareJID, this);
+        }
+    }
+
+    /**
+     * must be called while holding the write lock, before reading the locations with 
+     * {@link #readStanzas(String, List, long)}
+     */
+    private void addReaders(List<Location> locations) {
+        for (Location location : locations) {
+            location.segment.readers++;
+        }
+    }
+
+    /**
+     * reads the stanzas without holding the write lock. their segments are not deleted meanwhile, 
+     * because they have been registered with {@link #addReaders(List)}.
+     */
+    private List<byte[]> readStanzas(String bareJID, List<Location> locations, long expiredBefore) {
+        List<byte[]> stanzaBytes = new ArrayList<byte[]>(locations.size());
+        try {
+            for (Location location : locations) {
+                if (location.timestamp < expiredBefore || location.segment.deleted) {
+                    continue;
+                }
+                try {
+                    stanzaBytes.add(location.segment.read(location.offset, location.length));
+                } catch (IOException e) {
+                    logger.error("failed to read offline stanza for " + bareJID, e);
+                }
+            }
+        } finally {
+            synchronized (writeLock) {
+                for (Location location : locations) {
+                    location.segment.readers--;
+                }
+            }
+        }
+        return stanzaBytes;
+    }
+
+    /**
+     * must be called while holding the write lock
+     */
+    private void appendConsumed(String bareJID, long lastSequence) {
+        try {
+            append(RECORD_CONSUMED, lastSequence, System.currentTimeMillis(), bareJID, null);
+        } catch (IOException e) {
+            logger.error("failed to mark offline stanzas as retrieved for " + bareJID, e);
+        }
+    }
+
+    /**
+     * parsing does not need the lock
+     */
+    private List<Stanza> parse(List<byte[]> stanzaBytes) {
+        List<Stanza> stanzas = new ArrayList<Stanza>(stanzaBytes.size());
+        for (byte[] bytes : stanzaBytes) {
+            Stanza stanza = parse(bytes);
+            if (stanza != null) {
+                stanzas.add(stanza);
+            }
+        }
+        return stanzas;
+    }
+
+    /**
+     * @return the number of stanzas pending for the JID
+     */
+    public int getPendingCount(Entity jid) {
+        synchronized (writeLock) {
+            List<Location> locations = index.get(jid.getBareJID().getFullQualifiedName());
+            return locations == null ? 0 : locations.size();
+        }
+    }
+
+    public int getSegmentCount() {
+        synchronized (writeLock) {
+            return segments.size();
+        }
+    }
+
+    /**
+     * stops the background maintenance and closes all segment files
+     */
+    public void close() {
+        maintenanceTimer.cancel();
+        synchronized (writeLock) {
+            for (Segment segment : segments) {
+                try {
+                    segment.randomAccessFile.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    private Stanza parse(byte[] bytes) {
+        try {
+            XMLElement element = XMLParserUtil.parseDocument(new String(bytes, UTF8));
+            if (element == null) {
+                logger.error("incomplete offline stanza");
+                return null;
+            }
+            Stanza stanza = new Stanza(element.getNamespaceURI(), element.getName(), element.getNamespacePrefix(),
+                    element.getAttributes(), element.getInnerFragments(), element.getDeclaredNamespaces());
+            XMPPCoreStanza coreStanza = XMPPCoreStanza.getWrapper(stanza);
+            return coreStanza != null ? coreStanza : stanza;
+        } catch (Exception e) {
+            logger.error("failed to parse offline stanza", e);
+            return null;
+        }
+    }
+
+    /**
+     * must be called while holding the write lock
+     * @return the location of the stanza, if one was appended
+     */
+    private Location append(byte type, long sequence, long timestamp, String bareJID, byte[] stanzaBytes)
+            throws IOException {
+        rollIfNeeded(timestamp);
+
+        byte[] jidBytes = bareJID.getBytes(UTF8);
+        int stanzaLength = stanzaBytes == null ? 0 : stanzaBytes.length;
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_BYTES + jidBytes.length + stanzaLength);
+        record.putInt(record.capacity() - 4);
+        record.put(type);
+        record.putLong(sequence);
+        record.putLong(timestamp);
+        record.putShort((short) jidBytes.length);
+        record.put(jidBytes);
+        if (stanzaBytes != null) {
+            record.put(stanzaBytes);
+        }
+        record.flip();
+
+        long position = activeSegment.append(record);
+        if (syncOnWrite) {
+            activeSegment.channel.force(false);
+        }
+        if (type != RECORD_STANZA) {
+            return null;
+        }
+        activeSegment.stanzaCount++;
+        activeSegment.liveCount++;
+        activeSegment.newestTimestamp = Math.max(activeSegment.newestTimestamp, timestamp);
+        return new Location(activeSegment, position + RECORD_HEADER_BYTES + jidBytes.length, stanzaLength, sequence,
+                timestamp);
+    }
+
+    /**
+     * must be called while holding the write lock
+     */
+    private void rollIfNeeded(long now) throws IOException {
+        if (activeSegment != null && activeSegment.size < maxSegmentBytes
+                && now - activeSegment.created < maxSegmentAgeMillis) {
+            return;
+        }
+        if (activeSegment != null) {
+            activeSegment.seal();
+        }
+        long id = nextSegmentId++;
+        activeSegment = new Segment(id, new File(directory, segmentFileName(id)));
+        segments.add(activeSegment);
+    }
+
+    private static String segmentFileName(long id) {
+        return SEGMENT_PREFIX + String.format("%020d", id) + SEGMENT_SUFFIX;
+    }
+
+    /**
+     * rebuilds the index from the segment files
+     */
+    private void recover() throws IOException {
+        File[] files = directory.listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            public int compare(File file1, File file2) {
+                return file1.getName().compareTo(file2.getName());
+            }
+        });
+
+        long expiredBefore = System.currentTimeMillis() - timeout;
+        synchronized (writeLock) {
+            for (File file : files) {
+                String name = file.getName();
+                long id = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length()
+                        - SEGMENT_SUFFIX.length()));
+                Segment segment = new Segment(id, file);
+                segment.seal();
+                segments.add(segment);
+                nextSegmentId = Math.max(nextSegmentId, id + 1);
+                recover(segment, expiredBefore);
+            }
+            // stanzas might have been copied into newer segments by compaction 
+            Comparator<Location> bySequence = new Comparator<Location>() {
+                public int compare(Location location1, Location location2) {
+                    return location1.sequence < location2.sequence ? -1
+                            : (location1.sequence == location2.sequence ? 0 : 1);
+                }
+            };
+            for (Map.Entry<String, List<Location>> entry : index.entrySet()) {
+                List<Location> locations = entry.getValue();
+                Collections.sort(locations, bySequence);
+                dropCompactedCopies(locations);
+                long size = 0;
+                for (Location location : locations) {
+                    size += location.length;
+                }
+                addUsage(entry.getKey(), locations.size(), size);
+            }
+        }
+        logger.info("recovered " + index.size() + " offline receivers from " + segments.size() + " segments");
+    }
+
+    /**
+     * when the server stops while a segment is compacted, its pending stanzas are found in both the segment and 
+     * the one they were copied to. only the copy is kept, which is the later one of equal sequence numbers, 
+     * because segments are recovered oldest first and the locations are sorted stably.
+     */
+    private void dropCompactedCopies(List<Location> locations) {
+        int kept = 0;
+        for (int i = 0; i < locations.size(); i++) {
+            Location location = locations.get(i);
+            if (kept > 0 && locations.get(kept - 1).sequence == location.sequence) {
+                locations.get(kept - 1).segment.liveCount--;
+                locations.set(kept - 1, location);
+            } else {
+                locations.set(kept++, location);
+            }
+        }
+        locations.subList(kept, locations.size()).clear();
+    }
+
+    private void recover(Segment segment, long expiredBefore) throws UnsupportedEncodingException {
+        ByteBuffer buffer = segment.mapped.duplicate();
+        while (buffer.remaining() >= RECORD_HEADER_BYTES) {
+            int recordStart = buffer.position();
+            int length = buffer.getInt();
+            if (length < RECORD_HEADER_BYTES - 4 || length > buffer.remaining()) {
+                logger.warn("ignoring incomplete record at the end of " + segment.file);
+                return;
+            }
+            byte type = buffer.get();
+            long sequence = buffer.getLong();
+            long timestamp = buffer.getLong();
+            byte[] jidBytes = new byte[buffer.getShort()];
+            buffer.get(jidBytes);
+            String bareJID = new String(jidBytes, UTF8);
+            int stanzaLength = recordStart + 4 + length - buffer.position();
+            long stanzaOffset = buffer.position();
+            buffer.position(recordStart + 4 + length);
+            nextSequence = Math.max(nextSequence, sequence + 1);
+
+            if (type == RECORD_STANZA) {
+                segment.stanzaCount++;
+                segment.newestTimestamp = Math.max(segment.newestTimestamp, timestamp);
+                if (timestamp < expiredBefore) {
+                    continue;
+                }
+                segment.liveCount++;
+                List<Location> locations = index.get(bareJID);
+                if (locations == null) {
+                    locations = new ArrayList<Location>();
+                    index.put(bareJID, locations);
+                }
+                locations.add(new Location(segment, stanzaOffset, stanzaLength, sequence, timestamp));
+            } else if (type == RECORD_CONSUMED) {
+                List<Location> locations = index.get(bareJID);
+                if (locations == null) {
+                    continue;
+                }
+                for (Iterator<Location> it = locations.iterator(); it.hasNext();) {
+                    Location location = it.next();
+                    if (location.sequence <= sequence) {
+                        location.segment.liveCount--;
+                        it.remove();
+                    }
+                }
+                if (locations.isEmpty()) {
+                    index.remove(bareJID);
+                }
+            }
+        }
+    }
+
+    /**
+     * runs the background maintenance once
+     */
+    public void maintain() {
+        long now = System.currentTimeMillis();
+        try {
+            synchronized (writeLock) {
+                // an idle active segment has to be sealed to ever expire
+                if (activeSegment != null && activeSegment.stanzaCount > 0
+                        && now - activeSegment.created >= maxSegmentAgeMillis) {
+                    activeSegment.seal();
+                    activeSegment = null;
+                }
+            }
+            pruneIndex(now - timeout);
+            while (cleanOldestSegment(now - timeout)) {
+                // continue with the next one
+            }
+        } catch (IOException e) {
+            logger.error("offline segment maintenance failed", e);
+        }
+    }
+
+    /**
+     * removes timed out stanzas from the index, one JID at a time
+     */
+    private void pruneIndex(long expiredBefore) {
+        for (String bareJID : index.keySet()) {
+            synchronized (writeLock) {
+                List<Location> locations = index.get(bareJID);
+                if (locations == null) {
+                    continue;
+                }
+                int removed = 0;
+                long size = 0;
+                for (Iterator<Location> it = locations.iterator(); it.hasNext();) {
+                    Location location = it.next();
+                    if (location.timestamp < expiredBefore || location.segment.deleted) {
+                        location.segment.liveCount--;
+                        it.remove();
+                        removed++;
+                        size += location.length;
+                    }
+                }
+                if (locations.isEmpty()) {
+                    index.remove(bareJID);
+                }
+                releaseUsage(bareJID, removed, size);
+            }
+        }
+    }
+
+    /**
+     * deletes the oldest segment, if none of its stanzas are pending anymore, or if it is worth compacting
+     * @return TRUE, if the segment was deleted
+     */
+    private boolean cleanOldestSegment(long expiredBefore) throws IOException {
+        Segment oldest;
+        synchronized (writeLock) {
+            if (segments.isEmpty() || segments.getFirst() == activeSegment) {
+                return false;
+            }
+            oldest = segments.getFirst();
+            if (oldest.readers > 0) {
+                return false;
+            }
+            if (oldest.liveCount > 0 && oldest.newestTimestamp < expiredBefore) {
+                // all pending stanzas have timed out, even if they have not been pruned yet
+                oldest.liveCount = 0;
+            }
+            if (oldest.liveCount > oldest.stanzaCount * compactionThreshold) {
+                return false;
+            }
+        }
+        if (oldest.liveCount > 0) {
+            compact(oldest);
+        }
+        synchronized (writeLock) {
+            // another maintenance run might have deleted the segment while it was compacted 
+            if (segments.isEmpty() || segments.getFirst() != oldest) {
+                return false;
+            }
+            if (oldest.liveCount > 0 || oldest.readers > 0) {
+                return false;
+            }
+            segments.removeFirst();
+            oldest.delete();
+        }
+        logger.debug("deleted offline segment " + oldest.file);
+        return true;
+    }
+
+    /**
+     * copies all stanzas of the segment which are still pending to the active segment
+     */
+    private void compact(Segment segment) throws IOException {
+        ByteBuffer buffer = segment.mapped.duplicate();
+        while (buffer.remaining() >= RECORD_HEADER_BYTES) {
+            int recordStart = buffer.position();
+            int length = buffer.getInt();
+            if (length < RECORD_HEADER_BYTES - 4 || length > buffer.remaining()) {
+                return;
+            }
+            byte type = buffer.get();
+            long sequence = buffer.getLong();
+            buffer.getLong(); // timestamp
+            byte[] jidBytes = new byte[buffer.getShort()];
+            buffer.get(jidBytes);
+            buffer.position(recordStart + 4 + length);
+            if (type != RECORD_STANZA) {
+                continue;
+            }
+
+            String bareJID = new String(jidBytes, UTF8);
+            synchronized (writeLock) {
+                List<Location> locations = index.get(bareJID);
+                if (locations == null) {
+                    continue;
+                }
+                for (int i = 0; i < locations.size(); i++) {
+                    Location location = locations.get(i);
+                    if (location.segment == segment && location.sequence == sequence) {
+                        byte[] stanzaBytes = segment.read(location.offset, location.length);
+                        Location moved = append(RECORD_STANZA, sequence, location.timestamp, bareJID, stanzaBytes);
+                        locations.set(i, moved);
+                        segment.liveCount--;
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    private class Maintenance extends TimerTask {
+        public void run() {
+            logger.debug("Running offline segment maintenance");
+            try {
+                maintain();
+            } catch (RuntimeException e) {
+                // an exception would cancel the timer, and with it all future maintenance
+                logger.error("offline segment maintenance failed", e);
+            }
+        }
+    }
+}
@@ -19,10 +19,12 @@
  */
 package org.apache.vysper.xmpp.modules.extension.xep0160_offline_storage;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
@@ -42,7 +44,10 @@ public class MemoryOfflineStorageProvider extends AbstractOfflineStorageProvider
 
     private long timeout;
 
-    private Map<String, List<Entry>> offlineStorageMap = new HashMap<String, List<Entry>>();
+    private Map<String, Deque<Entry>> offlineStorageMap = new HashMap<String, Deque<Entry>>();
+
+    /** orders the entries, guarded by offlineStorageMap */
+    private long nextSequence = 0;
 
     public MemoryOfflineStorageProvider() {
         this(7 * 24 * 3600 * 1000); // default to seven days;
@@ -61,30 +66,115 @@ public class MemoryOfflineStorageProvider extends AbstractOfflineStorageProvider
     protected void storeStanza(Stanza stanza) {
         Entity to = stanza.getTo();
         String bareJID = to.getBareJID().getFullQualifiedName();
+        long size = accountedSizeOf(stanza);
         synchronized (offlineStorageMap) {
-            List<Entry> entriesForJID = offlineStorageMap.get(bareJID);
+            Deque<Entry> entriesForJID = offlineStorageMap.get(bareJID);
             if (entriesForJID == null) {
-                entriesForJID = new ArrayList<Entry>();
+                entriesForJID = new ArrayDeque<Entry>();
                 offlineStorageMap.put(bareJID, entriesForJID);
             }
-            entriesForJID.add(new Entry(stanza, new Date().getTime()));
+            entriesForJID.add(new Entry(stanza, new Date().getTime(), nextSequence++, size));
+            // accounted before the stanza can be retrieved and released
+            addUsage(bareJID, 1, size);
+        }
+    }
+
+    @Override
+    protected boolean evictOldest(String bareJID) {
+        Entry evicted;
+        synchronized (offlineStorageMap) {
+            Deque<Entry> entries = offlineStorageMap.get(bareJID);
+            if (entries == null || entries.isEmpty()) {
+                return false;
+            }
+            evicted = entries.removeFirst();
+            if (entries.isEmpty()) {
+                offlineStorageMap.remove(bareJID);
+            }
         }
+        releaseUsage(bareJID, 1, evicted.getSize());
+        return true;
     }
 
     public Collection<Stanza> getStanzasFor(Entity jid) {
+        String bareJID = jid.getBareJID().getFullQualifiedName();
+        Deque<Entry> entries;
         synchronized (offlineStorageMap) {
-            List<Entry> entries = offlineStorageMap.remove(jid.getBareJID().getFullQualifiedName());
-            if (entries == null) {
-                return Collections.emptyList();
-            } else {
+            entries = offlineStorageMap.remove(bareJID);
+        }
+        if (entries == null) {
+            return Collections.emptyList();
+        } else {
+
+            List<Stanza> stanzas = new ArrayList<Stanza>();
+            long size = 0;
+            for (Entry entry : entries) {
+                // TODO add timestamp to messages
+                stanzas.add(entry.getStanza());
+                size += entry.getSize();
+            }
+            releaseUsage(bareJID, entries.size(), size);
+            return stanzas;
+        }
+    }
+
+    @Override
+    protected OfflineStanzaCursor createCursor(Entity jid) {
+        return new Cursor(jid.getBareJID().getFullQualifiedName());
+    }
 
-                List<Stanza> stanzas = new ArrayList<Stanza>();
+    private class Cursor implements OfflineStanzaCursor {
+
+        private final String bareJID;
+
+        private long lastReturnedSequence = -1;
+
+        Cursor(String bareJID) {
+            this.bareJID = bareJID;
+        }
+
+        public List<Stanza> nextPage(int maxSize) {
+            List<Stanza> page = new ArrayList<Stanza>();
+            synchronized (offlineStorageMap) {
+                Deque<Entry> entries = offlineStorageMap.get(bareJID);
+                if (entries == null) {
+                    return page;
+                }
                 for (Entry entry : entries) {
-                    // TODO add timestamp to messages
-                    stanzas.add(entry.getStanza());
+                    if (page.size() >= maxSize) {
+                        break;
+                    }
+                    if (entry.getSequence() > lastReturnedSequence) {
+                        page.add(entry.getStanza());
+                        lastReturnedSequence = entry.getSequence();
+                    }
+                }
+            }
+            return page;
+        }
+
+        public void acknowledge() {
+            int removed = 0;
+            long size = 0;
+            synchronized (offlineStorageMap) {
+                Deque<Entry> entries = offlineStorageMap.get(bareJID);
+                if (entries == null) {
+                    return;
+                }
+                while (!entries.isEmpty() && entries.peekFirst().getSequence() <= lastReturnedSequence) {
+                    Entry entry = entries.removeFirst();
+                    removed++;
+                    size += entry.getSize();
+                }
+                if (entries.isEmpty()) {
+                    offlineStorageMap.remove(bareJID);
                 }
-                return stanzas;
             }
+            releaseUsage(bareJID, removed, size);
+        }
+
+        public void close() {
+            cursorClosed(bareJID, this);
         }
     }
 
@@ -92,14 +182,28 @@ public class MemoryOfflineStorageProvider extends AbstractOfflineStorageProvider
 
         private Stanza stanza;
 
-        public Entry(Stanza stanza, long timeStamp) {
+        public Entry(Stanza stanza, long timeStamp, long sequence, long size) {
             super();
             this.stanza = stanza;
             this.timeStamp = timeStamp;
+            this.sequence = sequence;
+            this.size = size;
         }
 
         private long timeStamp;
 
+        private long sequence;
+
+        private long size;
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+
         public long getTimeStamp() {
             return timeStamp;
         }
@@ -116,18 +220,23 @@ public class MemoryOfflineStorageProvider extends AbstractOfflineStorageProvider
             long timestamp = new Date().getTime() - timeout;
             Set<String> jids = offlineStorageMap.keySet();
             for (String jid : jids) {
+                int removed = 0;
+                long size = 0;
                 synchronized (offlineStorageMap) {
-                    List<Entry> entries = offlineStorageMap.get(jid);
+                    Deque<Entry> entries = offlineStorageMap.get(jid);
                     if (entries != null) {
                         for (Iterator<Entry> it = entries.iterator(); it.hasNext();) {
                             Entry entry = it.next();
                             if (entry.getTimeStamp() < timestamp) {
                                 logger.debug("Removed timed out offline stanza");
                                 it.remove();
+                                removed++;
+                                size += entry.getSize();
                             }
                         }
                     }
                 }
+                releaseUsage(jid, removed, size);
             }
 
         }
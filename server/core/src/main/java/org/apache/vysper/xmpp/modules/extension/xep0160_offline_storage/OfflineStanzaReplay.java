@@ -0,0 +1,163 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.vysper.xmpp.modules.extension.xep0160_offline_storage;
+
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.vysper.xmpp.addressing.Entity;
+import org.apache.vysper.xmpp.delivery.DirectDeliveryRecorder;
+import org.apache.vysper.xmpp.server.resources.StanzaExecutor;
+import org.apache.vysper.xmpp.server.resources.StanzaLane;
+import org.apache.vysper.xmpp.stanza.Stanza;
+import org.apache.vysper.xmpp.writer.FlowControlledStanzaWriter;
+import org.apache.vysper.xmpp.writer.StanzaWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * writes the offline stanzas of a receiver to its session, one page at a time. 
+ * a page is only acknowledged (and thus removed from the storage) after it has been written. 
+ * if the writer is a {@link FlowControlledStanzaWriter}, the next page is only read once the previous one 
+ * has been written out. this keeps at most one page in memory and in the session's write queue. 
+ * the next page is handed to the {@link StanzaExecutor}, not written on the thread which completed the write. 
+ * if writing fails, the cursor is closed and the unacknowledged stanzas remain stored.
+ * as the stanzas are not relayed, written pages are reported to a {@link DirectDeliveryRecorder}, if set, 
+ * so that they are logged and persisted to online storage like relayed stanzas.
+ *
+ * @author The Apache MINA Project (dev@mina.apache.org)
+ */
+public class OfflineStanzaReplay implements Runnable {
+
+    final Logger logger = LoggerFactory.getLogger(OfflineStanzaReplay.class);
+
+    public static final int DEFAULT_PAGE_SIZE = 100;
+
+    private final OfflineStanzaCursor cursor;
+
+    private final StanzaWriter writer;
+
+    private final StanzaExecutor executor;
+
+    private final int pageSize;
+
+    private Entity receiver;
+
+    private DirectDeliveryRecorder deliveryRecorder;
+
+    private int replayedCount = 0;
+
+    /**
+     * @param executor runs the replay of the next page, if NULL it is run on the thread which completed the write
+     */
+    public OfflineStanzaReplay(OfflineStanzaCursor cursor, StanzaWriter writer, StanzaExecutor executor) {
+        this(cursor, writer, executor, DEFAULT_PAGE_SIZE);
+    }
+
+    public OfflineStanzaReplay(OfflineStanzaCursor cursor, StanzaWriter writer, StanzaExecutor executor,
+            int pageSize) {
+        this.cursor = cursor;
+        this.writer = writer;
+        this.executor = executor;
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * @param receiver the entity the stanzas are written to
+     * @param deliveryRecorder is told about every stanza of a page once the page has been written
+     */
+    public void setDeliveryRecorder(Entity receiver, DirectDeliveryRecorder deliveryRecorder) {
+        this.receiver = receiver;
+        this.deliveryRecorder = deliveryRecorder;
+    }
+
+    public void run() {
+        while (true) {
+            List<Stanza> page;
+            try {
+                page = cursor.nextPage(pageSize);
+                if (page.isEmpty()) {
+                    cursor.close();
+                    logger.debug("Sent out " + replayedCount + " delayed offline stanzas");
+                    return;
+                }
+                for (Stanza stanza : page) {
+                    writer.write(stanza);
+                }
+            } catch (RuntimeException e) {
+                logger.error("failed to send out delayed offline stanzas", e);
+                cursor.close();
+                return;
+            }
+            replayedCount += page.size();
+
+            if (writer instanceof FlowControlledStanzaWriter
+                    && ((FlowControlledStanzaWriter) writer).whenWritten(new PageWritten(page))) {
+                // continues when the page is written
+                return;
+            }
+            acknowledge(page);
+        }
+    }
+
+    private void acknowledge(List<Stanza> page) {
+        if (deliveryRecorder != null) {
+            for (Stanza stanza : page) {
+                deliveryRecorder.recordDirectDelivery(receiver, stanza);
+            }
+        }
+        cursor.acknowledge();
+    }
+
+    public int getReplayedCount() {
+        return replayedCount;
+    }
+
+    private void continueReplay() {
+        if (executor == null) {
+            run();
+            return;
+        }
+        try {
+            executor.execute(this, StanzaLane.MESSAGE, pageSize);
+        } catch (RejectedExecutionException e) {
+            logger.warn("delayed offline stanzas not sent out, the stanza executor is busy");
+            cursor.close();
+        }
+    }
+
+    private class PageWritten implements FlowControlledStanzaWriter.WriteListener {
+        private final List<Stanza> page;
+
+        PageWritten(List<Stanza> page) {
+            this.page = page;
+        }
+
+        public void written() {
+            acknowledge(page);
+            continueReplay();
+        }
+
+        public void failed() {
+            logger.info("delayed offline stanzas have not been written, they remain stored");
+            cursor.close();
+        }
+    }
+}
@@ -31,4 +31,11 @@ public interface OfflineStorageProvider extends OfflineStanzaReceiver,
 	
 	public Collection<Stanza> getStanzasFor(Entity jid);
 
+	/**
+	 * opens a cursor for retrieving the stanzas stored for the JID in pages, 
+	 * instead of removing them all at once. 
+	 * @return NULL, if a cursor for the JID's bare JID is open already and has not been closed yet
+	 */
+	public OfflineStanzaCursor openCursor(Entity jid);
+
 }
@@ -0,0 +1,88 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.vysper.xmpp.modules.extension.xep0160_offline_storage;
+
+/**
+ * limits the stanzas stored offline per bare JID, and what happens if a new one would exceed the limits
+ *
+ * @author The Apache MINA Project (dev@mina.apache.org)
+ */
+public class OfflineStorageQuota {
+
+    public enum Policy {
+        /** the new stanza is not stored */
+        DROP_NEWEST,
+        /** the oldest stanzas are removed to make room for the new one */
+        EVICT_OLDEST,
+        /** the new stanza is not stored, its sender receives a service-unavailable error */
+        BOUNCE
+    }
+
+    private final int maxStanzas;
+
+    private final long maxBytes;
+
+    private final Policy policy;
+
+    /**
+     * @param maxStanzas maximum number of stanzas per bare JID, 0 for no limit
+     * @param maxBytes maximum size of all stanzas per bare JID, 0 for no limit
+     */
+    public OfflineStorageQuota(int maxStanzas, long maxBytes, Policy policy) {
+        this.maxStanzas = maxStanzas;
+        this.maxBytes = maxBytes;
+        this.policy = policy;
+    }
+
+    public int getMaxStanzas() {
+        return maxStanzas;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    public boolean isLimitingBytes() {
+        return maxBytes > 0;
+    }
+
+    /**
+     * @return TRUE, if storing another stanza of the given size would exceed the quota
+     */
+    public boolean isExceededBy(int storedStanzas, long storedBytes, long size) {
+        return (maxStanzas > 0 && storedStanzas + 1 > maxStanzas) || (maxBytes > 0 && storedBytes + size > maxBytes);
+    }
+
+    /**
+     * @return TRUE, if a stanza of the given size exceeds the quota on its own, even if nothing is stored
+     */
+    public boolean isTooLarge(long size) {
+        return maxBytes > 0 && size > maxBytes;
+    }
+
+    @Override
+    public String toString() {
+        return "maxStanzas=" + maxStanzas + ", maxBytes=" + maxBytes + ", policy=" + policy;
+    }
+}
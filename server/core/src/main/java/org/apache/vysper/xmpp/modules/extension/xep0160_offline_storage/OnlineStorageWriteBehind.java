@@ -0,0 +1,304 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.vysper.xmpp.modules.extension.xep0160_offline_storage;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.vysper.xmpp.server.metrics.LatencyHistogram;
+import org.apache.vysper.xmpp.server.metrics.StageLatencies;
+import org.apache.vysper.xmpp.server.resources.BackgroundFlusher;
+import org.apache.vysper.xmpp.stanza.Stanza;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * persists stanzas to an {@link OnlineStorageProvider} in the background, so that a slow storage does not 
+ * hold up the threads handing over the stanzas.
+ * stanzas are queued and written in batches by a single flusher thread. a batch is written as soon as it has 
+ * reached the batch size, or when its first stanza has waited for the maximum delay. 
+ * if the provider is a {@link BatchOnlineStorageProvider}, every batch is written by one call.
+ * the queue is bounded, when it is full the {@link OverflowPolicy} applies. 
+ * {@link #stop()} writes all queued stanzas, stanzas handed over afterwards are stored immediately.
+ * note that a stanza is not visible through the provider before it has been written.
+ *
+ * @author The Apache MINA Project (dev@mina.apache.org)
+ */
+public class OnlineStorageWriteBehind {
+
+    final Logger logger = LoggerFactory.getLogger(OnlineStorageWriteBehind.class);
+
+    /**
+     * what happens to a stanza which does not fit into the queue anymore
+     */
+    public enum OverflowPolicy {
+        /** the stanza is stored by the thread handing it over, which is slowed down to the storage's pace */
+        STORE_SYNCHRONOUSLY,
+        /** the stanza is not stored */
+        DROP
+    }
+
+    public static final int DEFAULT_CAPACITY = 10000;
+
+    public static final int DEFAULT_BATCH_SIZE = 100;
+
+    public static final long DEFAULT_MAX_DELAY_MILLIS = 50;
+
+    private static final long STOP_TIMEOUT_MILLIS = 10000;
+
+    private static final long IDLE_POLL_MILLIS = 1000;
+
+    private static class PendingStanza {
+        private final Stanza stanza;
+
+        private final Boolean alreadyViewed;
+
+        private final long enqueued = System.nanoTime();
+
+        PendingStanza(Stanza stanza, Boolean alreadyViewed) {
+            this.stanza = stanza;
+            this.alreadyViewed = alreadyViewed;
+        }
+    }
+
+    /**
+     * queued on stop, to wake up the flusher immediately
+     */
+    private static final PendingStanza STOP = new PendingStanza(null, null);
+
+    protected final OnlineStorageProvider onlineStorageProvider;
+
+    protected final BlockingQueue<PendingStanza> queue;
+
+    protected int batchSize = DEFAULT_BATCH_SIZE;
+
+    protected long maxDelayMillis = DEFAULT_MAX_DELAY_MILLIS;
+
+    protected OverflowPolicy overflowPolicy = OverflowPolicy.STORE_SYNCHRONOUSLY;
+
+    private final BackgroundFlusher flusher = new Flusher();
+
+    private final LatencyHistogram flushLatencies = new LatencyHistogram();
+
+    private final AtomicLong storedCount = new AtomicLong();
+
+    private final AtomicLong overflowCount = new AtomicLong();
+
+    private final AtomicLong failedCount = new AtomicLong();
+
+    public OnlineStorageWriteBehind(OnlineStorageProvider onlineStorageProvider) {
+        this(onlineStorageProvider, DEFAULT_CAPACITY);
+    }
+
+    public OnlineStorageWriteBehind(OnlineStorageProvider onlineStorageProvider, int capacity) {
+        this.onlineStorageProvider = onlineStorageProvider;
+        this.queue = new LinkedBlockingQueue<PendingStanza>(capacity);
+    }
+
+    public void setBatchSize(int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batch size must be positive");
+        }
+        this.batchSize = batchSize;
+    }
+
+    public void setMaxDelayMillis(long maxDelayMillis) {
+        this.maxDelayMillis = maxDelayMillis;
+    }
+
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    public OnlineStorageProvider getOnlineStorageProvider() {
+        return onlineStorageProvider;
+    }
+
+    /**
+     * queues the stanza for being stored, see {@link OnlineStorageProvider#storeStanza(Stanza, Boolean)}
+     */
+    public void storeStanza(Stanza stanza, Boolean alreadyViewed) {
+        if (flusher.isStopped()) {
+            storeNow(stanza, alreadyViewed);
+            return;
+        }
+        flusher.start();
+        if (queue.offer(new PendingStanza(stanza, alreadyViewed))) {
+            if (flusher.isStopped()) {
+                // stopped in the meantime, the flusher might already be gone
+                writeRemaining();
+            }
+            return;
+        }
+
+        overflowCount.incrementAndGet();
+        switch (overflowPolicy) {
+        case STORE_SYNCHRONOUSLY:
+            storeNow(stanza, alreadyViewed);
+            break;
+        case DROP:
+            logger.warn("online storage queue is full, dropping stanza");
+            break;
+        }
+    }
+
+    private void storeNow(Stanza stanza, Boolean alreadyViewed) {
+        List<PendingStanza> single = new ArrayList<PendingStanza>(1);
+        single.add(new PendingStanza(stanza, alreadyViewed));
+        write(single);
+    }
+
+    /**
+     * writes all queued stanzas and stops the flusher. stanzas handed over from now on are stored immediately. 
+     */
+    public void stop() {
+        flusher.stop(STOP_TIMEOUT_MILLIS);
+    }
+
+    private void writeRemaining() {
+        List<PendingStanza> remaining = new ArrayList<PendingStanza>();
+        queue.drainTo(remaining);
+        remaining.remove(STOP);
+        write(remaining);
+    }
+
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    /**
+     * @return the time it took to write the batches
+     */
+    public LatencyHistogram getFlushLatencies() {
+        return flushLatencies;
+    }
+
+    public long getStoredCount() {
+        return storedCount.get();
+    }
+
+    public long getOverflowCount() {
+        return overflowCount.get();
+    }
+
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    public void writeInfo(Writer writer) throws IOException {
+        writer.append("onlineStorageQueued=\t").append(Integer.toString(getQueueDepth())).append("\n");
+        writer.append("onlineStorageStored=\t").append(Long.toString(getStoredCount())).append("\n");
+        writer.append("onlineStorageOverflow=\t").append(Long.toString(getOverflowCount())).append("\n");
+        writer.append("onlineStorageFailed=\t").append(Long.toString(getFailedCount())).append("\n");
+        writer.append("onlineStorageFlush=\t").append(StageLatencies.formatHistogram(flushLatencies)).append("\n");
+    }
+
+    /**
+     * writes the stanzas, runs of stanzas with the same 'alreadyViewed' flag are written together
+     */
+    protected void write(List<PendingStanza> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        long start = System.nanoTime();
+        int runStart = 0;
+        for (int i = 1; i <= batch.size(); i++) {
+            if (i == batch.size() || !sameFlag(batch.get(runStart).alreadyViewed, batch.get(i).alreadyViewed)) {
+                writeRun(batch.subList(runStart, i));
+                runStart = i;
+            }
+        }
+        flushLatencies.recordNanos(System.nanoTime() - start);
+    }
+
+    private static boolean sameFlag(Boolean flag, Boolean otherFlag) {
+        return flag == null ? otherFlag == null : flag.equals(otherFlag);
+    }
+
+    private void writeRun(List<PendingStanza> run) {
+        Boolean alreadyViewed = run.get(0).alreadyViewed;
+        List<Stanza> stanzas = new ArrayList<Stanza>(run.size());
+        for (PendingStanza pendingStanza : run) {
+            stanzas.add(pendingStanza.stanza);
+        }
+        try {
+            if (onlineStorageProvider instanceof BatchOnlineStorageProvider) {
+                ((BatchOnlineStorageProvider) onlineStorageProvider).storeStanzas(stanzas, alreadyViewed);
+            } else {
+                for (Stanza stanza : stanzas) {
+                    onlineStorageProvider.storeStanza(stanza, alreadyViewed);
+                }
+            }
+            storedCount.addAndGet(stanzas.size());
+        } catch (RuntimeException e) {
+            failedCount.addAndGet(stanzas.size());
+            logger.error("failed to store " + stanzas.size() + " stanzas to online storage", e);
+        }
+    }
+
+    private class Flusher extends BackgroundFlusher {
+
+        Flusher() {
+            super("OnlineStorageWriteBehind", 1);
+        }
+
+        @Override
+        protected void wakeUp() {
+            // not waiting for room, a flusher which has left already would never make it. 
+            // if the queue is full, the flusher is not waiting on it anyway
+            queue.offer(STOP);
+        }
+
+        @Override
+        protected void flushRound() throws InterruptedException {
+            PendingStanza first = queue.poll(IDLE_POLL_MILLIS, TimeUnit.MILLISECONDS);
+            if (first == null || first == STOP) {
+                return;
+            }
+            List<PendingStanza> batch = new ArrayList<PendingStanza>(batchSize);
+            batch.add(first);
+            try {
+                // wait for the batch to fill up, but not beyond the first stanza's deadline
+                long deadline = first.enqueued + TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+                while (batch.size() < batchSize) {
+                    long waitNanos = deadline - System.nanoTime();
+                    PendingStanza next = waitNanos > 0 ? queue.poll(waitNanos, TimeUnit.NANOSECONDS) : queue.poll();
+                    if (next == null || next == STOP) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } finally {
+                write(batch);
+            }
+        }
+
+        @Override
+        protected void flushRemaining() {
+            writeRemaining();
+        }
+    }
+}
@@ -5,6 +5,16 @@ import org.apache.vysper.xmpp.stanza.Stanza;
 
 import java.util.List;
 
+/**
+ * confirms the delivery or the viewing of messages, given the original messages a receipt refers to.
+ * the original message might not be the full stanza as it was relayed, when it is taken from the 
+ * {@link RecentMessageIndex} it is a stub. implementations can only rely on these fields: 
+ * the message 'id', 'to' as the bare JID of the recipient, 'from' as the full JID of the original sender 
+ * (if the original message carried one) and the server delivery time attribute. 
+ * the body and all other content might be missing.
+ *
+ * @author The Apache MINA Project (dev@mina.apache.org)
+ */
 public interface MessageDeliveryReceiptsStorageProvider extends StorageProvider {
 
     public boolean confirmMessageDelivery(String bareJID, List<? extends Stanza> messages);
@@ -0,0 +1,290 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.vysper.xmpp.modules.extension.xep0184_message_receipts;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.vysper.xmpp.modules.ServerRuntimeContextService;
+import org.apache.vysper.xmpp.server.metrics.LatencyHistogram;
+import org.apache.vysper.xmpp.server.metrics.StageLatencies;
+import org.apache.vysper.xmpp.server.resources.BackgroundFlusher;
+import org.apache.vysper.xmpp.stanza.Stanza;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * collects delivery and viewed confirmations for a short time window and writes them to the 
+ * {@link MessageDeliveryReceiptsStorageProvider} with one call per bare JID, instead of one call per receipt.
+ * the window closes after the configured time since its first confirmation, or earlier, when the configured 
+ * number of confirmations is pending. within a window, delivery confirmations are written before viewed ones.
+ * confirmations are always accepted, the storage's result is not passed on.
+ * {@link #stop()} writes everything pending, confirmations arriving afterwards are written immediately.
+ *
+ * @author The Apache MINA Project (dev@mina.apache.org)
+ */
+public class ReceiptConfirmationAggregator implements MessageDeliveryReceiptsStorageProvider,
+        ServerRuntimeContextService {
+
+    final Logger logger = LoggerFactory.getLogger(ReceiptConfirmationAggregator.class);
+
+    public static final String SERVICE_NAME = "receiptConfirmationAggregator";
+
+    public static final long DEFAULT_WINDOW_MILLIS = 50;
+
+    public static final int DEFAULT_MAX_PENDING = 500;
+
+    private static final long IDLE_WAIT_MILLIS = 1000;
+
+    private static final long STOP_TIMEOUT_MILLIS = 10000;
+
+    protected final MessageDeliveryReceiptsStorageProvider storageProvider;
+
+    protected long windowMillis = DEFAULT_WINDOW_MILLIS;
+
+    protected int maxPending = DEFAULT_MAX_PENDING;
+
+    // all guarded by 'this'
+    private Map<String, List<Stanza>> pendingDeliveries = new LinkedHashMap<String, List<Stanza>>();
+
+    private Map<String, List<Stanza>> pendingViews = new LinkedHashMap<String, List<Stanza>>();
+
+    private int pendingCount = 0;
+
+    private long windowStart = 0;
+
+    private final BackgroundFlusher flusher = new Flusher();
+
+    private final LatencyHistogram flushLatencies = new LatencyHistogram();
+
+    private final AtomicLong confirmationCount = new AtomicLong();
+
+    private final AtomicLong storageCallCount = new AtomicLong();
+
+    private final AtomicLong failedCount = new AtomicLong();
+
+    public ReceiptConfirmationAggregator(MessageDeliveryReceiptsStorageProvider storageProvider) {
+        this.storageProvider = storageProvider;
+    }
+
+    public String getServiceName() {
+        return SERVICE_NAME;
+    }
+
+    public void setWindowMillis(long windowMillis) {
+        this.windowMillis = windowMillis;
+    }
+
+    public void setMaxPending(int maxPending) {
+        if (maxPending < 1) {
+            throw new IllegalArgumentException("max pending must be positive");
+        }
+        this.maxPending = maxPending;
+    }
+
+    public MessageDeliveryReceiptsStorageProvider getStorageProvider() {
+        return storageProvider;
+    }
+
+    public boolean confirmMessageDelivery(String bareJID, List<? extends Stanza> messages) {
+        return add(pendingDeliveries, bareJID, messages, false);
+    }
+
+    public boolean confirmMessageViewed(String bareJID, List<? extends Stanza> messages) {
+        return add(pendingViews, bareJID, messages, true);
+    }
+
+    private boolean add(Map<String, List<Stanza>> pending, String bareJID, List<? extends Stanza> messages,
+            boolean viewed) {
+        confirmationCount.addAndGet(messages.size());
+        synchronized (this) {
+            if (!flusher.isStopped()) {
+                flusher.start();
+                List<Stanza> pendingForJID = pending.get(bareJID);
+                if (pendingForJID == null) {
+                    pendingForJID = new ArrayList<Stanza>();
+                    pending.put(bareJID, pendingForJID);
+                }
+                pendingForJID.addAll(messages);
+                if (pendingCount == 0) {
+                    windowStart = System.currentTimeMillis();
+                    notifyAll();
+                }
+                pendingCount += messages.size();
+                if (pendingCount >= maxPending) {
+                    notifyAll();
+                }
+                return true;
+            }
+        }
+        // stopped, nothing is aggregated anymore
+        storageCallCount.incrementAndGet();
+        return viewed ? storageProvider.confirmMessageViewed(bareJID, messages) : storageProvider
+                .confirmMessageDelivery(bareJID, messages);
+    }
+
+    /**
+     * writes all pending confirmations and stops aggregating 
+     */
+    public void stop() {
+        flusher.stop(STOP_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * writes all pending confirmations now
+     */
+    public void flush() {
+        Map<String, List<Stanza>> deliveries;
+        Map<String, List<Stanza>> views;
+        synchronized (this) {
+            if (pendingCount == 0) {
+                return;
+            }
+            deliveries = pendingDeliveries;
+            views = pendingViews;
+            pendingDeliveries = new LinkedHashMap<String, List<Stanza>>();
+            pendingViews = new LinkedHashMap<String, List<Stanza>>();
+            pendingCount = 0;
+        }
+
+        long start = System.nanoTime();
+        for (Map.Entry<String, List<Stanza>> entry : deliveries.entrySet()) {
+            write(entry.getKey(), entry.getValue(), false);
+        }
+        for (Map.Entry<String, List<Stanza>> entry : views.entrySet()) {
+            write(entry.getKey(), entry.getValue(), true);
+        }
+        flushLatencies.recordNanos(System.nanoTime() - start);
+    }
+
+    private void write(String bareJID, List<Stanza> messages, boolean viewed) {
+        storageCallCount.incrementAndGet();
+        try {
+            if (viewed) {
+                storageProvider.confirmMessageViewed(bareJID, messages);
+            } else {
+                storageProvider.confirmMessageDelivery(bareJID, messages);
+            }
+        } catch (RuntimeException e) {
+            failedCount.addAndGet(messages.size());
+            logger.error("failed to confirm " + messages.size() + " receipts for " + bareJID, e);
+        }
+    }
+
+    public synchronized int getPendingCount() {
+        return pendingCount;
+    }
+
+    public long getConfirmationCount() {
+        return confirmationCount.get();
+    }
+
+    /**
+     * @return the number of calls made to the storage provider
+     */
+    public long getStorageCallCount() {
+        return storageCallCount.get();
+    }
+
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    public LatencyHistogram getFlushLatencies() {
+        return flushLatencies;
+    }
+
+    public void registerMetrics(StageLatencies stageLatencies) {
+        stageLatencies.registerGauge("receipts.pending", new StageLatencies.Gauge() {
+            public long getValue() {
+                return getPendingCount();
+            }
+        });
+        stageLatencies.registerGauge("receipts.confirmed", new StageLatencies.Gauge() {
+            public long getValue() {
+                return getConfirmationCount();
+            }
+        });
+        stageLatencies.registerGauge("receipts.storageCalls", new StageLatencies.Gauge() {
+            public long getValue() {
+                return getStorageCallCount();
+            }
+        });
+        stageLatencies.registerGauge("receipts.failed", new StageLatencies.Gauge() {
+            public long getValue() {
+                return getFailedCount();
+            }
+        });
+        stageLatencies.registerHistogram("receipts.flush", flushLatencies);
+    }
+
+    public void writeInfo(Writer writer) throws IOException {
+        writer.append("receiptsPending=\t").append(Integer.toString(getPendingCount())).append("\n");
+        writer.append("receiptsConfirmed=\t").append(Long.toString(getConfirmationCount())).append("\n");
+        writer.append("receiptsStorageCalls=\t").append(Long.toString(getStorageCallCount())).append("\n");
+        writer.append("receiptsFailed=\t").append(Long.toString(getFailedCount())).append("\n");
+        writer.append("receiptsFlush=\t").append(StageLatencies.formatHistogram(flushLatencies)).append("\n");
+    }
+
+    private class Flusher extends BackgroundFlusher {
+
+        Flusher() {
+            super("ReceiptConfirmationAggregator", 1);
+        }
+
+        @Override
+        protected void wakeUp() {
+            synchronized (ReceiptConfirmationAggregator.this) {
+                ReceiptConfirmationAggregator.this.notifyAll();
+            }
+        }
+
+        @Override
+        protected void flushRound() throws InterruptedException {
+            synchronized (ReceiptConfirmationAggregator.this) {
+                while (pendingCount == 0 && !isStopped()) {
+                    ReceiptConfirmationAggregator.this.wait(IDLE_WAIT_MILLIS);
+                }
+                while (pendingCount > 0 && pendingCount < maxPending && !isStopped()) {
+                    long waitMillis = windowStart + windowMillis - System.currentTimeMillis();
+                    if (waitMillis <= 0) {
+                        break;
+                    }
+                    ReceiptConfirmationAggregator.this.wait(waitMillis);
+                }
+                if (isStopped()) {
+                    // written by flushRemaining()
+                    return;
+                }
+            }
+            flush();
+        }
+
+        @Override
+        protected void flushRemaining() {
+            flush();
+        }
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.vysper.xmpp.modules.extension.xep0184_message_receipts;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.vysper.xmpp.modules.ServerRuntimeContextService;
+import org.apache.vysper.xmpp.server.metrics.StageLatencies;
+
+/**
+ * remembers the server delivery time of recently relayed messages by recipient bare JID and message id, so that 
+ * a delivery or viewed receipt can mostly be handled without reading the original message back from storage.
+ * only the keys, the sender and the time are kept, not the messages. 
+ * the index is bounded, the oldest messages are evicted first. messages older than the time-to-live are 
+ * not returned anymore. there is one index per server, registered as a service.
+ *
+ * @author The Apache MINA Project (dev@mina.apache.org)
+ */
+public class RecentMessageIndex implements ServerRuntimeContextService {
+
+    public static final String SERVICE_NAME = "recentMessageIndex";
+
+    public static final int DEFAULT_MAX_ENTRIES = 100000;
+
+    public static final long DEFAULT_TTL_MILLIS = 10 * 60 * 1000;
+
+    private static class Key {
+        private final String bareJID;
+
+        private final String messageId;
+
+        Key(String bareJID, String messageId) {
+            this.bareJID = bareJID;
+            this.messageId = messageId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o)
+                return true;
+            if (!(o instanceof Key))
+                return false;
+            Key other = (Key) o;
+            return bareJID.equals(other.bareJID) && messageId.equals(other.messageId);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * bareJID.hashCode() + messageId.hashCode();
+        }
+    }
+
+    public static class Entry {
+        private final Key key;
+
+        private final String from;
+
+        private final long serverDeliveryTime;
+
+        private final long indexed;
+
+        Entry(Key key, String from, long serverDeliveryTime, long indexed) {
+            this.key = key;
+            this.from = from;
+            this.serverDeliveryTime = serverDeliveryTime;
+            this.indexed = indexed;
+        }
+
+        public String getMessageId() {
+            return key.messageId;
+        }
+
+        /**
+         * @return the full JID of the original sender, or NULL if the message did not carry one
+         */
+        public String getFrom() {
+            return from;
+        }
+
+        /**
+         * @return the time the message has been relayed at first, in millis
+         */
+        public long getServerDeliveryTime() {
+            return serverDeliveryTime;
+        }
+    }
+
+    protected final int maxEntries;
+
+    protected final long ttlMillis;
+
+    private final ConcurrentMap<Key, Entry> entries = new ConcurrentHashMap<Key, Entry>();
+
+    /**
+     * all entries in the order they were indexed, which is the order they expire in 
+     */
+    private final Queue<Entry> evictionQueue = new ConcurrentLinkedQueue<Entry>();
+
+    private final AtomicInteger evictionQueueSize = new AtomicInteger();
+
+    private final AtomicLong hitCount = new AtomicLong();
+
+    private final AtomicLong missCount = new AtomicLong();
+
+    public RecentMessageIndex() {
+        this(DEFAULT_MAX_ENTRIES, DEFAULT_TTL_MILLIS);
+    }
+
+    public RecentMessageIndex(int maxEntries, long ttlMillis) {
+        this.maxEntries = maxEntries;
+        this.ttlMillis = ttlMillis;
+    }
+
+    public String getServiceName() {
+        return SERVICE_NAME;
+    }
+
+    public void put(String bareJID, String messageId, String from, long serverDeliveryTime) {
+        if (bareJID == null || messageId == null)
+            return;
+        long now = System.currentTimeMillis();
+        Key key = new Key(bareJID, messageId);
+        Entry entry = new Entry(key, from, serverDeliveryTime, now);
+        entries.put(key, entry);
+        evictionQueue.add(entry);
+        evictionQueueSize.incrementAndGet();
+        evict(now);
+    }
+
+    /**
+     * @return the entry, or NULL if the message is not known (anymore)
+     */
+    public Entry get(String bareJID, String messageId) {
+        if (bareJID == null || messageId == null)
+            return null;
+        Entry entry = entries.get(new Key(bareJID, messageId));
+        if (entry != null && isExpired(entry, System.currentTimeMillis())) {
+            entries.remove(entry.key, entry);
+            entry = null;
+        }
+        if (entry == null) {
+            missCount.incrementAndGet();
+        } else {
+            hitCount.incrementAndGet();
+        }
+        return entry;
+    }
+
+    private boolean isExpired(Entry entry, long now) {
+        return now - entry.indexed > ttlMillis;
+    }
+
+    private void evict(long now) {
+        while (true) {
+            Entry oldest = evictionQueue.peek();
+            if (oldest == null)
+                return;
+            if (evictionQueueSize.get() <= maxEntries && !isExpired(oldest, now))
+                return;
+            if (evictionQueue.remove(oldest)) {
+                evictionQueueSize.decrementAndGet();
+                // the message might have been indexed again since, then the newer entry stays 
+                entries.remove(oldest.key, oldest);
+            }
+        }
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    public void registerMetrics(StageLatencies stageLatencies) {
+        stageLatencies.registerGauge("recentMessages.size", new StageLatencies.Gauge() {
+            public long getValue() {
+                return size();
+            }
+        });
+        stageLatencies.registerGauge("recentMessages.hits", new StageLatencies.Gauge() {
+            public long getValue() {
+                return getHitCount();
+            }
+        });
+        stageLatencies.registerGauge("recentMessages.misses", new StageLatencies.Gauge() {
+            public long getValue() {
+                return getMissCount();
+            }
+        });
+    }
+}
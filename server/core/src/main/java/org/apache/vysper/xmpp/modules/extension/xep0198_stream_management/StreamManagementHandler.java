@@ -0,0 +1,258 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.vysper.xmpp.modules.extension.xep0198_stream_management;
+
+import java.util.List;
+
+import org.apache.vysper.xmpp.protocol.NamespaceURIs;
+import org.apache.vysper.xmpp.protocol.ResponseStanzaContainer;
+import org.apache.vysper.xmpp.protocol.ResponseStanzaContainerImpl;
+import org.apache.vysper.xmpp.protocol.SessionStateHolder;
+import org.apache.vysper.xmpp.protocol.StanzaHandler;
+import org.apache.vysper.xmpp.server.AbstractSessionContext;
+import org.apache.vysper.xmpp.server.ServerRuntimeContext;
+import org.apache.vysper.xmpp.server.SessionContext;
+import org.apache.vysper.xmpp.server.SessionContext.SessionTerminationCause;
+import org.apache.vysper.xmpp.stanza.Stanza;
+import org.apache.vysper.xmpp.stanza.StanzaBuilder;
+import org.apache.vysper.xmpp.stanza.StanzaErrorCondition;
+import org.apache.vysper.xmpp.writer.DelegatingStanzaWriter;
+import org.apache.vysper.xmpp.writer.StanzaWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * handles the stream management elements sent by clients: &lt;enable/&gt;, &lt;r/&gt;, &lt;a/&gt; and
+ * &lt;resume/&gt;. one instance handles one of the elements.
+ *
+ * @author The Apache MINA Project (dev@mina.apache.org)
+ */
+public class StreamManagementHandler implements StanzaHandler {
+
+    public static final String ENABLE = "enable";
+
+    public static final String REQUEST = "r";
+
+    public static final String ACK = "a";
+
+    public static final String RESUME = "resume";
+
+    private static final Logger LOG = LoggerFactory.getLogger(StreamManagementHandler.class);
+
+    private final String name;
+
+    public StreamManagementHandler(String name) {
+        if (!ENABLE.equals(name) && !REQUEST.equals(name) && !ACK.equals(name) && !RESUME.equals(name)) {
+            throw new IllegalArgumentException("unknown stream management element: " + name);
+        }
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean verify(Stanza stanza) {
+        if (stanza == null) return false;
+        if (!getName().equals(stanza.getName())) return false;
+        return NamespaceURIs.URN_XMPP_SM_3.equals(stanza.getNamespaceURI());
+    }
+
+    public boolean isSessionRequired() {
+        return true;
+    }
+
+    public ResponseStanzaContainer execute(Stanza stanza, ServerRuntimeContext serverRuntimeContext,
+            boolean isOutboundStanza, SessionContext sessionContext, SessionStateHolder sessionStateHolder) {
+        if (sessionContext == null || sessionContext.isServerToServer()) return null;
+
+        StreamManagementService service = (StreamManagementService) serverRuntimeContext
+                .getServerRuntimeContextService(StreamManagementService.SERVICE_NAME);
+        if (service == null || !(sessionContext instanceof AbstractSessionContext)) {
+            return failed(StanzaErrorCondition.FEATURE_NOT_IMPLEMENTED);
+        }
+        AbstractSessionContext abstractSessionContext = (AbstractSessionContext) sessionContext;
+
+        if (ENABLE.equals(name)) {
+            return enable(stanza, service, abstractSessionContext);
+        } else if (REQUEST.equals(name)) {
+            return answerRequest(sessionContext);
+        } else if (ACK.equals(name)) {
+            return processAck(stanza, sessionContext);
+        } else {
+            return resume(stanza, serverRuntimeContext, service, abstractSessionContext);
+        }
+    }
+
+    protected ResponseStanzaContainer enable(Stanza stanza, StreamManagementService service,
+            AbstractSessionContext sessionContext) {
+        List<String> resources = sessionContext.getServerRuntimeContext().getResourceRegistry()
+                .getResourcesForSession(sessionContext);
+        // stream management is enabled once per stream, after binding
+        if (StreamManagementState.get(sessionContext) != null || resources == null || resources.isEmpty()) {
+            return failed(StanzaErrorCondition.UNEXPECTED_REQUEST);
+        }
+
+        String resume = stanza.getAttributeValue("resume");
+        boolean resumable = "true".equals(resume) || "1".equals(resume);
+
+        StreamManagementWriter writer;
+        StreamManagementState state;
+        synchronized (sessionContext) {
+            StanzaWriter transportWriter = getTransportWriter(sessionContext);
+            if (transportWriter == null) return failed(StanzaErrorCondition.UNEXPECTED_REQUEST);
+            writer = new StreamManagementWriter(transportWriter, service.getMaxUnacked());
+            state = new StreamManagementState(resumable ? service.createResumptionId() : null, writer);
+            sessionContext.putAttribute(StreamManagementState.SESSION_ATTRIBUTE, state);
+            installWriter(sessionContext, writer);
+        }
+
+        StanzaBuilder enabled = new StanzaBuilder("enabled", NamespaceURIs.URN_XMPP_SM_3);
+        if (resumable) {
+            enabled.addAttribute("id", state.getResumptionId());
+            enabled.addAttribute("resume", "true");
+            enabled.addAttribute("max", Long.toString(Math.max(1, service.getGracePeriodMillis() / 1000)));
+        }
+        return new ResponseStanzaContainerImpl(enabled.build());
+    }
+
+    protected ResponseStanzaContainer answerRequest(SessionContext sessionContext) {
+        StreamManagementState state = StreamManagementState.get(sessionContext);
+        if (state == null) return null;
+        return new ResponseStanzaContainerImpl(buildAck(state.getHandledCount()));
+    }
+
+    protected ResponseStanzaContainer processAck(Stanza stanza, SessionContext sessionContext) {
+        StreamManagementState state = StreamManagementState.get(sessionContext);
+        if (state == null) return null;
+        long handledCount = parseHandledCount(stanza);
+        if (handledCount < 0) {
+            LOG.debug("ignoring ack with invalid count from session {}", sessionContext.getSessionId());
+            return null;
+        }
+        state.getWriter().ack(handledCount);
+        return null;
+    }
+
+    protected ResponseStanzaContainer resume(Stanza stanza, ServerRuntimeContext serverRuntimeContext,
+            StreamManagementService service, AbstractSessionContext sessionContext) {
+        List<String> resources = serverRuntimeContext.getResourceRegistry().getResourcesForSession(sessionContext);
+        if (StreamManagementState.get(sessionContext) != null || (resources != null && !resources.isEmpty())
+                || getTransportWriter(sessionContext) == null) {
+            return failed(StanzaErrorCondition.UNEXPECTED_REQUEST);
+        }
+        long handledCount = parseHandledCount(stanza);
+        if (handledCount < 0) return failed(StanzaErrorCondition.BAD_REQUEST);
+
+        String previousId = stanza.getAttributeValue("previd");
+        AbstractSessionContext previous = service.resume(previousId, sessionContext.getInitiatingEntity());
+        StreamManagementState state = StreamManagementState.get(previous);
+        if (previous == null || state == null || !state.isResumable()) {
+            if (previous != null) previous.endSession(SessionTerminationCause.CONNECTION_ABORT);
+            return failed(StanzaErrorCondition.ITEM_NOT_FOUND);
+        }
+
+        // continue the stream on this connection first, it might have overflowed meanwhile. 
+        // only then move resources and session state
+        StanzaWriter previousFilter = previous.getResponseWriterFilter();
+        Stanza resumed = new StanzaBuilder("resumed", NamespaceURIs.URN_XMPP_SM_3).addAttribute("previd",
+                previousId).addAttribute("h", Long.toString(state.getHandledCount())).build();
+        StreamManagementWriter writer = state.getWriter();
+        boolean writerResumed;
+        synchronized (sessionContext) {
+            StanzaWriter transportWriter = getTransportWriter(sessionContext);
+            writerResumed = transportWriter != null && writer.resume(transportWriter, handledCount, resumed);
+            if (writerResumed) {
+                sessionContext.putAttribute(StreamManagementState.SESSION_ATTRIBUTE, state);
+                if (sessionContext.getResponseWriterFilter() == null
+                        && previousFilter instanceof DelegatingStanzaWriter
+                        && ((DelegatingStanzaWriter) previousFilter).getDelegate() == writer) {
+                    // filters above stream management belong to the stream, not the connection, keep their state
+                    sessionContext.setResponseWriterFilter(previousFilter);
+                } else {
+                    installWriter(sessionContext, writer);
+                }
+            }
+        }
+        if (!writerResumed) {
+            // the stream is lost, end the previous session for good so that unacknowledged messages are redelivered
+            state.setResumable(false);
+            previous.endSession(SessionTerminationCause.CONNECTION_ABORT);
+            return failed(StanzaErrorCondition.ITEM_NOT_FOUND);
+        }
+        previous.handOver(sessionContext);
+        LOG.debug("session {} resumed stream {}", sessionContext.getSessionId(), previousId);
+        return null;
+    }
+
+    /**
+     * stream management sits closest to the transport, below filters which hold back or drop stanzas, 
+     * so that only stanzas actually written to the connection are counted and stored for resending.
+     * @return the writer the stream management writer has to forward to, or null if the session has a filter 
+     * stream management cannot be inserted below
+     */
+    protected StanzaWriter getTransportWriter(AbstractSessionContext sessionContext) {
+        StanzaWriter filter = sessionContext.getResponseWriterFilter();
+        if (filter == null) return sessionContext.getResponseWriter();
+        if (!(filter instanceof DelegatingStanzaWriter)) return null;
+        StanzaWriter delegate = ((DelegatingStanzaWriter) filter).getDelegate();
+        if (delegate instanceof DelegatingStanzaWriter || delegate instanceof StreamManagementWriter) return null;
+        return delegate;
+    }
+
+    /**
+     * must be called holding the session's lock, after {@link #getTransportWriter(AbstractSessionContext)} 
+     * did not return null
+     */
+    protected void installWriter(AbstractSessionContext sessionContext, StreamManagementWriter writer) {
+        StanzaWriter filter = sessionContext.getResponseWriterFilter();
+        if (filter == null) {
+            sessionContext.setResponseWriterFilter(writer);
+        } else {
+            ((DelegatingStanzaWriter) filter).setDelegate(writer);
+        }
+    }
+
+    public static Stanza buildAck(long handledCount) {
+        return new StanzaBuilder("a", NamespaceURIs.URN_XMPP_SM_3).addAttribute("h", Long.toString(handledCount))
+                .build();
+    }
+
+    protected ResponseStanzaContainer failed(StanzaErrorCondition condition) {
+        StanzaBuilder failed = new StanzaBuilder("failed", NamespaceURIs.URN_XMPP_SM_3);
+        failed.startInnerElement(condition.value(), NamespaceURIs.URN_IETF_PARAMS_XML_NS_XMPP_STANZAS)
+                .endInnerElement();
+        return new ResponseStanzaContainerImpl(failed.build());
+    }
+
+    /**
+     * @return the value of the 'h' attribute, or -1 if it is missing or invalid
+     */
+    protected long parseHandledCount(Stanza stanza) {
+        String h = stanza.getAttributeValue("h");
+        if (h == null) return -1;
+        try {
+            long handledCount = Long.parseLong(h);
+            return handledCount < 0 || handledCount > StreamManagementWriter.COUNTER_MASK ? -1 : handledCount;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
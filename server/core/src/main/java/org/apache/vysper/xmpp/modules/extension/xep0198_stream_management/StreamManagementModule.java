@@ -0,0 +1,97 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.vysper.xmpp.modules.extension.xep0198_stream_management;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.vysper.xmpp.modules.DefaultModule;
+import org.apache.vysper.xmpp.modules.ServerRuntimeContextService;
+import org.apache.vysper.xmpp.protocol.DefaultHandlerDictionary;
+import org.apache.vysper.xmpp.protocol.HandlerDictionary;
+import org.apache.vysper.xmpp.protocol.StanzaHandler;
+import org.apache.vysper.xmpp.server.ServerRuntimeContext;
+
+/**
+ * A module for <a href="http://xmpp.org/extensions/xep-0198.html">XEP-0198 Stream Management</a>,
+ * supporting acknowledgements and stream resumption.
+ *
+ * @author The Apache MINA Project (dev@mina.apache.org)
+ */
+public class StreamManagementModule extends DefaultModule {
+
+    public static final long DEFAULT_GRACE_PERIOD_MILLIS = 5 * 60 * 1000;
+
+    public static final int DEFAULT_MAX_UNACKED = 1000;
+
+    private final StreamManagementService service;
+
+    public StreamManagementModule() {
+        this(DEFAULT_GRACE_PERIOD_MILLIS, DEFAULT_MAX_UNACKED);
+    }
+
+    /**
+     * @param gracePeriodMillis how long sessions are kept for resumption after their connection has gone
+     * @param maxUnacked maximum number of unacknowledged stanzas kept per session
+     */
+    public StreamManagementModule(long gracePeriodMillis, int maxUnacked) {
+        service = new StreamManagementService(gracePeriodMillis, maxUnacked);
+    }
+
+    @Override
+    public String getName() {
+        return "XEP-0198 Stream Management";
+    }
+
+    @Override
+    public String getVersion() {
+        return "1.6";
+    }
+
+    public StreamManagementService getService() {
+        return service;
+    }
+
+    @Override
+    protected void addHandlerDictionaries(List<HandlerDictionary> dictionary) {
+        List<StanzaHandler> handlers = new ArrayList<StanzaHandler>();
+        handlers.add(new StreamManagementHandler(StreamManagementHandler.ENABLE));
+        handlers.add(new StreamManagementHandler(StreamManagementHandler.REQUEST));
+        handlers.add(new StreamManagementHandler(StreamManagementHandler.ACK));
+        handlers.add(new StreamManagementHandler(StreamManagementHandler.RESUME));
+        dictionary.add(new DefaultHandlerDictionary(handlers));
+    }
+
+    @Override
+    protected void addServerServices(List<ServerRuntimeContextService> serviceList) {
+        serviceList.add(service);
+    }
+
+    @Override
+    public void initialize(ServerRuntimeContext serverRuntimeContext) {
+        serverRuntimeContext.registerSessionEndListener(service);
+        serverRuntimeContext.registerHandledStanzaListener(service);
+    }
+
+    @Override
+    public void close() {
+        service.close();
+    }
+}
@@ -0,0 +1,328 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.vysper.xmpp.modules.extension.xep0198_stream_management;
+
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.vysper.xmpp.addressing.Entity;
+import org.apache.vysper.xmpp.delivery.StanzaRelay;
+import org.apache.vysper.xmpp.delivery.failure.DeliveryException;
+import org.apache.vysper.xmpp.delivery.failure.ReturnErrorToSenderFailureStrategy;
+import org.apache.vysper.xmpp.modules.ServerRuntimeContextService;
+import org.apache.vysper.xmpp.server.AbstractSessionContext;
+import org.apache.vysper.xmpp.server.HandledStanzaListener;
+import org.apache.vysper.xmpp.server.SessionContext;
+import org.apache.vysper.xmpp.server.SessionContext.SessionTerminationCause;
+import org.apache.vysper.xmpp.server.SessionEndListener;
+import org.apache.vysper.xmpp.server.SessionState;
+import org.apache.vysper.xmpp.stanza.MessageStanza;
+import org.apache.vysper.xmpp.stanza.Stanza;
+import org.apache.vysper.xmpp.stanza.XMPPCoreStanza;
+import org.apache.vysper.xmpp.state.resourcebinding.ResourceRegistry;
+import org.apache.vysper.xmpp.state.resourcebinding.ResourceState;
+import org.apache.vysper.xmpp.uuid.ThreadLocalSecureRandomUUIDGenerator;
+import org.apache.vysper.xmpp.uuid.UUIDGenerator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * keeps sessions with resumable streams for a grace period after their connection has gone, so that the
+ * client can resume the stream on a new connection without logging in again. the session's resources stay
+ * bound while detached, stanzas for them are queued by the session's {@link StreamManagementWriter}.
+ * when the grace period has passed, the session is ended as if the connection had just gone, and the messages
+ * the client has not acknowledged are delivered elsewhere.
+ *
+ * @author The Apache MINA Project (dev@mina.apache.org)
+ */
+public class StreamManagementService implements ServerRuntimeContextService, SessionEndListener,
+        HandledStanzaListener {
+
+    final Logger logger = LoggerFactory.getLogger(StreamManagementService.class);
+
+    public static final String SERVICE_NAME = "StreamManagement";
+
+    private final long gracePeriodMillis;
+
+    private final int maxUnacked;
+
+    private final UUIDGenerator idGenerator = new ThreadLocalSecureRandomUUIDGenerator();
+
+    private final ConcurrentMap<String, Detached> detachedSessions = new ConcurrentHashMap<String, Detached>();
+
+    private final Timer timer = new Timer("StreamManagementTimer", true);
+
+    private final AtomicLong enabledCount = new AtomicLong();
+
+    private final AtomicLong detachedCount = new AtomicLong();
+
+    private final AtomicLong expiredCount = new AtomicLong();
+
+    private final AtomicLong resumeRequestCount = new AtomicLong();
+
+    private final AtomicLong resumedCount = new AtomicLong();
+
+    private final AtomicLong redeliveredCount = new AtomicLong();
+
+    /**
+     * @param gracePeriodMillis how long detached sessions are kept for resumption
+     * @param maxUnacked maximum number of unacknowledged stanzas kept per session
+     */
+    public StreamManagementService(long gracePeriodMillis, int maxUnacked) {
+        if (gracePeriodMillis <= 0) throw new IllegalArgumentException("grace period must be positive");
+        if (maxUnacked < 1) throw new IllegalArgumentException("at least one unacknowledged stanza must be kept");
+        this.gracePeriodMillis = gracePeriodMillis;
+        this.maxUnacked = maxUnacked;
+    }
+
+    public String getServiceName() {
+        return SERVICE_NAME;
+    }
+
+    public long getGracePeriodMillis() {
+        return gracePeriodMillis;
+    }
+
+    public int getMaxUnacked() {
+        return maxUnacked;
+    }
+
+    /**
+     * @return a new resumption id, which is hard to guess
+     */
+    public String createResumptionId() {
+        enabledCount.incrementAndGet();
+        return idGenerator.create();
+    }
+
+    /**
+     * keeps the session if its stream can be resumed, see {@link #detach(AbstractSessionContext, SessionTerminationCause)}
+     */
+    public boolean sessionEnding(AbstractSessionContext sessionContext, SessionTerminationCause terminationCause) {
+        return detach(sessionContext, terminationCause);
+    }
+
+    /**
+     * redelivers unacknowledged messages, see {@link #redeliverUnacked(AbstractSessionContext)}
+     */
+    public void sessionEnded(AbstractSessionContext sessionContext, List<Entity> resources) {
+        redeliverUnacked(sessionContext);
+    }
+
+    /**
+     * counts the stanzas received from clients, for acknowledging them
+     */
+    public void stanzaHandled(SessionContext sessionContext, Stanza stanza) {
+        StreamManagementState state = StreamManagementState.get(sessionContext);
+        if (state != null && !sessionContext.isServerToServer() && XMPPCoreStanza.getWrapper(stanza) != null) {
+            state.countHandled();
+        }
+    }
+
+    /**
+     * called when a session ends. keeps the session if its stream can be resumed.
+     * @return true, if the session has been detached and must not be ended now
+     */
+    public boolean detach(AbstractSessionContext sessionContext, SessionTerminationCause terminationCause) {
+        // a client closing its stream cleanly does not come back
+        if (terminationCause != SessionTerminationCause.CONNECTION_ABORT) return false;
+        if (sessionContext.getState() != SessionState.AUTHENTICATED) return false;
+        StreamManagementState state = StreamManagementState.get(sessionContext);
+        if (state == null || !state.isResumable()) return false;
+        if (isUnavailable(sessionContext)) return false;
+
+        final String id = state.getResumptionId();
+        final Detached detached = new Detached(sessionContext, terminationCause, new TimerTask() {
+            @Override
+            public void run() {
+                expire(id);
+            }
+        });
+        if (detachedSessions.putIfAbsent(id, detached) != null) return false;
+        boolean detachedWriter = state.getWriter().detach(new Runnable() {
+            public void run() {
+                expireLater(id);
+            }
+        });
+        if (!detachedWriter) {
+            detachedSessions.remove(id, detached);
+            return false;
+        }
+        detachedCount.incrementAndGet();
+        timer.schedule(detached.expiry, gracePeriodMillis);
+        logger.debug("detached session {} for resumption", sessionContext.getSessionId());
+        return true;
+    }
+
+    /**
+     * @return true, if the client has sent unavailable presence for a resource of the session, and therefore 
+     * is not going to resume the stream
+     */
+    protected boolean isUnavailable(AbstractSessionContext sessionContext) {
+        ResourceRegistry registry = sessionContext.getServerRuntimeContext().getResourceRegistry();
+        List<String> resources = registry.getResourcesForSession(sessionContext);
+        if (resources == null) return false;
+        for (String resource : resources) {
+            if (registry.getResourceState(resource) == ResourceState.UNAVAILABLE) return true;
+        }
+        return false;
+    }
+
+    /**
+     * called when a session with stream management has ended for good, after its resources have been unbound.
+     * messages the client has not acknowledged are relayed again, so that they reach other resources of the user
+     * or offline storage, see XEP-0198 section 5. other unacknowledged stanzas are dropped.
+     */
+    public void redeliverUnacked(AbstractSessionContext sessionContext) {
+        StreamManagementState state = StreamManagementState.get(sessionContext);
+        if (state == null) return;
+        List<Stanza> unacked = state.getWriter().takeUnacked();
+        if (unacked.isEmpty()) return;
+        StanzaRelay stanzaRelay = sessionContext.getServerRuntimeContext().getStanzaRelay();
+        int redelivered = 0;
+        for (Stanza stanza : unacked) {
+            if (!MessageStanza.isOfType(stanza) || stanza.getTo() == null) continue;
+            try {
+                stanzaRelay.relay(stanza.getTo(), stanza, new ReturnErrorToSenderFailureStrategy(stanzaRelay));
+                redelivered++;
+            } catch (DeliveryException e) {
+                logger.warn("failed to redeliver unacknowledged message to " + stanza.getTo(), e);
+            }
+        }
+        redeliveredCount.addAndGet(redelivered);
+        logger.debug("redelivered {} of {} unacknowledged stanzas of session {}", new Object[] { redelivered,
+                unacked.size(), sessionContext.getSessionId() });
+    }
+
+    /**
+     * takes a detached session out of the grace period for resumption
+     * @param resumptionId the id sent by the client
+     * @param bareJID the authenticated entity requesting the resumption
+     * @return the detached session, or null if there is no such session for the entity
+     */
+    public AbstractSessionContext resume(String resumptionId, Entity bareJID) {
+        resumeRequestCount.incrementAndGet();
+        if (resumptionId == null || bareJID == null) return null;
+        Detached detached = detachedSessions.get(resumptionId);
+        if (detached == null) return null;
+        Entity initiatingEntity = detached.sessionContext.getInitiatingEntity();
+        if (initiatingEntity == null || !initiatingEntity.getBareJID().equals(bareJID.getBareJID())) {
+            logger.warn("{} tried to resume a stream of {}", bareJID, initiatingEntity);
+            return null;
+        }
+        if (!detachedSessions.remove(resumptionId, detached)) return null;
+        detached.expiry.cancel();
+        resumedCount.incrementAndGet();
+        return detached.sessionContext;
+    }
+
+    public int getDetachedSessionCount() {
+        return detachedSessions.size();
+    }
+
+    public long getEnabledCount() {
+        return enabledCount.get();
+    }
+
+    public long getDetachedCount() {
+        return detachedCount.get();
+    }
+
+    public long getExpiredCount() {
+        return expiredCount.get();
+    }
+
+    public long getRedeliveredCount() {
+        return redeliveredCount.get();
+    }
+
+    public long getResumeRequestCount() {
+        return resumeRequestCount.get();
+    }
+
+    public long getResumedCount() {
+        return resumedCount.get();
+    }
+
+    /**
+     * @return the share of resumption requests which found their session, 0 if there were none
+     */
+    public double getResumeHitRate() {
+        long requests = resumeRequestCount.get();
+        return requests == 0 ? 0 : (double) resumedCount.get() / requests;
+    }
+
+    /**
+     * ends all detached sessions
+     */
+    public void close() {
+        timer.cancel();
+        for (String id : detachedSessions.keySet()) {
+            expire(id);
+        }
+    }
+
+    protected void expireLater(final String id) {
+        try {
+            timer.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    expire(id);
+                }
+            }, 0);
+        } catch (IllegalStateException e) {
+            // timer cancelled, the service is closing
+        }
+    }
+
+    protected void expire(String id) {
+        Detached detached = detachedSessions.remove(id);
+        if (detached == null) return;
+        detached.expiry.cancel();
+        expiredCount.incrementAndGet();
+        StreamManagementState state = StreamManagementState.get(detached.sessionContext);
+        if (state != null) state.setResumable(false);
+        logger.debug("ending detached session {}", detached.sessionContext.getSessionId());
+        try {
+            detached.sessionContext.endSession(detached.terminationCause);
+        } catch (RuntimeException e) {
+            // keep the timer alive
+            logger.warn("failed to end detached session", e);
+        }
+    }
+
+    static class Detached {
+        final AbstractSessionContext sessionContext;
+
+        final SessionTerminationCause terminationCause;
+
+        final TimerTask expiry;
+
+        Detached(AbstractSessionContext sessionContext, SessionTerminationCause terminationCause, TimerTask expiry) {
+            this.sessionContext = sessionContext;
+            this.terminationCause = terminationCause;
+            this.expiry = expiry;
+        }
+    }
+}
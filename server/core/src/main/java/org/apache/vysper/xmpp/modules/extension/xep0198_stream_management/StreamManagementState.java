@@ -0,0 +1,90 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.vysper.xmpp.modules.extension.xep0198_stream_management;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.vysper.xmpp.server.SessionContext;
+
+/**
+ * the stream management state of a session, kept as session attribute
+ *
+ * @author The Apache MINA Project (dev@mina.apache.org)
+ */
+public class StreamManagementState {
+
+    public static final String SESSION_ATTRIBUTE = StreamManagementState.class.getName();
+
+    private final String resumptionId;
+
+    private final StreamManagementWriter writer;
+
+    private final AtomicLong handledCount = new AtomicLong();
+
+    private volatile boolean resumable;
+
+    /**
+     * @param resumptionId identifies the stream for resumption, null if the stream cannot be resumed
+     * @param writer counts and keeps the stanzas written to the client
+     */
+    public StreamManagementState(String resumptionId, StreamManagementWriter writer) {
+        this.resumptionId = resumptionId;
+        this.writer = writer;
+        this.resumable = resumptionId != null;
+    }
+
+    /**
+     * @return the session's stream management state, or null if stream management is not enabled
+     */
+    public static StreamManagementState get(SessionContext sessionContext) {
+        if (sessionContext == null) return null;
+        return (StreamManagementState) sessionContext.getAttribute(SESSION_ATTRIBUTE);
+    }
+
+    public String getResumptionId() {
+        return resumptionId;
+    }
+
+    public StreamManagementWriter getWriter() {
+        return writer;
+    }
+
+    public boolean isResumable() {
+        return resumable && !writer.isOverflowed();
+    }
+
+    public void setResumable(boolean resumable) {
+        this.resumable = resumable;
+    }
+
+    /**
+     * to be called for every stanza received from the client
+     */
+    public void countHandled() {
+        handledCount.incrementAndGet();
+    }
+
+    /**
+     * @return the number of stanzas handled for the client, as sent in the 'h' attribute
+     */
+    public long getHandledCount() {
+        return handledCount.get() & StreamManagementWriter.COUNTER_MASK;
+    }
+}
@@ -0,0 +1,319 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.vysper.xmpp.modules.extension.xep0198_stream_management;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.apache.vysper.xmpp.protocol.NamespaceURIs;
+import org.apache.vysper.xmpp.stanza.IQStanza;
+import org.apache.vysper.xmpp.stanza.MessageStanza;
+import org.apache.vysper.xmpp.stanza.PresenceStanza;
+import org.apache.vysper.xmpp.stanza.Stanza;
+import org.apache.vysper.xmpp.stanza.StanzaBuilder;
+import org.apache.vysper.xmpp.writer.FlowControlledStanzaWriter;
+import org.apache.vysper.xmpp.writer.StanzaWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * response writer filter counting the stanzas sent to a client with stream management enabled, and keeping
+ * them until the client acknowledges them.
+ * the number of unacknowledged stanzas is bounded. when half of the bound is reached, an ack is requested.
+ * when the bound is exceeded, the oldest stanzas are dropped and the stream cannot be resumed anymore
+ * without losing stanzas. a detached session is ended instead, see {@link #detach(Runnable)}.
+ * <br/>
+ * while the session is detached, stanzas are only queued. on resumption, the queued stanzas are written
+ * to the new connection.
+ * <br/>
+ * stanzas count as written out (see {@link #whenWritten(WriteListener)}) once the client has acknowledged them, 
+ * not when they have been handed to the connection. 
+ *
+ * @author The Apache MINA Project (dev@mina.apache.org)
+ */
+public class StreamManagementWriter implements FlowControlledStanzaWriter {
+
+    final Logger logger = LoggerFactory.getLogger(StreamManagementWriter.class);
+
+    /** stanza counts wrap at 2^32 */
+    protected static final long COUNTER_MASK = 0xFFFFFFFFL;
+
+    private StanzaWriter delegate;
+
+    private final int maxUnacked;
+
+    private final LinkedList<Stanza> unacked = new LinkedList<Stanza>();
+
+    private long sentCount = 0;
+
+    private long ackedCount = 0;
+
+    private boolean overflowed = false;
+
+    private Runnable detachedOverflowListener;
+
+    /** number of stanzas acknowledged since stream management has been enabled, not wrapped */
+    private long ackedTotal = 0;
+
+    /** listeners waiting for acknowledgements, ordered by the number of stanzas they wait for */
+    private final LinkedList<AckListener> ackListeners = new LinkedList<AckListener>();
+
+    private static class AckListener {
+
+        private final long ackedTotal;
+
+        private final WriteListener listener;
+
+        AckListener(long ackedTotal, WriteListener listener) {
+            this.ackedTotal = ackedTotal;
+            this.listener = listener;
+        }
+    }
+
+    /**
+     * @param delegate the writer to forward stanzas to, usually the transport writer of the session
+     * @param maxUnacked maximum number of stanzas kept until they are acknowledged
+     */
+    public StreamManagementWriter(StanzaWriter delegate, int maxUnacked) {
+        if (delegate == null) throw new IllegalArgumentException("delegate writer must not be null");
+        if (maxUnacked < 1) throw new IllegalArgumentException("at least one unacknowledged stanza must be kept");
+        this.delegate = delegate;
+        this.maxUnacked = maxUnacked;
+    }
+
+    public void write(Stanza stanza) {
+        Runnable overflowListener = null;
+        List<WriteListener> failedListeners = null;
+        synchronized (this) {
+            if (!isCounted(stanza)) {
+                if (delegate != null) delegate.write(stanza);
+                return;
+            }
+            sentCount = (sentCount + 1) & COUNTER_MASK;
+            if (unacked.size() >= maxUnacked) {
+                // while detached, nothing has been written out yet. the stanzas are kept, to be delivered 
+                // elsewhere when the overflow listener has ended the session
+                if (delegate != null) unacked.removeFirst();
+                if (!overflowed) {
+                    logger.warn("more than {} unacknowledged stanzas, stream can no longer be resumed", maxUnacked);
+                    overflowed = true;
+                    overflowListener = detachedOverflowListener;
+                    // acknowledgements cannot be related to the stanzas anymore
+                    failedListeners = removeAckListeners();
+                }
+            }
+            unacked.addLast(stanza);
+            if (delegate != null) {
+                delegate.write(stanza);
+                if (unacked.size() == Math.max(1, maxUnacked / 2)) {
+                    delegate.write(new StanzaBuilder("r", NamespaceURIs.URN_XMPP_SM_3).build());
+                }
+            }
+        }
+        // outside the lock, the listeners end the detached session or continue writing
+        if (failedListeners != null) notifyFailed(failedListeners);
+        if (overflowListener != null) overflowListener.run();
+    }
+
+    /**
+     * processes an acknowledgement from the client
+     * @param handledCount the number of stanzas the client has handled, as sent in the 'h' attribute
+     */
+    public void ack(long handledCount) {
+        List<WriteListener> writtenListeners;
+        synchronized (this) {
+            writtenListeners = processAck(handledCount);
+        }
+        notifyWritten(writtenListeners);
+    }
+
+    /**
+     * must be called while holding the lock
+     * @return the listeners whose stanzas have all been acknowledged now
+     */
+    private List<WriteListener> processAck(long handledCount) {
+        long newlyAcked = (handledCount - ackedCount) & COUNTER_MASK;
+        if (newlyAcked > unacked.size()) {
+            logger.debug("client acknowledged {} stanzas, but only {} are unacknowledged", newlyAcked, unacked.size());
+            newlyAcked = unacked.size();
+        }
+        for (long i = 0; i < newlyAcked; i++) {
+            unacked.removeFirst();
+        }
+        ackedCount = (ackedCount + newlyAcked) & COUNTER_MASK;
+        ackedTotal += newlyAcked;
+        List<WriteListener> writtenListeners = new ArrayList<WriteListener>();
+        while (!ackListeners.isEmpty() && ackListeners.getFirst().ackedTotal <= ackedTotal) {
+            writtenListeners.add(ackListeners.removeFirst().listener);
+        }
+        return writtenListeners;
+    }
+
+    /**
+     * the connection has gone, stanzas are queued from now on
+     * @param overflowListener called when too many stanzas have been queued for the stream to be resumed
+     * @return false, if the stream cannot be resumed
+     */
+    public boolean detach(Runnable overflowListener) {
+        StanzaWriter transport;
+        synchronized (this) {
+            if (overflowed || delegate == null) return false;
+            transport = delegate;
+            delegate = null;
+            detachedOverflowListener = overflowListener;
+        }
+        transport.close();
+        return true;
+    }
+
+    /**
+     * continues the stream on a new connection. first processes the client's acknowledgement, then writes the
+     * given confirmation, followed by all stanzas still unacknowledged.
+     * @param transport the new connection
+     * @param handledCount the number of stanzas the client has handled
+     * @param resumed the confirmation to write before the resent stanzas
+     * @return false, if the stream cannot be resumed
+     */
+    public boolean resume(StanzaWriter transport, long handledCount, Stanza resumed) {
+        List<WriteListener> writtenListeners;
+        synchronized (this) {
+            if (overflowed || delegate != null) return false;
+            writtenListeners = processAck(handledCount);
+            delegate = transport;
+            detachedOverflowListener = null;
+            delegate.write(resumed);
+            for (Stanza stanza : unacked) {
+                delegate.write(stanza);
+            }
+            if (!ackListeners.isEmpty()) {
+                // the listeners are waiting for the resent stanzas
+                delegate.write(new StanzaBuilder("r", NamespaceURIs.URN_XMPP_SM_3).build());
+            }
+        }
+        notifyWritten(writtenListeners);
+        return true;
+    }
+
+    public synchronized boolean isDetached() {
+        return delegate == null;
+    }
+
+    public synchronized boolean isOverflowed() {
+        return overflowed;
+    }
+
+    public synchronized int getUnackedCount() {
+        return unacked.size();
+    }
+
+    public synchronized List<Stanza> getUnacked() {
+        return new ArrayList<Stanza>(unacked);
+    }
+
+    /**
+     * removes the unacknowledged stanzas, once the stream has ended for good and they are to be delivered elsewhere
+     */
+    public synchronized List<Stanza> takeUnacked() {
+        List<Stanza> stanzas = new ArrayList<Stanza>(unacked);
+        unacked.clear();
+        return stanzas;
+    }
+
+    public synchronized long getSentCount() {
+        return sentCount;
+    }
+
+    /**
+     * the listener is notified once the client has acknowledged all stanzas written so far, which is requested 
+     * right away. while the stanzas are only queued because the session is detached, the listener keeps waiting. 
+     * it is notified of the failure if the stream cannot be resumed anymore. 
+     * after an overflow, the listener is notified when the stanzas have been written to the connection.
+     */
+    public boolean whenWritten(WriteListener listener) {
+        StanzaWriter transport;
+        synchronized (this) {
+            if (overflowed && delegate == null) {
+                transport = null;
+            } else if (!overflowed && !unacked.isEmpty()) {
+                ackListeners.addLast(new AckListener(ackedTotal + unacked.size(), listener));
+                if (delegate != null) {
+                    delegate.write(new StanzaBuilder("r", NamespaceURIs.URN_XMPP_SM_3).build());
+                }
+                return true;
+            } else {
+                transport = delegate;
+                if (transport == null) return false;
+            }
+        }
+        if (transport == null) {
+            listener.failed();
+            return true;
+        }
+        if (transport instanceof FlowControlledStanzaWriter) {
+            return ((FlowControlledStanzaWriter) transport).whenWritten(listener);
+        }
+        return false;
+    }
+
+    public void close() {
+        StanzaWriter transport;
+        List<WriteListener> failedListeners;
+        synchronized (this) {
+            transport = delegate;
+            delegate = null;
+            overflowed = true;
+            failedListeners = removeAckListeners();
+        }
+        notifyFailed(failedListeners);
+        if (transport != null) transport.close();
+    }
+
+    /**
+     * must be called while holding the lock
+     */
+    private List<WriteListener> removeAckListeners() {
+        List<WriteListener> listeners = new ArrayList<WriteListener>(ackListeners.size());
+        for (AckListener ackListener : ackListeners) {
+            listeners.add(ackListener.listener);
+        }
+        ackListeners.clear();
+        return listeners;
+    }
+
+    private void notifyWritten(List<WriteListener> listeners) {
+        for (WriteListener listener : listeners) {
+            listener.written();
+        }
+    }
+
+    private void notifyFailed(List<WriteListener> listeners) {
+        for (WriteListener listener : listeners) {
+            listener.failed();
+        }
+    }
+
+    /**
+     * only stanzas proper are counted, stream management and other top-level elements are not
+     */
+    protected static boolean isCounted(Stanza stanza) {
+        return MessageStanza.isOfType(stanza) || PresenceStanza.isOfType(stanza) || IQStanza.isOfType(stanza);
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.vysper.xmpp.modules.extension.xep0352_csi;
+
+import org.apache.vysper.xmpp.protocol.NamespaceURIs;
+import org.apache.vysper.xmpp.protocol.ResponseStanzaContainer;
+import org.apache.vysper.xmpp.protocol.SessionStateHolder;
+import org.apache.vysper.xmpp.protocol.StanzaHandler;
+import org.apache.vysper.xmpp.server.AbstractSessionContext;
+import org.apache.vysper.xmpp.server.ServerRuntimeContext;
+import org.apache.vysper.xmpp.server.SessionContext;
+import org.apache.vysper.xmpp.stanza.Stanza;
+import org.apache.vysper.xmpp.writer.DelegatingStanzaWriter;
+import org.apache.vysper.xmpp.writer.StanzaWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * handles the &lt;active/&gt; and &lt;inactive/&gt; client state nonzas by installing a
+ * {@link ClientStateWriter} on the session's write path and switching its state.
+ * nonzas are not answered.
+ *
+ * @author The Apache MINA Project (dev@mina.apache.org)
+ */
+public class ClientStateHandler implements StanzaHandler {
+
+    public static final String ACTIVE = "active";
+
+    public static final String INACTIVE = "inactive";
+
+    private static final Logger LOG = LoggerFactory.getLogger(ClientStateHandler.class);
+
+    private final String name;
+
+    public ClientStateHandler(String name) {
+        if (!ACTIVE.equals(name) && !INACTIVE.equals(name)) {
+            throw new IllegalArgumentException("unknown client state: " + name);
+        }
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean verify(Stanza stanza) {
+        if (stanza == null) return false;
+        if (!getName().equals(stanza.getName())) return false;
+        return NamespaceURIs.URN_XMPP_CSI.equals(stanza.getNamespaceURI());
+    }
+
+    public boolean isSessionRequired() {
+        return true;
+    }
+
+    public ResponseStanzaContainer execute(Stanza stanza, ServerRuntimeContext serverRuntimeContext,
+            boolean isOutboundStanza, SessionContext sessionContext, SessionStateHolder sessionStateHolder) {
+        if (sessionContext == null || sessionContext.isServerToServer()) return null;
+
+        ClientStateWriter writer = getOrInstallWriter(sessionContext);
+        if (writer == null) {
+            LOG.debug("session {} does not support client state indication", sessionContext.getSessionId());
+            return null;
+        }
+
+        if (INACTIVE.equals(name)) {
+            writer.setInactive();
+        } else {
+            writer.setActive();
+        }
+        return null;
+    }
+
+    /**
+     * the client state writer is installed above all other filters, in particular above stream management, 
+     * which counts only what the client state writer passes on.
+     * @return the session's client state writer, or null if the session's write path cannot be filtered
+     */
+    public static ClientStateWriter getOrInstallWriter(SessionContext sessionContext) {
+        if (!(sessionContext instanceof AbstractSessionContext)) return null;
+        AbstractSessionContext abstractSessionContext = (AbstractSessionContext) sessionContext;
+        synchronized (abstractSessionContext) {
+            StanzaWriter filter = abstractSessionContext.getResponseWriterFilter();
+            while (filter instanceof DelegatingStanzaWriter) {
+                if (filter instanceof ClientStateWriter) return (ClientStateWriter) filter;
+                filter = ((DelegatingStanzaWriter) filter).getDelegate();
+            }
+
+            ClientStateWriter writer = new ClientStateWriter(abstractSessionContext.getResponseWriter());
+            abstractSessionContext.setResponseWriterFilter(writer);
+            return writer;
+        }
+    }
+}
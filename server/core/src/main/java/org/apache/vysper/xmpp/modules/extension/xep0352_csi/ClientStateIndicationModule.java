@@ -0,0 +1,55 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.vysper.xmpp.modules.extension.xep0352_csi;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.vysper.xmpp.modules.DefaultModule;
+import org.apache.vysper.xmpp.protocol.DefaultHandlerDictionary;
+import org.apache.vysper.xmpp.protocol.HandlerDictionary;
+import org.apache.vysper.xmpp.protocol.StanzaHandler;
+
+/**
+ * A module for <a href="http://xmpp.org/extensions/xep-0352.html">XEP-0352 Client State Indication</a>.
+ * inactive sessions get presence updates buffered and chat states dropped, see {@link ClientStateWriter}.
+ *
+ * @author The Apache MINA Project (dev@mina.apache.org)
+ */
+public class ClientStateIndicationModule extends DefaultModule {
+
+    @Override
+    public String getName() {
+        return "XEP-0352 Client State Indication";
+    }
+
+    @Override
+    public String getVersion() {
+        return "0.3";
+    }
+
+    @Override
+    protected void addHandlerDictionaries(List<HandlerDictionary> dictionary) {
+        List<StanzaHandler> handlers = new ArrayList<StanzaHandler>();
+        handlers.add(new ClientStateHandler(ClientStateHandler.ACTIVE));
+        handlers.add(new ClientStateHandler(ClientStateHandler.INACTIVE));
+        dictionary.add(new DefaultHandlerDictionary(handlers));
+    }
+}
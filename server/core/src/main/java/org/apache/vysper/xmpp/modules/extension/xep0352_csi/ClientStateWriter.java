@@ -0,0 +1,161 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.vysper.xmpp.modules.extension.xep0352_csi;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.vysper.xml.fragment.XMLElement;
+import org.apache.vysper.xmpp.addressing.Entity;
+import org.apache.vysper.xmpp.protocol.NamespaceURIs;
+import org.apache.vysper.xmpp.stanza.MessageStanza;
+import org.apache.vysper.xmpp.stanza.PresenceStanza;
+import org.apache.vysper.xmpp.stanza.Stanza;
+import org.apache.vysper.xmpp.writer.DelegatingStanzaWriter;
+import org.apache.vysper.xmpp.writer.FlowControlledStanzaWriter;
+import org.apache.vysper.xmpp.writer.StanzaWriter;
+
+/**
+ * response writer filter applying the inactive policy of
+ * <a href="http://xmpp.org/extensions/xep-0352.html">XEP-0352 Client State Indication</a> to a session.
+ * while the client is inactive, availability presences are buffered and collapsed to the latest one per
+ * sending full JID, chat state notifications without a body are dropped and all other stanzas are written
+ * immediately. writing a message with content also flushes the buffered presences ahead of it, as does
+ * the client becoming active again.
+ * stream management is inserted below this writer, so that only stanzas actually written are counted.
+ *
+ * @author The Apache MINA Project (dev@mina.apache.org)
+ */
+public class ClientStateWriter implements FlowControlledStanzaWriter, DelegatingStanzaWriter {
+
+    private volatile StanzaWriter delegate;
+
+    private boolean inactive = false;
+
+    private final Map<String, Stanza> bufferedPresences = new LinkedHashMap<String, Stanza>();
+
+    private long droppedChatStates = 0;
+
+    /**
+     * @param delegate the writer to forward stanzas to, usually the transport writer of the session
+     */
+    public ClientStateWriter(StanzaWriter delegate) {
+        if (delegate == null) throw new IllegalArgumentException("delegate writer must not be null");
+        this.delegate = delegate;
+    }
+
+    public synchronized void write(Stanza stanza) {
+        if (!inactive) {
+            delegate.write(stanza);
+            return;
+        }
+        if (isBufferablePresence(stanza)) {
+            // remove first, so that the re-inserted presence moves to the end of the flush order
+            String key = presenceKey(stanza);
+            bufferedPresences.remove(key);
+            bufferedPresences.put(key, stanza);
+            return;
+        }
+        if (isChatStateOnly(stanza)) {
+            droppedChatStates++;
+            return;
+        }
+        if (MessageStanza.isOfType(stanza)) flushPresences();
+        delegate.write(stanza);
+    }
+
+    public synchronized void setInactive() {
+        inactive = true;
+    }
+
+    public synchronized void setActive() {
+        inactive = false;
+        flushPresences();
+    }
+
+    public synchronized boolean isInactive() {
+        return inactive;
+    }
+
+    public synchronized int getBufferedPresenceCount() {
+        return bufferedPresences.size();
+    }
+
+    public synchronized long getDroppedChatStateCount() {
+        return droppedChatStates;
+    }
+
+    public StanzaWriter getDelegate() {
+        return delegate;
+    }
+
+    public synchronized void setDelegate(StanzaWriter delegate) {
+        if (delegate == null) throw new IllegalArgumentException("delegate writer must not be null");
+        this.delegate = delegate;
+    }
+
+    public boolean whenWritten(WriteListener listener) {
+        StanzaWriter delegate = this.delegate;
+        if (delegate instanceof FlowControlledStanzaWriter) {
+            return ((FlowControlledStanzaWriter) delegate).whenWritten(listener);
+        }
+        return false;
+    }
+
+    public synchronized void close() {
+        bufferedPresences.clear();
+        delegate.close();
+    }
+
+    protected void flushPresences() {
+        if (bufferedPresences.isEmpty()) return;
+        List<Stanza> presences = new ArrayList<Stanza>(bufferedPresences.values());
+        bufferedPresences.clear();
+        for (Stanza presence : presences) {
+            delegate.write(presence);
+        }
+    }
+
+    /**
+     * only availability presences are collapsed, subscription handling and errors are always written
+     */
+    protected boolean isBufferablePresence(Stanza stanza) {
+        if (!PresenceStanza.isOfType(stanza)) return false;
+        String type = stanza.getAttributeValue("type");
+        return type == null || "unavailable".equals(type);
+    }
+
+    protected boolean isChatStateOnly(Stanza stanza) {
+        if (!MessageStanza.isOfType(stanza)) return false;
+        boolean chatState = false;
+        for (XMLElement element : stanza.getInnerElements()) {
+            if ("body".equals(element.getName())) return false;
+            if (NamespaceURIs.XEP0085_CHAT_STATES.equals(element.getNamespaceURI())) chatState = true;
+        }
+        return chatState;
+    }
+
+    private String presenceKey(Stanza stanza) {
+        Entity from = stanza.getFrom();
+        return from == null ? "" : from.getFullQualifiedName();
+    }
+}
@@ -86,6 +86,14 @@ public class RosterItem {
         this.groups.addAll(groups);
     }
 
+    /**
+     * copies a roster item, so that the copy can be changed without affecting the original
+     */
+    public RosterItem(RosterItem rosterItem) {
+        this(rosterItem.jid, rosterItem.name, rosterItem.subscriptionType, rosterItem.askSubscriptionType,
+                rosterItem.groups);
+    }
+
     public Entity getJid() {
         return jid;
     }
@@ -23,9 +23,11 @@ import java.util.List;
 
 import org.apache.vysper.storage.StorageProvider;
 import org.apache.vysper.xmpp.modules.DefaultModule;
+import org.apache.vysper.xmpp.modules.roster.persistence.AbstractRosterManager;
 import org.apache.vysper.xmpp.modules.roster.persistence.RosterManager;
 import org.apache.vysper.xmpp.protocol.HandlerDictionary;
 import org.apache.vysper.xmpp.server.ServerRuntimeContext;
+import org.apache.vysper.xmpp.server.metrics.StageLatencies;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -58,6 +60,12 @@ public class RosterModule extends DefaultModule {
         StorageProvider storageProvider = serverRuntimeContext.getStorageProvider(RosterManager.class);
         if (storageProvider == null) {
             logger.error("no roster storage provider found");
+        } else if (storageProvider instanceof AbstractRosterManager) {
+            // rosters of online users are cached
+            AbstractRosterManager rosterManager = (AbstractRosterManager) storageProvider;
+            rosterManager.setResourceRegistry(serverRuntimeContext.getResourceRegistry());
+            rosterManager.registerMetrics(StageLatencies.getInstance());
+            serverRuntimeContext.registerSessionEndListener(rosterManager);
         }
     }
 }
\ No newline at end of file
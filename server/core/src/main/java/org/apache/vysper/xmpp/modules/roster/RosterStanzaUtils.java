@@ -41,8 +41,20 @@ public class RosterStanzaUtils {
      */
     public static StanzaBuilder createRosterItemsIQ(Entity to, String id, IQStanzaType type,
             Iterable<RosterItem> rosterItems) {
+        return createRosterItemsIQ(to, id, type, rosterItems, null);
+    }
+
+    /**
+     * creates IQ stanza containing the given roster items and the roster version they represent
+     * @param version the roster version, null if the client does not support roster versioning
+     */
+    public static StanzaBuilder createRosterItemsIQ(Entity to, String id, IQStanzaType type,
+            Iterable<RosterItem> rosterItems, String version) {
         StanzaBuilder stanzaBuilder = StanzaBuilder.createIQStanza(null, to, type, id).startInnerElement("query",
                 NamespaceURIs.JABBER_IQ_ROSTER);
+        if (version != null) {
+            stanzaBuilder.addAttribute("ver", version);
+        }
 
         for (RosterItem rosterItem : rosterItems) {
             createRosterItem(stanzaBuilder, rosterItem);
@@ -57,7 +69,17 @@ public class RosterStanzaUtils {
      * create IQ stanza for pushing a roster item update to the client
      */
     public static Stanza createRosterItemPushIQ(Entity to, String id, RosterItem rosterItem) {
-        return createRosterItemIQ(to, id, IQStanzaType.SET, rosterItem);
+        return createRosterItemPushIQ(to, id, rosterItem, null);
+    }
+
+    /**
+     * create IQ stanza for pushing a roster item update to the client
+     * @param version the roster version after the update, null if the client does not support roster versioning
+     */
+    public static Stanza createRosterItemPushIQ(Entity to, String id, RosterItem rosterItem, String version) {
+        List<RosterItem> itemList = new ArrayList<RosterItem>();
+        itemList.add(rosterItem);
+        return createRosterItemsIQ(to, id, IQStanzaType.SET, itemList, version).build();
     }
 
     /**
@@ -0,0 +1,200 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.vysper.xmpp.modules.roster;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.vysper.xmpp.addressing.Entity;
+import org.apache.vysper.xmpp.modules.roster.persistence.RosterManager;
+import org.apache.vysper.xmpp.state.resourcebinding.ResourceRegistry;
+
+/**
+ * per user index of the presence subscriptions held in the user's roster: the contacts subscribed to the
+ * user's presence (subscription 'from' or 'both') and the contacts whose presence the user receives
+ * (subscription 'to' or 'both').
+ * <br/>
+ * a user's entry is loaded from the roster on first use, afterwards it is updated incrementally when
+ * roster items are written or removed. the lists handed out are read-only snapshots.
+ * <br/>
+ * with a resource registry given, only users with bound resources are kept in the index, like rosters are 
+ * only cached for them. the entry of a user going offline has to be dropped by {@link #invalidate(Entity)}.
+ *
+ * @author The Apache MINA Project (dev@mina.apache.org)
+ */
+public class RosterSubscriptionIndex {
+
+    private static final int LOCK_STRIPES = 64;
+
+    private final RosterManager rosterManager;
+
+    private volatile ResourceRegistry resourceRegistry;
+
+    private final ConcurrentMap<Entity, Subscriptions> index = new ConcurrentHashMap<Entity, Subscriptions>();
+
+    /**
+     * loading and updating a user's entry is serialized, so that an update cannot get lost in a concurrent load
+     */
+    private final Object[] locks = new Object[LOCK_STRIPES];
+
+    public RosterSubscriptionIndex(RosterManager rosterManager) {
+        this.rosterManager = rosterManager;
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    /**
+     * @param resourceRegistry if not null, only users with bound resources are indexed
+     */
+    public void setResourceRegistry(ResourceRegistry resourceRegistry) {
+        this.resourceRegistry = resourceRegistry;
+    }
+
+    /**
+     * @return the contacts subscribed to the user's presence
+     */
+    public List<Entity> getSubscribers(Entity user) throws RosterException {
+        return Collections.unmodifiableList(getEntry(user.getBareJID()).subscribers);
+    }
+
+    /**
+     * @return the contacts the user is subscribed to
+     */
+    public List<Entity> getSubscriptions(Entity user) throws RosterException {
+        return Collections.unmodifiableList(getEntry(user.getBareJID()).subscriptions);
+    }
+
+    /**
+     * takes the current subscription state of a roster item written to the user's roster into account
+     */
+    public void update(Entity user, RosterItem rosterItem) {
+        Entity bareJID = user.getBareJID();
+        synchronized (lockFor(bareJID)) {
+            Subscriptions subscriptions = index.get(bareJID);
+            if (subscriptions == null) return; // not loaded, will be read from the roster when needed
+            index.put(bareJID, subscriptions.with(rosterItem.getJid().getBareJID(), rosterItem.hasFrom(), rosterItem
+                    .hasTo()));
+        }
+    }
+
+    /**
+     * removes a contact deleted from the user's roster
+     */
+    public void remove(Entity user, Entity contact) {
+        Entity bareJID = user.getBareJID();
+        synchronized (lockFor(bareJID)) {
+            Subscriptions subscriptions = index.get(bareJID);
+            if (subscriptions == null) return;
+            index.put(bareJID, subscriptions.with(contact.getBareJID(), false, false));
+        }
+    }
+
+    /**
+     * drops the user's entry, it will be re-loaded from the roster on next use
+     */
+    public void invalidate(Entity user) {
+        Entity bareJID = user.getBareJID();
+        synchronized (lockFor(bareJID)) {
+            index.remove(bareJID);
+        }
+    }
+
+    /**
+     * @return number of users currently indexed
+     */
+    public int size() {
+        return index.size();
+    }
+
+    private Subscriptions getEntry(Entity bareJID) throws RosterException {
+        Subscriptions subscriptions = index.get(bareJID);
+        if (subscriptions != null) return subscriptions;
+
+        synchronized (lockFor(bareJID)) {
+            subscriptions = index.get(bareJID);
+            if (subscriptions != null) return subscriptions;
+
+            List<Entity> subscribers = new ArrayList<Entity>();
+            List<Entity> subscribedTo = new ArrayList<Entity>();
+            Roster roster = rosterManager.retrieve(bareJID);
+            if (roster != null) {
+                for (RosterItem rosterItem : roster) {
+                    if (rosterItem.hasFrom()) subscribers.add(rosterItem.getJid().getBareJID());
+                    if (rosterItem.hasTo()) subscribedTo.add(rosterItem.getJid().getBareJID());
+                }
+            }
+            subscriptions = new Subscriptions(subscribers, subscribedTo);
+            // offline users, for example contacts probed on behalf of a user logging in, are not kept. 
+            // checked while holding the lock, so that an entry is never added after the user's invalidation
+            if (isIndexed(bareJID)) {
+                index.put(bareJID, subscriptions);
+            }
+            return subscriptions;
+        }
+    }
+
+    private boolean isIndexed(Entity bareJID) {
+        ResourceRegistry registry = resourceRegistry;
+        if (registry == null) return true;
+        List<String> resources = registry.getBoundResources(bareJID);
+        return resources != null && !resources.isEmpty();
+    }
+
+    private Object lockFor(Entity bareJID) {
+        return locks[(bareJID.hashCode() & Integer.MAX_VALUE) % LOCK_STRIPES];
+    }
+
+    /**
+     * never modified after construction
+     */
+    static class Subscriptions {
+
+        final List<Entity> subscribers;
+
+        final List<Entity> subscriptions;
+
+        Subscriptions(List<Entity> subscribers, List<Entity> subscriptions) {
+            this.subscribers = subscribers;
+            this.subscriptions = subscriptions;
+        }
+
+        Subscriptions with(Entity contact, boolean isSubscriber, boolean isSubscribedTo) {
+            List<Entity> newSubscribers = change(subscribers, contact, isSubscriber);
+            List<Entity> newSubscriptions = change(subscriptions, contact, isSubscribedTo);
+            if (newSubscribers == subscribers && newSubscriptions == subscriptions) return this;
+            return new Subscriptions(newSubscribers, newSubscriptions);
+        }
+
+        private static List<Entity> change(List<Entity> contacts, Entity contact, boolean contained) {
+            if (contacts.contains(contact) == contained) return contacts;
+            List<Entity> changed = new ArrayList<Entity>(contacts);
+            if (contained) {
+                changed.add(contact);
+            } else {
+                changed.remove(contact);
+            }
+            return changed;
+        }
+    }
+}
@@ -39,7 +39,10 @@ import org.apache.vysper.xml.fragment.XMLSemanticError;
 import org.apache.vysper.xmpp.addressing.Entity;
 import org.apache.vysper.xmpp.addressing.EntityFormatException;
 import org.apache.vysper.xmpp.addressing.EntityImpl;
+import org.apache.vysper.xmpp.modules.roster.persistence.AbstractRosterManager;
 import org.apache.vysper.xmpp.modules.roster.persistence.RosterManager;
+import org.apache.vysper.xmpp.server.ServerRuntimeContext;
+import org.apache.vysper.xmpp.server.SessionContext;
 import org.apache.vysper.xmpp.stanza.IQStanza;
 
 /**
@@ -48,6 +51,11 @@ import org.apache.vysper.xmpp.stanza.IQStanza;
  */
 public class RosterUtils {
 
+    /**
+     * session attribute marking sessions which requested the roster with a version
+     */
+    public static final String SESSION_ATTRIBUTE_ROSTER_VERSIONING = "rosterVersioning";
+
     /**
      * takes the roster of a user and groups items by subscription state. this is helpful when all FROM items
      * are needed and then all TO items - but the roster is only iterated once. 
@@ -80,6 +88,58 @@ public class RosterUtils {
         return rosterItemMap;
     }
 
+    /**
+     * @return the contacts subscribed to the user's presence, that is with subscription 'from' or 'both'
+     */
+    public static List<Entity> getPresenceSubscribers(RosterManager rosterManager, Entity user) {
+        return getIndexedContacts(rosterManager, user, true);
+    }
+
+    /**
+     * @return the contacts whose presence the user receives, that is with subscription 'to' or 'both'
+     */
+    public static List<Entity> getPresenceSubscriptions(RosterManager rosterManager, Entity user) {
+        return getIndexedContacts(rosterManager, user, false);
+    }
+
+    private static List<Entity> getIndexedContacts(RosterManager rosterManager, Entity user, boolean subscribers) {
+        if (rosterManager instanceof AbstractRosterManager) {
+            RosterSubscriptionIndex index = ((AbstractRosterManager) rosterManager).getSubscriptionIndex();
+            try {
+                return subscribers ? index.getSubscribers(user) : index.getSubscriptions(user);
+            } catch (RosterException e) {
+                throw new RuntimeException("could not retrieve roster for user " + user.getFullQualifiedName());
+            }
+        }
+
+        // no index available, go through the roster
+        Map<SubscriptionType, List<RosterItem>> itemMap = getRosterItemsByState(rosterManager, user);
+        List<RosterItem> items = new ArrayList<RosterItem>(subscribers ? itemMap.get(SubscriptionType.FROM) : itemMap
+                .get(SubscriptionType.TO));
+        items.addAll(itemMap.get(SubscriptionType.BOTH));
+        List<Entity> contacts = new ArrayList<Entity>();
+        for (RosterItem rosterItem : items) {
+            contacts.add(rosterItem.getJid());
+        }
+        return contacts;
+    }
+
+    /**
+     * @param userResource the full JID of the resource receiving a roster push
+     * @return the current version of the user's roster, if the resource's session uses roster versioning.
+     * null otherwise
+     */
+    public static String getPushVersion(ServerRuntimeContext serverRuntimeContext, Entity userResource) {
+        RosterManager rosterManager = (RosterManager) serverRuntimeContext.getStorageProvider(RosterManager.class);
+        if (!(rosterManager instanceof AbstractRosterManager)) return null;
+        SessionContext sessionContext = serverRuntimeContext.getResourceRegistry().getSessionContext(
+                userResource.getResource());
+        if (sessionContext == null || sessionContext.getAttribute(SESSION_ATTRIBUTE_ROSTER_VERSIONING) == null) {
+            return null;
+        }
+        return ((AbstractRosterManager) rosterManager).getVersionLog().getVersion(userResource);
+    }
+
     /**
      * extracts a roster item from the given stanza
      */
@@ -30,6 +30,8 @@ import java.util.List;
 
 import org.apache.vysper.compliance.SpecCompliance;
 import org.apache.vysper.compliance.SpecCompliant;
+import org.apache.vysper.xml.fragment.XMLElement;
+import org.apache.vysper.xml.fragment.XMLSemanticError;
 import org.apache.vysper.xmpp.addressing.Entity;
 import org.apache.vysper.xmpp.addressing.EntityImpl;
 import org.apache.vysper.xmpp.delivery.LocalDeliveryUtils;
@@ -43,10 +45,13 @@ import org.apache.vysper.xmpp.modules.roster.RosterItem;
 import org.apache.vysper.xmpp.modules.roster.RosterNotAcceptableException;
 import org.apache.vysper.xmpp.modules.roster.RosterStanzaUtils;
 import org.apache.vysper.xmpp.modules.roster.RosterUtils;
+import org.apache.vysper.xmpp.modules.roster.persistence.AbstractRosterManager;
 import org.apache.vysper.xmpp.modules.roster.persistence.RosterManager;
+import org.apache.vysper.xmpp.modules.roster.persistence.RosterVersionLog;
 import org.apache.vysper.xmpp.protocol.NamespaceURIs;
 import org.apache.vysper.xmpp.server.ServerRuntimeContext;
 import org.apache.vysper.xmpp.server.SessionContext;
+import org.apache.vysper.xmpp.writer.StanzaWriter;
 import org.apache.vysper.xmpp.server.response.ServerErrorResponses;
 import org.apache.vysper.xmpp.stanza.IQStanza;
 import org.apache.vysper.xmpp.stanza.IQStanzaType;
@@ -108,6 +113,34 @@ public class RosterIQHandler extends DefaultIQHandler {
             registry.setResourceState(resourceId, ResourceState.makeInterested(currentState));
         }
 
+        RosterVersionLog versionLog = null;
+        String clientVersion = getRequestedVersion(stanza);
+        if (clientVersion != null && rosterManager instanceof AbstractRosterManager) {
+            versionLog = ((AbstractRosterManager) rosterManager).getVersionLog();
+            // roster pushes to this session carry the roster version from now on
+            sessionContext.putAttribute(RosterUtils.SESSION_ATTRIBUTE_ROSTER_VERSIONING, Boolean.TRUE);
+        }
+
+        String version = null;
+        if (versionLog != null) {
+            RosterVersionLog.Delta delta = versionLog.getDelta(from, clientVersion);
+            if (delta != null) {
+                // the client is current or only misses recent changes, which are pushed after an empty result.
+                // the roster itself is not needed
+                StanzaWriter writer = sessionContext.getResponseWriter();
+                writer.write(StanzaBuilder.createIQStanza(null, from, IQStanzaType.RESULT, stanza.getID()).build());
+                // each push carries the version after its own change, the last one the current version
+                List<RosterItem> changes = delta.getChanges();
+                for (int i = 0; i < changes.size(); i++) {
+                    writer.write(RosterStanzaUtils.createRosterItemPushIQ(from, sessionContext.nextSequenceValue(),
+                            changes.get(i), delta.getChangeVersion(i)));
+                }
+                return null;
+            }
+            // taken before loading, changes written meanwhile are pushed with a later version
+            version = versionLog.getVersion(from);
+        }
+
         Roster roster = null;
         try {
             roster = rosterManager.retrieve(from.getBareJID());
@@ -119,10 +152,24 @@ public class RosterIQHandler extends DefaultIQHandler {
 
         // from becomes to
         StanzaBuilder stanzaBuilder = RosterStanzaUtils.createRosterItemsIQ(from, stanza.getID(), IQStanzaType.RESULT,
-                roster);
+                roster, version);
         return stanzaBuilder.build();
     }
 
+    /**
+     * @return the roster version the client already has, empty if it has none, null if the client does not
+     * support roster versioning
+     */
+    private String getRequestedVersion(IQStanza stanza) {
+        XMLElement queryElement;
+        try {
+            queryElement = stanza.getSingleInnerElementsNamed("query");
+        } catch (XMLSemanticError e) {
+            return null;
+        }
+        return queryElement == null ? null : queryElement.getAttributeValue("ver");
+    }
+
     @SpecCompliance(compliant = {
             @SpecCompliant(spec = "rfc3921bis-08", section = "2.1.3", status = FINISHED, coverage = COMPLETE),
             @SpecCompliant(spec = "rfc3921bis-08", section = "2.1.5", status = FINISHED, coverage = PARTIAL),
@@ -249,7 +296,7 @@ public class RosterIQHandler extends DefaultIQHandler {
         for (String resource : resources) {
             Entity userResource = new EntityImpl(user, resource);
             Stanza push = RosterStanzaUtils.createRosterItemPushIQ(userResource, sessionContext.nextSequenceValue(),
-                    rosterItem);
+                    rosterItem, RosterUtils.getPushVersion(sessionContext.getServerRuntimeContext(), userResource));
             LocalDeliveryUtils.relayToResourceDirectly(registry, resource, push);
         }
     }
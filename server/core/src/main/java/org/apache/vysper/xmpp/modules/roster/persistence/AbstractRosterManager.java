@@ -19,18 +19,49 @@
  */
 package org.apache.vysper.xmpp.modules.roster.persistence;
 
+import java.util.List;
+
 import org.apache.vysper.xmpp.addressing.Entity;
 import org.apache.vysper.xmpp.modules.ServerRuntimeContextService;
 import org.apache.vysper.xmpp.modules.roster.MutableRoster;
 import org.apache.vysper.xmpp.modules.roster.Roster;
 import org.apache.vysper.xmpp.modules.roster.RosterException;
 import org.apache.vysper.xmpp.modules.roster.RosterItem;
+import org.apache.vysper.xmpp.modules.roster.RosterSubscriptionIndex;
+import org.apache.vysper.xmpp.server.AbstractSessionContext;
+import org.apache.vysper.xmpp.server.SessionContext.SessionTerminationCause;
+import org.apache.vysper.xmpp.server.SessionEndListener;
+import org.apache.vysper.xmpp.server.metrics.StageLatencies;
+import org.apache.vysper.xmpp.state.resourcebinding.ResourceRegistry;
 
 /**
  *
  * @author The Apache MINA Project (dev@mina.apache.org)
  */
-public abstract class AbstractRosterManager implements RosterManager, ServerRuntimeContextService {
+public abstract class AbstractRosterManager implements RosterManager, ServerRuntimeContextService,
+        SessionEndListener {
+
+    /**
+     * kept up to date by {@link #contactWritten(Entity, RosterItem)} and {@link #contactRemoved(Entity, Entity)}
+     */
+    protected final RosterSubscriptionIndex subscriptionIndex = new RosterSubscriptionIndex(this);
+
+    /**
+     * kept up to date by {@link #contactWritten(Entity, RosterItem)} and {@link #contactRemoved(Entity, Entity)}.
+     * null, if rosters are not cached
+     */
+    protected volatile RosterCache rosterCache = new RosterCache();
+
+    /**
+     * rosters are only cached for entities with bound resources. without registry, nothing is cached
+     */
+    private volatile ResourceRegistry resourceRegistry;
+
+    /**
+     * written and removed contacts are recorded by {@link #contactWritten(Entity, RosterItem)} and 
+     * {@link #contactRemoved(Entity, Entity)}, so roster versions stay accurate
+     */
+    protected final RosterVersionLog versionLog = new RosterVersionLog();
 
     abstract protected Roster retrieveRosterInternal(Entity bareJid);
 
@@ -38,19 +69,36 @@ public abstract class AbstractRosterManager implements RosterManager, ServerRunt
 
     public Roster retrieve(Entity jid) {
         jid = jid.getBareJID();
-        return retrieveRosterInternal(jid);
+        RosterCache cache = rosterCache;
+        ResourceRegistry registry = resourceRegistry;
+        if (cache == null || registry == null) {
+            return retrieveRosterInternal(jid);
+        }
+        Roster roster = cache.get(jid);
+        if (roster != null) {
+            return roster;
+        }
+        long writeStamp = cache.getWriteStamp(jid);
+        roster = retrieveRosterInternal(jid);
+        if (isOnline(registry, jid)) {
+            cache.put(jid, roster, writeStamp);
+        }
+        return roster;
     }
 
     public void addContact(Entity jid, RosterItem rosterItem) throws RosterException {
         if (jid == null)
             throw new RosterException("jid not provided");
-        final Roster roster = retrieve(jid);
+        jid = jid.getBareJID();
+        // write through to the stored roster, not to the cached copy
+        final Roster roster = retrieveRosterInternal(jid);
         if (!(roster instanceof MutableRoster)) throw new RosterException("roster is not mutable");
         MutableRoster mutableRoster = (MutableRoster)roster;
         if (mutableRoster == null) {
             mutableRoster = (MutableRoster) addNewRosterInternal(jid);
         }
         mutableRoster.addItem(rosterItem);
+        contactWritten(jid, rosterItem);
     }
 
     public RosterItem getContact(Entity jidUser, Entity jidContact) throws RosterException {
@@ -59,18 +107,135 @@ public abstract class AbstractRosterManager implements RosterManager, ServerRunt
         Roster roster = retrieve(jidUser);
         if (roster == null)
             throw new RosterException("roster not available for jid = " + jidUser.getFullQualifiedName());
-        return roster.getEntry(jidContact);
+        // callers change the contact before writing it back, which must not reach a cached roster
+        RosterItem contact = roster.getEntry(jidContact);
+        return contact == null ? null : new RosterItem(contact);
     }
 
     public void removeContact(Entity jidUser, Entity jidContact) throws RosterException {
         if (jidUser == null)
             throw new RosterException("jid not provided");
-        Roster roster = retrieve(jidUser);
+        jidUser = jidUser.getBareJID();
+        Roster roster = retrieveRosterInternal(jidUser);
         if (roster == null)
             throw new RosterException("roster not available for jid = " + jidUser.getFullQualifiedName());
         if (!(roster instanceof MutableRoster)) throw new RosterException("roster is not mutable");
         MutableRoster mutableRoster = (MutableRoster)roster;
-        final boolean success = mutableRoster.removeItem(jidContact);
+        if (mutableRoster.removeItem(jidContact)) contactRemoved(jidUser, jidContact);
+    }
+
+    /**
+     * to be called by implementations after a contact has been written to storage. updates the subscription 
+     * index and the cached roster, and records the change in the version log.
+     */
+    protected void contactWritten(Entity jid, RosterItem rosterItem) {
+        Entity bareJID = jid.getBareJID();
+        subscriptionIndex.update(bareJID, rosterItem);
+        RosterCache cache = rosterCache;
+        if (cache != null) cache.update(bareJID, rosterItem);
+        versionLog.recordUpdate(bareJID, rosterItem);
+    }
+
+    /**
+     * to be called by implementations after a contact has been removed from storage, but not if there was 
+     * no such contact
+     */
+    protected void contactRemoved(Entity jid, Entity contact) {
+        Entity bareJID = jid.getBareJID();
+        subscriptionIndex.remove(bareJID, contact);
+        RosterCache cache = rosterCache;
+        if (cache != null) cache.remove(bareJID, contact);
+        versionLog.recordRemove(bareJID, contact);
+    }
+
+    /**
+     * drops the entity's cached roster and its subscription index entry if the entity has no bound resources 
+     * anymore. to be called when a session has ended.
+     */
+    public void evictIfOffline(Entity jid) {
+        if (jid == null) return;
+        Entity bareJID = jid.getBareJID();
+        ResourceRegistry registry = resourceRegistry;
+        if (registry != null && isOnline(registry, bareJID)) return;
+        RosterCache cache = rosterCache;
+        if (cache != null) cache.invalidate(bareJID);
+        subscriptionIndex.invalidate(bareJID);
+    }
+
+    public boolean sessionEnding(AbstractSessionContext sessionContext, SessionTerminationCause terminationCause) {
+        return false;
+    }
+
+    /**
+     * rosters are only cached while their user is online
+     */
+    public void sessionEnded(AbstractSessionContext sessionContext, List<Entity> resources) {
+        evictIfOffline(sessionContext.getInitiatingEntity());
+    }
+
+    private boolean isOnline(ResourceRegistry registry, Entity bareJID) {
+        List<String> resources = registry.getBoundResources(bareJID);
+        return resources != null && !resources.isEmpty();
+    }
+
+    /**
+     * enables caching of the rosters of entities with bound resources
+     */
+    public void setResourceRegistry(ResourceRegistry resourceRegistry) {
+        this.resourceRegistry = resourceRegistry;
+        subscriptionIndex.setResourceRegistry(resourceRegistry);
+    }
+
+    /**
+     * @param rosterCache the cache to use, null disables caching
+     */
+    public void setRosterCache(RosterCache rosterCache) {
+        this.rosterCache = rosterCache;
+    }
+
+    /**
+     * @return the roster cache, giving access to its hit and miss counts. null, if caching is disabled
+     */
+    public RosterCache getRosterCache() {
+        return rosterCache;
+    }
+
+    /**
+     * reports the roster cache's size, hits and misses, following caches replaced later on
+     */
+    public void registerMetrics(StageLatencies stageLatencies) {
+        stageLatencies.registerGauge("rosterCache.size", new StageLatencies.Gauge() {
+            public long getValue() {
+                RosterCache cache = rosterCache;
+                return cache == null ? 0 : cache.size();
+            }
+        });
+        stageLatencies.registerGauge("rosterCache.hits", new StageLatencies.Gauge() {
+            public long getValue() {
+                RosterCache cache = rosterCache;
+                return cache == null ? 0 : cache.getHits();
+            }
+        });
+        stageLatencies.registerGauge("rosterCache.misses", new StageLatencies.Gauge() {
+            public long getValue() {
+                RosterCache cache = rosterCache;
+                return cache == null ? 0 : cache.getMisses();
+            }
+        });
+    }
+
+    /**
+     * @return versions and recent changes of the managed rosters
+     */
+    public RosterVersionLog getVersionLog() {
+        return versionLog;
+    }
+
+    /**
+     * @return index of the presence subscriptions in the managed rosters
+     */
+    public RosterSubscriptionIndex getSubscriptionIndex() {
+        return subscriptionIndex;
     }
 
     public String getServiceName() {
@@ -0,0 +1,257 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.vysper.xmpp.modules.roster.persistence;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.vysper.xmpp.addressing.Entity;
+import org.apache.vysper.xmpp.modules.roster.MutableRoster;
+import org.apache.vysper.xmpp.modules.roster.Roster;
+import org.apache.vysper.xmpp.modules.roster.RosterItem;
+
+/**
+ * bounded cache of rosters by bare JID, entries expire after the time-to-live has passed.
+ * <br/>
+ * recency is approximated (second chance): a hit only marks the entry as referenced, without taking a lock.
+ * when the cache is full, entries not referenced since the last sweep are evicted first.
+ * <br/>
+ * cached rosters are never changed. writes replace the cached roster with an updated copy, so that readers
+ * can iterate a roster without it changing underneath. rosters and items are copied when they are cached,
+ * so that changes to the stored roster or to a written item do not reach the cache. readers must not change
+ * the items of a cached roster. copies are made without holding a lock and installed only if the cached
+ * roster has not been replaced meanwhile.
+ *
+ * @author The Apache MINA Project (dev@mina.apache.org)
+ */
+public class RosterCache {
+
+    public static final int DEFAULT_MAX_ENTRIES = 10000;
+
+    public static final long DEFAULT_TTL_MILLIS = 10 * 60 * 1000;
+
+    private static class Entry {
+        final Roster roster;
+
+        final long expires;
+
+        /**
+         * hit since the last eviction sweep passed the entry
+         */
+        volatile boolean referenced;
+
+        Entry(Roster roster, long expires, boolean referenced) {
+            this.roster = roster;
+            this.expires = expires;
+            this.referenced = referenced;
+        }
+    }
+
+    private final int maxEntries;
+
+    private final long ttlMillis;
+
+    private final ConcurrentMap<Entity, Entry> entries = new ConcurrentHashMap<Entity, Entry>();
+
+    /** number of write stamps, writes only prevent caching of rosters whose bare JIDs share their stamp */
+    private static final int WRITE_STAMPS = 64;
+
+    /** incremented by every write, loads started before a write to the same roster are not cached */
+    private final AtomicLongArray writeStamps = new AtomicLongArray(WRITE_STAMPS);
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    private final AtomicLong expirations = new AtomicLong();
+
+    public RosterCache() {
+        this(DEFAULT_MAX_ENTRIES, DEFAULT_TTL_MILLIS);
+    }
+
+    /**
+     * @param maxEntries maximum number of cached rosters
+     * @param ttlMillis time after which a cached roster is read from storage again
+     */
+    public RosterCache(int maxEntries, long ttlMillis) {
+        if (maxEntries < 1) throw new IllegalArgumentException("cache must hold at least one roster");
+        if (ttlMillis <= 0) throw new IllegalArgumentException("time-to-live must be positive");
+        this.maxEntries = maxEntries;
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * @return the cached roster, or null if the roster is not cached
+     */
+    public Roster get(Entity bareJID) {
+        Entry entry = entries.get(bareJID);
+        if (entry != null && entry.expires < System.currentTimeMillis()) {
+            if (entries.remove(bareJID, entry)) expirations.incrementAndGet();
+            entry = null;
+        }
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        if (!entry.referenced) entry.referenced = true;
+        return entry.roster;
+    }
+
+    /**
+     * to be taken before loading a roster from storage
+     */
+    public long getWriteStamp(Entity bareJID) {
+        return writeStamps.get(stampIndex(bareJID));
+    }
+
+    /**
+     * caches a copy of a roster loaded from storage, unless the roster has been written since the load started
+     * @param writeStampBeforeLoad taken by {@link #getWriteStamp(Entity)} before loading
+     * @return true, if the roster has been cached
+     */
+    public boolean put(Entity bareJID, Roster roster, long writeStampBeforeLoad) {
+        int stampIndex = stampIndex(bareJID);
+        if (roster == null || writeStamps.get(stampIndex) != writeStampBeforeLoad) return false;
+        Entry entry = new Entry(copy(roster), System.currentTimeMillis() + ttlMillis, false);
+        entries.put(bareJID, entry);
+        // a write between the check and the put might not have seen the entry
+        if (writeStamps.get(stampIndex) != writeStampBeforeLoad) {
+            entries.remove(bareJID, entry);
+            return false;
+        }
+        if (entries.size() > maxEntries) evict(bareJID);
+        return true;
+    }
+
+    /**
+     * replaces a cached roster with a copy containing the written item
+     */
+    public void update(Entity bareJID, RosterItem rosterItem) {
+        writeStamps.incrementAndGet(stampIndex(bareJID));
+        while (true) {
+            Entry entry = entries.get(bareJID);
+            if (entry == null) return;
+            MutableRoster copy = copy(entry.roster);
+            copy.addItem(new RosterItem(rosterItem));
+            if (replace(bareJID, entry, copy)) return;
+        }
+    }
+
+    /**
+     * replaces a cached roster with a copy not containing the contact
+     */
+    public void remove(Entity bareJID, Entity contact) {
+        writeStamps.incrementAndGet(stampIndex(bareJID));
+        while (true) {
+            Entry entry = entries.get(bareJID);
+            if (entry == null) return;
+            MutableRoster copy = copy(entry.roster);
+            copy.removeItem(contact);
+            if (replace(bareJID, entry, copy)) return;
+        }
+    }
+
+    public void invalidate(Entity bareJID) {
+        writeStamps.incrementAndGet(stampIndex(bareJID));
+        entries.remove(bareJID);
+    }
+
+    public void clear() {
+        for (int i = 0; i < WRITE_STAMPS; i++) {
+            writeStamps.incrementAndGet(i);
+        }
+        entries.clear();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public long getExpirations() {
+        return expirations.get();
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    public long getTtlMillis() {
+        return ttlMillis;
+    }
+
+    private MutableRoster copy(Roster roster) {
+        MutableRoster copy = new MutableRoster();
+        for (Iterator<RosterItem> items = roster.iterator(); items.hasNext();) {
+            copy.addItem(new RosterItem(items.next()));
+        }
+        return copy;
+    }
+
+    private int stampIndex(Entity bareJID) {
+        return (bareJID.hashCode() & 0x7fffffff) % WRITE_STAMPS;
+    }
+
+    /**
+     * @return false, if the cached entry has been replaced or removed meanwhile
+     */
+    private boolean replace(Entity bareJID, Entry entry, MutableRoster roster) {
+        // keeps the time-to-live of the loaded roster
+        return entries.replace(bareJID, entry, new Entry(roster, entry.expires, entry.referenced));
+    }
+
+    /**
+     * removes entries not referenced since the previous sweep until the cache is within its bounds. 
+     * referenced entries get a second chance, after two sweeps every entry but the one just cached is a candidate.
+     */
+    private void evict(Entity justCached) {
+        for (int sweep = 0; sweep < 2 && entries.size() > maxEntries; sweep++) {
+            Iterator<Map.Entry<Entity, Entry>> candidates = entries.entrySet().iterator();
+            while (candidates.hasNext() && entries.size() > maxEntries) {
+                Map.Entry<Entity, Entry> candidate = candidates.next();
+                if (candidate.getKey().equals(justCached)) continue;
+                Entry entry = candidate.getValue();
+                if (entry.referenced) {
+                    entry.referenced = false;
+                    continue;
+                }
+                if (entries.remove(candidate.getKey(), entry)) evictions.incrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,248 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.vysper.xmpp.modules.roster.persistence;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.vysper.xmpp.addressing.Entity;
+import org.apache.vysper.xmpp.modules.roster.RosterItem;
+import org.apache.vysper.xmpp.modules.roster.SubscriptionType;
+
+/**
+ * keeps a version per roster and a bounded log of the latest changes, so that clients supporting roster
+ * versioning only receive the changes since the version they already have.
+ * <br/>
+ * versions are made of a log id and a counter. a roster gets a new log id when it is first tracked, for
+ * example after a restart or after its log has been evicted. versions with an unknown log id are not
+ * covered by the log, clients presenting one receive the complete roster.
+ *
+ * @author The Apache MINA Project (dev@mina.apache.org)
+ */
+public class RosterVersionLog {
+
+    public static final int DEFAULT_MAX_ROSTERS = 10000;
+
+    public static final int DEFAULT_MAX_CHANGES = 50;
+
+    private static final String SEPARATOR = "-";
+
+    /** a roster change, removals are recorded as items with subscription type 'remove' */
+    private static class Change {
+        final long version;
+
+        final RosterItem rosterItem;
+
+        Change(long version, RosterItem rosterItem) {
+            this.version = version;
+            this.rosterItem = rosterItem;
+        }
+    }
+
+    /**
+     * the changes a client misses, each with the version it leads to, together with the version after all changes
+     */
+    public static class Delta {
+        private final List<RosterItem> changes;
+
+        private final List<String> changeVersions;
+
+        private final String version;
+
+        Delta(List<RosterItem> changes, List<String> changeVersions, String version) {
+            this.changes = changes;
+            this.changeVersions = changeVersions;
+            this.version = version;
+        }
+
+        /**
+         * @return the latest change per contact, in the order of the changes. empty, if the client is current
+         */
+        public List<RosterItem> getChanges() {
+            return changes;
+        }
+
+        /**
+         * @return the roster's version after the change at the index in {@link #getChanges()}, to be pushed
+         * with that change
+         */
+        public String getChangeVersion(int index) {
+            return changeVersions.get(index);
+        }
+
+        /**
+         * @return the roster's version after the changes
+         */
+        public String getVersion() {
+            return version;
+        }
+    }
+
+    private static class Log {
+        final String logId;
+
+        long version = 0;
+
+        /** the version before the oldest change still in the log */
+        long coveredSince = 0;
+
+        final LinkedList<Change> changes = new LinkedList<Change>();
+
+        Log(String logId) {
+            this.logId = logId;
+        }
+
+        String getVersionString(long version) {
+            return logId + SEPARATOR + version;
+        }
+    }
+
+    private final int maxChanges;
+
+    private final LinkedHashMap<Entity, Log> logs;
+
+    private final String epoch = Long.toString(System.currentTimeMillis(), 36);
+
+    private final AtomicLong logIdSequence = new AtomicLong();
+
+    public RosterVersionLog() {
+        this(DEFAULT_MAX_ROSTERS, DEFAULT_MAX_CHANGES);
+    }
+
+    /**
+     * @param maxRosters maximum number of rosters tracked, the least recently used are dropped first
+     * @param maxChanges maximum number of changes kept per roster
+     */
+    public RosterVersionLog(final int maxRosters, int maxChanges) {
+        if (maxRosters < 1) throw new IllegalArgumentException("at least one roster must be tracked");
+        if (maxChanges < 1) throw new IllegalArgumentException("at least one change must be kept");
+        this.maxChanges = maxChanges;
+        this.logs = new LinkedHashMap<Entity, Log>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Entity, Log> eldest) {
+                return size() > maxRosters;
+            }
+        };
+    }
+
+    /**
+     * @return the current version of the roster
+     */
+    public synchronized String getVersion(Entity user) {
+        Log log = getLog(user.getBareJID());
+        return log.getVersionString(log.version);
+    }
+
+    /**
+     * records an added or updated roster item
+     * @return the roster's new version
+     */
+    public synchronized String recordUpdate(Entity user, RosterItem rosterItem) {
+        // the written item might be changed afterwards
+        return record(user.getBareJID(), new RosterItem(rosterItem));
+    }
+
+    /**
+     * records the removal of a contact
+     * @return the roster's new version
+     */
+    public synchronized String recordRemove(Entity user, Entity contact) {
+        return record(user.getBareJID(), new RosterItem(contact.getBareJID(), SubscriptionType.REMOVE));
+    }
+
+    /**
+     * @param clientVersion the version the client has
+     * @return the latest change per contact since the client's version, in the order of the changes. empty, if
+     * the client is current. null, if the changes are not known and the complete roster has to be sent
+     */
+    public synchronized List<RosterItem> getChangesSince(Entity user, String clientVersion) {
+        Delta delta = getDelta(user, clientVersion);
+        return delta == null ? null : delta.getChanges();
+    }
+
+    /**
+     * takes the changes and the version they lead to at once, so that no change recorded in between is missed
+     * @param clientVersion the version the client has
+     * @return the changes since the client's version, null if the changes are not known and the complete
+     * roster has to be sent
+     */
+    public synchronized Delta getDelta(Entity user, String clientVersion) {
+        Log log = getLog(user.getBareJID());
+        long since = parseVersion(log, clientVersion);
+        if (since < log.coveredSince || since > log.version) return null;
+
+        Map<Entity, Change> latestChanges = new LinkedHashMap<Entity, Change>();
+        for (Change change : log.changes) {
+            if (change.version <= since) continue;
+            Entity contact = change.rosterItem.getJid().getBareJID();
+            // move the contact to the position of its latest change
+            latestChanges.remove(contact);
+            latestChanges.put(contact, change);
+        }
+        List<RosterItem> changes = new ArrayList<RosterItem>(latestChanges.size());
+        List<String> changeVersions = new ArrayList<String>(latestChanges.size());
+        for (Change change : latestChanges.values()) {
+            changes.add(change.rosterItem);
+            changeVersions.add(log.getVersionString(change.version));
+        }
+        return new Delta(changes, changeVersions, log.getVersionString(log.version));
+    }
+
+    public synchronized int size() {
+        return logs.size();
+    }
+
+    private String record(Entity bareJID, RosterItem rosterItem) {
+        Log log = getLog(bareJID);
+        log.version++;
+        log.changes.addLast(new Change(log.version, rosterItem));
+        while (log.changes.size() > maxChanges) {
+            log.coveredSince = log.changes.removeFirst().version;
+        }
+        return log.getVersionString(log.version);
+    }
+
+    private Log getLog(Entity bareJID) {
+        Log log = logs.get(bareJID);
+        if (log == null) {
+            log = new Log(epoch + Long.toString(logIdSequence.incrementAndGet(), 36));
+            logs.put(bareJID, log);
+        }
+        return log;
+    }
+
+    /**
+     * @return the counter of the client's version, -1 if the version does not belong to the log
+     */
+    private long parseVersion(Log log, String version) {
+        if (version == null) return -1;
+        int separator = version.lastIndexOf(SEPARATOR);
+        if (separator < 0 || !log.logId.equals(version.substring(0, separator))) return -1;
+        try {
+            return Long.parseLong(version.substring(separator + 1));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
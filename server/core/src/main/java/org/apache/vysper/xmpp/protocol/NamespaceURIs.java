@@ -69,11 +69,17 @@ public class NamespaceURIs {
     public static final String URN_XMPP_PING = "urn:xmpp:ping";
 
     public static final String URN_XMPP_DELAY = "urn:xmpp:delay";
+
+    public static final String URN_XMPP_CSI = "urn:xmpp:csi:0";
+
+    public static final String URN_XMPP_SM_3 = "urn:xmpp:sm:3";
     
     public static final String URN_XMPP_XBOSH = "urn:xmpp:xbosh";
 
     public static final String URN_XMPP_FEATURES_DIALBACK = "urn:xmpp:features:dialback";
 
+    public static final String URN_XMPP_FEATURES_ROSTERVER = "urn:xmpp:features:rosterver";
+
     public static final String VCARD_TEMP = "vcard-temp";
 
     public static final String JABBER_ORG_FEATURES_IQ_REGISTER = "http://jabber.org/features/iq-register";
@@ -106,6 +112,8 @@ public class NamespaceURIs {
 
     public static final String XEP0065_SOCKS5_BYTESTREAMS = "http://jabber.org/protocol/bytestreams";
 
+    public static final String XEP0085_CHAT_STATES = "http://jabber.org/protocol/chatstates";
+
     public static final String XEP0124_BOSH = "http://jabber.org/protocol/httpbind";
     
     public static final String XEP0133_SERVICE_ADMIN = "http://jabber.org/protocol/admin";
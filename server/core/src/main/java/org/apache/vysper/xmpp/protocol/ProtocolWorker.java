@@ -33,9 +33,11 @@ import org.apache.vysper.xmpp.protocol.worker.EndOrClosedProtocolWorker;
 import org.apache.vysper.xmpp.protocol.worker.InitiatedProtocolWorker;
 import org.apache.vysper.xmpp.protocol.worker.StartedProtocolWorker;
 import org.apache.vysper.xmpp.protocol.worker.UnconnectedProtocolWorker;
+import org.apache.vysper.xmpp.server.HandledStanzaListener;
 import org.apache.vysper.xmpp.server.ServerRuntimeContext;
 import org.apache.vysper.xmpp.server.SessionContext;
 import org.apache.vysper.xmpp.server.SessionState;
+import org.apache.vysper.xmpp.server.metrics.StageLatencies;
 import org.apache.vysper.xmpp.server.response.ServerErrorResponses;
 import org.apache.vysper.xmpp.stanza.Stanza;
 import org.apache.vysper.xmpp.stanza.StanzaBuilder;
@@ -166,8 +168,10 @@ public class ProtocolWorker implements StanzaProcessor {
                     
                 } //todo: should we verify whether from.domain == initiating domain?
 
-                // rewrite namespace
-                stanza = StanzaBuilder.rewriteNamespace(stanza, NamespaceURIs.JABBER_SERVER, NamespaceURIs.JABBER_CLIENT);
+                // rewrite namespace. the view is wrapped once here, so that handlers down the line
+                // get the core stanza without wrapping again
+                stanza = XMPPCoreStanza.getWrapper(StanzaBuilder.rewriteNamespace(stanza, NamespaceURIs.JABBER_SERVER,
+                        NamespaceURIs.JABBER_CLIENT));
             }                
         } else {
             // make sure that 'from' (if present) matches the bare authorized entity
@@ -204,12 +208,18 @@ public class ProtocolWorker implements StanzaProcessor {
             }
         }
         
+        long handlerStarted = System.nanoTime();
         try {
             stateAwareProtocolWorker.processStanza(sessionContext, sessionStateHolder, stanza, stanzaHandler);
         } catch (Exception e) {
             logger.error("error executing handler {} with stanza {}", stanzaHandler.getClass().getName(),
                     DenseStanzaLogRenderer.render(stanza));
             logger.debug("error executing handler exception: ", e);
+        } finally {
+            StageLatencies.getInstance().record(StageLatencies.Stage.HANDLER, stanza, handlerStarted);
+            for (HandledStanzaListener listener : serverRuntimeContext.getHandledStanzaListeners()) {
+                listener.stanzaHandled(sessionContext, stanza);
+            }
         }
     }
 
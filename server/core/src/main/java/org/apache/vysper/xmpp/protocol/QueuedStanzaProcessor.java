@@ -20,16 +20,26 @@
 package org.apache.vysper.xmpp.protocol;
 
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.vysper.xmpp.server.ServerRuntimeContext;
 import org.apache.vysper.xmpp.server.SessionContext;
+import org.apache.vysper.xmpp.server.resources.StanzaLane;
+import org.apache.vysper.xmpp.server.resources.StanzaLaneQueue;
+import org.apache.vysper.xmpp.server.resources.StanzaLaneTask;
+import org.apache.vysper.xmpp.server.response.ServerErrorResponses;
+import org.apache.vysper.xmpp.stanza.PresenceStanza;
 import org.apache.vysper.xmpp.stanza.Stanza;
+import org.apache.vysper.xmpp.stanza.StanzaErrorCondition;
+import org.apache.vysper.xmpp.stanza.StanzaErrorType;
+import org.apache.vysper.xmpp.stanza.XMPPCoreStanza;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
- * stanza processor, acts as a 'stage' by using a ThreadPoolExecutor
+ * stanza processor, acts as a 'stage' by using a ThreadPoolExecutor with a {@link StanzaLaneQueue}
  * 
  * TODO: make thread pool configuration managable
  *
@@ -37,6 +47,8 @@ import org.apache.vysper.xmpp.stanza.Stanza;
  */
 public class QueuedStanzaProcessor implements StanzaProcessor {
 
+    final Logger logger = LoggerFactory.getLogger(QueuedStanzaProcessor.class);
+
     private final ResponseWriter responseWriter = new ResponseWriter();
 
     protected ExecutorService executor;
@@ -44,17 +56,41 @@ public class QueuedStanzaProcessor implements StanzaProcessor {
     protected StanzaProcessor stanzaProcessor;
 
     public QueuedStanzaProcessor(StanzaProcessor stanzaProcessor) {
-        int coreThreadCount = 36;
-        int maxThreadCount = 72;
+        // the pool does not grow beyond its core size, otherwise it would add threads instead of
+        // applying the lane capacities
+        int threadCount = 36;
         int threadTimeoutSeconds = 2 * 60 * 1000;
-        this.executor = new ThreadPoolExecutor(coreThreadCount, maxThreadCount, threadTimeoutSeconds, TimeUnit.SECONDS,
-                new LinkedBlockingQueue<Runnable>());
+        ThreadPoolExecutor threadPoolExecutor = new ThreadPoolExecutor(threadCount, threadCount,
+                threadTimeoutSeconds, TimeUnit.SECONDS, new StanzaLaneQueue());
+        threadPoolExecutor.allowCoreThreadTimeOut(true);
+        this.executor = threadPoolExecutor;
         this.stanzaProcessor = stanzaProcessor;
     }
 
     public void processStanza(ServerRuntimeContext serverRuntimeContext, SessionContext sessionContext, Stanza stanza,
             SessionStateHolder sessionStateHolder) {
-        executor.submit(new StanzaProcessorUnitOfWork(sessionContext, stanza, sessionStateHolder));
+        StanzaLane lane = StanzaLane.classify(stanza);
+        try {
+            executor.execute(new StanzaLaneTask<Object>(new StanzaProcessorUnitOfWork(sessionContext, stanza,
+                    sessionStateHolder), lane));
+        } catch (RejectedExecutionException e) {
+            handleRejectedStanza(sessionContext, stanza, lane);
+        }
+    }
+
+    /**
+     * IQs and messages are answered with a 'service-unavailable' error of type 'wait', everything else is dropped
+     */
+    protected void handleRejectedStanza(SessionContext sessionContext, Stanza stanza, StanzaLane lane) {
+        XMPPCoreStanza coreStanza = XMPPCoreStanza.getWrapper(stanza);
+        if (coreStanza == null || PresenceStanza.isOfType(stanza) || "error".equals(coreStanza.getType())) {
+            logger.warn("dropping stanza, the " + lane + " lane is full");
+            return;
+        }
+        logger.warn("rejecting stanza, the " + lane + " lane is full");
+        Stanza errorStanza = ServerErrorResponses.getStanzaError(StanzaErrorCondition.SERVICE_UNAVAILABLE,
+                coreStanza, StanzaErrorType.WAIT, "server is busy", null, null);
+        sessionContext.getResponseWriter().write(errorStanza);
     }
 
     public void processTLSEstablished(SessionContext sessionContext, SessionStateHolder sessionStateHolder) {
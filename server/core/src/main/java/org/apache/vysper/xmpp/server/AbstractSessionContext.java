@@ -20,18 +20,23 @@
 
 package org.apache.vysper.xmpp.server;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import org.apache.vysper.xmpp.addressing.Entity;
+import org.apache.vysper.xmpp.addressing.EntityImpl;
 import org.apache.vysper.xmpp.protocol.ProtocolException;
 import org.apache.vysper.xmpp.protocol.SessionStateHolder;
 import org.apache.vysper.xmpp.protocol.StanzaHandler;
 import org.apache.vysper.xmpp.stanza.Stanza;
 import org.apache.vysper.xmpp.stanza.StanzaBuilder;
+import org.apache.vysper.xmpp.state.presence.LatestPresenceCache;
 import org.apache.vysper.xmpp.state.resourcebinding.BindException;
-import org.apache.vysper.xmpp.uuid.JVMBuiltinUUIDGenerator;
+import org.apache.vysper.xmpp.uuid.MonotonicIdGenerator;
 import org.apache.vysper.xmpp.uuid.UUIDGenerator;
+import org.apache.vysper.xmpp.writer.DelegatingStanzaWriter;
 import org.apache.vysper.xmpp.writer.StanzaWriter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -51,7 +56,7 @@ public abstract class AbstractSessionContext implements SessionContext {
 
     protected String xmlLang;
 
-    protected UUIDGenerator sequence = new JVMBuiltinUUIDGenerator();
+    protected UUIDGenerator sequence = new MonotonicIdGenerator();
 
     protected SessionStateHolder sessionStateHolder; // be secure: do not provide this via a getter or other means
 
@@ -63,6 +68,8 @@ public abstract class AbstractSessionContext implements SessionContext {
 
     private Map<String, Object> attributeMap = new HashMap<String, Object>();
 
+    private volatile StanzaWriter responseWriterFilter;
+
     public AbstractSessionContext(ServerRuntimeContext serverRuntimeContext, SessionStateHolder sessionStateHolder) {
         this.serverRuntimeContext = serverRuntimeContext;
         sessionId = serverRuntimeContext.getNextSessionId();
@@ -131,6 +138,13 @@ public abstract class AbstractSessionContext implements SessionContext {
     }
 
     public void endSession(SessionTerminationCause terminationCause) {
+        for (SessionEndListener listener : serverRuntimeContext.getSessionEndListeners()) {
+            if (listener.sessionEnding(this, terminationCause)) {
+                // kept, for example for stream resumption, the listener ends the session later on
+                return;
+            }
+        }
+
         StanzaWriter stanzaWriter = getResponseWriter();
         stanzaWriter.close();
 
@@ -160,13 +174,74 @@ public abstract class AbstractSessionContext implements SessionContext {
 //            throw new IllegalArgumentException("endSession() not implemented for termination cause = " + terminationCause);
         }
 
+        // drop cached presences for all resources of this session, regardless of the termination cause
+        Entity initiatingEntity = getInitiatingEntity();
+        LatestPresenceCache presenceCache = serverRuntimeContext.getPresenceCache();
+        List<String> sessionResources = serverRuntimeContext.getResourceRegistry().getResourcesForSession(this);
+        List<Entity> resources = new ArrayList<Entity>();
+        if (initiatingEntity != null && sessionResources != null) {
+            for (String resourceId : sessionResources) {
+                Entity resource = new EntityImpl(initiatingEntity.getBareJID(), resourceId);
+                if (presenceCache != null) presenceCache.remove(resource);
+                resources.add(resource);
+            }
+        }
+
         // unbind session and remove from registry
         serverRuntimeContext.getResourceRegistry().unbindSession(this);
+
+        for (SessionEndListener listener : serverRuntimeContext.getSessionEndListeners()) {
+            listener.sessionEnded(this, resources);
+        }
+
         sessionStateHolder.setState(SessionState.CLOSED); // no more traffic
 
         // TODO close underlying transport (TCP socket)
     }
 
+    /**
+     * installs a writer which all stanzas written to this session pass through before reaching the transport.
+     * the filter is expected to forward to the writer returned by {@link #getResponseWriter()} at the time
+     * the filter was installed. passing null removes the filter.
+     * further filters are chained by inserting them below a {@link DelegatingStanzaWriter}, or by installing
+     * a filter forwarding to the current one.
+     */
+    public void setResponseWriterFilter(StanzaWriter responseWriterFilter) {
+        this.responseWriterFilter = responseWriterFilter;
+    }
+
+    public StanzaWriter getResponseWriterFilter() {
+        return responseWriterFilter;
+    }
+
+    /**
+     * to be used by implementations of {@link #getResponseWriter()}
+     * @param transportWriter the writer directly writing to the underlying transport
+     * @return the installed filter, or the transport writer, if no filter is installed
+     */
+    protected StanzaWriter filterResponseWriter(StanzaWriter transportWriter) {
+        StanzaWriter filter = responseWriterFilter;
+        return filter == null ? transportWriter : filter;
+    }
+
+    /**
+     * hands this session's bound resources and attributes over to a successor session of the same entity,
+     * and closes this session without ending it. used when a stream is resumed on a new connection.
+     */
+    public void handOver(AbstractSessionContext successor) {
+        if (successor.getInitiatingEntity() == null) {
+            successor.setInitiatingEntity(getInitiatingEntity());
+        }
+        Map<String, Object> attributes = new HashMap<String, Object>(attributeMap);
+        for (Map.Entry<String, Object> attribute : attributes.entrySet()) {
+            if (successor.getAttribute(attribute.getKey()) == null) {
+                successor.putAttribute(attribute.getKey(), attribute.getValue());
+            }
+        }
+        serverRuntimeContext.getResourceRegistry().transferSession(this, successor);
+        sessionStateHolder.setState(SessionState.CLOSED);
+    }
+
     public Entity getServerJID() {
         return serverEntity;
     }
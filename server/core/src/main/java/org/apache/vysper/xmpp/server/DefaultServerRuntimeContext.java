@@ -25,6 +25,7 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import javax.net.ssl.SSLContext;
 
@@ -49,10 +50,10 @@ import org.apache.vysper.xmpp.server.s2s.DefaultXMPPServerConnectorRegistry;
 import org.apache.vysper.xmpp.server.s2s.XMPPServerConnectorRegistry;
 import org.apache.vysper.xmpp.stanza.Stanza;
 import org.apache.vysper.xmpp.state.presence.LatestPresenceCache;
-import org.apache.vysper.xmpp.state.presence.SimplePresenceCache;
+import org.apache.vysper.xmpp.state.presence.ConcurrentPresenceCache;
 import org.apache.vysper.xmpp.state.resourcebinding.DefaultResourceRegistry;
 import org.apache.vysper.xmpp.state.resourcebinding.ResourceRegistry;
-import org.apache.vysper.xmpp.uuid.JVMBuiltinUUIDGenerator;
+import org.apache.vysper.xmpp.uuid.ThreadLocalSecureRandomUUIDGenerator;
 import org.apache.vysper.xmpp.uuid.UUIDGenerator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -90,7 +91,7 @@ public class DefaultServerRuntimeContext implements ServerRuntimeContext, Module
     /**
      * generates unique session ids
      */
-    private UUIDGenerator sessionIdGenerator = new JVMBuiltinUUIDGenerator();
+    private UUIDGenerator sessionIdGenerator = new ThreadLocalSecureRandomUUIDGenerator();
 
     // basic services the server is using...
 
@@ -112,7 +113,7 @@ public class DefaultServerRuntimeContext implements ServerRuntimeContext, Module
     /**
      * holds the latest presence stanza for a resource
      */
-    private LatestPresenceCache presenceCache = new SimplePresenceCache();
+    private LatestPresenceCache presenceCache = new ConcurrentPresenceCache();
 
     private XMPPServerConnectorRegistry serverConnectorRegistry = new DefaultXMPPServerConnectorRegistry(this);
     
@@ -127,6 +128,10 @@ public class DefaultServerRuntimeContext implements ServerRuntimeContext, Module
     final private Map<String, ServerRuntimeContextService> serverRuntimeContextServiceMap = new HashMap<String, ServerRuntimeContextService>();
 
     private List<Module> modules = new ArrayList<Module>();
+
+    private final List<SessionEndListener> sessionEndListeners = new CopyOnWriteArrayList<SessionEndListener>();
+
+    private final List<HandledStanzaListener> handledStanzaListeners = new CopyOnWriteArrayList<HandledStanzaListener>();
     
     /**
      * map of all registered components, index by the subdomain they are registered for
@@ -259,6 +264,32 @@ public class DefaultServerRuntimeContext implements ServerRuntimeContext, Module
         return serverRuntimeContextServiceMap.get(name);
     }
 
+    /**
+     * adds a listener which is told about ending sessions. listeners are called in the order they were added.
+     */
+    public void registerSessionEndListener(SessionEndListener listener) {
+        if (listener == null)
+            throw new IllegalStateException("listener must not be null");
+        sessionEndListeners.add(listener);
+    }
+
+    public List<SessionEndListener> getSessionEndListeners() {
+        return sessionEndListeners;
+    }
+
+    /**
+     * adds a listener which is told about every stanza a session has received and handled
+     */
+    public void registerHandledStanzaListener(HandledStanzaListener listener) {
+        if (listener == null)
+            throw new IllegalStateException("listener must not be null");
+        handledStanzaListeners.add(listener);
+    }
+
+    public List<HandledStanzaListener> getHandledStanzaListeners() {
+        return handledStanzaListeners;
+    }
+
     /**
      * adds a whole set of storage providers at once to the system.
      * @param storageProviderRegistry
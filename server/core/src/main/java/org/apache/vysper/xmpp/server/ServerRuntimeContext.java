@@ -70,6 +70,14 @@ public interface ServerRuntimeContext {
 
     ServerRuntimeContextService getServerRuntimeContextService(String name);
 
+    void registerSessionEndListener(SessionEndListener listener);
+
+    List<SessionEndListener> getSessionEndListeners();
+
+    void registerHandledStanzaListener(HandledStanzaListener listener);
+
+    List<HandledStanzaListener> getHandledStanzaListeners();
+
     StorageProvider getStorageProvider(Class<? extends StorageProvider> clazz);
 
     void registerComponent(Component component);
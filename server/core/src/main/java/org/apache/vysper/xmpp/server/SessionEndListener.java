@@ -0,0 +1,48 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+
+package org.apache.vysper.xmpp.server;
+
+import java.util.List;
+
+import org.apache.vysper.xmpp.addressing.Entity;
+import org.apache.vysper.xmpp.server.SessionContext.SessionTerminationCause;
+
+/**
+ * is told when a session ends, so that modules can drop or hand on the state they keep for the session. 
+ * listeners are registered with the {@link ServerRuntimeContext}, usually when a module is initialized.
+ *
+ * @author The Apache MINA Project (dev@mina.apache.org)
+ */
+public interface SessionEndListener {
+
+    /**
+     * called before anything is done to end the session
+     * @return true, if the listener keeps the session for now, like for stream resumption. then the session is 
+     * not ended and no further listeners are called, the listener has to end the session later on.
+     */
+    public boolean sessionEnding(AbstractSessionContext sessionContext, SessionTerminationCause terminationCause);
+
+    /**
+     * called after unavailable presence has been sent and the session's resources have been unbound
+     * @param resources the full JIDs of the resources which had been bound to the session
+     */
+    public void sessionEnded(AbstractSessionContext sessionContext, List<Entity> resources);
+}
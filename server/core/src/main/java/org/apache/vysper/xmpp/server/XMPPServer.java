@@ -27,6 +27,7 @@ import java.util.ArrayList;
 import java.util.List;
 
 import org.apache.vysper.storage.StorageProviderRegistry;
+import org.apache.vysper.storage.logstanzas.AsyncLogStorageProvider;
 import org.apache.vysper.storage.logstanzas.LogStorageProvider;
 import org.apache.vysper.xmpp.addressing.EntityImpl;
 import org.apache.vysper.xmpp.authentication.AccountManagement;
@@ -40,9 +41,14 @@ import org.apache.vysper.xmpp.delivery.inbound.DeliveringExternalInboundStanzaRe
 import org.apache.vysper.xmpp.delivery.inbound.DeliveringInternalInboundStanzaRelay;
 import org.apache.vysper.xmpp.modules.Module;
 import org.apache.vysper.xmpp.modules.extension.xep0160_offline_storage.OfflineStorageProvider;
+import org.apache.vysper.xmpp.modules.extension.xep0184_message_receipts.MessageDeliveryReceiptsStorageProvider;
+import org.apache.vysper.xmpp.modules.extension.xep0184_message_receipts.ReceiptConfirmationAggregator;
+import org.apache.vysper.xmpp.modules.extension.xep0184_message_receipts.RecentMessageIndex;
 import org.apache.vysper.xmpp.modules.roster.RosterModule;
 import org.apache.vysper.xmpp.modules.servicediscovery.ServiceDiscoveryModule;
 import org.apache.vysper.xmpp.protocol.HandlerDictionary;
+import org.apache.vysper.xmpp.server.metrics.StageLatencies;
+import org.apache.vysper.xmpp.server.resources.StanzaExecutor;
 import org.apache.vysper.xmpp.state.resourcebinding.DefaultResourceRegistry;
 import org.apache.vysper.xmpp.state.resourcebinding.ResourceRegistry;
 
@@ -71,6 +77,8 @@ public class XMPPServer {
     
     private StanzaRelayBroker stanzaRelayBroker;
 
+    private ReceiptConfirmationAggregator receiptConfirmationAggregator;
+
     private InputStream tlsCertificate;
 
     private String tlsCertificatePassword;
@@ -85,6 +93,11 @@ public class XMPPServer {
     
     private int maxExternalRelayThreads = -1;
 
+    private int logStorageBufferCapacity = AsyncLogStorageProvider.DEFAULT_CAPACITY;
+
+    private AsyncLogStorageProvider.OverflowPolicy logStorageOverflowPolicy =
+            AsyncLogStorageProvider.OverflowPolicy.BLOCK;
+
     public XMPPServer(String domain) {
         this.serverDomain = domain;
 
@@ -127,6 +140,21 @@ public class XMPPServer {
         this.maxExternalRelayThreads = maxExternalRelayThreads;
     }
 
+    /**
+     * @param logStorageBufferCapacity number of relayed stanzas which may wait for being logged
+     */
+    public void setLogStorageBufferCapacity(int logStorageBufferCapacity) {
+        this.logStorageBufferCapacity = logStorageBufferCapacity;
+    }
+
+    /**
+     * @param logStorageOverflowPolicy what happens to a relayed stanza when the log buffer is full. 
+     * by default, the relaying thread waits for the stanza to fit in, DROP does not log it.
+     */
+    public void setLogStorageOverflowPolicy(AsyncLogStorageProvider.OverflowPolicy logStorageOverflowPolicy) {
+        this.logStorageOverflowPolicy = logStorageOverflowPolicy;
+    }
+
     public void addEndpoint(Endpoint endpoint) {
         endpoints.add(endpoint);
     }
@@ -170,6 +198,10 @@ public class XMPPServer {
         serverRuntimeContext.setStorageProviderRegistry(storageProviderRegistry);
         serverRuntimeContext.setTlsContextFactory(tlsContextFactory);
 
+        // replays and other work resulting in stanzas is queued like relayed stanzas. registered before the 
+        // modules are initialized, so that they can use it
+        serverRuntimeContext.registerServerRuntimeContextService(new StanzaExecutor(internalStanzaRelay.getExecutor()));
+
         for(Module module : initialModules) {
             serverRuntimeContext.addModule(module);
         }
@@ -180,7 +212,31 @@ public class XMPPServer {
 
         final LogStorageProvider logStorageProvider =
                 (LogStorageProvider) this.storageProviderRegistry.retrieve(LogStorageProvider.class);
-        if (logStorageProvider != null) internalStanzaRelay.setLogStorageProvider(logStorageProvider);
+        if (logStorageProvider instanceof AsyncLogStorageProvider) {
+            internalStanzaRelay.setLogStorageProvider(logStorageProvider);
+        } else if (logStorageProvider != null) {
+            // logging must not add to the latency of relaying
+            AsyncLogStorageProvider asyncLogStorageProvider = new AsyncLogStorageProvider(logStorageProvider,
+                    logStorageBufferCapacity, 1);
+            asyncLogStorageProvider.setOverflowPolicy(logStorageOverflowPolicy);
+            internalStanzaRelay.setLogStorageProvider(asyncLogStorageProvider);
+        }
+
+        final MessageDeliveryReceiptsStorageProvider receiptsStorageProvider =
+                (MessageDeliveryReceiptsStorageProvider) this.storageProviderRegistry.retrieve(MessageDeliveryReceiptsStorageProvider.class);
+        if (receiptsStorageProvider != null) {
+            // receipts are confirmed in batches, not one storage write each
+            receiptConfirmationAggregator = new ReceiptConfirmationAggregator(receiptsStorageProvider);
+            receiptConfirmationAggregator.registerMetrics(StageLatencies.getInstance());
+            serverRuntimeContext.registerServerRuntimeContextService(receiptConfirmationAggregator);
+        }
+
+        // receipts mostly refer to a message relayed lately, whichever message handler relayed it
+        RecentMessageIndex recentMessageIndex = new RecentMessageIndex();
+        recentMessageIndex.registerMetrics(StageLatencies.getInstance());
+        serverRuntimeContext.registerServerRuntimeContextService(recentMessageIndex);
+
+        StageLatencies.registerMBean();
 
         if (endpoints.size() == 0) throw new IllegalStateException("server must have at least one endpoint");
         for (Endpoint endpoint : endpoints) {
@@ -203,6 +259,9 @@ public class XMPPServer {
         }
         
         stanzaRelayBroker.stop();
+        if (receiptConfirmationAggregator != null) {
+            receiptConfirmationAggregator.stop();
+        }
         serverRuntimeContext.getServerConnectorRegistry().close();
     }
 
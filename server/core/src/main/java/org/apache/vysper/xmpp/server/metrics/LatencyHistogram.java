@@ -0,0 +1,133 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.vysper.xmpp.server.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * a lock-free latency histogram with log-linear buckets, as known from HdrHistogram:
+ * every power of two range is split into 16 linear sub-buckets, so that each recorded value is 
+ * represented with a relative error of at most 1/16, over the full range of long values.
+ * recording is a bucket index computation plus a few atomic increments.
+ * <br/>
+ * all values are in microseconds.
+ *
+ * @author The Apache MINA Project (dev@mina.apache.org)
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private static final int BUCKET_COUNT = (Long.SIZE - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+
+    private final AtomicLong totalCount = new AtomicLong();
+
+    private final AtomicLong totalMicros = new AtomicLong();
+
+    private final AtomicLong maxMicros = new AtomicLong();
+
+    static int bucketIndex(long value) {
+        if (value < SUB_BUCKETS)
+            return value < 0 ? 0 : (int) value;
+        int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    /**
+     * @return the highest value which is counted in the bucket with the given index
+     */
+    static long highestValueInBucket(int index) {
+        if (index < SUB_BUCKETS)
+            return index;
+        int shift = index / SUB_BUCKETS - 1;
+        long lowest = ((long) (SUB_BUCKETS + index % SUB_BUCKETS)) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    public void recordMicros(long micros) {
+        if (micros < 0)
+            micros = 0;
+        counts.incrementAndGet(bucketIndex(micros));
+        totalCount.incrementAndGet();
+        totalMicros.addAndGet(micros);
+        long max = maxMicros.get();
+        while (micros > max && !maxMicros.compareAndSet(max, micros)) {
+            max = maxMicros.get();
+        }
+    }
+
+    public void recordNanos(long nanos) {
+        recordMicros(nanos / 1000);
+    }
+
+    public long getCount() {
+        return totalCount.get();
+    }
+
+    public long getMaxMicros() {
+        return maxMicros.get();
+    }
+
+    public long getMeanMicros() {
+        long count = totalCount.get();
+        return count == 0 ? 0 : totalMicros.get() / count;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the value below or at which the given percentage of all recorded values lie, or 0 if nothing has been 
+     * recorded yet
+     */
+    public long getValueAtPercentile(double percentile) {
+        long count = totalCount.get();
+        if (count == 0)
+            return 0;
+        long target = (long) Math.ceil(Math.min(percentile, 100.0) / 100.0 * count);
+        if (target < 1)
+            target = 1;
+        long cumulated = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            cumulated += counts.get(i);
+            if (cumulated >= target) {
+                return Math.min(highestValueInBucket(i), maxMicros.get());
+            }
+        }
+        // concurrent recording, the total count is ahead of the buckets
+        return maxMicros.get();
+    }
+
+    /**
+     * clears all counts. values recorded concurrently may get lost.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts.set(i, 0);
+        }
+        totalCount.set(0);
+        totalMicros.set(0);
+        maxMicros.set(0);
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.vysper.xmpp.server.metrics;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.vysper.xmpp.stanza.Stanza;
+import org.apache.vysper.xmpp.stanza.XMPPCoreStanza;
+import org.apache.vysper.xmpp.stanza.XMPPCoreStanzaKind;
+import org.slf4j.LoggerFactory;
+
+/**
+ * latency histograms for the stages a stanza passes between socket read and socket write, per stanza kind.
+ * <br/>
+ * the stages are spread over codec, protocol worker and relays, which do not share a context object, 
+ * so there is one instance for the whole VM, see {@link #getInstance()}.
+ * <br/>
+ * other components report their counters and histograms along with the stages, by registering them 
+ * under a name of their own, see {@link #registerGauge(String, Gauge)} and 
+ * {@link #registerHistogram(String, LatencyHistogram)}.
+ *
+ * @author The Apache MINA Project (dev@mina.apache.org)
+ */
+public class StageLatencies implements StageLatenciesMBean {
+
+    public static final String OBJECT_NAME = "org.apache.vysper:type=StageLatencies";
+
+    /**
+     * a value of another component, read when reported
+     */
+    public interface Gauge {
+        long getValue();
+    }
+
+    public enum Stage {
+        /** from the start tag being read until the stanza is completely parsed */
+        DECODE,
+        /** from the stanza being decoded until the protocol worker picks it up */
+        DISPATCH,
+        /** executing the stanza handler */
+        HANDLER,
+        /** waiting in the internal relay's queue */
+        RELAY_QUEUE,
+        /** delivering to the receiving sessions or offline storage */
+        RELAY_DELIVERY,
+        /** rendering the stanza into bytes */
+        ENCODE,
+        /** from the stanza being handed to the session until it is completely written to the socket */
+        WRITE
+    }
+
+    private static final XMPPCoreStanzaKind[] KINDS = XMPPCoreStanzaKind.values();
+
+    private static final int OTHER = KINDS.length;
+
+    private static final StageLatencies INSTANCE = new StageLatencies();
+
+    public static StageLatencies getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * makes the VM-wide instance available via JMX, if not already done
+     */
+    public static void registerMBean() {
+        try {
+            MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName(OBJECT_NAME);
+            if (!mBeanServer.isRegistered(objectName)) {
+                mBeanServer.registerMBean(INSTANCE, objectName);
+            }
+        } catch (Exception e) {
+            LoggerFactory.getLogger(StageLatencies.class).warn("could not register stage latencies MBean", e);
+        }
+    }
+
+    private final LatencyHistogram[][] histograms;
+
+    private final Map<String, Gauge> gauges = new ConcurrentSkipListMap<String, Gauge>();
+
+    private final Map<String, LatencyHistogram> namedHistograms =
+            new ConcurrentSkipListMap<String, LatencyHistogram>();
+
+    public StageLatencies() {
+        histograms = new LatencyHistogram[Stage.values().length][KINDS.length + 1];
+        for (LatencyHistogram[] stageHistograms : histograms) {
+            for (int i = 0; i < stageHistograms.length; i++) {
+                stageHistograms[i] = new LatencyHistogram();
+            }
+        }
+    }
+
+    /**
+     * reports the gauge under the given name, replacing a gauge registered before under the same name
+     */
+    public void registerGauge(String name, Gauge gauge) {
+        gauges.put(name, gauge);
+    }
+
+    /**
+     * reports the histogram under the given name, replacing a histogram registered before under the same name
+     */
+    public void registerHistogram(String name, LatencyHistogram histogram) {
+        namedHistograms.put(name, histogram);
+    }
+
+    /**
+     * records the time elapsed since the given start time
+     * @param startNanos as taken from System.nanoTime()
+     */
+    public void record(Stage stage, Stanza stanza, long startNanos) {
+        histograms[stage.ordinal()][kindIndex(stanza)].recordNanos(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * @param kind NULL for everything else than IQ, message and presence
+     */
+    public LatencyHistogram getHistogram(Stage stage, XMPPCoreStanzaKind kind) {
+        return histograms[stage.ordinal()][kind == null ? OTHER : kind.ordinal()];
+    }
+
+    private static int kindIndex(Stanza stanza) {
+        if (stanza instanceof XMPPCoreStanza)
+            return ((XMPPCoreStanza) stanza).getKind().ordinal();
+        XMPPCoreStanzaKind kind = stanza == null ? null : XMPPCoreStanzaKind.valueOfNameOrNull(stanza.getName());
+        return kind == null ? OTHER : kind.ordinal();
+    }
+
+    private static String kindName(int kindIndex) {
+        return kindIndex == OTHER ? "other" : KINDS[kindIndex].value();
+    }
+
+    private LatencyHistogram getHistogram(String stage, String kind) {
+        return getHistogram(Stage.valueOf(stage.toUpperCase()), XMPPCoreStanzaKind.valueOfNameOrNull(kind));
+    }
+
+    public void writeReport(Writer writer) throws IOException {
+        for (Stage stage : Stage.values()) {
+            for (int kindIndex = 0; kindIndex <= OTHER; kindIndex++) {
+                LatencyHistogram histogram = histograms[stage.ordinal()][kindIndex];
+                if (histogram.getCount() == 0)
+                    continue;
+                writer.append(stage.name().toLowerCase()).append(" ").append(kindName(kindIndex)).append(":\t")
+                        .append(formatHistogram(histogram)).append("\n");
+            }
+        }
+        for (Map.Entry<String, LatencyHistogram> entry : namedHistograms.entrySet()) {
+            if (entry.getValue().getCount() == 0)
+                continue;
+            writer.append(entry.getKey()).append(":\t").append(formatHistogram(entry.getValue())).append("\n");
+        }
+        for (Map.Entry<String, Gauge> entry : gauges.entrySet()) {
+            writer.append(entry.getKey()).append("=\t").append(Long.toString(entry.getValue().getValue()))
+                    .append("\n");
+        }
+    }
+
+    public static String formatHistogram(LatencyHistogram histogram) {
+        return "count=" + histogram.getCount() + " mean=" + histogram.getMeanMicros() + "us p50="
+                + histogram.getValueAtPercentile(50) + "us p90=" + histogram.getValueAtPercentile(90) + "us p99="
+                + histogram.getValueAtPercentile(99) + "us max=" + histogram.getMaxMicros() + "us";
+    }
+
+    public String getReport() {
+        StringWriter writer = new StringWriter();
+        try {
+            writeReport(writer);
+        } catch (IOException e) {
+            // not thrown by StringWriter
+        }
+        return writer.toString();
+    }
+
+    public long getCount(String stage, String kind) {
+        return getHistogram(stage, kind).getCount();
+    }
+
+    public long getMeanMicros(String stage, String kind) {
+        return getHistogram(stage, kind).getMeanMicros();
+    }
+
+    public long getPercentileMicros(String stage, String kind, double percentile) {
+        return getHistogram(stage, kind).getValueAtPercentile(percentile);
+    }
+
+    public long getMaxMicros(String stage, String kind) {
+        return getHistogram(stage, kind).getMaxMicros();
+    }
+
+    public String[] getGaugeNames() {
+        return gauges.keySet().toArray(new String[0]);
+    }
+
+    public long getGauge(String name) {
+        Gauge gauge = gauges.get(name);
+        if (gauge == null)
+            throw new IllegalArgumentException("no gauge named " + name);
+        return gauge.getValue();
+    }
+
+    /**
+     * resets the stage histograms, registered histograms and gauges belong to their components
+     */
+    public void reset() {
+        for (LatencyHistogram[] stageHistograms : histograms) {
+            for (LatencyHistogram histogram : stageHistograms) {
+                histogram.reset();
+            }
+        }
+    }
+}
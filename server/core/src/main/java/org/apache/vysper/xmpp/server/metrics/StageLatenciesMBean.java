@@ -0,0 +1,52 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.vysper.xmpp.server.metrics;
+
+/**
+ * JMX view on {@link StageLatencies}.
+ * stages are named as in {@link StageLatencies.Stage}, kinds are 'iq', 'message', 'presence' or 'other'.
+ *
+ * @author The Apache MINA Project (dev@mina.apache.org)
+ */
+public interface StageLatenciesMBean {
+
+    /**
+     * @return count, mean, p50, p90, p99 and max for all stages and kinds which have been recorded, 
+     * followed by the registered histograms and gauges
+     */
+    String getReport();
+
+    long getCount(String stage, String kind);
+
+    long getMeanMicros(String stage, String kind);
+
+    long getPercentileMicros(String stage, String kind, double percentile);
+
+    long getMaxMicros(String stage, String kind);
+
+    /**
+     * @return names of the gauges registered by other components
+     */
+    String[] getGaugeNames();
+
+    long getGauge(String name);
+
+    void reset();
+}
@@ -0,0 +1,178 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.vysper.xmpp.server.resources;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * the background threads of a component which hands work over to a slow resource, like a storage, in batches.
+ * <br/>
+ * the threads are started on first use and run {@link #flushRound()} over and over. a round which fails is 
+ * logged and does not end its thread. {@link #stop(long)} lets every thread leave after its current round, 
+ * and runs {@link #flushRemaining()} once all of them have left. this way, the remaining work is never written 
+ * concurrently with a round. if a thread is still busy when stop times out, the last thread to leave writes it.
+ *
+ * @author The Apache MINA Project (dev@mina.apache.org)
+ */
+public abstract class BackgroundFlusher {
+
+    final Logger logger = LoggerFactory.getLogger(BackgroundFlusher.class);
+
+    private final String name;
+
+    private final int threadCount;
+
+    private final List<Thread> threads = new ArrayList<Thread>();
+
+    private final AtomicInteger running = new AtomicInteger();
+
+    // guarded by 'threads'
+    private boolean started = false;
+
+    private volatile boolean stopped = false;
+
+    private volatile boolean stopTimedOut = false;
+
+    private final AtomicBoolean remainingFlushed = new AtomicBoolean(false);
+
+    protected BackgroundFlusher(String name, int threadCount) {
+        if (threadCount < 1) {
+            throw new IllegalArgumentException("at least one flusher thread is required");
+        }
+        this.name = name;
+        this.threadCount = threadCount;
+    }
+
+    /**
+     * writes whatever is due. blocks while there is nothing to write, but wakes up on {@link #wakeUp()}.
+     */
+    protected abstract void flushRound() throws InterruptedException;
+
+    /**
+     * writes everything not yet written, after all threads have left. called only once.
+     */
+    protected abstract void flushRemaining();
+
+    /**
+     * makes threads blocking in {@link #flushRound()} return, called after the flusher has been flagged as stopped
+     */
+    protected void wakeUp() {
+        // nothing to do by default, rounds have to poll the stopped flag
+    }
+
+    /**
+     * starts the threads, if they are not yet running and the flusher has not been stopped
+     */
+    public void start() {
+        synchronized (threads) {
+            if (started || stopped) {
+                return;
+            }
+            started = true;
+            running.set(threadCount);
+            for (int i = 0; i < threadCount; i++) {
+                Thread thread = new Thread(new Worker(), threadCount == 1 ? name : name + "-" + i);
+                thread.setDaemon(true);
+                threads.add(thread);
+                thread.start();
+            }
+        }
+    }
+
+    public boolean isStopped() {
+        return stopped;
+    }
+
+    /**
+     * stops the threads and writes the remaining work
+     * @return TRUE, if the remaining work has been written. FALSE, if a thread is still busy after the timeout, 
+     * it then writes the remaining work when it is done.
+     */
+    public boolean stop(long timeoutMillis) {
+        List<Thread> toJoin;
+        synchronized (threads) {
+            if (stopped) {
+                return true;
+            }
+            stopped = true;
+            toJoin = new ArrayList<Thread>(threads);
+        }
+        if (!toJoin.isEmpty()) {
+            wakeUp();
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            try {
+                for (Thread thread : toJoin) {
+                    thread.join(Math.max(1, deadline - System.currentTimeMillis()));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (running.get() > 0) {
+                stopTimedOut = true;
+                // the last thread might have left just now, before seeing the flag
+                if (running.get() > 0) {
+                    logger.warn("{} is still busy after {}ms, it writes the remaining work when done", name,
+                            timeoutMillis);
+                    return false;
+                }
+            }
+        }
+        runFlushRemaining();
+        return true;
+    }
+
+    private void runFlushRemaining() {
+        if (!remainingFlushed.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            flushRemaining();
+        } catch (Throwable e) {
+            logger.error(name + " failed to write the remaining work", e);
+        }
+    }
+
+    private class Worker implements Runnable {
+
+        public void run() {
+            try {
+                while (!stopped) {
+                    try {
+                        flushRound();
+                    } catch (InterruptedException e) {
+                        // only stopping ends the thread
+                    } catch (Throwable e) {
+                        logger.error(name + " failed, continuing", e);
+                    }
+                }
+            } finally {
+                if (running.decrementAndGet() == 0 && stopTimedOut) {
+                    runFlushRemaining();
+                }
+            }
+        }
+    }
+}
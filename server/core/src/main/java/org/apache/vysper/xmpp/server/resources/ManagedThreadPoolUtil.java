@@ -38,4 +38,15 @@ public class ManagedThreadPoolUtil {
         writer.append("queued=\t\t").append(Integer.toString(pool.getQueue().size())).append("\n");
         writer.append("completed=\t").append(Long.toString(pool.getCompletedTaskCount())).append("\n");
     }
+
+    public static void writeLaneInfo(Writer writer, StanzaLaneQueue queue) throws IOException {
+        for (StanzaLane lane : StanzaLane.values()) {
+            writer.append("lane ").append(lane.name()).append("=\t").append("queued=")
+                    .append(Integer.toString(queue.size(lane))).append(" load=")
+                    .append(Long.toString(queue.getLoad(lane))).append(" capacity=")
+                    .append(Integer.toString(queue.getCapacity(lane))).append(" weight=")
+                    .append(Integer.toString(queue.getWeight(lane))).append(" rejected=")
+                    .append(Long.toString(queue.getRejectedCount(lane))).append("\n");
+        }
+    }
 }
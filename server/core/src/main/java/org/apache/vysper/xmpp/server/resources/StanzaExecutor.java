@@ -0,0 +1,60 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.vysper.xmpp.server.resources;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.vysper.xmpp.modules.ServerRuntimeContextService;
+
+/**
+ * runs work resulting in stanzas being written or relayed, such as replaying offline stanzas, on the internal 
+ * relay's stage instead of on the thread which triggered it (which might be a network I/O thread). 
+ * the work is queued in a {@link StanzaLane} and charged against its capacity like relayed stanzas. 
+ * there is one per server, registered as a service.
+ *
+ * @author The Apache MINA Project (dev@mina.apache.org)
+ */
+public class StanzaExecutor implements ServerRuntimeContextService {
+
+    public static final String SERVICE_NAME = "stanzaExecutor";
+
+    private final Executor executor;
+
+    public StanzaExecutor(Executor executor) {
+        if (executor == null)
+            throw new IllegalArgumentException("executor must not be null");
+        this.executor = executor;
+    }
+
+    /**
+     * @param task the work to run
+     * @param lane the lane to queue the work in
+     * @param cost the number of stanzas the work accounts for
+     * @throws RejectedExecutionException if the lane is full
+     */
+    public void execute(Runnable task, StanzaLane lane, int cost) {
+        executor.execute(new StanzaLaneTask<Object>(task, lane, cost));
+    }
+
+    public String getServiceName() {
+        return SERVICE_NAME;
+    }
+}
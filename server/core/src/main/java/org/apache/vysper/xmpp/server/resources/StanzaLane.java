@@ -0,0 +1,91 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.vysper.xmpp.server.resources;
+
+import org.apache.vysper.xmpp.protocol.NamespaceURIs;
+import org.apache.vysper.xmpp.stanza.Stanza;
+import org.apache.vysper.xmpp.stanza.XMPPCoreStanza;
+import org.apache.vysper.xmpp.stanza.XMPPCoreStanzaKind;
+
+/**
+ * traffic classes for stanzas queued in a processing stage, see {@link StanzaLaneQueue}.
+ * each lane has a default weight (share of dequeues when all lanes are backlogged) and a 
+ * default capacity (queued stanzas, beyond which new stanzas of the lane are rejected) and a 
+ * default capacity per recipient, for relays which queue stanzas per recipient.
+ * chat messages and IQs are never dropped by default, presence and pubsub event bursts are bounded.
+ *
+ * @author The Apache MINA Project (dev@mina.apache.org)
+ */
+public enum StanzaLane {
+
+    IQ(4, Integer.MAX_VALUE, 1000), 
+    MESSAGE(8, Integer.MAX_VALUE, 10000), 
+    PRESENCE(2, 100000, 1000), 
+    PUBSUB_EVENT(1, 50000, 1000);
+
+    private final int defaultWeight;
+
+    private final int defaultCapacity;
+
+    private final int defaultRecipientCapacity;
+
+    StanzaLane(int defaultWeight, int defaultCapacity, int defaultRecipientCapacity) {
+        this.defaultWeight = defaultWeight;
+        this.defaultCapacity = defaultCapacity;
+        this.defaultRecipientCapacity = defaultRecipientCapacity;
+    }
+
+    public int getDefaultWeight() {
+        return defaultWeight;
+    }
+
+    public int getDefaultCapacity() {
+        return defaultCapacity;
+    }
+
+    /**
+     * @return the number of stanzas of this lane which may be pending for a single recipient. other than the 
+     * lane capacity, this is bounded for all lanes, so that one slow or flooded recipient cannot pile up 
+     * stanzas without limit
+     */
+    public int getDefaultRecipientCapacity() {
+        return defaultRecipientCapacity;
+    }
+
+    /**
+     * messages carrying a pubsub event are put into their own lane, so that notification fan-out 
+     * does not delay chat messages. everything which is not a core stanza goes with the IQs.
+     */
+    public static StanzaLane classify(Stanza stanza) {
+        XMPPCoreStanza coreStanza = XMPPCoreStanza.getWrapper(stanza);
+        if (coreStanza == null)
+            return IQ;
+        XMPPCoreStanzaKind kind = coreStanza.getKind();
+        if (kind == XMPPCoreStanzaKind.PRESENCE) {
+            return PRESENCE;
+        } else if (kind == XMPPCoreStanzaKind.MESSAGE) {
+            if (!coreStanza.getInnerElementsNamed("event", NamespaceURIs.XEP0060_PUBSUB_EVENT).isEmpty()) {
+                return PUBSUB_EVENT;
+            }
+            return MESSAGE;
+        }
+        return IQ;
+    }
+}
@@ -0,0 +1,377 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.vysper.xmpp.server.resources;
+
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * work queue for a stage's ThreadPoolExecutor, keeping a separate FIFO per {@link StanzaLane}.
+ * <br/>
+ * lanes are served weighted-fair (deficit round robin): a lane hands out up to its weight in tasks in a row 
+ * before the next non-empty lane is served. this way a burst in one lane (typically presence) does only delay 
+ * the other lanes by a bounded amount, instead of queueing them behind the complete burst.
+ * <br/>
+ * each lane has its own capacity, counted in stanzas: every task is charged its {@link StanzaLaneTask#getCost()}.
+ * offering to a full lane fails, which makes the executor reject the task. an empty lane accepts a task even if
+ * it costs more than the capacity, otherwise such a task could never be run.
+ * tasks which are not {@link StanzaLaneTask}s are put into the default lane and cost 1.
+ *
+ * @author The Apache MINA Project (dev@mina.apache.org)
+ */
+public class StanzaLaneQueue extends AbstractQueue<Runnable> implements BlockingQueue<Runnable> {
+
+    private static final StanzaLane[] LANES = StanzaLane.values();
+
+    private final StanzaLane defaultLane;
+
+    private final List<ArrayDeque<Runnable>> queues = new ArrayList<ArrayDeque<Runnable>>(LANES.length);
+
+    private final int[] weights = new int[LANES.length];
+
+    private final int[] capacities = new int[LANES.length];
+
+    private final long[] charged = new long[LANES.length];
+
+    private final long[] rejected = new long[LANES.length];
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition notEmpty = lock.newCondition();
+
+    private int count = 0;
+
+    private int currentLane = 0;
+
+    private int credit = 0;
+
+    public StanzaLaneQueue() {
+        this(StanzaLane.IQ);
+    }
+
+    public StanzaLaneQueue(StanzaLane defaultLane) {
+        this.defaultLane = defaultLane;
+        for (StanzaLane lane : LANES) {
+            queues.add(new ArrayDeque<Runnable>());
+            weights[lane.ordinal()] = lane.getDefaultWeight();
+            capacities[lane.ordinal()] = lane.getDefaultCapacity();
+        }
+        credit = weights[currentLane];
+    }
+
+    public void setWeight(StanzaLane lane, int weight) {
+        if (weight < 1)
+            throw new IllegalArgumentException("lane weight must be at least 1");
+        lock.lock();
+        try {
+            weights[lane.ordinal()] = weight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getWeight(StanzaLane lane) {
+        lock.lock();
+        try {
+            return weights[lane.ordinal()];
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void setCapacity(StanzaLane lane, int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("lane capacity must be at least 1");
+        lock.lock();
+        try {
+            capacities[lane.ordinal()] = capacity;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getCapacity(StanzaLane lane) {
+        lock.lock();
+        try {
+            return capacities[lane.ordinal()];
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return number of tasks currently queued in the given lane
+     */
+    public int size(StanzaLane lane) {
+        lock.lock();
+        try {
+            return queues.get(lane.ordinal()).size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return number of stanzas currently charged against the given lane's capacity
+     */
+    public long getLoad(StanzaLane lane) {
+        lock.lock();
+        try {
+            return charged[lane.ordinal()];
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return number of tasks which could not be queued because the given lane was full 
+     */
+    public long getRejectedCount(StanzaLane lane) {
+        lock.lock();
+        try {
+            return rejected[lane.ordinal()];
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    protected StanzaLane laneOf(Runnable runnable) {
+        if (runnable instanceof StanzaLaneTask) {
+            StanzaLane lane = ((StanzaLaneTask<?>) runnable).getLane();
+            if (lane != null)
+                return lane;
+        }
+        return defaultLane;
+    }
+
+    protected int costOf(Runnable runnable) {
+        if (runnable instanceof StanzaLaneTask)
+            return ((StanzaLaneTask<?>) runnable).getCost();
+        return 1;
+    }
+
+    public boolean offer(Runnable runnable) {
+        if (runnable == null)
+            throw new NullPointerException();
+        int lane = laneOf(runnable).ordinal();
+        int cost = costOf(runnable);
+        lock.lock();
+        try {
+            ArrayDeque<Runnable> queue = queues.get(lane);
+            if (!queue.isEmpty() && charged[lane] + cost > capacities[lane]) {
+                rejected[lane]++;
+                return false;
+            }
+            queue.addLast(runnable);
+            charged[lane] += cost;
+            count++;
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean offer(Runnable runnable, long timeout, TimeUnit unit) throws InterruptedException {
+        // lanes are not waited upon to become free, a full lane is a full lane
+        return offer(runnable);
+    }
+
+    public void put(Runnable runnable) throws InterruptedException {
+        if (!offer(runnable))
+            throw new IllegalStateException("lane " + laneOf(runnable) + " is full");
+    }
+
+    /**
+     * must be called with the lock held and count > 0
+     */
+    private Runnable dequeue() {
+        for (int i = 0; i <= LANES.length; i++) {
+            ArrayDeque<Runnable> queue = queues.get(currentLane);
+            if (credit > 0 && !queue.isEmpty()) {
+                credit--;
+                count--;
+                Runnable runnable = queue.pollFirst();
+                charged[currentLane] -= costOf(runnable);
+                return runnable;
+            }
+            currentLane = (currentLane + 1) % LANES.length;
+            credit = weights[currentLane];
+        }
+        throw new IllegalStateException("inconsistent lane queue count " + count);
+    }
+
+    public Runnable poll() {
+        lock.lock();
+        try {
+            return count == 0 ? null : dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public Runnable poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (count == 0) {
+                if (nanos <= 0)
+                    return null;
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public Runnable take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (count == 0) {
+                notEmpty.await();
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public Runnable peek() {
+        lock.lock();
+        try {
+            if (count == 0)
+                return null;
+            for (int i = 0; i < LANES.length; i++) {
+                Runnable head = queues.get((currentLane + i) % LANES.length).peekFirst();
+                if (head != null)
+                    return head;
+            }
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (!(o instanceof Runnable))
+            return false;
+        lock.lock();
+        try {
+            int lane = laneOf((Runnable) o).ordinal();
+            if (queues.get(lane).remove(o)) {
+                charged[lane] -= costOf((Runnable) o);
+                count--;
+                return true;
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int remainingCapacity() {
+        lock.lock();
+        try {
+            long remaining = 0;
+            for (int i = 0; i < LANES.length; i++) {
+                remaining += Math.max(0, capacities[i] - charged[i]);
+            }
+            return (int) Math.min(remaining, Integer.MAX_VALUE);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int drainTo(Collection<? super Runnable> collection) {
+        return drainTo(collection, Integer.MAX_VALUE);
+    }
+
+    public int drainTo(Collection<? super Runnable> collection, int maxElements) {
+        if (collection == this)
+            throw new IllegalArgumentException();
+        lock.lock();
+        try {
+            int drained = 0;
+            while (count > 0 && drained < maxElements) {
+                collection.add(dequeue());
+                drained++;
+            }
+            return drained;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * iterates over a snapshot of all queued tasks, lane by lane 
+     */
+    @Override
+    public Iterator<Runnable> iterator() {
+        lock.lock();
+        try {
+            final List<Runnable> snapshot = new ArrayList<Runnable>(count);
+            for (ArrayDeque<Runnable> queue : queues) {
+                snapshot.addAll(queue);
+            }
+            final Iterator<Runnable> snapshotIterator = snapshot.iterator();
+            return new Iterator<Runnable>() {
+                private Runnable last = null;
+
+                public boolean hasNext() {
+                    return snapshotIterator.hasNext();
+                }
+
+                public Runnable next() {
+                    last = snapshotIterator.next();
+                    return last;
+                }
+
+                public void remove() {
+                    if (last == null)
+                        throw new IllegalStateException();
+                    StanzaLaneQueue.this.remove(last);
+                    last = null;
+                }
+            };
+        } finally {
+            lock.unlock();
+        }
+    }
+}
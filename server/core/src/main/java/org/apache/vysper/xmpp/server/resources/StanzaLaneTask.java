@@ -0,0 +1,67 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.vysper.xmpp.server.resources;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+
+/**
+ * a task which knows the {@link StanzaLane} it has to be queued in.
+ * <br/>
+ * a task carrying more than one stanza (for example a fan-out to many receivers) states so in its cost, which is 
+ * what is charged against the lane's capacity.
+ *
+ * @author The Apache MINA Project (dev@mina.apache.org)
+ */
+public class StanzaLaneTask<V> extends FutureTask<V> {
+
+    private final StanzaLane lane;
+
+    private final int cost;
+
+    public StanzaLaneTask(Callable<V> callable, StanzaLane lane) {
+        super(callable);
+        this.lane = lane;
+        this.cost = 1;
+    }
+
+    public StanzaLaneTask(Runnable runnable, StanzaLane lane) {
+        this(runnable, lane, 1);
+    }
+
+    public StanzaLaneTask(Runnable runnable, StanzaLane lane, int cost) {
+        super(runnable, null);
+        if (cost < 1)
+            throw new IllegalArgumentException("task cost must be at least 1");
+        this.lane = lane;
+        this.cost = cost;
+    }
+
+    public StanzaLane getLane() {
+        return lane;
+    }
+
+    /**
+     * @return number of stanzas this task accounts for in its lane
+     */
+    public int getCost() {
+        return cost;
+    }
+}
@@ -27,8 +27,13 @@ import org.apache.vysper.xml.fragment.XMLElementBuilder;
 import org.apache.vysper.xmpp.addressing.Entity;
 import org.apache.vysper.xmpp.authentication.SASLMechanism;
 import org.apache.vysper.xmpp.modules.extension.xep0077_inbandreg.InBandRegistrationModule;
+import org.apache.vysper.xmpp.modules.extension.xep0198_stream_management.StreamManagementModule;
+import org.apache.vysper.xmpp.modules.extension.xep0352_csi.ClientStateIndicationModule;
+import org.apache.vysper.xmpp.modules.roster.persistence.AbstractRosterManager;
+import org.apache.vysper.xmpp.modules.roster.persistence.RosterManager;
 import org.apache.vysper.xmpp.protocol.NamespaceURIs;
 import org.apache.vysper.xmpp.server.ServerFeatures;
+import org.apache.vysper.xmpp.server.ServerRuntimeContext;
 import org.apache.vysper.xmpp.server.SessionContext;
 import org.apache.vysper.xmpp.server.SessionState;
 import org.apache.vysper.xmpp.server.XMPPVersion;
@@ -54,7 +59,7 @@ public class ServerResponses {
                     .getServerFeatures().getAuthenticationMethods(), sessionContext);
         else if (sessionContext.getState() == SessionState.AUTHENTICATED) {
             sessionContext.setIsReopeningXMLStream();
-            innerFeatureStanza = getFeaturesForSession();
+            innerFeatureStanza = getFeaturesForSession(sessionContext);
         } else {
             throw new IllegalStateException("unsupported state for responding with stream opener");
         }
@@ -169,6 +174,10 @@ public class ServerResponses {
     }
 
     public Stanza getFeaturesForSession() {
+        return getFeaturesForSession(null);
+    }
+
+    public Stanza getFeaturesForSession(SessionContext sessionContext) {
         StanzaBuilder stanzaBuilder = startFeatureStanza();
 
         stanzaBuilder.startInnerElement("bind", NamespaceURIs.URN_IETF_PARAMS_XML_NS_XMPP_BIND).startInnerElement(
@@ -180,6 +189,19 @@ public class ServerResponses {
                 .startInnerElement("required", NamespaceURIs.URN_IETF_PARAMS_XML_NS_XMPP_SESSION).endInnerElement();
         stanzaBuilder.endInnerElement();
 
+        if (sessionContext != null) {
+            ServerRuntimeContext serverRuntimeContext = sessionContext.getServerRuntimeContext();
+            if (serverRuntimeContext.getModule(StreamManagementModule.class) != null) {
+                stanzaBuilder.startInnerElement("sm", NamespaceURIs.URN_XMPP_SM_3).endInnerElement();
+            }
+            if (serverRuntimeContext.getModule(ClientStateIndicationModule.class) != null) {
+                stanzaBuilder.startInnerElement("csi", NamespaceURIs.URN_XMPP_CSI).endInnerElement();
+            }
+            if (serverRuntimeContext.getStorageProvider(RosterManager.class) instanceof AbstractRosterManager) {
+                stanzaBuilder.startInnerElement("ver", NamespaceURIs.URN_XMPP_FEATURES_ROSTERVER).endInnerElement();
+            }
+        }
+
         return stanzaBuilder.build();
     }
 
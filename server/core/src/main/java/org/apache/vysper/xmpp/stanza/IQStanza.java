@@ -20,6 +20,12 @@
 
 package org.apache.vysper.xmpp.stanza;
 
+import java.util.List;
+import java.util.Map;
+
+import org.apache.vysper.xml.fragment.Attribute;
+import org.apache.vysper.xml.fragment.XMLFragment;
+
 /**
  * info/query stanza (request/response)
  *
@@ -29,7 +35,17 @@ public class IQStanza extends XMPPCoreStanza {
 
     public static final String NAME = "iq";
 
+    /**
+     * resolved on first access, the stanza is immutable after being built
+     */
+    private IQStanzaType iqType;
+
+    private volatile boolean iqTypeResolved = false;
+
     public static boolean isOfType(Stanza stanza) {
+        // typed stanzas don't need the name comparison
+        if (stanza instanceof XMPPCoreStanza)
+            return stanza instanceof IQStanza;
         return isOfType(stanza, NAME);
     }
 
@@ -39,16 +55,28 @@ public class IQStanza extends XMPPCoreStanza {
             throw new IllegalArgumentException("only IQ stanza is allowed here");
     }
 
+    IQStanza(String namespaceURI, String namespacePrefix, List<Attribute> attributes, List<XMLFragment> innerFragments,
+            Map<String, String> namespaces) {
+        super(namespaceURI, NAME, namespacePrefix, attributes, innerFragments, namespaces);
+    }
+
     @Override
     public String getName() {
         return NAME;
     }
 
+    @Override
+    public XMPPCoreStanzaKind getKind() {
+        return XMPPCoreStanzaKind.IQ;
+    }
+
     public IQStanzaType getIQType() {
-        String type = getType();
-        if (type == null)
-            return null;
-        return IQStanzaType.valueOfOrNull(type);
+        if (!iqTypeResolved) {
+            String type = getType();
+            iqType = type == null ? null : IQStanzaType.valueOfOrNull(type);
+            iqTypeResolved = true;
+        }
+        return iqType;
     }
 
 }
@@ -23,10 +23,13 @@ package org.apache.vysper.xmpp.stanza;
 import static org.apache.vysper.compliance.SpecCompliant.ComplianceCoverage.COMPLETE;
 import static org.apache.vysper.compliance.SpecCompliant.ComplianceStatus.FINISHED;
 
+import java.util.List;
 import java.util.Map;
 
 import org.apache.vysper.compliance.SpecCompliant;
+import org.apache.vysper.xml.fragment.Attribute;
 import org.apache.vysper.xml.fragment.XMLElement;
+import org.apache.vysper.xml.fragment.XMLFragment;
 import org.apache.vysper.xml.fragment.XMLSemanticError;
 
 /**
@@ -39,7 +42,15 @@ public class MessageStanza extends XMPPCoreStanza {
 
     public static final String NAME = "message";
 
+    /**
+     * resolved on first access, the stanza is immutable after being built
+     */
+    private volatile MessageStanzaType messageType;
+
     public static boolean isOfType(Stanza stanza) {
+        // typed stanzas don't need the name comparison
+        if (stanza instanceof XMPPCoreStanza)
+            return stanza instanceof MessageStanza;
         return isOfType(stanza, NAME);
     }
 
@@ -49,14 +60,26 @@ public class MessageStanza extends XMPPCoreStanza {
             throw new IllegalArgumentException("only 'message' stanza is allowed here");
     }
 
+    MessageStanza(String namespaceURI, String namespacePrefix, List<Attribute> attributes, List<XMLFragment> innerFragments,
+            Map<String, String> namespaces) {
+        super(namespaceURI, NAME, namespacePrefix, attributes, innerFragments, namespaces);
+    }
+
     @Override
     public String getName() {
         return NAME;
     }
 
+    @Override
+    public XMPPCoreStanzaKind getKind() {
+        return XMPPCoreStanzaKind.MESSAGE;
+    }
+
     public MessageStanzaType getMessageType() {
-        String type = getType();
-        return MessageStanzaType.valueOfWithDefault(type);
+        if (messageType == null) {
+            messageType = MessageStanzaType.valueOfWithDefault(getType());
+        }
+        return messageType;
     }
 
     /**
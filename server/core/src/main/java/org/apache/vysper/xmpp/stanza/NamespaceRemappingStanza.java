@@ -0,0 +1,77 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+
+package org.apache.vysper.xmpp.stanza;
+
+import java.util.List;
+import java.util.Map;
+
+import org.apache.vysper.xml.fragment.NamespaceRemappingXMLElement;
+import org.apache.vysper.xml.fragment.XMLFragment;
+
+/**
+ * a stanza view which translates one namespace URI into another on access, without copying the
+ * underlying element tree. used to move stanzas between 'jabber:server' and 'jabber:client'.
+ * 
+ * @see NamespaceRemappingXMLElement
+ * @author The Apache MINA Project (dev@mina.apache.org)
+ */
+public class NamespaceRemappingStanza extends Stanza {
+
+    private final String fromNamespaceURI;
+
+    private final String toNamespaceURI;
+
+    private List<XMLFragment> remappedInnerFragments;
+
+    private Map<String, String> remappedNamespaces;
+
+    public NamespaceRemappingStanza(Stanza original, String fromNamespaceURI, String toNamespaceURI) {
+        super(original);
+        this.fromNamespaceURI = fromNamespaceURI;
+        this.toNamespaceURI = toNamespaceURI;
+    }
+
+    /**
+     * the stanza itself is always put into the target namespace, regardless of its original one
+     */
+    @Override
+    public String getNamespaceURI() {
+        return toNamespaceURI;
+    }
+
+    @Override
+    public List<XMLFragment> getInnerFragments() {
+        if (remappedInnerFragments == null) {
+            remappedInnerFragments = NamespaceRemappingXMLElement.remapInnerFragments(super.getInnerFragments(),
+                    fromNamespaceURI, toNamespaceURI);
+        }
+        return remappedInnerFragments;
+    }
+
+    @Override
+    public Map<String, String> getDeclaredNamespaces() {
+        if (remappedNamespaces == null) {
+            remappedNamespaces = NamespaceRemappingXMLElement.remapDeclaredNamespaces(super.getDeclaredNamespaces(),
+                    fromNamespaceURI, toNamespaceURI);
+        }
+        return remappedNamespaces;
+    }
+}
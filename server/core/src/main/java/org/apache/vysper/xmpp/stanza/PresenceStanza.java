@@ -20,9 +20,12 @@
 
 package org.apache.vysper.xmpp.stanza;
 
+import java.util.List;
 import java.util.Map;
 
+import org.apache.vysper.xml.fragment.Attribute;
 import org.apache.vysper.xml.fragment.XMLElement;
+import org.apache.vysper.xml.fragment.XMLFragment;
 import org.apache.vysper.xml.fragment.XMLSemanticError;
 
 /**
@@ -33,7 +36,17 @@ import org.apache.vysper.xml.fragment.XMLSemanticError;
 public class PresenceStanza extends XMPPCoreStanza {
     public static final String NAME = "presence";
 
+    /**
+     * resolved on first access, the stanza is immutable after being built
+     */
+    private PresenceStanzaType presenceType;
+
+    private volatile boolean presenceTypeResolved = false;
+
     public static boolean isOfType(Stanza stanza) {
+        // typed stanzas don't need the name comparison
+        if (stanza instanceof XMPPCoreStanza)
+            return stanza instanceof PresenceStanza;
         return isOfType(stanza, NAME);
     }
 
@@ -43,16 +56,28 @@ public class PresenceStanza extends XMPPCoreStanza {
             throw new IllegalArgumentException("only 'presence' stanza is allowed here");
     }
 
+    PresenceStanza(String namespaceURI, String namespacePrefix, List<Attribute> attributes, List<XMLFragment> innerFragments,
+            Map<String, String> namespaces) {
+        super(namespaceURI, NAME, namespacePrefix, attributes, innerFragments, namespaces);
+    }
+
     @Override
     public String getName() {
         return NAME;
     }
 
+    @Override
+    public XMPPCoreStanzaKind getKind() {
+        return XMPPCoreStanzaKind.PRESENCE;
+    }
+
     public PresenceStanzaType getPresenceType() {
-        String type = getType();
-        if (type == null)
-            return null;
-        return PresenceStanzaType.valueOfOrNull(type);
+        if (!presenceTypeResolved) {
+            String type = getType();
+            presenceType = type == null ? null : PresenceStanzaType.valueOfOrNull(type);
+            presenceTypeResolved = true;
+        }
+        return presenceType;
     }
 
     /**
@@ -60,6 +60,13 @@ public class Stanza extends XMLElement {
         super(namespaceURI, name, namespacePrefix, attributes, innerFragments, namespaces);
     }
 
+    /**
+     * shallow copy, see {@link XMLElement#XMLElement(XMLElement)}
+     */
+    protected Stanza(Stanza original) {
+        super(original);
+    }
+
     public Entity getTo() {
         return parseEntityAttribute("to");
     }
@@ -29,7 +29,6 @@ import org.apache.vysper.xml.fragment.AbstractXMLElementBuilder;
 import org.apache.vysper.xml.fragment.Attribute;
 import org.apache.vysper.xml.fragment.XMLElement;
 import org.apache.vysper.xml.fragment.XMLFragment;
-import org.apache.vysper.xml.fragment.XMLText;
 import org.apache.vysper.xmpp.addressing.Entity;
 import org.apache.vysper.xmpp.addressing.EntityImpl;
 import org.apache.vysper.xmpp.protocol.NamespaceURIs;
@@ -145,11 +144,66 @@ public class StanzaBuilder extends AbstractXMLElementBuilder<StanzaBuilder, Stan
         StanzaBuilder stanzaBuilder = new StanzaBuilder(original.getName(), original.getNamespaceURI(), original
                 .getNamespacePrefix());
 
+        for (Attribute attribute : replaceAttributes(original.getAttributes(), replacingAttributes)) {
+            stanzaBuilder.addAttribute(attribute);
+        }
+
+        // copy over immutable inner elements
+        if (deep && original.getInnerElements() != null) {
+            List<XMLElement> innerElements = original.getInnerElements();
+            for (XMLElement innerElement : innerElements) {
+                stanzaBuilder.addPreparedElement(innerElement);
+            }
+        }
+
+        return stanzaBuilder;
+    }
+
+    /**
+     * creates a new stanza which shares name, namespace and all inner fragments with the given original, but replaces
+     * the top-level attributes with the values from the given attribute list, as {@link #createClone} does.
+     * no element tree is copied, so the cost does not depend on the size of the stanza. core stanzas stay typed.
+     * @param original
+     * @param replacingAttributes - replacements and additions for the original's attributes
+     * @return the derived stanza
+     */
+    public static Stanza createAttributeOverlay(Stanza original, List<Attribute> replacingAttributes) {
+        return createAttributeOverlay(original, replacingAttributes, null);
+    }
+
+    /**
+     * like {@link #createAttributeOverlay(Stanza, List)}, but the derived stanza gets the given inner fragments 
+     * instead of the original's
+     * @param innerFragments - if NULL, the original's inner fragments are shared
+     */
+    public static Stanza createAttributeOverlay(Stanza original, List<Attribute> replacingAttributes,
+            List<XMLFragment> innerFragments) {
+        List<Attribute> attributes = replaceAttributes(original.getAttributes(), replacingAttributes);
+        if (innerFragments == null)
+            innerFragments = original.getInnerFragments();
+
+        XMPPCoreStanzaKind kind = original instanceof XMPPCoreStanza ? ((XMPPCoreStanza) original).getKind()
+                : XMPPCoreStanzaKind.valueOfNameOrNull(original.getName());
+        if (kind != null) {
+            return XMPPCoreStanza.create(kind, original.getNamespaceURI(), original.getNamespacePrefix(), attributes,
+                    innerFragments, original.getDeclaredNamespaces());
+        }
+        return new Stanza(original.getNamespaceURI(), original.getName(), original.getNamespacePrefix(), attributes,
+                innerFragments, original.getDeclaredNamespaces());
+    }
+
+    /**
+     * @return the original attributes, where attributes with the same name as one of the replacing attributes are
+     * replaced, followed by all replacing attributes which have not been used as a replacement
+     */
+    private static List<Attribute> replaceAttributes(List<Attribute> originalAttributes,
+            List<Attribute> replacingAttributes) {
         List<Attribute> replacingAttributesCopy = new ArrayList<Attribute>();
         if (replacingAttributes != null)
             replacingAttributesCopy.addAll(replacingAttributes);
 
-        List<Attribute> originalAttributes = original.getAttributes();
+        List<Attribute> attributes = new ArrayList<Attribute>(originalAttributes.size()
+                + replacingAttributesCopy.size());
         for (Attribute originalAttribute : originalAttributes) {
             boolean wasReplaced = false;
             for (Iterator<Attribute> it = replacingAttributesCopy.iterator(); it.hasNext();) {
@@ -157,30 +211,22 @@ public class StanzaBuilder extends AbstractXMLElementBuilder<StanzaBuilder, Stan
                 if (replacingAttribute == null)
                     continue;
                 if (replacingAttribute.getName().equals(originalAttribute.getName())) {
-                    stanzaBuilder.addAttribute(replacingAttribute);
+                    attributes.add(replacingAttribute);
                     it.remove(); // this has been processed
                     wasReplaced = true;
                     break;
                 }
             }
             if (!wasReplaced)
-                stanzaBuilder.addAttribute(originalAttribute);
+                attributes.add(originalAttribute);
         }
 
         // add remaining replacements, which are actually additions
         for (Attribute additionalAttribute : replacingAttributesCopy) {
-            stanzaBuilder.addAttribute(additionalAttribute);
+            if (additionalAttribute != null)
+                attributes.add(additionalAttribute);
         }
-
-        // copy over immutable inner elements
-        if (deep && original.getInnerElements() != null) {
-            List<XMLElement> innerElements = original.getInnerElements();
-            for (XMLElement innerElement : innerElements) {
-                stanzaBuilder.addPreparedElement(innerElement);
-            }
-        }
-
-        return stanzaBuilder;
+        return attributes;
     }
 
     /**
@@ -192,17 +238,21 @@ public class StanzaBuilder extends AbstractXMLElementBuilder<StanzaBuilder, Stan
      * @return stanza builder with to and from replaced
      */
     public static StanzaBuilder createForward(Stanza original, Entity from, Entity to) {
+        return createClone(original, true, createToFromReplacements(from, to));
+    }
+
+    private static List<Attribute> createToFromReplacements(Entity from, Entity to) {
         List<Attribute> toFromReplacements = new ArrayList<Attribute>(2);
         if (to != null)
             toFromReplacements.add(new Attribute("to", to.getFullQualifiedName()));
         if (from != null)
             toFromReplacements.add(new Attribute("from", from.getFullQualifiedName()));
-
-        return createClone(original, true, toFromReplacements);
+        return toFromReplacements;
     }
 
     /**
-     * convenience shortcut for {@link #createForward(Stanza, org.apache.vysper.xmpp.addressing.Entity, org.apache.vysper.xmpp.addressing.Entity)}
+     * convenience shortcut for {@link #createForward(Stanza, org.apache.vysper.xmpp.addressing.Entity, org.apache.vysper.xmpp.addressing.Entity)},
+     * but returns an attribute overlay on the original instead of a copy, see {@link #createAttributeOverlay(Stanza, List)} 
      * 
      * @param original 
      * @param from if NOT NULL, the new 'from'
@@ -210,45 +260,18 @@ public class StanzaBuilder extends AbstractXMLElementBuilder<StanzaBuilder, Stan
      * @return forward stanza
      */
     public static Stanza createForwardStanza(Stanza original, Entity from, Entity to) {
-        return createForward(original, from, to).build();
+        return createAttributeOverlay(original, createToFromReplacements(from, to));
     }
     
+    /**
+     * puts the stanza into another namespace, together with all inner elements which are in the 'from' namespace.
+     * inner elements in other namespaces are not changed, nor are the elements contained within them.
+     * the stanza is not rebuilt, a remapping view on the original is returned instead.
+     * 
+     * @see NamespaceRemappingStanza
+     */
     public static Stanza rewriteNamespace(Stanza stanza, String fromNamespaceUri, String toNamespaceUri) {
-        StanzaBuilder builder = new StanzaBuilder(stanza.getName(), toNamespaceUri, stanza.getNamespacePrefix());
-        for(Attribute attribute : stanza.getAttributes()) {
-            builder.addAttribute(attribute);
-        }
-        
-        for(XMLFragment fragment : stanza.getInnerFragments()) {
-            if(fragment instanceof XMLElement) {
-                rewriteNamespace((XMLElement) fragment, builder, fromNamespaceUri, toNamespaceUri);
-            } else {
-                // XMLText
-                builder.addText(((XMLText)fragment).getText());
-            }
-        }
-        
-        return builder.build();
-    }
-    
-    private static void rewriteNamespace(XMLElement element, StanzaBuilder builder, String fromNamespaceUri, String toNamespaceUri) {
-        if(fromNamespaceUri.equals(element.getNamespaceURI())) {
-            builder.startInnerElement(element.getName(), toNamespaceUri);
-            for(Attribute attribute : element.getAttributes()) {
-                builder.addAttribute(attribute);
-            }
-            for(XMLFragment fragment : element.getInnerFragments()) {
-                if(fragment instanceof XMLElement) {
-                    rewriteNamespace((XMLElement) fragment, builder, fromNamespaceUri, toNamespaceUri);
-                } else {
-                    // XMLText
-                    builder.addText(((XMLText)fragment).getText());
-                }
-            }
-            builder.endInnerElement();
-        } else {
-            builder.addPreparedElement(element);
-        }
+        return new NamespaceRemappingStanza(stanza, fromNamespaceUri, toNamespaceUri);
     }
 
     static class ElementStruct {
@@ -285,8 +308,14 @@ public class StanzaBuilder extends AbstractXMLElementBuilder<StanzaBuilder, Stan
 
     protected XMLElement createElement(String namespaceURI, String name, String namespacePrefix,
             List<Attribute> attributes, Map<String, String> namespaces, List<XMLFragment> innerFragments) {
-        // when creating the first element, make it a stanza
+        // when creating the first element, make it a stanza.
+        // iq, message and presence are directly created as typed core stanzas, this saves wrapping them later on
         if (currentElement == null) {
+            XMPPCoreStanzaKind kind = XMPPCoreStanzaKind.valueOfNameOrNull(name);
+            if (kind != null) {
+                return XMPPCoreStanza.create(kind, namespaceURI, namespacePrefix, attributes, innerFragments,
+                        namespaces);
+            }
             return new Stanza(namespaceURI, name, namespacePrefix, attributes, innerFragments, namespaces);
         } else {
             return new XMLElement(namespaceURI, name, namespacePrefix, attributes, innerFragments, namespaces);
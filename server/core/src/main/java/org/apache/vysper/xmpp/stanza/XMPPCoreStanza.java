@@ -20,7 +20,12 @@
 
 package org.apache.vysper.xmpp.stanza;
 
+import java.util.List;
+import java.util.Map;
+
+import org.apache.vysper.xml.fragment.Attribute;
 import org.apache.vysper.xml.fragment.XMLElementVerifier;
+import org.apache.vysper.xml.fragment.XMLFragment;
 import org.apache.vysper.xmpp.protocol.NamespaceURIs;
 
 /**
@@ -35,16 +40,46 @@ abstract public class XMPPCoreStanza extends Stanza {
         return nameMatches;
     }
 
+    /**
+     * stanzas coming from the decoder or from a {@link StanzaBuilder} are already typed, so for them this is a cast.
+     * all other stanzas are wrapped into a new core stanza object.
+     * @return the core stanza, or NULL if the given stanza is not an iq, message or presence
+     */
     public static XMPPCoreStanza getWrapper(Stanza stanza) {
         if (stanza instanceof XMPPCoreStanza)
             return (XMPPCoreStanza) stanza;
-        if (IQStanza.isOfType(stanza))
+        if (stanza == null)
+            return null;
+        XMPPCoreStanzaKind kind = XMPPCoreStanzaKind.valueOfNameOrNull(stanza.getName());
+        if (kind == null)
+            return null;
+        switch (kind) {
+        case IQ:
             return new IQStanza(stanza);
-        if (MessageStanza.isOfType(stanza))
+        case MESSAGE:
             return new MessageStanza(stanza);
-        if (PresenceStanza.isOfType(stanza))
+        case PRESENCE:
             return new PresenceStanza(stanza);
-        return null;
+        default:
+            throw new RuntimeException("unknown core stanza kind " + kind);
+        }
+    }
+
+    /**
+     * creates the typed core stanza directly from its parts, without creating an intermediate stanza
+     */
+    static XMPPCoreStanza create(XMPPCoreStanzaKind kind, String namespaceURI, String namespacePrefix,
+            List<Attribute> attributes, List<XMLFragment> innerFragments, Map<String, String> namespaces) {
+        switch (kind) {
+        case IQ:
+            return new IQStanza(namespaceURI, namespacePrefix, attributes, innerFragments, namespaces);
+        case MESSAGE:
+            return new MessageStanza(namespaceURI, namespacePrefix, attributes, innerFragments, namespaces);
+        case PRESENCE:
+            return new PresenceStanza(namespaceURI, namespacePrefix, attributes, innerFragments, namespaces);
+        default:
+            throw new RuntimeException("unknown core stanza kind " + kind);
+        }
     }
 
     public XMPPCoreStanza(Stanza stanza) {
@@ -52,6 +87,11 @@ abstract public class XMPPCoreStanza extends Stanza {
                 .getInnerFragments());
     }
 
+    protected XMPPCoreStanza(String namespaceURI, String name, String namespacePrefix, List<Attribute> attributes,
+            List<XMLFragment> innerFragments, Map<String, String> namespaces) {
+        super(namespaceURI, name, namespacePrefix, attributes, innerFragments, namespaces);
+    }
+
     @Override
     public XMLElementVerifier getVerifier() {
         if (xmlElementVerifier == null)
@@ -66,6 +106,8 @@ abstract public class XMPPCoreStanza extends Stanza {
     @Override
     abstract public String getName();
 
+    abstract public XMPPCoreStanzaKind getKind();
+
     public String getType() {
         return getAttributeValue("type");
     }
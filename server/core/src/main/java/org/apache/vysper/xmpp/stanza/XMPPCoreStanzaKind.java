@@ -0,0 +1,57 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+
+package org.apache.vysper.xmpp.stanza;
+
+/**
+ * the three kinds of XMPP core stanzas, identified by their element name
+ *
+ * @author The Apache MINA Project (dev@mina.apache.org)
+ */
+public enum XMPPCoreStanzaKind {
+
+    IQ(IQStanza.NAME), MESSAGE(MessageStanza.NAME), PRESENCE(PresenceStanza.NAME);
+
+    private final String value;
+
+    /**
+     * @return the kind for the given element name, or NULL if the name does not denote a core stanza
+     */
+    public static XMPPCoreStanzaKind valueOfNameOrNull(String name) {
+        if (name == null)
+            return null;
+        if (name.equals(IQStanza.NAME))
+            return IQ;
+        if (name.equals(MessageStanza.NAME))
+            return MESSAGE;
+        if (name.equals(PresenceStanza.NAME))
+            return PRESENCE;
+        return null;
+    }
+
+    XMPPCoreStanzaKind(String value) {
+        this.value = value;
+    }
+
+    public String value() {
+        return value;
+    }
+
+}
@@ -0,0 +1,307 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.vysper.xmpp.state.presence;
+
+import java.io.UnsupportedEncodingException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.apache.vysper.xml.fragment.Renderer;
+import org.apache.vysper.xml.fragment.XMLElement;
+import org.apache.vysper.xmpp.addressing.Entity;
+import org.apache.vysper.xmpp.parser.XMLParserUtil;
+import org.apache.vysper.xmpp.stanza.PresenceStanza;
+import org.apache.vysper.xmpp.stanza.Stanza;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * presence cache keeping presences in serialized form instead of as stanza object graphs.
+ * presences are stored as UTF-8 encoded XML, either in heap byte arrays or, when an
+ * {@link OffHeapSlabAllocator} is given, in off-heap slabs (falling back to the heap when the
+ * allocator is exhausted). stanzas are re-parsed on read, a bounded number of recently used stanzas
+ * is kept on the heap to save the parsing for hot entries.
+ * <br/>
+ * recency is approximated (CLOCK): a hit only marks the stored presence as referenced, without taking a lock. 
+ * a new hot entry replaces the first slot whose presence has not been referenced since the clock hand passed it.
+ * <br/>
+ * like {@link ConcurrentPresenceCache}, presences are indexed by bare JID.
+ *
+ * @author The Apache MINA Project (dev@mina.apache.org)
+ */
+public class CompactPresenceCache extends AbstractBaseCache {
+
+    final Logger logger = LoggerFactory.getLogger(CompactPresenceCache.class);
+
+    public static final int DEFAULT_HOT_ENTRIES = 1024;
+
+    private static final String UTF8 = "UTF-8";
+
+    private final ConcurrentMap<Entity, BareJIDPresences> presenceMap = new ConcurrentHashMap<Entity, BareJIDPresences>();
+
+    /**
+     * null, if presences are kept on the heap
+     */
+    private final OffHeapSlabAllocator allocator;
+
+    /**
+     * slots of the presences with a rehydrated stanza, null if there are no hot entries
+     */
+    private final AtomicReferenceArray<StoredPresence> hotSlots;
+
+    private final AtomicInteger clockHand = new AtomicInteger();
+
+    /**
+     * keeps serialized presences on the heap
+     */
+    public CompactPresenceCache() {
+        this(DEFAULT_HOT_ENTRIES, null);
+    }
+
+    /**
+     * @param hotEntries number of rehydrated stanzas kept on the heap, 0 keeps none
+     * @param allocator if not null, serialized presences are kept off-heap
+     */
+    public CompactPresenceCache(final int hotEntries, OffHeapSlabAllocator allocator) {
+        this.allocator = allocator;
+        this.hotSlots = hotEntries > 0 ? new AtomicReferenceArray<StoredPresence>(hotEntries) : null;
+    }
+
+    @Override
+    protected void put0(Entity entity, PresenceStanza presenceStanza) throws PresenceCachingException {
+        StoredPresence stored = store(encode(presenceStanza));
+        Entity bareJID = entity.getBareJID();
+        while (true) {
+            BareJIDPresences presences = presenceMap.get(bareJID);
+            if (presences == null) {
+                BareJIDPresences newPresences = new BareJIDPresences();
+                presences = presenceMap.putIfAbsent(bareJID, newPresences);
+                if (presences == null) presences = newPresences;
+            }
+            synchronized (presences) {
+                // the record might have been discarded concurrently after its last resource was removed
+                if (presences.discarded) continue;
+                stored.sequence = ++presences.sequence;
+                StoredPresence previous = presences.byResource.put(entity.getResource(), stored);
+                presences.latest = stored;
+                if (previous != null) release(previous);
+                putHot(stored, presenceStanza);
+                return;
+            }
+        }
+    }
+
+    @Override
+    protected PresenceStanza get0(Entity entity) throws PresenceCachingException {
+        BareJIDPresences presences = presenceMap.get(entity.getBareJID());
+        if (presences == null) return null;
+        return resolve(presences, entity.getResource());
+    }
+
+    public PresenceStanza getForBareJID(Entity entity) throws PresenceCachingException {
+        if (entity == null) {
+            throw new PresenceCachingException("Entity cannot be null");
+        }
+        BareJIDPresences presences = presenceMap.get(entity.getBareJID());
+        if (presences == null) return null;
+        return resolve(presences, null);
+    }
+
+    public void remove(Entity entity) {
+        if (entity == null || entity.getResource() == null) return;
+        Entity bareJID = entity.getBareJID();
+        BareJIDPresences presences = presenceMap.get(bareJID);
+        if (presences == null) return;
+        synchronized (presences) {
+            if (presences.discarded) return;
+            StoredPresence removed = presences.byResource.remove(entity.getResource());
+            if (removed != null) release(removed);
+            if (presences.byResource.isEmpty()) {
+                presences.latest = null;
+                presences.discarded = true;
+            } else if (removed != null && removed == presences.latest) {
+                // fall back to the most recent presence of the remaining resources
+                StoredPresence mostRecent = null;
+                for (StoredPresence stored : presences.byResource.values()) {
+                    if (mostRecent == null || stored.sequence > mostRecent.sequence) mostRecent = stored;
+                }
+                presences.latest = mostRecent;
+            }
+        }
+        if (presences.discarded) presenceMap.remove(bareJID, presences);
+    }
+
+    /**
+     * @return number of bare JIDs currently having at least one cached presence
+     */
+    public int getBareJIDCount() {
+        return presenceMap.size();
+    }
+
+    public int getHotEntryCount() {
+        if (hotSlots == null) return 0;
+        int count = 0;
+        for (int i = 0; i < hotSlots.length(); i++) {
+            StoredPresence stored = hotSlots.get(i);
+            if (stored != null && stored.hot != null) count++;
+        }
+        return count;
+    }
+
+    /**
+     * @param resource the resource to look up, null for the most recent presence
+     */
+    private PresenceStanza resolve(BareJIDPresences presences, String resource) {
+        StoredPresence stored;
+        byte[] bytes;
+        synchronized (presences) {
+            stored = resource == null ? presences.latest : presences.byResource.get(resource);
+            if (stored == null) return null;
+            PresenceStanza hot = stored.hot;
+            if (hot != null) {
+                stored.referenced = true;
+                return hot;
+            }
+            // copy while holding the lock, the chunk must not be freed meanwhile
+            bytes = stored.heapBytes != null ? stored.heapBytes : allocator.read(stored.handle, stored.length);
+        }
+        PresenceStanza presenceStanza = decode(bytes);
+        // if the presence has been replaced meanwhile, the entry is never hit and ages out
+        if (presenceStanza != null) putHot(stored, presenceStanza);
+        return presenceStanza;
+    }
+
+    private StoredPresence store(byte[] bytes) {
+        if (allocator != null) {
+            long handle = allocator.allocate(bytes.length);
+            if (handle != OffHeapSlabAllocator.NO_CHUNK) {
+                allocator.write(handle, bytes);
+                return new StoredPresence(null, handle, bytes.length);
+            }
+        }
+        return new StoredPresence(bytes, OffHeapSlabAllocator.NO_CHUNK, bytes.length);
+    }
+
+    /**
+     * must be called while holding the lock of the presences the stored presence belonged to
+     */
+    private void release(StoredPresence stored) {
+        // its slot is reused when the clock hand passes it
+        stored.hot = null;
+        if (stored.handle != OffHeapSlabAllocator.NO_CHUNK) allocator.free(stored.handle, stored.length);
+    }
+
+    private void putHot(StoredPresence stored, PresenceStanza presenceStanza) {
+        if (hotSlots == null) return;
+        int capacity = hotSlots.length();
+        // every referenced entry is passed at most once before an unreferenced one is found, 
+        // unless other threads reference entries meanwhile
+        for (int i = 0; i <= 2 * capacity; i++) {
+            int slot = (clockHand.getAndIncrement() & Integer.MAX_VALUE) % capacity;
+            StoredPresence occupant = hotSlots.get(slot);
+            if (occupant != null && occupant.hot != null && occupant.referenced) {
+                occupant.referenced = false;
+                continue;
+            }
+            if (hotSlots.compareAndSet(slot, occupant, stored)) {
+                if (occupant != null && occupant != stored) occupant.hot = null;
+                stored.referenced = false;
+                stored.hot = presenceStanza;
+                return;
+            }
+        }
+        // all entries are in use, the stanza is not kept
+    }
+
+    private byte[] encode(PresenceStanza presenceStanza) {
+        try {
+            return new Renderer(presenceStanza).getComplete().getBytes(UTF8);
+        } catch (UnsupportedEncodingException e) {
+            throw new PresenceCachingException("failed to serialize presence: " + e.getMessage());
+        }
+    }
+
+    private PresenceStanza decode(byte[] bytes) {
+        try {
+            XMLElement element = XMLParserUtil.parseDocument(new String(bytes, UTF8));
+            if (element == null) {
+                logger.error("incomplete cached presence");
+                return null;
+            }
+            return new PresenceStanza(new Stanza(element.getNamespaceURI(), element.getName(),
+                    element.getNamespacePrefix(), element.getAttributes(), element.getInnerFragments(), element
+                            .getDeclaredNamespaces()));
+        } catch (Exception e) {
+            logger.error("failed to parse cached presence", e);
+            return null;
+        }
+    }
+
+    /**
+     * the presences of all resources of one bare JID, guarded by its own monitor
+     */
+    static class BareJIDPresences {
+
+        private final Map<String, StoredPresence> byResource = new HashMap<String, StoredPresence>(4);
+
+        private StoredPresence latest;
+
+        private long sequence = 0;
+
+        private volatile boolean discarded = false;
+    }
+
+    /**
+     * a serialized presence, either held in a heap array or in an off-heap chunk
+     */
+    static class StoredPresence {
+
+        protected final byte[] heapBytes;
+
+        protected final long handle;
+
+        protected final int length;
+
+        /**
+         * orders the presences of one bare JID, assigned while holding its lock
+         */
+        protected long sequence;
+
+        /**
+         * the rehydrated stanza, if the presence has a hot slot
+         */
+        protected volatile PresenceStanza hot;
+
+        /**
+         * hit since the clock hand passed its slot
+         */
+        protected volatile boolean referenced;
+
+        StoredPresence(byte[] heapBytes, long handle, int length) {
+            this.heapBytes = heapBytes;
+            this.handle = handle;
+            this.length = length;
+        }
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.vysper.xmpp.state.presence;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.vysper.xmpp.addressing.Entity;
+import org.apache.vysper.xmpp.stanza.PresenceStanza;
+
+/**
+ * unbounded in-memory-only cache, safe for concurrent use by all worker threads.
+ * presences are indexed by bare JID, each bare JID holding the latest presence per resource
+ * and a pointer to the most recent one, so that {@link #getForBareJID(Entity)} does not need
+ * to look at any other entity.
+ *
+ * @author The Apache MINA Project (dev@mina.apache.org)
+ */
+public class ConcurrentPresenceCache extends AbstractBaseCache {
+
+    private final ConcurrentMap<Entity, BareJIDPresences> presenceMap = new ConcurrentHashMap<Entity, BareJIDPresences>();
+
+    @Override
+    protected void put0(Entity entity, PresenceStanza presenceStanza) {
+        Entity bareJID = entity.getBareJID();
+        while (true) {
+            BareJIDPresences presences = presenceMap.get(bareJID);
+            if (presences == null) {
+                BareJIDPresences newPresences = new BareJIDPresences();
+                presences = presenceMap.putIfAbsent(bareJID, newPresences);
+                if (presences == null) presences = newPresences;
+            }
+            // the record might have been discarded concurrently after its last resource was removed
+            if (presences.put(entity.getResource(), presenceStanza)) return;
+        }
+    }
+
+    @Override
+    protected PresenceStanza get0(Entity entity) throws PresenceCachingException {
+        BareJIDPresences presences = presenceMap.get(entity.getBareJID());
+        if (presences == null) return null;
+        return presences.get(entity.getResource());
+    }
+
+    public PresenceStanza getForBareJID(Entity entity) throws PresenceCachingException {
+        if (entity == null) {
+            throw new PresenceCachingException("Entity cannot be null");
+        }
+        BareJIDPresences presences = presenceMap.get(entity.getBareJID());
+        if (presences == null) return null;
+        return presences.getLatest();
+    }
+
+    public void remove(Entity entity) {
+        if (entity == null || entity.getResource() == null) return;
+        Entity bareJID = entity.getBareJID();
+        BareJIDPresences presences = presenceMap.get(bareJID);
+        if (presences == null) return;
+        if (presences.remove(entity.getResource())) {
+            // no resources left, discard the record
+            presenceMap.remove(bareJID, presences);
+        }
+    }
+
+    /**
+     * @return number of bare JIDs currently having at least one cached presence
+     */
+    public int getBareJIDCount() {
+        return presenceMap.size();
+    }
+
+    /**
+     * the latest presences for all resources of one bare JID. writes are serialized on the instance,
+     * reads of the most recent presence go through a volatile field.
+     */
+    static class BareJIDPresences {
+
+        private final Map<String, Entry> byResource = new HashMap<String, Entry>(4);
+
+        private volatile Entry latest;
+
+        private boolean discarded = false;
+
+        private long sequence = 0;
+
+        /**
+         * @return false, if this record has already been discarded and must not be used anymore
+         */
+        synchronized boolean put(String resource, PresenceStanza presenceStanza) {
+            if (discarded) return false;
+            Entry entry = new Entry(presenceStanza, ++sequence);
+            byResource.put(resource, entry);
+            latest = entry;
+            return true;
+        }
+
+        synchronized PresenceStanza get(String resource) {
+            Entry entry = byResource.get(resource);
+            return entry == null ? null : entry.presenceStanza;
+        }
+
+        PresenceStanza getLatest() {
+            Entry entry = latest;
+            return entry == null ? null : entry.presenceStanza;
+        }
+
+        /**
+         * @return true, if the last resource has been removed and the record has been discarded
+         */
+        synchronized boolean remove(String resource) {
+            if (discarded) return false;
+            Entry removed = byResource.remove(resource);
+            if (byResource.isEmpty()) {
+                latest = null;
+                discarded = true;
+                return true;
+            }
+            if (removed != null && removed == latest) {
+                // fall back to the most recent presence of the remaining resources
+                Entry mostRecent = null;
+                for (Entry entry : byResource.values()) {
+                    if (mostRecent == null || entry.sequence > mostRecent.sequence) mostRecent = entry;
+                }
+                latest = mostRecent;
+            }
+            return false;
+        }
+    }
+
+    static class Entry {
+        protected final PresenceStanza presenceStanza;
+
+        protected final long sequence;
+
+        Entry(PresenceStanza presenceStanza, long sequence) {
+            this.presenceStanza = presenceStanza;
+            this.sequence = sequence;
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.vysper.xmpp.state.presence;
+
+import java.nio.ByteBuffer;
+
+/**
+ * a simple allocator handing out chunks of direct (off-heap) byte buffer slabs.
+ * chunks come in power-of-two size classes, freed chunks are kept in a free list per size class
+ * and are re-used before new slab space is claimed. slabs are allocated lazily and never returned.
+ * requests larger than the biggest size class or exceeding the configured maximum are refused,
+ * callers are expected to fall back to the heap in that case.
+ * <br/>
+ * chunks are addressed by handles, which encode the slab index and the offset within the slab.
+ * reading and writing a chunk is not synchronized, the caller owning a chunk has to make sure
+ * it does not access it after freeing it.
+ *
+ * @author The Apache MINA Project (dev@mina.apache.org)
+ */
+public class OffHeapSlabAllocator {
+
+    public static final int DEFAULT_SLAB_SIZE = 1024 * 1024;
+
+    public static final int MIN_CHUNK_SIZE = 64;
+
+    public static final int MAX_CHUNK_SIZE = 8192;
+
+    /**
+     * returned by {@link #allocate(int)} if no chunk could be allocated
+     */
+    public static final long NO_CHUNK = -1;
+
+    private static final int SIZE_CLASSES = Integer.numberOfTrailingZeros(MAX_CHUNK_SIZE)
+            - Integer.numberOfTrailingZeros(MIN_CHUNK_SIZE) + 1;
+
+    private final int slabSize;
+
+    private final ByteBuffer[] slabs;
+
+    private int slabCount = 0;
+
+    private int slabPosition = 0;
+
+    private final long[][] freeChunks = new long[SIZE_CLASSES][];
+
+    private final int[] freeChunkCount = new int[SIZE_CLASSES];
+
+    private long usedBytes = 0;
+
+    /**
+     * @param maxBytes maximum number of bytes allocated off-heap, rounded down to full slabs
+     */
+    public OffHeapSlabAllocator(long maxBytes) {
+        this(maxBytes, DEFAULT_SLAB_SIZE);
+    }
+
+    public OffHeapSlabAllocator(long maxBytes, int slabSize) {
+        if (slabSize < MAX_CHUNK_SIZE || Integer.bitCount(slabSize) != 1) {
+            throw new IllegalArgumentException("slab size must be a power of two, at least " + MAX_CHUNK_SIZE);
+        }
+        long maxSlabs = maxBytes / slabSize;
+        if (maxSlabs < 1 || maxSlabs > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("maximum size must allow for at least one slab, got " + maxBytes);
+        }
+        this.slabSize = slabSize;
+        this.slabs = new ByteBuffer[(int) maxSlabs];
+        for (int i = 0; i < SIZE_CLASSES; i++) {
+            freeChunks[i] = new long[16];
+        }
+    }
+
+    /**
+     * @return the handle of a chunk of at least the given length, or {@link #NO_CHUNK}
+     */
+    public synchronized long allocate(int length) {
+        int sizeClass = sizeClass(length);
+        if (sizeClass < 0) return NO_CHUNK;
+
+        long handle;
+        if (freeChunkCount[sizeClass] > 0) {
+            handle = freeChunks[sizeClass][--freeChunkCount[sizeClass]];
+        } else {
+            int chunkSize = chunkSize(sizeClass);
+            if (slabCount == 0 || slabPosition + chunkSize > slabSize) {
+                if (slabCount == slabs.length) return NO_CHUNK;
+                // the remainder of the current slab is lost, it is smaller than the chunk anyway
+                slabs[slabCount++] = ByteBuffer.allocateDirect(slabSize);
+                slabPosition = 0;
+            }
+            handle = ((long) (slabCount - 1) << 32) | slabPosition;
+            slabPosition += chunkSize;
+        }
+        usedBytes += chunkSize(sizeClass);
+        return handle;
+    }
+
+    /**
+     * returns the chunk to the free list. the length must be the one the chunk was allocated with.
+     */
+    public synchronized void free(long handle, int length) {
+        int sizeClass = sizeClass(length);
+        if (handle == NO_CHUNK || sizeClass < 0) return;
+        long[] chunks = freeChunks[sizeClass];
+        if (freeChunkCount[sizeClass] == chunks.length) {
+            long[] grown = new long[chunks.length * 2];
+            System.arraycopy(chunks, 0, grown, 0, chunks.length);
+            freeChunks[sizeClass] = chunks = grown;
+        }
+        chunks[freeChunkCount[sizeClass]++] = handle;
+        usedBytes -= chunkSize(sizeClass);
+    }
+
+    public void write(long handle, byte[] bytes) {
+        ByteBuffer chunk = slabs[(int) (handle >>> 32)].duplicate();
+        chunk.position((int) handle);
+        chunk.put(bytes);
+    }
+
+    public byte[] read(long handle, int length) {
+        ByteBuffer chunk = slabs[(int) (handle >>> 32)].duplicate();
+        chunk.position((int) handle);
+        byte[] bytes = new byte[length];
+        chunk.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * @return bytes currently handed out, counted in full chunks
+     */
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    /**
+     * @return bytes allocated off-heap for slabs
+     */
+    public synchronized long getReservedBytes() {
+        return (long) slabCount * slabSize;
+    }
+
+    private static int sizeClass(int length) {
+        if (length < 0 || length > MAX_CHUNK_SIZE) return -1;
+        if (length <= MIN_CHUNK_SIZE) return 0;
+        int chunkSize = Integer.highestOneBit(length - 1) << 1;
+        return Integer.numberOfTrailingZeros(chunkSize) - Integer.numberOfTrailingZeros(MIN_CHUNK_SIZE);
+    }
+
+    private static int chunkSize(int sizeClass) {
+        return MIN_CHUNK_SIZE << sizeClass;
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.vysper.xmpp.state.presence;
+
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.vysper.xmpp.addressing.Entity;
+import org.apache.vysper.xmpp.modules.ServerRuntimeContextService;
+import org.apache.vysper.xmpp.server.AbstractSessionContext;
+import org.apache.vysper.xmpp.server.SessionContext.SessionTerminationCause;
+import org.apache.vysper.xmpp.server.SessionEndListener;
+import org.apache.vysper.xmpp.server.resources.StanzaExecutor;
+import org.apache.vysper.xmpp.server.resources.StanzaLane;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * coalesces rapid presence updates per resource. after a presence broadcast, further updates of the same
+ * resource within the damping window are held back, only the latest one is broadcasted when the window
+ * has passed - and only if it differs from the one broadcasted before.
+ * <br/>
+ * damping is optional, it is enabled by adding a {@link PresenceDampingModule}, or by registering an instance 
+ * with the server runtime context. 
+ * the timer only decides when a deferred update is due, the broadcast itself is handed to the 
+ * {@link StanzaExecutor} if one is set.
+ *
+ * @author The Apache MINA Project (dev@mina.apache.org)
+ */
+public class PresenceDamper implements ServerRuntimeContextService, SessionEndListener {
+
+    final Logger logger = LoggerFactory.getLogger(PresenceDamper.class);
+
+    public static final String SERVICE_NAME = "PresenceDamper";
+
+    private final long windowMillis;
+
+    private final ConcurrentMap<Entity, Damping> dampings = new ConcurrentHashMap<Entity, Damping>();
+
+    private final Timer timer = new Timer("PresenceDamperTimer", true);
+
+    private volatile StanzaExecutor stanzaExecutor = null;
+
+    private volatile boolean closed = false;
+
+    private final AtomicLong deferredCount = new AtomicLong();
+
+    private final AtomicLong coalescedCount = new AtomicLong();
+
+    /**
+     * @param windowMillis minimum time between two presence broadcasts for the same resource
+     */
+    public PresenceDamper(long windowMillis) {
+        if (windowMillis <= 0) throw new IllegalArgumentException("damping window must be positive");
+        this.windowMillis = windowMillis;
+    }
+
+    public String getServiceName() {
+        return SERVICE_NAME;
+    }
+
+    public long getWindowMillis() {
+        return windowMillis;
+    }
+
+    /**
+     * @param stanzaExecutor runs the deferred broadcasts, if NULL they are run on the timer thread
+     */
+    public void setStanzaExecutor(StanzaExecutor stanzaExecutor) {
+        this.stanzaExecutor = stanzaExecutor;
+    }
+
+    /**
+     * records a presence broadcasted without damping, like the initial presence
+     * @param resource full JID
+     * @param signature identifies the presence content
+     */
+    public void recordBroadcast(Entity resource, String signature) {
+        Damping damping = getDamping(resource);
+        synchronized (damping) {
+            damping.lastBroadcast = System.currentTimeMillis();
+            damping.lastSignature = signature;
+            damping.pending = null;
+            damping.pendingSignature = null;
+        }
+    }
+
+    /**
+     * decides about broadcasting a presence update
+     * @param resource full JID
+     * @param signature identifies the presence content
+     * @param broadcast broadcasts the update, will be run later if the update is deferred
+     * @return true, if the update has been deferred and must not be broadcasted now. 
+     * updates are not deferred anymore after the damper has been closed.
+     */
+    public boolean defer(final Entity resource, String signature, Runnable broadcast) {
+        if (closed) return false;
+        final Damping damping = getDamping(resource);
+        synchronized (damping) {
+            long now = System.currentTimeMillis();
+            if (damping.pending == null && now - damping.lastBroadcast >= windowMillis) {
+                damping.lastBroadcast = now;
+                damping.lastSignature = signature;
+                return false;
+            }
+            if (damping.pending != null) coalescedCount.incrementAndGet();
+            damping.pending = broadcast;
+            damping.pendingSignature = signature;
+            deferredCount.incrementAndGet();
+            if (!damping.scheduled) {
+                damping.scheduled = true;
+                timer.schedule(new TimerTask() {
+                    @Override
+                    public void run() {
+                        flush(damping);
+                    }
+                }, Math.max(0, damping.lastBroadcast + windowMillis - now));
+            }
+            return true;
+        }
+    }
+
+    /**
+     * drops all state for the resource, including a deferred update. to be called when the
+     * resource becomes unavailable.
+     */
+    public void cancel(Entity resource) {
+        Damping damping = dampings.remove(resource);
+        if (damping == null) return;
+        synchronized (damping) {
+            damping.pending = null;
+            damping.pendingSignature = null;
+        }
+    }
+
+    public boolean sessionEnding(AbstractSessionContext sessionContext, SessionTerminationCause terminationCause) {
+        return false;
+    }
+
+    /**
+     * drops damped presences of the session's resources
+     */
+    public void sessionEnded(AbstractSessionContext sessionContext, List<Entity> resources) {
+        for (Entity resource : resources) {
+            cancel(resource);
+        }
+    }
+
+    /**
+     * @return number of updates which have been held back
+     */
+    public long getDeferredCount() {
+        return deferredCount.get();
+    }
+
+    /**
+     * @return number of held back updates which have been replaced by a later one
+     */
+    public long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
+    /**
+     * stops the timer, deferred updates are dropped
+     */
+    public void close() {
+        closed = true;
+        timer.cancel();
+    }
+
+    private Damping getDamping(Entity resource) {
+        Damping damping = dampings.get(resource);
+        if (damping == null) {
+            Damping newDamping = new Damping();
+            damping = dampings.putIfAbsent(resource, newDamping);
+            if (damping == null) damping = newDamping;
+        }
+        return damping;
+    }
+
+    private void flush(Damping damping) {
+        Runnable broadcast;
+        synchronized (damping) {
+            damping.scheduled = false;
+            broadcast = damping.pending;
+            String signature = damping.pendingSignature;
+            damping.pending = null;
+            damping.pendingSignature = null;
+            // nothing to do if cancelled, or if the presence flapped back to what has been broadcasted
+            if (broadcast == null || signature.equals(damping.lastSignature)) return;
+            damping.lastBroadcast = System.currentTimeMillis();
+            damping.lastSignature = signature;
+        }
+        StanzaExecutor executor = stanzaExecutor;
+        if (executor != null) {
+            try {
+                executor.execute(broadcast, StanzaLane.PRESENCE, 1);
+            } catch (RejectedExecutionException e) {
+                logger.warn("dropping damped presence, the presence lane is full");
+            }
+            return;
+        }
+        try {
+            broadcast.run();
+        } catch (RuntimeException e) {
+            // keep the timer alive
+            logger.warn("failed to broadcast damped presence", e);
+        }
+    }
+
+    static class Damping {
+        long lastBroadcast = 0;
+
+        String lastSignature;
+
+        Runnable pending;
+
+        String pendingSignature;
+
+        boolean scheduled = false;
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.vysper.xmpp.state.presence;
+
+import java.util.List;
+
+import org.apache.vysper.xmpp.modules.DefaultModule;
+import org.apache.vysper.xmpp.modules.ServerRuntimeContextService;
+import org.apache.vysper.xmpp.server.ServerRuntimeContext;
+import org.apache.vysper.xmpp.server.resources.StanzaExecutor;
+
+/**
+ * enables presence damping, see {@link PresenceDamper}. 
+ * damped presence updates are broadcasted on the server's {@link StanzaExecutor}, if there is one.
+ *
+ * @author The Apache MINA Project (dev@mina.apache.org)
+ */
+public class PresenceDampingModule extends DefaultModule {
+
+    public static final long DEFAULT_WINDOW_MILLIS = 5000;
+
+    private final PresenceDamper damper;
+
+    public PresenceDampingModule() {
+        this(DEFAULT_WINDOW_MILLIS);
+    }
+
+    /**
+     * @param windowMillis minimum time between two presence broadcasts for the same resource
+     */
+    public PresenceDampingModule(long windowMillis) {
+        damper = new PresenceDamper(windowMillis);
+    }
+
+    @Override
+    public String getName() {
+        return "Presence Damping";
+    }
+
+    @Override
+    public String getVersion() {
+        return "1.0";
+    }
+
+    public PresenceDamper getDamper() {
+        return damper;
+    }
+
+    @Override
+    protected void addServerServices(List<ServerRuntimeContextService> serviceList) {
+        serviceList.add(damper);
+    }
+
+    @Override
+    public void initialize(ServerRuntimeContext serverRuntimeContext) {
+        damper.setStanzaExecutor((StanzaExecutor) serverRuntimeContext
+                .getServerRuntimeContextService(StanzaExecutor.SERVICE_NAME));
+        serverRuntimeContext.registerSessionEndListener(damper);
+    }
+
+    @Override
+    public void close() {
+        damper.close();
+    }
+}
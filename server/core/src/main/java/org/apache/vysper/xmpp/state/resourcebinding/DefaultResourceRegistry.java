@@ -19,25 +19,28 @@
  */
 package org.apache.vysper.xmpp.state.resourcebinding;
 
-import static org.apache.vysper.xmpp.state.resourcebinding.ResourceState.AVAILABLE;
-import static org.apache.vysper.xmpp.state.resourcebinding.ResourceState.AVAILABLE_INTERESTED;
 import static org.apache.vysper.xmpp.state.resourcebinding.ResourceState.CONNECTED;
 
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.Comparator;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.apache.vysper.xmpp.addressing.Entity;
 import org.apache.vysper.xmpp.server.SessionContext;
-import org.apache.vysper.xmpp.uuid.JVMBuiltinUUIDGenerator;
+import org.apache.vysper.xmpp.uuid.ThreadLocalSecureRandomUUIDGenerator;
 import org.apache.vysper.xmpp.uuid.UUIDGenerator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * assigns and holds resource ids and their related session
+ * <p>
+ * all resources of a bare JID are kept in an immutable {@link Snapshot}, which is replaced as a whole when 
+ * a resource is bound or unbound, or changes its priority or availability. readers never lock, and the 
+ * lists handed out for delivery are precomputed with the snapshot. writers only lock the bare JID's record.
  *
  * @author The Apache MINA Project (dev@mina.apache.org)
  */
@@ -49,38 +52,169 @@ public class DefaultResourceRegistry implements ResourceRegistry {
 
         private final SessionContext context;
 
-        private ResourceState state;
+        private final String resourceId;
 
-        private Integer priority;
+        private final Entity bareJID;
 
-        SessionData(SessionContext context, ResourceState status, Integer priority) {
+        /** the session as a list, as returned for full JID lookups */
+        private final List<SessionContext> contextAsList;
+
+        private volatile ResourceState state;
+
+        /** only changed while holding the lock of the bare JID's record */
+        private volatile int priority;
+
+        SessionData(SessionContext context, String resourceId, Entity bareJID, ResourceState status, Integer priority) {
             this.context = context;
+            this.resourceId = resourceId;
+            this.bareJID = bareJID;
+            this.contextAsList = Collections.singletonList(context);
             this.state = status;
             this.priority = priority == null ? 0 : priority;
         }
 
     }
 
-    private UUIDGenerator resourceIdGenerator = new JVMBuiltinUUIDGenerator();
+    /**
+     * highest priority first, available before unavailable resources of the same priority, 
+     * then in the order of binding
+     */
+    private static final Comparator<SessionData> BY_PRIORITY = new Comparator<SessionData>() {
+        public int compare(SessionData data1, SessionData data2) {
+            if (data1.priority != data2.priority) {
+                return data1.priority > data2.priority ? -1 : 1;
+            }
+            boolean available1 = ResourceState.isAvailable(data1.state);
+            boolean available2 = ResourceState.isAvailable(data2.state);
+            if (available1 != available2) {
+                return available1 ? -1 : 1;
+            }
+            return 0;
+        }
+    };
+
+    /**
+     * an immutable view of a bare JID's resources
+     */
+    private static class Snapshot {
+
+        private static final Snapshot EMPTY = new Snapshot(Collections.<SessionData> emptyList());
+
+        /** in the order of binding */
+        private final List<SessionData> resources;
+
+        private final List<String> resourceIds;
+
+        private final List<SessionContext> sessions;
+
+        /** ordered by {@link DefaultResourceRegistry#BY_PRIORITY} */
+        private final List<SessionContext> sessionsByPriority;
+
+        private final int[] priorities;
+
+        private final int highestPriority;
+
+        private final List<SessionContext> highestPrioSessions;
+
+        Snapshot(List<SessionData> resources) {
+            this.resources = Collections.unmodifiableList(resources);
+
+            List<String> resourceIds = new ArrayList<String>(resources.size());
+            List<SessionContext> sessions = new ArrayList<SessionContext>(resources.size());
+            for (SessionData data : resources) {
+                resourceIds.add(data.resourceId);
+                sessions.add(data.context);
+            }
+            this.resourceIds = Collections.unmodifiableList(resourceIds);
+            this.sessions = Collections.unmodifiableList(sessions);
+
+            List<SessionData> byPriority = new ArrayList<SessionData>(resources);
+            Collections.sort(byPriority, BY_PRIORITY);
+            List<SessionContext> sessionsByPriority = new ArrayList<SessionContext>(byPriority.size());
+            priorities = new int[byPriority.size()];
+            int highestPrioCount = 0;
+            for (int i = 0; i < byPriority.size(); i++) {
+                SessionData data = byPriority.get(i);
+                sessionsByPriority.add(data.context);
+                priorities[i] = data.priority;
+                if (data.priority == byPriority.get(0).priority) {
+                    highestPrioCount++;
+                }
+            }
+            this.sessionsByPriority = Collections.unmodifiableList(sessionsByPriority);
+            this.highestPriority = priorities.length == 0 ? Integer.MIN_VALUE : priorities[0];
+            this.highestPrioSessions = this.sessionsByPriority.subList(0, highestPrioCount);
+        }
+
+        Snapshot with(SessionData added) {
+            List<SessionData> list = new ArrayList<SessionData>(resources.size() + 1);
+            list.addAll(resources);
+            list.add(added);
+            return new Snapshot(list);
+        }
+
+        Snapshot without(List<String> removedResourceIds) {
+            List<SessionData> list = new ArrayList<SessionData>(resources.size());
+            for (SessionData data : resources) {
+                if (!removedResourceIds.contains(data.resourceId)) {
+                    list.add(data);
+                }
+            }
+            return new Snapshot(list);
+        }
+
+        Snapshot rebuild() {
+            return new Snapshot(new ArrayList<SessionData>(resources));
+        }
+
+        boolean isEmpty() {
+            return resources.isEmpty();
+        }
+
+        /**
+         * @return the sessions with the given priority or higher
+         */
+        List<SessionContext> getSessions(int prioThreshold) {
+            int count = 0;
+            while (count < priorities.length && priorities[count] >= prioThreshold) {
+                count++;
+            }
+            return count == priorities.length ? sessionsByPriority : sessionsByPriority.subList(0, count);
+        }
+    }
+
+    /**
+     * holds the current snapshot of a bare JID. writers lock the record.
+     */
+    private static class EntityRecord {
+
+        private volatile Snapshot snapshot = Snapshot.EMPTY;
+
+        /** set when the record has been removed from the registry, it must not be changed afterwards */
+        private boolean removed = false;
+    }
+
+    private UUIDGenerator resourceIdGenerator = new ThreadLocalSecureRandomUUIDGenerator();
 
     /**
      * maps resource id to session. note: two resources may point to the same session, but often this
      * is a 1:1 relationship
      */
-    protected final Map<String, SessionData> boundResources = new HashMap<String, SessionData>();
+    protected final ConcurrentMap<String, SessionData> boundResources = new ConcurrentHashMap<String, SessionData>();
 
     /**
-     * an entity's list of resources
-     * maps bare JID to all its bound resources. the list of resource ids might not be emtpy, and if there
-     * is more than one id, the list usually spans more than 1 session
+     * an entity's resources
+     * maps bare JID to all its bound resources. there is no record without resources, and if there
+     * is more than one resource, they usually span more than 1 session
      */
-    protected final Map<Entity, List<String>> entityResources = new HashMap<Entity, List<String>>();
+    private final ConcurrentMap<Entity, EntityRecord> entityResources = new ConcurrentHashMap<Entity, EntityRecord>();
 
     /**
      * a session's list of resources
-     * maps a session to all the resource ids bound to it.
+     * maps a session to all the resource ids bound to it. the lists are immutable, and are replaced while 
+     * holding the lock of the session's bare JID record.
      */
-    protected final Map<SessionContext, List<String>> sessionResources = new HashMap<SessionContext, List<String>>();
+    protected final ConcurrentMap<SessionContext, List<String>> sessionResources = new ConcurrentHashMap<SessionContext, List<String>>();
 
     /**
      * allocates new resource ID for the given session and binds it to the session
@@ -96,32 +230,37 @@ public class DefaultResourceRegistry implements ResourceRegistry {
         }
         String resourceId = resourceIdGenerator.create();
 
-        synchronized (boundResources) {
-            synchronized (entityResources) {
-                synchronized (sessionResources) {
-                    // record session for the resource id
-                    boundResources.put(resourceId, new SessionData(sessionContext, CONNECTED, 0));
-
-                    Entity initiatingEntity = sessionContext.getInitiatingEntity();
-                    List<String> resourceForEntityList = getResourceList(initiatingEntity);
-                    if (resourceForEntityList == null) {
-                        resourceForEntityList = new ArrayList<String>(1);
-                        entityResources.put(getBareEntity(initiatingEntity), resourceForEntityList);
-                    }
-                    resourceForEntityList.add(resourceId);
-                    logger.info("added resource no. " + resourceForEntityList.size() + " to entity {} <- {}",
-                            initiatingEntity.getFullQualifiedName(), resourceId);
-
-                    List<String> resourcesForSessionList = sessionResources.get(sessionContext);
-                    if (resourcesForSessionList == null) {
-                        resourcesForSessionList = new ArrayList<String>(1);
-                        sessionResources.put(sessionContext, resourcesForSessionList);
-                    }
-                    resourcesForSessionList.add(resourceId);
-                    logger.info("added resource no. " + resourcesForSessionList.size() + " to session {} <- {}",
-                            sessionContext.getSessionId(), resourceId);
+        Entity initiatingEntity = sessionContext.getInitiatingEntity();
+        Entity bareJID = getBareEntity(initiatingEntity);
+        SessionData sessionData = new SessionData(sessionContext, resourceId, bareJID, CONNECTED, 0);
+        while (true) {
+            EntityRecord record = entityResources.get(bareJID);
+            if (record == null) {
+                record = new EntityRecord();
+                EntityRecord existing = entityResources.putIfAbsent(bareJID, record);
+                if (existing != null) {
+                    record = existing;
                 }
             }
+            synchronized (record) {
+                if (record.removed) {
+                    // the last resource has just been unbound, try again with a new record
+                    continue;
+                }
+                // record session for the resource id
+                boundResources.put(resourceId, sessionData);
+
+                record.snapshot = record.snapshot.with(sessionData);
+                logger.info("added resource no. " + record.snapshot.resources.size() + " to entity {} <- {}",
+                        initiatingEntity.getFullQualifiedName(), resourceId);
+
+                List<String> resourcesForSessionList = new ArrayList<String>(getResourcesForSessionInternal(sessionContext));
+                resourcesForSessionList.add(resourceId);
+                sessionResources.put(sessionContext, Collections.unmodifiableList(resourcesForSessionList));
+                logger.info("added resource no. " + resourcesForSessionList.size() + " to session {} <- {}",
+                        sessionContext.getSessionId(), resourceId);
+                break;
+            }
         }
 
         return resourceId;
@@ -136,34 +275,12 @@ public class DefaultResourceRegistry implements ResourceRegistry {
      * @param resourceId
      */
     public boolean unbindResource(String resourceId) {
-        boolean noResourceRemainsForSession;
-        synchronized (boundResources) {
-            synchronized (entityResources) {
-                synchronized (sessionResources) {
-                    SessionContext sessionContext = getSessionContext(resourceId);
-
-                    // remove from entity's list of resources
-                    List<String> resourceListForEntity = getResourceList(sessionContext.getInitiatingEntity());
-                    if (resourceListForEntity != null) {
-                        resourceListForEntity.remove(resourceId);
-                        if (resourceListForEntity.isEmpty()) {
-                            entityResources.remove(sessionContext.getInitiatingEntity());
-                        }
-                    }
-
-                    // remove from session's list of resources
-                    List<String> resourceListForSession = sessionResources.get(sessionContext);
-                    resourceListForSession.remove(resourceId);
-                    noResourceRemainsForSession = resourceListForSession.isEmpty();
-                    if (noResourceRemainsForSession)
-                        sessionResources.remove(sessionContext);
-
-                    // remove from overall list of bound resource
-                    boundResources.remove(resourceId);
-                }
-            }
+        SessionData sessionData = boundResources.get(resourceId);
+        if (sessionData == null) {
+            return false;
         }
-        return noResourceRemainsForSession;
+        unbind(sessionData.bareJID, sessionData.context, Collections.singletonList(resourceId));
+        return !sessionResources.containsKey(sessionData.context);
     }
 
     /**
@@ -175,26 +292,90 @@ public class DefaultResourceRegistry implements ResourceRegistry {
         if (unbindingSessionContext == null)
             return;
 
-        synchronized (boundResources) {
-            synchronized (entityResources) {
-                synchronized (sessionResources) {
-                    // collect all remove candidates
-                    List<String> removeResourceIds = getResourcesForSessionInternal(unbindingSessionContext);
-
-                    // actually remove from bound resources
-                    for (String removeResourceId : removeResourceIds) {
-                        boundResources.remove(removeResourceId);
-                    }
-
-                    // actually remove from entity map
-                    List<String> resourceList = getResourceList(unbindingSessionContext.getInitiatingEntity());
-                    if (resourceList != null) {
-                        resourceList.removeAll(removeResourceIds);
-                    }
-
-                    // actually remove from session map
-                    sessionResources.remove(unbindingSessionContext);
+        // collect all remove candidates
+        List<String> removeResourceIds = getResourcesForSessionInternal(unbindingSessionContext);
+        if (removeResourceIds.isEmpty()) {
+            return;
+        }
+        SessionData sessionData = boundResources.get(removeResourceIds.get(0));
+        if (sessionData == null) {
+            return;
+        }
+        unbind(sessionData.bareJID, unbindingSessionContext, removeResourceIds);
+    }
+
+    /**
+     * moves all resources bound to a session over to another session of the same entity, keeping their
+     * state and priority. this is done when a new connection takes over a session by resuming its stream.
+     * @return false, if there were no resources to move
+     */
+    public boolean transferSession(SessionContext fromSessionContext, SessionContext toSessionContext) {
+        if (fromSessionContext == null || toSessionContext == null) {
+            throw new IllegalArgumentException("session context cannot be NULL");
+        }
+        List<String> transferResourceIds = getResourcesForSessionInternal(fromSessionContext);
+        if (transferResourceIds.isEmpty()) {
+            return false;
+        }
+        SessionData firstData = boundResources.get(transferResourceIds.get(0));
+        if (firstData == null) {
+            return false;
+        }
+        EntityRecord record = entityResources.get(firstData.bareJID);
+        if (record == null) {
+            return false;
+        }
+        synchronized (record) {
+            if (record.removed) {
+                return false;
+            }
+            transferResourceIds = getResourcesForSessionInternal(fromSessionContext);
+            List<SessionData> resources = new ArrayList<SessionData>(record.snapshot.resources.size());
+            for (SessionData data : record.snapshot.resources) {
+                if (data.context == fromSessionContext) {
+                    data = new SessionData(toSessionContext, data.resourceId, data.bareJID, data.state,
+                            data.priority);
+                    boundResources.put(data.resourceId, data);
                 }
+                resources.add(data);
+            }
+            record.snapshot = new Snapshot(resources);
+
+            List<String> resourceListForSession = new ArrayList<String>(getResourcesForSessionInternal(toSessionContext));
+            resourceListForSession.addAll(transferResourceIds);
+            sessionResources.put(toSessionContext, Collections.unmodifiableList(resourceListForSession));
+            sessionResources.remove(fromSessionContext);
+            logger.info("moved {} resources from session {} to session {}", new Object[] {
+                    transferResourceIds.size(), fromSessionContext.getSessionId(), toSessionContext.getSessionId() });
+        }
+        return !transferResourceIds.isEmpty();
+    }
+
+    private void unbind(Entity bareJID, SessionContext sessionContext, List<String> removeResourceIds) {
+        EntityRecord record = entityResources.get(bareJID);
+        if (record == null) {
+            return;
+        }
+        synchronized (record) {
+            // remove from overall list of bound resource
+            for (String removeResourceId : removeResourceIds) {
+                boundResources.remove(removeResourceId);
+            }
+
+            // remove from entity's resources
+            record.snapshot = record.snapshot.without(removeResourceIds);
+            if (record.snapshot.isEmpty()) {
+                record.removed = true;
+                entityResources.remove(bareJID, record);
+            }
+
+            // remove from session's list of resources
+            List<String> resourceListForSession = new ArrayList<String>(getResourcesForSessionInternal(sessionContext));
+            resourceListForSession.removeAll(removeResourceIds);
+            if (resourceListForSession.isEmpty()) {
+                sessionResources.remove(sessionContext);
+            } else {
+                sessionResources.put(sessionContext, Collections.unmodifiableList(resourceListForSession));
             }
         }
     }
@@ -212,7 +393,7 @@ public class DefaultResourceRegistry implements ResourceRegistry {
     }
 
     public List<String> getResourcesForSession(SessionContext sessionContext) {
-        return Collections.unmodifiableList(getResourcesForSessionInternal(sessionContext));
+        return getResourcesForSessionInternal(sessionContext);
     }
 
     /*package*/List<String> getResourcesForSessionInternal(SessionContext sessionContext) {
@@ -237,12 +418,22 @@ public class DefaultResourceRegistry implements ResourceRegistry {
     }
 
     /**
-     * @param entity
-     * @return all resources bound to this entity modulo the entity's resource
-     *         (if given)
+     * @return the current snapshot of the entity's bare JID
      */
-    private List<String> getResourceList(Entity entity) {
-        return entityResources.get(getBareEntity(entity));
+    private Snapshot getSnapshot(Entity entity) {
+        EntityRecord record = entityResources.get(getBareEntity(entity));
+        return record == null ? Snapshot.EMPTY : record.snapshot;
+    }
+
+    /**
+     * @return the resource's data, if the resource belongs to the entity's bare JID
+     */
+    private SessionData getResourceOf(Entity entity) {
+        SessionData data = boundResources.get(entity.getResource());
+        if (data == null || !data.bareJID.equals(getBareEntity(entity))) {
+            return null;
+        }
+        return data;
     }
 
     /**
@@ -256,16 +447,11 @@ public class DefaultResourceRegistry implements ResourceRegistry {
      * retrieve IDs of all bound resources for this entity
      */
     public List<String> getBoundResources(Entity entity, boolean considerBareID) {
-        // all resources for the entity
-        List<String> resourceList = getResourceList(entity);
-        if (resourceList == null)
-            return Collections.emptyList();
-
         // if resource should not be considered, return all resources
         if (considerBareID || entity.getResource() == null)
-            return Collections.unmodifiableList(resourceList);
+            return getSnapshot(entity).resourceIds;
         // resource not contained, result is empty
-        if (!resourceList.contains(entity.getResource())) {
+        if (getResourceOf(entity) == null) {
             return Collections.emptyList();
         }
         // do we have a bound entity and want only their resource returned?
@@ -276,16 +462,14 @@ public class DefaultResourceRegistry implements ResourceRegistry {
      * retrieves all sessions handling this entity. note: if given entity is not a bare JID, it will return only the
      * session for the JID's resource part. if it's a bare JID, it will return all session for the JID.
      * @param entity
+     * @return an unmodifiable list
      */
     public List<SessionContext> getSessions(Entity entity) {
-        List<SessionContext> sessionContexts = new ArrayList<SessionContext>();
-
-        List<String> boundResources = getBoundResources(entity, false);
-        for (String resourceId : boundResources) {
-            sessionContexts.add(getSessionContext(resourceId));
+        if (entity.getResource() == null) {
+            return getSnapshot(entity).sessions;
         }
-
-        return sessionContexts;
+        SessionData data = getResourceOf(entity);
+        return data == null ? Collections.<SessionContext> emptyList() : data.contextAsList;
     }
 
     /**
@@ -294,24 +478,13 @@ public class DefaultResourceRegistry implements ResourceRegistry {
      * @param entity all session for the bare jid will be considered.
      * @param prioThreshold only resources will be returned having same or higher priority. a common value
      * for the threshold is 0 (zero), which is also the default when param is NULL.
-     * @return returns the sessions matching the given JID (bare) with same or higher priority
+     * @return returns the sessions matching the given JID (bare) with same or higher priority, 
+     * as an unmodifiable list, highest priority first
      */
     public List<SessionContext> getSessions(Entity entity, Integer prioThreshold) {
         if (prioThreshold == null)
             prioThreshold = 0;
-        List<SessionContext> results = new ArrayList<SessionContext>();
-
-        List<String> boundResourceIds = getBoundResources(entity, true);
-        for (String resourceId : boundResourceIds) {
-            SessionData sessionData = boundResources.get(resourceId);
-            if (sessionData == null)
-                continue;
-
-            if (sessionData.priority >= prioThreshold) {
-                results.add(sessionData.context);
-            }
-        }
-        return results;
+        return getSnapshot(entity).getSessions(prioThreshold);
     }
 
     /**
@@ -331,38 +504,21 @@ public class DefaultResourceRegistry implements ResourceRegistry {
      * @param prioThreshold if not NULL, only resources will be returned having same or higher priority. a common value
      * for the threshold is 0 (zero).
      * @return for a bare JID, it will return the highest prioritized sessions. for a full JID, it will return the
-     * related session.
+     * related session. the list is unmodifiable.
      */
     public List<SessionContext> getHighestPrioSessions(Entity entity, Integer prioThreshold) {
-        Integer currentPrio = prioThreshold == null ? Integer.MIN_VALUE : prioThreshold;
-        List<SessionContext> results = new ArrayList<SessionContext>();
-
-        boolean isResourceSet = entity.isResourceSet();
-
-        List<String> boundResourceIds = getBoundResources(entity, false);
-        for (String resourceId : boundResourceIds) {
-            SessionData sessionData = boundResources.get(resourceId);
-            if (sessionData == null)
-                continue;
-
-            if (isResourceSet) {
-                // if resource id matches, there can only be one result
-                // this overrides even parameter prio threshold
-                results.clear();
-                results.add(sessionData.context);
-                return results;
-            }
-
-            if (sessionData.priority > currentPrio) {
-                results.clear(); // discard all accumulated lower prio sessions
-                currentPrio = sessionData.priority;
-                results.add(sessionData.context);
-            } else if (sessionData.priority.intValue() == currentPrio.intValue()) {
-                results.add(sessionData.context);
-            }
+        if (entity.isResourceSet()) {
+            // if resource id matches, there can only be one result
+            // this overrides even parameter prio threshold
+            SessionData data = getResourceOf(entity);
+            return data == null ? Collections.<SessionContext> emptyList() : data.contextAsList;
         }
 
-        return results;
+        Snapshot snapshot = getSnapshot(entity);
+        if (prioThreshold != null && snapshot.highestPriority < prioThreshold) {
+            return Collections.emptyList();
+        }
+        return snapshot.highestPrioSessions;
     }
 
     /**
@@ -379,9 +535,18 @@ public class DefaultResourceRegistry implements ResourceRegistry {
         if (data == null) {
             throw new IllegalArgumentException("resource not registered: " + resourceId);
         }
-        synchronized (data) {
+        EntityRecord record = entityResources.get(data.bareJID);
+        if (record == null) {
+            throw new IllegalArgumentException("resource not registered: " + resourceId);
+        }
+        synchronized (record) {
             boolean result = data.state != state;
+            boolean availabilityChanged = ResourceState.isAvailable(data.state) != ResourceState.isAvailable(state);
             data.state = state;
+            if (availabilityChanged && !record.removed) {
+                // resorts the resources
+                record.snapshot = record.snapshot.rebuild();
+            }
             return result;
         }
     }
@@ -408,18 +573,25 @@ public class DefaultResourceRegistry implements ResourceRegistry {
         SessionData data = boundResources.get(resourceId);
         if (data == null)
             return;
-        data.priority = priority;
+        EntityRecord record = entityResources.get(data.bareJID);
+        if (record == null)
+            return;
+        synchronized (record) {
+            if (data.priority == priority) {
+                return;
+            }
+            data.priority = priority;
+            if (!record.removed) {
+                record.snapshot = record.snapshot.rebuild();
+            }
+        }
     }
 
     public List<String> getInterestedResources(Entity entity) {
-        List<String> resources = getResourceList(entity);
         List<String> result = new ArrayList<String>();
-        if (resources == null) return result;
-        
-        for (String resource : resources) {
-            ResourceState resourceState = getResourceState(resource);
-            if (ResourceState.isInterested(resourceState))
-                result.add(resource);
+        for (SessionData data : getSnapshot(entity).resources) {
+            if (ResourceState.isInterested(data.state))
+                result.add(data.resourceId);
         }
         return result;
     }
@@ -429,14 +601,10 @@ public class DefaultResourceRegistry implements ResourceRegistry {
      * @see org.apache.vysper.xmpp.state.resourcebinding.ResourceState
      */
     public List<String> getAvailableResources(Entity entity) {
-        List<String> resources = getResourceList(entity);
         List<String> result = new ArrayList<String>();
-        if (resources == null) return result;
-
-        for (String resource : resources) {
-            ResourceState resourceState = getResourceState(resource);
-            if (resourceState == AVAILABLE || resourceState == AVAILABLE_INTERESTED) {
-                result.add(resource);
+        for (SessionData data : getSnapshot(entity).resources) {
+            if (ResourceState.isAvailable(data.state)) {
+                result.add(data.resourceId);
             }
         }
         return result;
@@ -36,6 +36,8 @@ public interface ResourceRegistry {
 
     void unbindSession(SessionContext unbindingSessionContext);
 
+    boolean transferSession(SessionContext fromSessionContext, SessionContext toSessionContext);
+
     List<String> getBoundResources(Entity entity);
 
     List<String> getBoundResources(Entity entity, boolean considerBareID);
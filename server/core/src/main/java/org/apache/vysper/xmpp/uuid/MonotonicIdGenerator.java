@@ -0,0 +1,51 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.vysper.xmpp.uuid;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * generates ids from a counter, for internal ids which must be unique but need not be unpredictable. 
+ * ids are unique per generator instance. they start with a random prefix chosen once per JVM, so that they 
+ * don't repeat after a restart.
+ *
+ * @author The Apache MINA Project (dev@mina.apache.org)
+ */
+public class MonotonicIdGenerator implements UUIDGenerator {
+
+    private static final String JVM_PREFIX = new ThreadLocalSecureRandomUUIDGenerator().create().substring(0, 8);
+
+    private final String prefix;
+
+    private final AtomicLong counter = new AtomicLong();
+
+    public MonotonicIdGenerator() {
+        this(JVM_PREFIX);
+    }
+
+    public MonotonicIdGenerator(String prefix) {
+        this.prefix = prefix;
+    }
+
+    public String create() {
+        return prefix + Long.toString(counter.incrementAndGet(), Character.MAX_RADIX);
+    }
+
+}
@@ -0,0 +1,76 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.vysper.xmpp.uuid;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+
+/**
+ * generates unpredictable ids of the same format as {@link JVMBuiltinUUIDGenerator} (32 hex digits, 
+ * 122 of 128 bits random). 
+ * every thread uses its own SHA1PRNG SecureRandom, so threads do not contend for the JVM's shared one 
+ * used by {@link java.util.UUID#randomUUID()}. it is seeded once from the platform's default SecureRandom, 
+ * and afterwards does not read from the system's entropy source for every id, as the default (NativePRNG) does.
+ *
+ * @author The Apache MINA Project (dev@mina.apache.org)
+ */
+public class ThreadLocalSecureRandomUUIDGenerator implements UUIDGenerator {
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private static final String ALGORITHM = "SHA1PRNG";
+
+    private static final int SEED_LENGTH = 32;
+
+    /** only used for seeding */
+    private static final SecureRandom SEED_SOURCE = new SecureRandom();
+
+    private static final ThreadLocal<SecureRandom> RANDOM = new ThreadLocal<SecureRandom>() {
+        @Override
+        protected SecureRandom initialValue() {
+            try {
+                SecureRandom random = SecureRandom.getInstance(ALGORITHM);
+                byte[] seed = new byte[SEED_LENGTH];
+                SEED_SOURCE.nextBytes(seed);
+                // seeding before the first use replaces self-seeding
+                random.setSeed(seed);
+                return random;
+            } catch (NoSuchAlgorithmException e) {
+                return new SecureRandom();
+            }
+        }
+    };
+
+    public String create() {
+        byte[] bytes = new byte[16];
+        RANDOM.get().nextBytes(bytes);
+        // mark as UUID-type 4, like the JVM's UUIDs
+        bytes[6] = (byte) ((bytes[6] & 0x0f) | 0x40);
+        bytes[8] = (byte) ((bytes[8] & 0x3f) | 0x80);
+
+        char[] chars = new char[32];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[2 * i] = HEX_DIGITS[(bytes[i] >> 4) & 0x0f];
+            chars[2 * i + 1] = HEX_DIGITS[bytes[i] & 0x0f];
+        }
+        return new String(chars);
+    }
+
+}
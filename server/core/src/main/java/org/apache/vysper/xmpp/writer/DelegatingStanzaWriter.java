@@ -0,0 +1,39 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.vysper.xmpp.writer;
+
+/**
+ * a response writer filter which forwards to another writer. filters which have to sit closer to the transport
+ * can be inserted below it by replacing its delegate.
+ *
+ * @author The Apache MINA Project (dev@mina.apache.org)
+ */
+public interface DelegatingStanzaWriter extends StanzaWriter {
+
+    /**
+     * @return the writer stanzas are forwarded to
+     */
+    StanzaWriter getDelegate();
+
+    /**
+     * @param delegate the writer to forward stanzas to from now on, must forward to the current delegate
+     */
+    void setDelegate(StanzaWriter delegate);
+}
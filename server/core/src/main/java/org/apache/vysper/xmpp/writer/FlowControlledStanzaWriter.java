@@ -0,0 +1,52 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+
+package org.apache.vysper.xmpp.writer;
+
+/**
+ * a stanza writer which writes asynchronously and tells when the stanzas handed to it have been written out
+ *
+ * @author The Apache MINA Project (dev@mina.apache.org)
+ */
+public interface FlowControlledStanzaWriter extends StanzaWriter {
+
+    /**
+     * notified once the stanzas handed to a writer have been written out, or could not be
+     */
+    interface WriteListener {
+
+        /**
+         * all stanzas written so far have been written out
+         */
+        void written();
+
+        /**
+         * not all stanzas written so far could be written out, for example because the session has ended
+         */
+        void failed();
+    }
+
+    /**
+     * @param listener notified once all stanzas written so far have been written out, or writing them failed. 
+     * @return FALSE, if all stanzas have been written out already. the listener is not notified in this case. 
+     * TRUE, if the listener is notified, which might happen before this method returns. 
+     */
+    boolean whenWritten(WriteListener listener);
+}
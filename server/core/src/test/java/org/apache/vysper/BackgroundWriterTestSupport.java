@@ -0,0 +1,111 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.vysper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.vysper.xmpp.addressing.Entity;
+import org.apache.vysper.xmpp.addressing.EntityImpl;
+import org.apache.vysper.xmpp.stanza.Stanza;
+import org.apache.vysper.xmpp.stanza.StanzaBuilder;
+
+/**
+ * shared fixtures for testing components which hand stanzas to a storage provider in the background
+ */
+public class BackgroundWriterTestSupport {
+
+    public static final Entity FROM = EntityImpl.parseUnchecked("from@vysper.org");
+
+    public static final Entity TO = EntityImpl.parseUnchecked("to@vysper.org");
+
+    public interface Condition {
+        boolean holds();
+    }
+
+    /**
+     * records what a storage provider is called with. if a blocker is set, recording waits for it first, 
+     * which holds the background writer. 
+     */
+    public static class Recorder {
+
+        public final List<String> calls = new ArrayList<String>();
+
+        public final List<List<Stanza>> batches = new ArrayList<List<Stanza>>();
+
+        public final List<Stanza> recorded = new ArrayList<Stanza>();
+
+        public CountDownLatch blocker = null;
+
+        protected void record(String call, List<? extends Stanza> stanzas) {
+            if (blocker != null) {
+                try {
+                    blocker.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    // continue
+                }
+            }
+            synchronized (this) {
+                calls.add(call + " " + stanzas.size());
+                batches.add(new ArrayList<Stanza>(stanzas));
+                recorded.addAll(stanzas);
+            }
+        }
+
+        public synchronized int recordedCount() {
+            return recorded.size();
+        }
+    }
+
+    /**
+     * @return a message from {@link #FROM} to {@link #TO}, with the number as body
+     */
+    public static Stanza createMessage(int i) {
+        return StanzaBuilder.createMessageStanza(FROM, TO, "en", Integer.toString(i)).build();
+    }
+
+    /**
+     * polls the condition until it holds or the timeout has passed
+     * @return whether the condition holds
+     */
+    public static boolean waitFor(Condition condition, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (!condition.holds()) {
+            if (System.currentTimeMillis() >= deadline)
+                return false;
+            Thread.sleep(10);
+        }
+        return true;
+    }
+
+    /**
+     * waits until the recorder has seen at least the given number of stanzas, or the timeout has passed
+     */
+    public static void waitForRecorded(final Recorder recorder, final int count, long timeoutMillis)
+            throws InterruptedException {
+        waitFor(new Condition() {
+            public boolean holds() {
+                return recorder.recordedCount() >= count;
+            }
+        }, timeoutMillis);
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.vysper.mina;
+
+import junit.framework.TestCase;
+
+import org.apache.vysper.mina.codec.MockIoSession;
+import org.apache.vysper.xmpp.stanza.Stanza;
+import org.apache.vysper.xmpp.stanza.StanzaBuilder;
+
+/**
+ */
+public class StageLatencyFilterTestCase extends TestCase {
+
+    private MockIoSession session;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        session = new MockIoSession();
+        session.getFilterChain().addLast("stageLatency", new StageLatencyFilter());
+    }
+
+    public void testNoTimestampBeforeFirstStanza() {
+        assertEquals(-1, StageLatencyFilter.pollDecodedTimestamp(session));
+    }
+
+    public void testTimestampsArePolledInOrder() {
+        Stanza stanza = new StanzaBuilder("message").build();
+        long before = System.nanoTime();
+        session.getFilterChain().fireMessageReceived(stanza);
+        session.getFilterChain().fireMessageReceived(stanza);
+        long after = System.nanoTime();
+
+        long first = StageLatencyFilter.pollDecodedTimestamp(session);
+        long second = StageLatencyFilter.pollDecodedTimestamp(session);
+        assertTrue(first >= before);
+        assertTrue(second >= first);
+        assertTrue(second <= after);
+        assertEquals(-1, StageLatencyFilter.pollDecodedTimestamp(session));
+    }
+
+    public void testOnlyStanzasAreTimestamped() {
+        session.getFilterChain().fireMessageReceived("not a stanza");
+        assertEquals(-1, StageLatencyFilter.pollDecodedTimestamp(session));
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.vysper.storage.logstanzas;
+
+import static org.apache.vysper.BackgroundWriterTestSupport.TO;
+import static org.apache.vysper.BackgroundWriterTestSupport.createMessage;
+import static org.apache.vysper.BackgroundWriterTestSupport.waitFor;
+import static org.apache.vysper.BackgroundWriterTestSupport.waitForRecorded;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.TestCase;
+
+import org.apache.vysper.BackgroundWriterTestSupport;
+import org.apache.vysper.xmpp.addressing.Entity;
+import org.apache.vysper.xmpp.stanza.Stanza;
+
+/**
+ */
+public class AsyncLogStorageProviderTestCase extends TestCase {
+
+    private static class RecordingProvider extends BackgroundWriterTestSupport.Recorder implements
+            BatchLogStorageProvider {
+
+        final List<Entity> receivers = Collections.synchronizedList(new ArrayList<Entity>());
+
+        public void logStanzas(List<Entry> entries) {
+            List<Stanza> stanzas = new ArrayList<Stanza>();
+            for (Entry entry : entries) {
+                receivers.add(entry.getReceiver());
+                stanzas.add(entry.getStanza());
+            }
+            record("logStanzas", stanzas);
+        }
+
+        public void logStanza(Entity receiver, Stanza stanza) {
+            receivers.add(receiver);
+            record("logStanza", Collections.singletonList(stanza));
+        }
+    }
+
+    private void waitUntilTaken(final AsyncLogStorageProvider asyncProvider) throws InterruptedException {
+        waitFor(new BackgroundWriterTestSupport.Condition() {
+            public boolean holds() {
+                return asyncProvider.getBuffered() == 0;
+            }
+        }, 2000);
+    }
+
+    public void testLogsInBackground() throws InterruptedException {
+        RecordingProvider provider = new RecordingProvider();
+        AsyncLogStorageProvider asyncProvider = new AsyncLogStorageProvider(provider);
+
+        for (int i = 0; i < 50; i++) {
+            asyncProvider.logStanza(TO, createMessage(i));
+        }
+        waitForRecorded(provider, 50, 2000);
+        assertEquals(50, provider.recordedCount());
+        assertEquals(TO, provider.receivers.get(0));
+        assertEquals(50, asyncProvider.getLoggedCount());
+
+        asyncProvider.stop();
+        asyncProvider.logStanza(TO, createMessage(50));
+        assertEquals(51, provider.recordedCount());
+    }
+
+    public void testDropWhenFull() throws InterruptedException {
+        RecordingProvider provider = new RecordingProvider();
+        provider.blocker = new CountDownLatch(1);
+        AsyncLogStorageProvider asyncProvider = new AsyncLogStorageProvider(provider, 2, 1);
+        asyncProvider.setBatchSize(1);
+        asyncProvider.setOverflowPolicy(AsyncLogStorageProvider.OverflowPolicy.DROP);
+
+        // the first stanza blocks the writer, the next two fill the buffer
+        asyncProvider.logStanza(TO, createMessage(0));
+        waitUntilTaken(asyncProvider);
+        asyncProvider.logStanza(TO, createMessage(1));
+        asyncProvider.logStanza(TO, createMessage(2));
+        asyncProvider.logStanza(TO, createMessage(3));
+        assertEquals(1, asyncProvider.getDroppedCount());
+
+        provider.blocker.countDown();
+        asyncProvider.stop();
+        assertEquals(3, provider.recordedCount());
+        assertEquals(0, asyncProvider.getBuffered());
+    }
+
+    public void testBlockWhenFull() throws InterruptedException {
+        RecordingProvider provider = new RecordingProvider();
+        provider.blocker = new CountDownLatch(1);
+        final AsyncLogStorageProvider asyncProvider = new AsyncLogStorageProvider(provider, 2, 1);
+        asyncProvider.setBatchSize(1);
+        asyncProvider.setOverflowPolicy(AsyncLogStorageProvider.OverflowPolicy.BLOCK);
+
+        asyncProvider.logStanza(TO, createMessage(0));
+        waitUntilTaken(asyncProvider);
+        asyncProvider.logStanza(TO, createMessage(1));
+        asyncProvider.logStanza(TO, createMessage(2));
+
+        Thread blocked = new Thread() {
+            @Override
+            public void run() {
+                asyncProvider.logStanza(TO, createMessage(3));
+            }
+        };
+        blocked.start();
+        blocked.join(200);
+        assertTrue("waiting for space in the buffer", blocked.isAlive());
+
+        provider.blocker.countDown();
+        blocked.join(2000);
+        assertFalse(blocked.isAlive());
+        asyncProvider.stop();
+        assertEquals(4, provider.recordedCount());
+        assertEquals(0, asyncProvider.getDroppedCount());
+        assertEquals(1, asyncProvider.getBlockedCount());
+    }
+}
@@ -28,22 +28,38 @@ import org.apache.vysper.xmpp.addressing.EntityFormatException;
 import org.apache.vysper.xmpp.addressing.EntityImpl;
 import org.apache.vysper.xmpp.authentication.AccountCreationException;
 import org.apache.vysper.xmpp.authentication.AccountManagement;
+import org.apache.vysper.xmpp.delivery.failure.DeliveredToOfflineReceiverException;
+import org.apache.vysper.xmpp.delivery.failure.DeliveryFailureStrategy;
 import org.apache.vysper.xmpp.delivery.failure.DeliveryException;
 import org.apache.vysper.xmpp.delivery.failure.IgnoreFailureStrategy;
+import org.apache.vysper.xmpp.delivery.failure.OfflineStorageQuotaExceededException;
+import org.apache.vysper.xmpp.delivery.failure.PartialDeliveryException;
 import org.apache.vysper.xmpp.delivery.failure.ServiceNotAvailableException;
+import org.apache.vysper.xmpp.modules.extension.xep0160_offline_storage.MemoryOfflineStorageProvider;
+import org.apache.vysper.xmpp.modules.extension.xep0160_offline_storage.OfflineStorageQuota;
 import org.apache.vysper.xmpp.server.DefaultServerRuntimeContext;
 import org.apache.vysper.xmpp.server.SessionState;
 import org.apache.vysper.xmpp.server.TestSessionContext;
+import org.apache.vysper.xmpp.server.resources.StanzaLane;
+import org.apache.vysper.xmpp.server.resources.StanzaLaneQueue;
 import org.apache.vysper.xmpp.stanza.Stanza;
 import org.apache.vysper.xmpp.stanza.StanzaBuilder;
 import org.apache.vysper.xmpp.state.resourcebinding.BindException;
 import org.apache.vysper.xmpp.state.resourcebinding.DefaultResourceRegistry;
 import org.apache.vysper.xmpp.state.resourcebinding.ResourceRegistry;
 
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  */
@@ -101,6 +117,60 @@ public class DeliveringInteralInboundStanzaRelayTestCase extends TestCase {
         }
     }
 
+    public void testRelayToMany() throws XMLSemanticError, DeliveryException {
+        DefaultServerRuntimeContext serverRuntimeContext = new DefaultServerRuntimeContext(null, null);
+        stanzaRelay.setServerRuntimeContext(serverRuntimeContext);
+        stanzaRelay.setFanOutGroupSize(2);
+
+        List<Entity> receivers = new ArrayList<Entity>();
+        List<TestSessionContext> sessionContexts = new ArrayList<TestSessionContext>();
+        for (int i = 0; i < 5; i++) {
+            Entity receiver = EntityImpl.parseUnchecked("user" + i + "@vysper.org");
+            TestSessionContext sessionContext = TestSessionContext.createSessionContext(receiver);
+            sessionContext.setSessionState(SessionState.AUTHENTICATED);
+            resourceRegistry.bindSession(sessionContext);
+            receivers.add(receiver);
+            sessionContexts.add(sessionContext);
+        }
+
+        // the first receiver has a pending stanza, which must be delivered before the broadcast
+        Stanza first = StanzaBuilder.createMessageStanza(FROM_ENTITY, receivers.get(0), "en", "first").build();
+        stanzaRelay.relay(receivers.get(0), first, new IgnoreFailureStrategy());
+
+        Stanza stanza = StanzaBuilder.createMessageStanza(FROM_ENTITY, TO_ENTITY, "en", "Hello").build();
+        stanzaRelay.relayToMany(receivers, stanza, new IgnoreFailureStrategy());
+
+        assertEquals("first", sessionContexts.get(0).getNextRecordedResponse(1000).getSingleInnerElementsNamed(
+                "body").getSingleInnerText().getText());
+        for (int i = 0; i < receivers.size(); i++) {
+            Stanza recordedStanza = sessionContexts.get(i).getNextRecordedResponse(1000);
+            assertNotNull("stanza delivered", recordedStanza);
+            assertEquals(receivers.get(i).getFullQualifiedName(), recordedStanza.getAttributeValue("to"));
+            assertEquals("Hello", recordedStanza.getSingleInnerElementsNamed("body").getSingleInnerText().getText());
+        }
+    }
+
+    public void testOfflineQuotaExceeded() throws Exception {
+        MemoryOfflineStorageProvider offlineStorage = new MemoryOfflineStorageProvider();
+        offlineStorage.setQuota(new OfflineStorageQuota(1, 0, OfflineStorageQuota.Policy.BOUNCE));
+        DeliveringInternalInboundStanzaRelay relay = new DeliveringInternalInboundStanzaRelay(EntityImpl
+                .parse("vysper.org"), resourceRegistry, accountVerification, offlineStorage);
+        relay.setServerRuntimeContext(new DefaultServerRuntimeContext(null, null));
+
+        RecordingDeliveryFailureStrategy stored = new RecordingDeliveryFailureStrategy();
+        relay.relay(TO_ENTITY, StanzaBuilder.createMessageStanza(FROM_ENTITY, TO_ENTITY, "en", "1").build(), stored);
+        RecordingDeliveryFailureStrategy bounced = new RecordingDeliveryFailureStrategy();
+        relay.relay(TO_ENTITY, StanzaBuilder.createMessageStanza(FROM_ENTITY, TO_ENTITY, "en", "2").build(), bounced);
+
+        for (int i = 0; i < 100 && bounced.getRecordedDeliveryException() == null; i++) {
+            Thread.sleep(10);
+        }
+        assertTrue(stored.getRecordedDeliveryException().get(0) instanceof DeliveredToOfflineReceiverException);
+        assertTrue(bounced.getRecordedDeliveryException().get(0) instanceof OfflineStorageQuotaExceededException);
+        assertEquals(1, offlineStorage.getStoredCount(TO_ENTITY));
+        relay.stop();
+    }
+
     public void testSimpleRelayToUnboundSession() throws EntityFormatException, XMLSemanticError, DeliveryException {
         TestSessionContext sessionContext = TestSessionContext.createSessionContext(TO_ENTITY);
         String resource = resourceRegistry.bindSession(sessionContext);
@@ -246,19 +316,144 @@ public class DeliveringInteralInboundStanzaRelayTestCase extends TestCase {
             stanzaRelay.relay(TO_ENTITY, stanza, null);
         }
 
-        /*
-        our handling currently does not enforce strict ordered delivery (for example by session). 
-        If stanzas A and B enter the Relay's queue in that order, we only ensure that processing is started in 
-        that order. However, it might as well happen that B is processed in parallel to A, and even exits 
-        before A.
-        */
-
+        // stanzas to the same recipient are relayed one after the other, regardless of the thread count, 
+        // see VYSPER-337
         for (int i = 0; i < STANZA_COUNT; i++) {
             final Stanza nextResponse = sessionContext.getNextRecordedResponse(100);
-            boolean matches = ("" + i).equals(nextResponse.getSingleInnerElementsNamed("body").getSingleInnerText().getText());
-            if (!matches) return; // succeed
+            assertEquals("" + i, nextResponse.getSingleInnerElementsNamed("body").getSingleInnerText().getText());
+        }
+    }
+
+    public void testRecipientLanesInThreadPoolInfo() throws DeliveryException, IOException {
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 1, TimeUnit.MINUTES,
+                new LinkedBlockingQueue<Runnable>());
+        executor.execute(new Runnable() {
+            public void run() {
+                try {
+                    blocked.await();
+                } catch (InterruptedException e) {
+                    // exit
+                }
+            }
+        });
+        DeliveringInternalInboundStanzaRelay relay = new DeliveringInternalInboundStanzaRelay(executor);
+
+        for (int i = 0; i < 3; i++) {
+            Stanza stanza = StanzaBuilder.createMessageStanza(FROM_ENTITY, TO_ENTITY, "en", "" + i).build();
+            relay.relay(TO_ENTITY, stanza, null);
+        }
+        StringWriter writer = new StringWriter();
+        relay.dumpThreadPoolInfo(writer);
+        blocked.countDown();
+        executor.shutdown();
+
+        String info = writer.toString();
+        assertTrue(info, info.contains("recipientLanes=\t1\n"));
+        assertTrue(info, info.contains("maxLaneDepth=\t3 (" + TO_ENTITY.getFullQualifiedName() + ")"));
+    }
+
+    public void testRecipientLaneIsBounded() throws DeliveryException, IOException {
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 1, TimeUnit.MINUTES,
+                new LinkedBlockingQueue<Runnable>());
+        executor.execute(new Runnable() {
+            public void run() {
+                try {
+                    blocked.await();
+                } catch (InterruptedException e) {
+                    // exit
+                }
+            }
+        });
+        DeliveringInternalInboundStanzaRelay relay = new DeliveringInternalInboundStanzaRelay(executor);
+        relay.setRecipientLaneCapacity(StanzaLane.MESSAGE, 2);
+
+        try {
+            for (int i = 0; i < 2; i++) {
+                relay.relay(TO_ENTITY, StanzaBuilder.createMessageStanza(FROM_ENTITY, TO_ENTITY, "en", "" + i)
+                        .build(), null);
+            }
+            try {
+                relay.relay(TO_ENTITY, StanzaBuilder.createMessageStanza(FROM_ENTITY, TO_ENTITY, "en", "full")
+                        .build(), null);
+                fail("recipient lane is full");
+            } catch (ServiceNotAvailableException e) {
+                // expected
+            }
+            // other lanes and other recipients are not affected
+            relay.relay(TO_ENTITY, StanzaBuilder.createPresenceStanza(FROM_ENTITY, TO_ENTITY, null, null, null, 
+                    null).build(), null);
+
+            // fan-outs apply the failure strategy to the receiver with the full lane
+            final List<Stanza> bounced = new ArrayList<Stanza>();
+            DeliveryFailureStrategy recordingStrategy = new DeliveryFailureStrategy() {
+                public void process(Stanza failedToDeliverStanza, List<DeliveryException> deliveryException) {
+                    bounced.add(failedToDeliverStanza);
+                }
+            };
+            try {
+                relay.relayToMany(Arrays.asList(TO_ENTITY, EntityImpl.parseUnchecked("other@vysper.org")), StanzaBuilder.createMessageStanza(FROM_ENTITY,
+                        TO_ENTITY, "en", "many").build(), recordingStrategy);
+                fail("one receiver failed");
+            } catch (PartialDeliveryException e) {
+                assertEquals(1, e.getFailures().size());
+                assertTrue(e.getFailures().get(TO_ENTITY) instanceof ServiceNotAvailableException);
+            }
+            assertEquals(1, bounced.size());
+            assertEquals(TO_ENTITY, bounced.get(0).getTo());
+            assertEquals(2, relay.getRecipientLaneRejects());
+
+            StringWriter writer = new StringWriter();
+            relay.dumpThreadPoolInfo(writer);
+            assertTrue(writer.toString().contains("laneRejects=\t2\n"));
+        } finally {
+            blocked.countDown();
+            executor.shutdown();
+        }
+    }
+
+    public void testFanOutIsChargedPerReceiver() throws DeliveryException {
+        final CountDownLatch blocked = new CountDownLatch(1);
+        StanzaLaneQueue queue = new StanzaLaneQueue();
+        queue.setCapacity(StanzaLane.MESSAGE, 3);
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 1, TimeUnit.MINUTES, queue);
+        executor.execute(new Runnable() {
+            public void run() {
+                try {
+                    blocked.await();
+                } catch (InterruptedException e) {
+                    // exit
+                }
+            }
+        });
+        DeliveringInternalInboundStanzaRelay relay = new DeliveringInternalInboundStanzaRelay(executor);
+        relay.setFanOutGroupSize(2);
+
+        List<Entity> receivers = new ArrayList<Entity>();
+        for (int i = 0; i < 5; i++) {
+            receivers.add(EntityImpl.parseUnchecked("user" + i + "@vysper.org"));
+        }
+        final List<Stanza> bounced = new ArrayList<Stanza>();
+        DeliveryFailureStrategy recordingStrategy = new DeliveryFailureStrategy() {
+            public void process(Stanza failedToDeliverStanza, List<DeliveryException> deliveryException) {
+                bounced.add(failedToDeliverStanza);
+            }
+        };
+        try {
+            relay.relayToMany(receivers, StanzaBuilder.createMessageStanza(FROM_ENTITY, TO_ENTITY, "en", "many")
+                    .build(), recordingStrategy);
+            fail("second group exceeds the lane capacity");
+        } catch (PartialDeliveryException e) {
+            // the first group takes 2 of 3, the second one does not fit anymore, the last one does
+            assertEquals(Arrays.asList(receivers.get(2), receivers.get(3)), new ArrayList<Entity>(e.getFailures()
+                    .keySet()));
+            assertEquals(3, queue.getLoad(StanzaLane.MESSAGE));
+            assertEquals(2, bounced.size());
+            assertEquals(receivers.get(2), bounced.get(0).getTo());
+        } finally {
+            blocked.countDown();
+            executor.shutdown();
         }
-        Assert.fail("delivered in sequence is unexpected, see VYSPER-337");
     }
-    
 }
@@ -20,9 +20,15 @@
 
 package org.apache.vysper.xmpp.modules.core.base.handler;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import junit.framework.TestCase;
 
+import org.apache.vysper.xml.fragment.XMLElement;
 import org.apache.vysper.xml.fragment.XMLElementVerifier;
+import org.apache.vysper.xml.fragment.XMLFragment;
+import org.apache.vysper.xml.fragment.XMLText;
 import org.apache.vysper.xmpp.addressing.Entity;
 import org.apache.vysper.xmpp.addressing.EntityFormatException;
 import org.apache.vysper.xmpp.addressing.EntityImpl;
@@ -30,9 +36,13 @@ import org.apache.vysper.xmpp.delivery.StanzaReceiverQueue;
 import org.apache.vysper.xmpp.delivery.StanzaReceiverRelay;
 import org.apache.vysper.xmpp.delivery.failure.DeliveryException;
 import org.apache.vysper.xmpp.modules.core.TestUser;
+import org.apache.vysper.xmpp.modules.extension.mobile_device_metadata.MessageStanzaRelayFilterService;
+import org.apache.vysper.xmpp.modules.extension.xep0184_message_receipts.RecentMessageIndex;
 import org.apache.vysper.xmpp.protocol.NamespaceURIs;
 import org.apache.vysper.xmpp.protocol.ResponseStanzaContainer;
 import org.apache.vysper.xmpp.protocol.SessionStateHolder;
+import org.apache.vysper.xmpp.server.DefaultServerRuntimeContext;
+import org.apache.vysper.xmpp.server.SessionContext;
 import org.apache.vysper.xmpp.server.TestSessionContext;
 import org.apache.vysper.xmpp.stanza.Stanza;
 import org.apache.vysper.xmpp.stanza.StanzaBuilder;
@@ -105,6 +115,46 @@ public class MessageHandlerRelayTestCase extends TestCase {
 
     }
 
+    public void testReceiptRewrittenWithTextNodes() {
+        final List<Stanza> filtered = new ArrayList<Stanza>();
+        ((DefaultServerRuntimeContext) senderSessionContext.getServerRuntimeContext())
+                .registerServerRuntimeContextService(new MessageStanzaRelayFilterService() {
+                    public boolean proceedOutboundRelay(Stanza stanza, SessionContext sessionContext) {
+                        filtered.add(stanza);
+                        return true;
+                    }
+
+                    public String getServiceName() {
+                        return MessageStanzaRelayFilterService.SERVICE_NAME;
+                    }
+                });
+        RecentMessageIndex recentMessageIndex = new RecentMessageIndex();
+        ((DefaultServerRuntimeContext) senderSessionContext.getServerRuntimeContext())
+                .registerServerRuntimeContextService(recentMessageIndex);
+        recentMessageIndex.put(sender.getFullQualifiedName(), "msg1", "someone@example.com/res", 12345);
+
+        StanzaBuilder stanzaBuilder = new StanzaBuilder("message", NamespaceURIs.JABBER_SERVER);
+        stanzaBuilder.addAttribute("to", receiverUser.getEntity().getBareJID().getFullQualifiedName());
+        stanzaBuilder.addText("before");
+        stanzaBuilder.startInnerElement("received", "urn:xmpp:receipts").addAttribute("id", "msg1")
+                .endInnerElement();
+        stanzaBuilder.addText("after");
+
+        senderSessionContext.setClientToServer();
+        messageHandler.execute(stanzaBuilder.build(), senderSessionContext.getServerRuntimeContext(), true,
+                senderSessionContext, null);
+
+        assertEquals(1, filtered.size());
+        List<XMLFragment> fragments = filtered.get(0).getInnerFragments();
+        assertEquals(3, fragments.size());
+        assertEquals("before", ((XMLText) fragments.get(0)).getText());
+        XMLElement received = (XMLElement) fragments.get(1);
+        assertEquals("msg1", received.getAttributeValue("id"));
+        assertEquals("12345", received.getAttributeValue(MessageHandler.SERVER_DELIVERY_TIME));
+        assertEquals("after", ((XMLText) fragments.get(2)).getText());
+        assertEquals(1, recentMessageIndex.getHitCount());
+    }
+
     public void testStanzaReceiverUnavailable() throws EntityFormatException, DeliveryException {
         Entity sender = EntityImpl.parse("from@example.com/resID");
         Entity receiver = EntityImpl.parse("to_exist@example.com");
@@ -21,10 +21,17 @@
 package org.apache.vysper.xmpp.modules.core.im.handler;
 
 import static org.apache.vysper.xmpp.stanza.PresenceStanzaType.PROBE;
+import static org.apache.vysper.xmpp.stanza.PresenceStanzaType.UNAVAILABLE;
 
 import org.apache.vysper.xml.fragment.XMLSemanticError;
+import org.apache.vysper.xmpp.addressing.Entity;
 import org.apache.vysper.xmpp.addressing.EntityFormatException;
+import org.apache.vysper.xmpp.addressing.EntityImpl;
 import org.apache.vysper.xmpp.delivery.StanzaReceiverRelay;
+import org.apache.vysper.xmpp.modules.core.TestUser;
+import org.apache.vysper.xmpp.modules.roster.RosterItem;
+import org.apache.vysper.xmpp.modules.roster.SubscriptionType;
+import org.apache.vysper.xmpp.stanza.PresenceStanza;
 import org.apache.vysper.xmpp.stanza.Stanza;
 import org.apache.vysper.xmpp.stanza.StanzaBuilder;
 import org.apache.vysper.xmpp.stanza.StanzaErrorCondition;
@@ -94,6 +101,43 @@ public class PresenceAvailInitialOutHandlerTestCase extends PresenceHandlerBaseT
         assertNull(subscribed_TO.getNextStanza()); // pres NOT sent to TO contacts
     }
 
+    public void testLocalProbesAnsweredFromCache() throws Exception {
+        // contacts hosted on this server, which are subscribed to the initiating user's presence, too
+        TestUser local_TO = TestUser.createContact(sessionContext, rosterManager, "local_to@test", SubscriptionType.TO);
+        TestUser local_BOTH = TestUser.createContact(sessionContext, rosterManager, "local_both@test",
+                SubscriptionType.BOTH);
+        rosterManager.addContact(local_TO.getEntity(), new RosterItem(initiatingUser.getEntity(), SubscriptionType.FROM));
+        rosterManager.addContact(local_BOTH.getEntity(), new RosterItem(initiatingUser.getEntity(),
+                SubscriptionType.BOTH));
+        // only local_TO is online
+        Entity contactResource = new EntityImpl(local_TO.getEntity(), "phone");
+        sessionContext.getServerRuntimeContext().getPresenceCache().put(
+                contactResource,
+                (PresenceStanza) XMPPCoreStanza.getWrapper(StanzaBuilder.createPresenceStanza(contactResource, null,
+                        null, null, "away", null).build()));
+
+        XMPPCoreStanza initialPresence = XMPPCoreStanza.getWrapper(StanzaBuilder.createPresenceStanza(
+                initiatingUser.getEntityFQ(), null, null, null, null, null).build());
+        handler.executeCore(initialPresence, sessionContext.getServerRuntimeContext(), true, sessionContext);
+
+        // 3 intial presence broadcasts to same session + 3 presence to subscribers + 2 probes to remote subscriptions
+        assertEquals(3 + 3 + 2, ((StanzaReceiverRelay) sessionContext.getServerRuntimeContext().getStanzaRelay())
+                .getCountDelivered());
+        assertTrue(checkPresence(local_BOTH.getNextStanza(), initiatingUser.getEntityFQ(), null));
+        assertNull(local_BOTH.getNextStanza()); // no probe
+        assertNull(local_TO.getNextStanza()); // no probe
+        assertTrue(checkPresence(subscribed_TO.getNextStanza(), initiatingUser.getEntityFQ(), PROBE));
+
+        // answers have been written to the probing session directly
+        Stanza answer = sessionContext.getNextRecordedResponse();
+        assertTrue(checkPresence(answer, local_TO.getEntity(), null));
+        assertTrue(answer.getVerifier().toAttributeEquals(initiatingUser.getEntityFQ().getFullQualifiedName()));
+        assertEquals("away", ((PresenceStanza) XMPPCoreStanza.getWrapper(answer)).getShow());
+        answer = sessionContext.getNextRecordedResponse();
+        assertTrue(checkPresence(answer, local_BOTH.getEntity(), UNAVAILABLE));
+        assertNull(sessionContext.getNextRecordedResponse());
+    }
+
     public void testInitialPresenceWithoutFrom() throws BindException, EntityFormatException, XMLSemanticError {
         // after setUp(), there is more than one bound resource
         // so, if leaving from == null, the handler will not know from which resource the presence really comes...
@@ -22,9 +22,11 @@ package org.apache.vysper.xmpp.modules.core.im.handler;
 
 import org.apache.vysper.xmpp.addressing.EntityFormatException;
 import org.apache.vysper.xmpp.delivery.StanzaReceiverRelay;
+import org.apache.vysper.xmpp.stanza.PresenceStanza;
 import org.apache.vysper.xmpp.stanza.Stanza;
 import org.apache.vysper.xmpp.stanza.StanzaBuilder;
 import org.apache.vysper.xmpp.stanza.XMPPCoreStanza;
+import org.apache.vysper.xmpp.state.presence.PresenceDamper;
 import org.apache.vysper.xmpp.state.resourcebinding.BindException;
 import org.apache.vysper.xmpp.state.resourcebinding.ResourceState;
 
@@ -100,4 +102,58 @@ public class PresenceAvailUpdateOutHandlerTestCase extends PresenceHandlerBaseTe
         assertNull(subscribed_TO.getNextStanza()); // pres (especially probe)  NOT sent to TO contacts
     }
 
+    public void testDuplicatePresenceSuppressed() throws BindException, EntityFormatException {
+        StanzaReceiverRelay receiverRelay = (StanzaReceiverRelay) sessionContext.getServerRuntimeContext()
+                .getStanzaRelay();
+
+        sendPresence(null);
+        sendPresence("away");
+        resetRecordedStanzas();
+
+        // same again
+        sendPresence("away");
+        assertEquals(0, receiverRelay.getCountDelivered());
+
+        // changed again
+        sendPresence("dnd");
+        assertEquals(3 + 2, receiverRelay.getCountDelivered());
+    }
+
+    public void testDampedPresenceUpdates() throws Exception {
+        StanzaReceiverRelay receiverRelay = (StanzaReceiverRelay) sessionContext.getServerRuntimeContext()
+                .getStanzaRelay();
+        PresenceDamper damper = new PresenceDamper(300);
+        sessionContext.getServerRuntimeContext().registerServerRuntimeContextService(damper);
+        try {
+            sendPresence(null);
+            resetRecordedStanzas();
+
+            // within the damping window after the initial presence, updates are held back
+            sendPresence("away");
+            sendPresence("dnd");
+            assertEquals(0, receiverRelay.getCountDelivered());
+            assertEquals(2, damper.getDeferredCount());
+            assertEquals(1, damper.getCoalescedCount());
+
+            // only the latest one goes out after the window
+            long timeout = System.currentTimeMillis() + 5000;
+            while (receiverRelay.getCountDelivered() < 3 + 2 && System.currentTimeMillis() < timeout) {
+                Thread.sleep(20);
+            }
+            assertEquals(3 + 2, receiverRelay.getCountDelivered());
+            Stanza notification = subscribed_FROM.getNextStanza();
+            assertTrue(checkPresence(notification, initiatingUser.getEntityFQ(), null));
+            assertEquals("dnd", ((PresenceStanza) XMPPCoreStanza.getWrapper(notification)).getShow());
+            assertNull(subscribed_FROM.getNextStanza());
+        } finally {
+            damper.close();
+        }
+    }
+
+    private void sendPresence(String showValue) {
+        XMPPCoreStanza presence = XMPPCoreStanza.getWrapper(StanzaBuilder.createPresenceStanza(
+                initiatingUser.getEntityFQ(), null, null, null, showValue, null).build());
+        handler.executeCore(presence, sessionContext.getServerRuntimeContext(), true, sessionContext);
+    }
+
 }
@@ -0,0 +1,245 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.vysper.xmpp.modules.extension.xep0160_offline_storage;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.vysper.xml.fragment.XMLSemanticError;
+import org.apache.vysper.xmpp.addressing.Entity;
+import org.apache.vysper.xmpp.addressing.EntityImpl;
+import org.apache.vysper.xmpp.stanza.MessageStanza;
+import org.apache.vysper.xmpp.stanza.Stanza;
+import org.apache.vysper.xmpp.stanza.StanzaBuilder;
+
+/**
+ */
+public class FileOfflineStorageProviderTestCase extends TestCase {
+
+    private static final Entity FROM = EntityImpl.parseUnchecked("from@vysper.org/res");
+
+    private static final Entity TO = EntityImpl.parseUnchecked("to@vysper.org/res");
+
+    private static final Entity OTHER = EntityImpl.parseUnchecked("other@vysper.org");
+
+    private File directory;
+
+    private FileOfflineStorageProvider provider;
+
+    @Override
+    protected void setUp() throws Exception {
+        directory = File.createTempFile("offline", "");
+        directory.delete();
+        provider = new FileOfflineStorageProvider(directory);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        provider.close();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    private Stanza message(Entity to, String body) {
+        return StanzaBuilder.createMessageStanza(FROM, to, null, body).build();
+    }
+
+    private List<String> bodies(Collection<Stanza> stanzas) throws XMLSemanticError {
+        List<String> bodies = new ArrayList<String>();
+        for (Stanza stanza : stanzas) {
+            assertTrue(stanza instanceof MessageStanza);
+            assertEquals(FROM, stanza.getFrom());
+            bodies.add(((MessageStanza) stanza).getBody(null));
+        }
+        return bodies;
+    }
+
+    private FileOfflineStorageProvider restart() throws IOException {
+        provider.close();
+        provider = new FileOfflineStorageProvider(directory);
+        return provider;
+    }
+
+    public void testStoreAndRetrieve() throws Exception {
+        provider.receive(message(TO, "one"));
+        provider.receive(message(OTHER, "other"));
+        provider.receive(message(TO, "two"));
+
+        assertEquals(2, provider.getPendingCount(TO));
+        assertEquals(2, bodies(provider.getStanzasFor(TO)).size());
+        assertEquals(0, provider.getStanzasFor(TO).size());
+        assertEquals("[other]", bodies(provider.getStanzasFor(OTHER)).toString());
+    }
+
+    public void testRetrieveInOrder() throws Exception {
+        provider.receive(message(TO, "one"));
+        provider.receive(message(TO, "two"));
+        provider.receive(message(TO, "three"));
+
+        assertEquals("[one, two, three]", bodies(provider.getStanzasFor(TO)).toString());
+    }
+
+    public void testPendingStanzasSurviveRestart() throws Exception {
+        provider.receive(message(TO, "one"));
+        provider.receive(message(OTHER, "other"));
+        provider.receive(message(TO, "two"));
+        provider.getStanzasFor(OTHER);
+
+        restart();
+        assertEquals(0, provider.getPendingCount(OTHER));
+        assertEquals("[one, two]", bodies(provider.getStanzasFor(TO)).toString());
+
+        // retrieved stanzas stay retrieved
+        restart();
+        assertEquals(0, provider.getStanzasFor(TO).size());
+
+        provider.receive(message(TO, "three"));
+        restart();
+        assertEquals("[three]", bodies(provider.getStanzasFor(TO)).toString());
+    }
+
+    public void testRetrievedSegmentsAreDeleted() throws Exception {
+        provider.setMaxSegmentBytes(1);
+        provider.receive(message(TO, "one"));
+        provider.receive(message(TO, "two"));
+        provider.receive(message(OTHER, "other"));
+        assertEquals(3, provider.getSegmentCount());
+
+        provider.getStanzasFor(TO);
+        provider.maintain();
+        assertEquals(2, provider.getSegmentCount());
+        assertEquals("[other]", bodies(provider.getStanzasFor(OTHER)).toString());
+    }
+
+    public void testCompaction() throws Exception {
+        provider.setMaxSegmentBytes(1024 * 1024);
+        provider.receive(message(TO, "one"));
+        provider.receive(message(OTHER, "other1"));
+        provider.receive(message(OTHER, "other2"));
+        provider.receive(message(TO, "two"));
+        provider.getStanzasFor(OTHER);
+
+        // seal the segment, half of its stanzas are pending
+        provider.setMaxSegmentBytes(1);
+        provider.receive(message(OTHER, "other3"));
+        provider.setMaxSegmentBytes(1024 * 1024);
+        provider.maintain();
+        assertEquals(1, provider.getSegmentCount());
+
+        restart();
+        assertEquals("[one, two]", bodies(provider.getStanzasFor(TO)).toString());
+        assertEquals("[other3]", bodies(provider.getStanzasFor(OTHER)).toString());
+    }
+
+    public void testCursor() throws Exception {
+        provider.receive(message(TO, "one"));
+        provider.receive(message(TO, "two"));
+        provider.receive(message(TO, "three"));
+
+        OfflineStanzaCursor cursor = provider.openCursor(TO);
+        assertEquals("[one, two]", bodies(cursor.nextPage(2)).toString());
+        cursor.acknowledge();
+        provider.receive(message(TO, "four"));
+        assertEquals("[three, four]", bodies(cursor.nextPage(2)).toString());
+        cursor.close();
+        assertEquals(2, provider.getPendingCount(TO));
+
+        // acknowledged stanzas stay removed after a restart
+        restart();
+        assertEquals("[three, four]", bodies(provider.getStanzasFor(TO)).toString());
+    }
+
+    public void testQuotaEvictOldest() throws Exception {
+        provider.setQuota(new OfflineStorageQuota(2, 0, OfflineStorageQuota.Policy.EVICT_OLDEST));
+        provider.receive(message(TO, "one"));
+        provider.receive(message(TO, "two"));
+        provider.receive(message(TO, "three"));
+        assertEquals(2, provider.getStoredCount(TO));
+
+        // usage is recovered, evicted stanzas stay evicted
+        restart();
+        assertEquals(2, provider.getStoredCount(TO));
+        assertEquals("[two, three]", bodies(provider.getStanzasFor(TO)).toString());
+        assertEquals(0, provider.getStoredCount(TO));
+        assertEquals(0, provider.getStoredBytes(TO));
+    }
+
+    public void testExpiry() throws Exception {
+        provider.close();
+        provider = new FileOfflineStorageProvider(directory, 50);
+        provider.setMaxSegmentBytes(1);
+        provider.receive(message(TO, "one"));
+        provider.receive(message(TO, "two"));
+        Thread.sleep(100);
+
+        provider.maintain();
+        assertEquals(1, provider.getSegmentCount());
+        assertEquals(0, provider.getStanzasFor(TO).size());
+    }
+
+    public void testCompactedCopiesAreDroppedOnRecovery() throws Exception {
+        provider.receive(message(TO, "one"));
+        provider.receive(message(OTHER, "other"));
+        provider.receive(message(TO, "two"));
+        provider.close();
+
+        // as if the server stopped after the segment was compacted, but before it was deleted
+        File[] segments = directory.listFiles();
+        assertEquals(1, segments.length);
+        copy(segments[0], new File(directory, segments[0].getName().replace("00000000000000000000",
+                "00000000000000000001")));
+
+        restart();
+        assertEquals(2, provider.getPendingCount(TO));
+        assertEquals(2, provider.getStoredCount(TO));
+        assertEquals(2, provider.getSegmentCount());
+        provider.maintain();
+        assertEquals(1, provider.getSegmentCount());
+        assertEquals("[one, two]", bodies(provider.getStanzasFor(TO)).toString());
+        assertEquals("[other]", bodies(provider.getStanzasFor(OTHER)).toString());
+    }
+
+    private void copy(File from, File to) throws IOException {
+        FileInputStream in = new FileInputStream(from);
+        FileOutputStream out = new FileOutputStream(to);
+        try {
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                out.write(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+            out.close();
+        }
+    }
+}
@@ -24,6 +24,7 @@ import java.util.Collection;
 
 import org.apache.vysper.xmpp.addressing.Entity;
 import org.apache.vysper.xmpp.addressing.EntityImpl;
+import org.apache.vysper.xmpp.delivery.failure.OfflineStorageQuotaExceededException;
 import org.apache.vysper.xmpp.stanza.PresenceStanzaType;
 import org.apache.vysper.xmpp.stanza.Stanza;
 import org.apache.vysper.xmpp.stanza.StanzaBuilder;
@@ -61,5 +62,124 @@ public class MemoryOfflineStorageProviderTestCase {
         Assert.assertEquals(0, stanzas.size());
     }
 
-    
+    @Test
+    public void cursorRemovesOnlyAcknowledgedPages() {
+        Stanza stanza1 = StanzaBuilder.createMessageStanza(FROM, TO, null, "body1").build();
+        Stanza stanza2 = StanzaBuilder.createMessageStanza(FROM, TO, null, "body2").build();
+        Stanza stanza3 = StanzaBuilder.createMessageStanza(FROM, TO, null, "body3").build();
+        provider.receive(stanza1);
+        provider.receive(stanza2);
+        provider.receive(stanza3);
+
+        OfflineStanzaCursor cursor = provider.openCursor(TO);
+        Assert.assertEquals(Arrays.asList(stanza1, stanza2), cursor.nextPage(2));
+        cursor.acknowledge();
+        Assert.assertEquals(Arrays.asList(stanza3), cursor.nextPage(2));
+        Assert.assertEquals(0, cursor.nextPage(2).size());
+        cursor.close();
+
+        // the last page has not been acknowledged
+        Assert.assertEquals(Arrays.asList(stanza3), provider.getStanzasFor(TO));
+    }
+
+    private Stanza message(String body) {
+        return StanzaBuilder.createMessageStanza(FROM, TO, null, body).build();
+    }
+
+    @Test
+    public void quotaDropNewest() {
+        provider.setQuota(new OfflineStorageQuota(2, 0, OfflineStorageQuota.Policy.DROP_NEWEST));
+        Stanza stanza1 = message("body1");
+        Stanza stanza2 = message("body2");
+        provider.receive(stanza1);
+        provider.receive(stanza2);
+        provider.receive(message("body3"));
+
+        Assert.assertEquals(2, provider.getStoredCount(TO));
+        Assert.assertEquals(1, provider.getDroppedCount());
+        Assert.assertEquals(Arrays.asList(stanza1, stanza2), provider.getStanzasFor(TO));
+        Assert.assertEquals(0, provider.getStoredCount(TO));
+    }
+
+    @Test
+    public void quotaEvictOldest() {
+        provider.setQuota(new OfflineStorageQuota(2, 0, OfflineStorageQuota.Policy.EVICT_OLDEST));
+        provider.receive(message("body1"));
+        Stanza stanza2 = message("body2");
+        Stanza stanza3 = message("body3");
+        provider.receive(stanza2);
+        provider.receive(stanza3);
+
+        Assert.assertEquals(1, provider.getEvictedCount());
+        Assert.assertEquals(Arrays.asList(stanza2, stanza3), provider.getStanzasFor(TO));
+    }
+
+    @Test
+    public void quotaBounce() throws Exception {
+        provider.setQuota(new OfflineStorageQuota(1, 0, OfflineStorageQuota.Policy.BOUNCE));
+        provider.receiveOrReject(message("body1"));
+        try {
+            provider.receiveOrReject(message("body2"));
+            Assert.fail("quota exceeded");
+        } catch (OfflineStorageQuotaExceededException e) {
+            // expected
+        }
+        Assert.assertEquals(1, provider.getBouncedCount());
+
+        // another receiver is not affected
+        Entity other = EntityImpl.parseUnchecked("other@vysper.org");
+        provider.receiveOrReject(StanzaBuilder.createMessageStanza(FROM, other, null, "body").build());
+        Assert.assertEquals(1, provider.getStoredCount(other));
+    }
+
+    @Test
+    public void quotaBytes() {
+        Stanza stanza1 = message("body1");
+        long size = provider.sizeOf(stanza1);
+        provider.setQuota(new OfflineStorageQuota(0, 2 * size, OfflineStorageQuota.Policy.DROP_NEWEST));
+        provider.receive(stanza1);
+        provider.receive(message("body2"));
+        provider.receive(message("body3"));
+        Assert.assertEquals(2 * size, provider.getStoredBytes(TO));
+
+        // room is freed by acknowledging
+        OfflineStanzaCursor cursor = provider.openCursor(TO);
+        cursor.nextPage(1);
+        cursor.acknowledge();
+        Assert.assertEquals(1, provider.getStoredCount(TO));
+        Assert.assertEquals(size, provider.getStoredBytes(TO));
+        provider.receive(message("body4"));
+        Assert.assertEquals(2, provider.getStoredCount(TO));
+    }
+
+    @Test
+    public void quotaEvictOldestKeepsStanzasForOversizedStanza() {
+        Stanza stanza1 = message("body1");
+        long size = provider.sizeOf(stanza1);
+        provider.setQuota(new OfflineStorageQuota(0, 2 * size, OfflineStorageQuota.Policy.EVICT_OLDEST));
+        provider.receive(stanza1);
+
+        // could never fit, so nothing is evicted for it
+        provider.receive(message("body2" + new String(new char[(int) (3 * size)]).replace('\0', 'x')));
+        Assert.assertEquals(0, provider.getEvictedCount());
+        Assert.assertEquals(1, provider.getDroppedCount());
+        Assert.assertEquals(Arrays.asList(stanza1), provider.getStanzasFor(TO));
+    }
+
+    @Test
+    public void usageIsRemovedWhenEmpty() {
+        provider.setQuota(new OfflineStorageQuota(2, 0, OfflineStorageQuota.Policy.DROP_NEWEST));
+        provider.receive(message("body1"));
+        Assert.assertEquals(1, provider.getUsageCount());
+
+        OfflineStanzaCursor cursor = provider.openCursor(TO);
+        cursor.nextPage(1);
+        cursor.acknowledge();
+        cursor.close();
+        Assert.assertEquals(0, provider.getUsageCount());
+        Assert.assertEquals(0, provider.getStoredCount(TO));
+
+        provider.receive(message("body2"));
+        Assert.assertEquals(1, provider.getStoredCount(TO));
+    }
 }
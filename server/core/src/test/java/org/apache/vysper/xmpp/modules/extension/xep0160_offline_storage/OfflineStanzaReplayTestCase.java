@@ -0,0 +1,212 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.vysper.xmpp.modules.extension.xep0160_offline_storage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import junit.framework.TestCase;
+
+import org.apache.vysper.xmpp.addressing.Entity;
+import org.apache.vysper.xmpp.addressing.EntityImpl;
+import org.apache.vysper.xmpp.delivery.DirectDeliveryRecorder;
+import org.apache.vysper.xmpp.server.resources.StanzaExecutor;
+import org.apache.vysper.xmpp.stanza.Stanza;
+import org.apache.vysper.xmpp.stanza.StanzaBuilder;
+import org.apache.vysper.xmpp.writer.FlowControlledStanzaWriter;
+
+/**
+ */
+public class OfflineStanzaReplayTestCase extends TestCase {
+
+    private static final Entity FROM = EntityImpl.parseUnchecked("from@vysper.org");
+
+    private static final Entity TO = EntityImpl.parseUnchecked("to@vysper.org/res");
+
+    /**
+     * holds back write completion until released
+     */
+    private static class PendingWriter implements FlowControlledStanzaWriter {
+
+        final List<Stanza> written = new ArrayList<Stanza>();
+
+        WriteListener pendingListener = null;
+
+        boolean completeImmediately = false;
+
+        public void write(Stanza stanza) {
+            written.add(stanza);
+        }
+
+        public void close() {
+            // nothing to do
+        }
+
+        public boolean whenWritten(WriteListener listener) {
+            if (completeImmediately) {
+                return false;
+            }
+            pendingListener = listener;
+            return true;
+        }
+
+        void complete() {
+            WriteListener listener = pendingListener;
+            pendingListener = null;
+            listener.written();
+        }
+
+        void fail() {
+            WriteListener listener = pendingListener;
+            pendingListener = null;
+            listener.failed();
+        }
+    }
+
+    /**
+     * runs tasks only when told to
+     */
+    private static class QueueingExecutor implements Executor {
+
+        final List<Runnable> queued = new ArrayList<Runnable>();
+
+        public void execute(Runnable command) {
+            queued.add(command);
+        }
+
+        void runQueued() {
+            List<Runnable> tasks = new ArrayList<Runnable>(queued);
+            queued.clear();
+            for (Runnable task : tasks) {
+                task.run();
+            }
+        }
+    }
+
+    private MemoryOfflineStorageProvider provider = new MemoryOfflineStorageProvider();
+
+    private void store(int count) {
+        for (int i = 0; i < count; i++) {
+            provider.receive(StanzaBuilder.createMessageStanza(FROM, TO, null, "body" + i).build());
+        }
+    }
+
+    public void testNextPageAfterWritten() {
+        store(5);
+        PendingWriter writer = new PendingWriter();
+        OfflineStanzaReplay replay = new OfflineStanzaReplay(provider.openCursor(TO), writer, null, 2);
+
+        replay.run();
+        assertEquals(2, writer.written.size());
+        assertNotNull(writer.pendingListener);
+
+        writer.complete();
+        assertEquals(4, writer.written.size());
+
+        writer.complete();
+        assertEquals(5, writer.written.size());
+
+        writer.complete();
+        assertNull(writer.pendingListener);
+        assertEquals(5, replay.getReplayedCount());
+        assertEquals(0, provider.getStanzasFor(TO).size());
+    }
+
+    public void testUnwrittenPageRemainsStored() {
+        store(3);
+        PendingWriter writer = new PendingWriter();
+        new OfflineStanzaReplay(provider.openCursor(TO), writer, null, 2).run();
+        writer.complete();
+
+        // the second page is never written
+        assertEquals(1, provider.getStanzasFor(TO).size());
+    }
+
+    public void testWrittenImmediately() {
+        store(5);
+        PendingWriter writer = new PendingWriter();
+        writer.completeImmediately = true;
+        new OfflineStanzaReplay(provider.openCursor(TO), writer, null, 2).run();
+
+        assertEquals(5, writer.written.size());
+        assertEquals(0, provider.getStanzasFor(TO).size());
+    }
+
+    public void testNextPageIsRunByExecutor() {
+        store(3);
+        PendingWriter writer = new PendingWriter();
+        QueueingExecutor executor = new QueueingExecutor();
+        new OfflineStanzaReplay(provider.openCursor(TO), writer, new StanzaExecutor(executor), 2).run();
+
+        writer.complete();
+        // not continued on the thread which completed the write
+        assertEquals(2, writer.written.size());
+        assertEquals(1, executor.queued.size());
+
+        executor.runQueued();
+        assertEquals(3, writer.written.size());
+    }
+
+    public void testFailedPageRemainsStored() {
+        store(3);
+        PendingWriter writer = new PendingWriter();
+        new OfflineStanzaReplay(provider.openCursor(TO), writer, null, 2).run();
+        writer.fail();
+
+        assertEquals(3, provider.getStanzasFor(TO).size());
+    }
+
+    public void testOneCursorPerBareJID() {
+        store(3);
+        PendingWriter writer = new PendingWriter();
+        OfflineStanzaCursor cursor = provider.openCursor(TO);
+        assertNotNull(cursor);
+        // another resource logging in meanwhile does not replay the stanzas again
+        assertNull(provider.openCursor(new EntityImpl(TO, "other")));
+
+        new OfflineStanzaReplay(cursor, writer, null, 2).run();
+        writer.fail();
+        assertNotNull(provider.openCursor(TO));
+    }
+
+    public void testWrittenPagesAreRecorded() {
+        store(3);
+        PendingWriter writer = new PendingWriter();
+        final List<Stanza> recorded = new ArrayList<Stanza>();
+        OfflineStanzaReplay replay = new OfflineStanzaReplay(provider.openCursor(TO), writer, null, 2);
+        replay.setDeliveryRecorder(TO, new DirectDeliveryRecorder() {
+            public void recordDirectDelivery(Entity receiver, Stanza stanza) {
+                assertEquals(TO, receiver);
+                recorded.add(stanza);
+            }
+        });
+
+        replay.run();
+        // not before the page has been written
+        assertEquals(0, recorded.size());
+        writer.complete();
+        assertEquals(2, recorded.size());
+
+        writer.fail();
+        assertEquals(2, recorded.size());
+        assertEquals(writer.written.subList(0, 2), recorded);
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.vysper.xmpp.modules.extension.xep0160_offline_storage;
+
+import static org.apache.vysper.BackgroundWriterTestSupport.createMessage;
+import static org.apache.vysper.BackgroundWriterTestSupport.waitFor;
+import static org.apache.vysper.BackgroundWriterTestSupport.waitForRecorded;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.TestCase;
+
+import org.apache.vysper.BackgroundWriterTestSupport;
+import org.apache.vysper.xml.fragment.XMLSemanticError;
+import org.apache.vysper.xmpp.stanza.Stanza;
+
+/**
+ */
+public class OnlineStorageWriteBehindTestCase extends TestCase {
+
+    private static class RecordingProvider extends BackgroundWriterTestSupport.Recorder implements
+            BatchOnlineStorageProvider {
+
+        public void storeStanzas(List<Stanza> stanzas, Boolean alreadyViewed) {
+            record("storeStanzas", stanzas);
+        }
+
+        public void storeStanza(Stanza stanza, Boolean alreadyViewed) {
+            record("storeStanza", Collections.singletonList(stanza));
+        }
+
+        public Stanza getStanzaByMessageId(String bareJID, String messageId) {
+            return null;
+        }
+    }
+
+    public void testBatches() throws InterruptedException, XMLSemanticError {
+        RecordingProvider provider = new RecordingProvider();
+        OnlineStorageWriteBehind writeBehind = new OnlineStorageWriteBehind(provider);
+        writeBehind.setBatchSize(10);
+        writeBehind.setMaxDelayMillis(1000);
+
+        for (int i = 0; i < 25; i++) {
+            writeBehind.storeStanza(createMessage(i), true);
+        }
+        // two full batches are written without waiting for the delay
+        waitForRecorded(provider, 20, 500);
+        assertTrue(provider.recordedCount() >= 20);
+
+        writeBehind.stop();
+        assertEquals(25, provider.recordedCount());
+        for (List<Stanza> batch : provider.batches) {
+            assertTrue(batch.size() <= 10);
+        }
+        for (int i = 0; i < 25; i++) {
+            assertEquals(Integer.toString(i), provider.recorded.get(i).getSingleInnerElementsNamed("body")
+                    .getInnerText().getText());
+        }
+        assertEquals(0, writeBehind.getQueueDepth());
+        assertEquals(25, writeBehind.getStoredCount());
+        assertTrue(writeBehind.getFlushLatencies().getCount() > 0);
+    }
+
+    public void testMaxDelay() throws InterruptedException {
+        RecordingProvider provider = new RecordingProvider();
+        OnlineStorageWriteBehind writeBehind = new OnlineStorageWriteBehind(provider);
+        writeBehind.setBatchSize(100);
+        writeBehind.setMaxDelayMillis(20);
+
+        writeBehind.storeStanza(createMessage(0), true);
+        waitForRecorded(provider, 1, 2000);
+        assertEquals(1, provider.recordedCount());
+        writeBehind.stop();
+    }
+
+    public void testStoreAfterStop() {
+        RecordingProvider provider = new RecordingProvider();
+        OnlineStorageWriteBehind writeBehind = new OnlineStorageWriteBehind(provider);
+        writeBehind.stop();
+
+        writeBehind.storeStanza(createMessage(0), true);
+        assertEquals(1, provider.recordedCount());
+    }
+
+    public void testOverflowDrop() throws InterruptedException {
+        RecordingProvider provider = new RecordingProvider();
+        provider.blocker = new CountDownLatch(1);
+        final OnlineStorageWriteBehind writeBehind = new OnlineStorageWriteBehind(provider, 2);
+        writeBehind.setBatchSize(1);
+        writeBehind.setMaxDelayMillis(0);
+        writeBehind.setOverflowPolicy(OnlineStorageWriteBehind.OverflowPolicy.DROP);
+
+        // the first stanza blocks the flusher, the next two fill the queue
+        writeBehind.storeStanza(createMessage(0), true);
+        waitFor(new BackgroundWriterTestSupport.Condition() {
+            public boolean holds() {
+                return writeBehind.getQueueDepth() == 0;
+            }
+        }, 2000);
+        writeBehind.storeStanza(createMessage(1), true);
+        writeBehind.storeStanza(createMessage(2), true);
+        writeBehind.storeStanza(createMessage(3), true);
+        assertEquals(1, writeBehind.getOverflowCount());
+
+        provider.blocker.countDown();
+        writeBehind.stop();
+        assertEquals(3, provider.recordedCount());
+    }
+}
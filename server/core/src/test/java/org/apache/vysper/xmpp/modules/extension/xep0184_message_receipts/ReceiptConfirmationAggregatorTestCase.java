@@ -0,0 +1,132 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.vysper.xmpp.modules.extension.xep0184_message_receipts;
+
+import static org.apache.vysper.BackgroundWriterTestSupport.createMessage;
+import static org.apache.vysper.BackgroundWriterTestSupport.waitForRecorded;
+
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.vysper.BackgroundWriterTestSupport;
+import org.apache.vysper.xmpp.server.metrics.StageLatencies;
+import org.apache.vysper.xmpp.stanza.Stanza;
+
+/**
+ */
+public class ReceiptConfirmationAggregatorTestCase extends TestCase {
+
+    private static class RecordingProvider extends BackgroundWriterTestSupport.Recorder implements
+            MessageDeliveryReceiptsStorageProvider {
+
+        public boolean confirmMessageDelivery(String bareJID, List<? extends Stanza> messages) {
+            record("delivered " + bareJID, messages);
+            return true;
+        }
+
+        public boolean confirmMessageViewed(String bareJID, List<? extends Stanza> messages) {
+            record("viewed " + bareJID, messages);
+            return true;
+        }
+    }
+
+    private List<Stanza> receiptFor(int i) {
+        return Collections.singletonList(createMessage(i));
+    }
+
+    public void testAggregatesPerJID() {
+        RecordingProvider provider = new RecordingProvider();
+        ReceiptConfirmationAggregator aggregator = new ReceiptConfirmationAggregator(provider);
+        aggregator.setWindowMillis(10000);
+
+        for (int i = 0; i < 10; i++) {
+            assertTrue(aggregator.confirmMessageDelivery(i % 2 == 0 ? "a@vysper.org" : "b@vysper.org",
+                    receiptFor(i)));
+        }
+        aggregator.confirmMessageViewed("a@vysper.org", receiptFor(0));
+        assertEquals(11, aggregator.getPendingCount());
+        assertTrue(provider.calls.isEmpty());
+
+        aggregator.stop();
+        assertEquals(0, aggregator.getPendingCount());
+        assertEquals(3, provider.calls.size());
+        assertEquals("delivered a@vysper.org 5", provider.calls.get(0));
+        assertEquals("delivered b@vysper.org 5", provider.calls.get(1));
+        assertEquals("viewed a@vysper.org 1", provider.calls.get(2));
+        assertEquals(11, aggregator.getConfirmationCount());
+        assertEquals(3, aggregator.getStorageCallCount());
+    }
+
+    public void testWindowCloses() throws InterruptedException {
+        RecordingProvider provider = new RecordingProvider();
+        ReceiptConfirmationAggregator aggregator = new ReceiptConfirmationAggregator(provider);
+        aggregator.setWindowMillis(20);
+
+        aggregator.confirmMessageDelivery("a@vysper.org", receiptFor(0));
+        aggregator.confirmMessageDelivery("a@vysper.org", receiptFor(1));
+        waitForRecorded(provider, 2, 2000);
+        assertEquals(2, provider.recordedCount());
+        aggregator.stop();
+    }
+
+    public void testMaxPendingFlushesEarly() throws InterruptedException {
+        RecordingProvider provider = new RecordingProvider();
+        ReceiptConfirmationAggregator aggregator = new ReceiptConfirmationAggregator(provider);
+        aggregator.setWindowMillis(60000);
+        aggregator.setMaxPending(5);
+
+        for (int i = 0; i < 5; i++) {
+            aggregator.confirmMessageDelivery("a@vysper.org", receiptFor(i));
+        }
+        waitForRecorded(provider, 5, 2000);
+        assertEquals(5, provider.recordedCount());
+        aggregator.stop();
+    }
+
+    public void testConfirmAfterStop() {
+        RecordingProvider provider = new RecordingProvider();
+        ReceiptConfirmationAggregator aggregator = new ReceiptConfirmationAggregator(provider);
+        aggregator.stop();
+
+        aggregator.confirmMessageViewed("a@vysper.org", receiptFor(0));
+        assertEquals(1, provider.recordedCount());
+    }
+
+    public void testMetrics() {
+        RecordingProvider provider = new RecordingProvider();
+        ReceiptConfirmationAggregator aggregator = new ReceiptConfirmationAggregator(provider);
+        aggregator.setWindowMillis(60000);
+        StageLatencies stageLatencies = new StageLatencies();
+        aggregator.registerMetrics(stageLatencies);
+
+        aggregator.confirmMessageDelivery("a@vysper.org", receiptFor(0));
+        aggregator.confirmMessageDelivery("b@vysper.org", receiptFor(1));
+        assertEquals(2, stageLatencies.getGauge("receipts.pending"));
+        aggregator.stop();
+
+        assertEquals(0, stageLatencies.getGauge("receipts.pending"));
+        assertEquals(2, stageLatencies.getGauge("receipts.confirmed"));
+        assertEquals(2, stageLatencies.getGauge("receipts.storageCalls"));
+        assertEquals(0, stageLatencies.getGauge("receipts.failed"));
+        assertTrue(stageLatencies.getReport().contains("receipts.flush:\tcount=1 "));
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.vysper.xmpp.modules.extension.xep0184_message_receipts;
+
+import junit.framework.TestCase;
+
+import org.apache.vysper.xmpp.server.metrics.StageLatencies;
+
+/**
+ */
+public class RecentMessageIndexTestCase extends TestCase {
+
+    private static final String RECIPIENT = "to@vysper.org";
+
+    private static final String SENDER = "from@vysper.org/res";
+
+    public void testHitAndMiss() {
+        RecentMessageIndex index = new RecentMessageIndex();
+        index.put(RECIPIENT, "m1", SENDER, 1234);
+
+        RecentMessageIndex.Entry entry = index.get(RECIPIENT, "m1");
+        assertNotNull(entry);
+        assertEquals("m1", entry.getMessageId());
+        assertEquals(SENDER, entry.getFrom());
+        assertEquals(1234, entry.getServerDeliveryTime());
+
+        assertNull(index.get(RECIPIENT, "m2"));
+        assertNull(index.get("other@vysper.org", "m1"));
+        assertNull(index.get(RECIPIENT, null));
+        assertEquals(1, index.getHitCount());
+        assertEquals(2, index.getMissCount());
+    }
+
+    public void testBounded() {
+        RecentMessageIndex index = new RecentMessageIndex(3, 60000);
+        for (int i = 0; i < 5; i++) {
+            index.put(RECIPIENT, "m" + i, SENDER, i);
+        }
+        assertEquals(3, index.size());
+        assertNull(index.get(RECIPIENT, "m0"));
+        assertNull(index.get(RECIPIENT, "m1"));
+        assertNotNull(index.get(RECIPIENT, "m4"));
+    }
+
+    public void testReindexedMessageSurvivesEvictionOfOlderEntry() {
+        RecentMessageIndex index = new RecentMessageIndex(2, 60000);
+        index.put(RECIPIENT, "m0", SENDER, 1);
+        index.put(RECIPIENT, "m0", SENDER, 2);
+        index.put(RECIPIENT, "m1", SENDER, 3);
+
+        // the first 'm0' entry is evicted, the newer one stays
+        assertEquals(2, index.get(RECIPIENT, "m0").getServerDeliveryTime());
+    }
+
+    public void testExpires() throws InterruptedException {
+        RecentMessageIndex index = new RecentMessageIndex(100, 20);
+        index.put(RECIPIENT, "m0", SENDER, 1);
+        Thread.sleep(50);
+        assertNull(index.get(RECIPIENT, "m0"));
+        assertEquals(0, index.size());
+    }
+
+    public void testMetrics() {
+        RecentMessageIndex index = new RecentMessageIndex();
+        StageLatencies stageLatencies = new StageLatencies();
+        index.registerMetrics(stageLatencies);
+        index.put(RECIPIENT, "m0", SENDER, 1);
+        index.get(RECIPIENT, "m0");
+        index.get(RECIPIENT, "m1");
+
+        assertEquals(1, stageLatencies.getGauge("recentMessages.size"));
+        assertEquals(1, stageLatencies.getGauge("recentMessages.hits"));
+        assertEquals(1, stageLatencies.getGauge("recentMessages.misses"));
+        assertTrue(stageLatencies.getReport().contains("recentMessages.misses=\t1\n"));
+    }
+}
@@ -0,0 +1,391 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.vysper.xmpp.modules.extension.xep0198_stream_management;
+
+import junit.framework.TestCase;
+
+import org.apache.vysper.xmpp.addressing.Entity;
+import org.apache.vysper.xmpp.addressing.EntityImpl;
+import org.apache.vysper.xmpp.delivery.StanzaReceiverQueue;
+import org.apache.vysper.xmpp.modules.extension.xep0352_csi.ClientStateHandler;
+import org.apache.vysper.xmpp.modules.extension.xep0352_csi.ClientStateWriter;
+import org.apache.vysper.xmpp.protocol.NamespaceURIs;
+import org.apache.vysper.xmpp.protocol.ResponseStanzaContainer;
+import org.apache.vysper.xmpp.protocol.SessionStateHolder;
+import org.apache.vysper.xmpp.server.DefaultServerRuntimeContext;
+import org.apache.vysper.xmpp.server.SessionContext.SessionTerminationCause;
+import org.apache.vysper.xmpp.server.SessionState;
+import org.apache.vysper.xmpp.server.TestSessionContext;
+import org.apache.vysper.xmpp.stanza.Stanza;
+import org.apache.vysper.xmpp.stanza.MessageStanza;
+import org.apache.vysper.xmpp.stanza.StanzaBuilder;
+import org.apache.vysper.xmpp.state.resourcebinding.ResourceState;
+import org.apache.vysper.xmpp.writer.FlowControlledStanzaWriter;
+
+/**
+ */
+public class StreamManagementTestCase extends TestCase {
+
+    private Entity user = EntityImpl.parseUnchecked("user@vysper.org");
+
+    private Entity contact = EntityImpl.parseUnchecked("contact@vysper.org/desktop");
+
+    private TestSessionContext sessionContext;
+
+    private StreamManagementService service;
+
+    private String resourceId;
+
+    @Override
+    protected void setUp() throws Exception {
+        setUp(60000);
+    }
+
+    private void setUp(long gracePeriodMillis) throws Exception {
+        sessionContext = TestSessionContext.createWithStanzaReceiverRelayAuthenticated();
+        StreamManagementModule module = new StreamManagementModule(gracePeriodMillis, 4);
+        ((DefaultServerRuntimeContext) sessionContext.getServerRuntimeContext()).addModule(module);
+        service = module.getService();
+        sessionContext.setInitiatingEntity(user);
+        resourceId = sessionContext.bindResource();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        service.close();
+    }
+
+    private static class RecordingWriteListener implements FlowControlledStanzaWriter.WriteListener {
+
+        int written = 0;
+
+        int failed = 0;
+
+        public void written() {
+            written++;
+        }
+
+        public void failed() {
+            failed++;
+        }
+    }
+
+    private TestSessionContext createAuthenticatedSession() {
+        SessionStateHolder stateHolder = new SessionStateHolder();
+        stateHolder.setState(SessionState.AUTHENTICATED);
+        TestSessionContext session = TestSessionContext.createWithStanzaReceiverRelay(stateHolder,
+                sessionContext.getServerRuntimeContext());
+        session.setInitiatingEntity(user);
+        return session;
+    }
+
+    private Stanza execute(TestSessionContext session, String name, String... attributes) throws Exception {
+        StanzaBuilder builder = new StanzaBuilder(name, NamespaceURIs.URN_XMPP_SM_3);
+        for (int i = 0; i < attributes.length; i += 2) {
+            builder.addAttribute(attributes[i], attributes[i + 1]);
+        }
+        ResponseStanzaContainer response = new StreamManagementHandler(name).execute(builder.build(),
+                session.getServerRuntimeContext(), true, session, null);
+        return response == null ? null : response.getResponseStanza();
+    }
+
+    private Stanza message(String body) {
+        return StanzaBuilder.createMessageStanza(contact, new EntityImpl(user, resourceId), null, body).build();
+    }
+
+    private int countMessages(StanzaReceiverQueue queue) {
+        int messages = 0;
+        Stanza stanza;
+        while ((stanza = queue.getNext()) != null) {
+            if (MessageStanza.isOfType(stanza)) messages++;
+        }
+        return messages;
+    }
+
+    private void waitForEnd(TestSessionContext session) throws Exception {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (session.getState() != SessionState.CLOSED && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(SessionState.CLOSED, session.getState());
+    }
+
+    private String enable() throws Exception {
+        Stanza enabled = execute(sessionContext, "enable", "resume", "true");
+        assertEquals("enabled", enabled.getName());
+        assertEquals("true", enabled.getAttributeValue("resume"));
+        assertNotNull(enabled.getAttributeValue("max"));
+        assertNotNull(enabled.getAttributeValue("id"));
+        return enabled.getAttributeValue("id");
+    }
+
+    public void testEnable() throws Exception {
+        Stanza enabled = execute(sessionContext, "enable", "resume", "true");
+        assertEquals("60", enabled.getAttributeValue("max"));
+        assertSame(StreamManagementState.get(sessionContext).getWriter(), sessionContext.getResponseWriter());
+        assertEquals(1, service.getEnabledCount());
+
+        Stanza failed = execute(sessionContext, "enable");
+        assertEquals("failed", failed.getName());
+    }
+
+    public void testEnableRequiresBoundResource() throws Exception {
+        TestSessionContext unbound = createAuthenticatedSession();
+        Stanza failed = execute(unbound, "enable");
+        assertEquals("failed", failed.getName());
+        assertEquals("unexpected-request", failed.getFirstInnerElement().getName());
+        assertNull(StreamManagementState.get(unbound));
+    }
+
+    public void testAcks() throws Exception {
+        enable();
+        StreamManagementState state = StreamManagementState.get(sessionContext);
+        StreamManagementWriter writer = state.getWriter();
+
+        sessionContext.getResponseWriter().write(message("1"));
+        sessionContext.getResponseWriter().write(message("2"));
+        sessionContext.getResponseWriter().write(message("3"));
+        assertEquals(3, writer.getUnackedCount());
+        assertEquals(3, writer.getSentCount());
+
+        assertEquals("message", sessionContext.getNextRecordedResponse().getName());
+        assertEquals("message", sessionContext.getNextRecordedResponse().getName());
+        // half of the unacked limit has been reached
+        assertEquals("r", sessionContext.getNextRecordedResponse().getName());
+        assertEquals("message", sessionContext.getNextRecordedResponse().getName());
+
+        assertNull(execute(sessionContext, "a", "h", "2"));
+        assertEquals(1, writer.getUnackedCount());
+        assertEquals("3", writer.getUnacked().get(0).getSingleInnerElementsNamed("body").getInnerText().getText());
+
+        state.countHandled();
+        Stanza ack = execute(sessionContext, "r");
+        assertEquals("a", ack.getName());
+        assertEquals("1", ack.getAttributeValue("h"));
+    }
+
+    public void testDetachAndResume() throws Exception {
+        String id = enable();
+        sessionContext.getResponseWriter().write(message("1"));
+        sessionContext.getResponseWriter().write(message("2"));
+        StreamManagementState.get(sessionContext).countHandled();
+        sessionContext.reset();
+
+        sessionContext.endSession(SessionTerminationCause.CONNECTION_ABORT);
+        assertTrue(sessionContext.isClosed());
+        assertEquals(SessionState.AUTHENTICATED, sessionContext.getState());
+        assertEquals(1, service.getDetachedSessionCount());
+        assertSame(sessionContext, sessionContext.getServerRuntimeContext().getResourceRegistry()
+                .getSessionContext(resourceId));
+
+        // stanzas for the detached session are queued
+        sessionContext.getResponseWriter().write(message("3"));
+        assertNull(sessionContext.getNextRecordedResponse());
+
+        TestSessionContext resuming = createAuthenticatedSession();
+        assertNull(execute(resuming, "resume", "previd", id, "h", "1"));
+
+        Stanza resumed = resuming.getNextRecordedResponse();
+        assertEquals("resumed", resumed.getName());
+        assertEquals(id, resumed.getAttributeValue("previd"));
+        assertEquals("1", resumed.getAttributeValue("h"));
+        assertEquals("2", resuming.getNextRecordedResponse().getSingleInnerElementsNamed("body").getInnerText()
+                .getText());
+        assertEquals("3", resuming.getNextRecordedResponse().getSingleInnerElementsNamed("body").getInnerText()
+                .getText());
+        assertNull(resuming.getNextRecordedResponse());
+
+        assertEquals(SessionState.CLOSED, sessionContext.getState());
+        assertSame(resuming, resuming.getServerRuntimeContext().getResourceRegistry().getSessionContext(resourceId));
+        assertEquals(resourceId, resuming.getServerRuntimeContext().getResourceRegistry()
+                .getUniqueResourceForSession(resuming));
+        assertEquals(0, service.getDetachedSessionCount());
+        assertEquals(1.0, service.getResumeHitRate(), 0.0001);
+
+        // the stream continues on the new connection
+        resuming.getResponseWriter().write(message("4"));
+        assertEquals("4", resuming.getNextRecordedResponse().getSingleInnerElementsNamed("body").getInnerText()
+                .getText());
+    }
+
+    public void testResumeUnknownStream() throws Exception {
+        TestSessionContext resuming = createAuthenticatedSession();
+        Stanza failed = execute(resuming, "resume", "previd", "unknown", "h", "0");
+        assertEquals("failed", failed.getName());
+        assertEquals("item-not-found", failed.getFirstInnerElement().getName());
+        assertEquals(1, service.getResumeRequestCount());
+        assertEquals(0.0, service.getResumeHitRate(), 0.0001);
+    }
+
+    public void testDetachedSessionExpires() throws Exception {
+        service.close();
+        setUp(50);
+        enable();
+        sessionContext.endSession(SessionTerminationCause.CONNECTION_ABORT);
+        assertEquals(1, service.getDetachedSessionCount());
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (sessionContext.getState() != SessionState.CLOSED && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(SessionState.CLOSED, sessionContext.getState());
+        assertEquals(0, service.getDetachedSessionCount());
+        assertEquals(1, service.getExpiredCount());
+        assertNull(sessionContext.getServerRuntimeContext().getResourceRegistry().getSessionContext(resourceId));
+    }
+
+    public void testWrittenWhenAcknowledged() throws Exception {
+        enable();
+        StreamManagementWriter writer = StreamManagementState.get(sessionContext).getWriter();
+        RecordingWriteListener listener = new RecordingWriteListener();
+
+        writer.write(message("1"));
+        assertTrue(writer.whenWritten(listener));
+        assertEquals("message", sessionContext.getNextRecordedResponse().getName());
+        // the acknowledgement is requested right away
+        assertEquals("r", sessionContext.getNextRecordedResponse().getName());
+        assertEquals(0, listener.written);
+
+        writer.ack(1);
+        assertEquals(1, listener.written);
+        assertEquals(0, listener.failed);
+    }
+
+    public void testDetachedWriterDoesNotCountAsWritten() throws Exception {
+        enable();
+        StreamManagementWriter writer = StreamManagementState.get(sessionContext).getWriter();
+        RecordingWriteListener listener = new RecordingWriteListener();
+
+        assertTrue(writer.detach(null));
+        writer.write(message("1"));
+        assertTrue(writer.whenWritten(listener));
+        assertEquals(0, listener.written);
+
+        // the stream is not resumed
+        writer.close();
+        assertEquals(0, listener.written);
+        assertEquals(1, listener.failed);
+    }
+
+    public void testEnableBelowClientStateWriter() throws Exception {
+        ClientStateWriter clientStateWriter = ClientStateHandler.getOrInstallWriter(sessionContext);
+        enable();
+        StreamManagementWriter writer = StreamManagementState.get(sessionContext).getWriter();
+        assertSame(clientStateWriter, sessionContext.getResponseWriter());
+        assertSame(writer, clientStateWriter.getDelegate());
+
+        // presences held back by the inactive client are not counted before they are written
+        clientStateWriter.setInactive();
+        sessionContext.getResponseWriter().write(
+                StanzaBuilder.createPresenceStanza(contact, user, null, null, null, null).build());
+        assertEquals(0, writer.getSentCount());
+        clientStateWriter.setActive();
+        assertEquals(1, writer.getSentCount());
+        assertEquals("presence", sessionContext.getNextRecordedResponse().getName());
+    }
+
+    public void testResumeKeepsClientState() throws Exception {
+        String id = enable();
+        ClientStateWriter clientStateWriter = ClientStateHandler.getOrInstallWriter(sessionContext);
+        StreamManagementWriter writer = StreamManagementState.get(sessionContext).getWriter();
+        assertSame(writer, clientStateWriter.getDelegate());
+        clientStateWriter.setInactive();
+
+        sessionContext.endSession(SessionTerminationCause.CONNECTION_ABORT);
+        TestSessionContext resuming = createAuthenticatedSession();
+        assertNull(execute(resuming, "resume", "previd", id, "h", "0"));
+
+        assertSame(clientStateWriter, resuming.getResponseWriter());
+        assertSame(clientStateWriter, ClientStateHandler.getOrInstallWriter(resuming));
+        assertTrue(clientStateWriter.isInactive());
+        assertEquals("resumed", resuming.getNextRecordedResponse().getName());
+        resuming.getResponseWriter().write(message("1"));
+        assertEquals("message", resuming.getNextRecordedResponse().getName());
+    }
+
+    public void testClosedStreamIsNotDetached() throws Exception {
+        enable();
+        sessionContext.endSession(SessionTerminationCause.CLIENT_BYEBYE);
+        assertEquals(0, service.getDetachedSessionCount());
+        assertEquals(SessionState.CLOSED, sessionContext.getState());
+    }
+
+    public void testUnavailableClientIsNotDetached() throws Exception {
+        enable();
+        sessionContext.getServerRuntimeContext().getResourceRegistry().setResourceState(resourceId,
+                ResourceState.UNAVAILABLE);
+        sessionContext.endSession(SessionTerminationCause.CONNECTION_ABORT);
+        assertEquals(0, service.getDetachedSessionCount());
+        assertEquals(SessionState.CLOSED, sessionContext.getState());
+    }
+
+    public void testFailedResumeEndsPreviousSession() throws Exception {
+        StanzaReceiverQueue queue = sessionContext.addReceiver(user, resourceId);
+        String id = enable();
+        sessionContext.getResponseWriter().write(message("1"));
+        sessionContext.endSession(SessionTerminationCause.CONNECTION_ABORT);
+        assertEquals(1, service.getDetachedSessionCount());
+        // the stream has been continued elsewhere meanwhile
+        StreamManagementState.get(sessionContext).getWriter().resume(
+                createAuthenticatedSession().getResponseWriter(), 0, message("resumed"));
+
+        TestSessionContext resuming = createAuthenticatedSession();
+        Stanza failed = execute(resuming, "resume", "previd", id, "h", "0");
+        assertEquals("failed", failed.getName());
+        assertEquals("item-not-found", failed.getFirstInnerElement().getName());
+        assertNull(resuming.getServerRuntimeContext().getResourceRegistry().getUniqueResourceForSession(resuming));
+
+        // the resources have not been moved, the previous session has ended and redelivered its messages
+        assertEquals(SessionState.CLOSED, sessionContext.getState());
+        assertEquals(1, countMessages(queue));
+        assertEquals(1, service.getRedeliveredCount());
+    }
+
+    public void testUnackedMessagesAreRedeliveredWhenDetachedSessionExpires() throws Exception {
+        service.close();
+        setUp(50);
+        StanzaReceiverQueue queue = sessionContext.addReceiver(user, resourceId);
+        enable();
+        sessionContext.getResponseWriter().write(message("1"));
+        sessionContext.getResponseWriter().write(message("2"));
+        execute(sessionContext, "a", "h", "1");
+        sessionContext.endSession(SessionTerminationCause.CONNECTION_ABORT);
+        sessionContext.getResponseWriter().write(message("3"));
+
+        waitForEnd(sessionContext);
+        assertEquals(2, countMessages(queue));
+        assertEquals(2, service.getRedeliveredCount());
+    }
+
+    public void testQueuedMessagesAreRedeliveredOnOverflow() throws Exception {
+        StanzaReceiverQueue queue = sessionContext.addReceiver(user, resourceId);
+        enable();
+        sessionContext.endSession(SessionTerminationCause.CONNECTION_ABORT);
+        assertEquals(1, service.getDetachedSessionCount());
+
+        // one more than the 4 unacknowledged stanzas which are kept
+        for (int i = 0; i < 5; i++) {
+            sessionContext.getResponseWriter().write(message(Integer.toString(i)));
+        }
+        waitForEnd(sessionContext);
+        assertEquals(0, service.getDetachedSessionCount());
+        assertEquals(5, countMessages(queue));
+    }
+}
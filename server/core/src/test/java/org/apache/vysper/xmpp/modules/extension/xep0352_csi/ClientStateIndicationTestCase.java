@@ -0,0 +1,126 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.vysper.xmpp.modules.extension.xep0352_csi;
+
+import junit.framework.TestCase;
+
+import org.apache.vysper.xmpp.addressing.Entity;
+import org.apache.vysper.xmpp.addressing.EntityImpl;
+import org.apache.vysper.xmpp.protocol.NamespaceURIs;
+import org.apache.vysper.xmpp.server.TestSessionContext;
+import org.apache.vysper.xmpp.stanza.PresenceStanzaType;
+import org.apache.vysper.xmpp.stanza.Stanza;
+import org.apache.vysper.xmpp.stanza.StanzaBuilder;
+
+/**
+ */
+public class ClientStateIndicationTestCase extends TestCase {
+
+    private Entity user = EntityImpl.parseUnchecked("user@vysper.org/phone");
+
+    private Entity contact1 = EntityImpl.parseUnchecked("contact1@vysper.org/desktop");
+
+    private Entity contact2 = EntityImpl.parseUnchecked("contact2@vysper.org/desktop");
+
+    private TestSessionContext sessionContext;
+
+    private ClientStateHandler activeHandler = new ClientStateHandler(ClientStateHandler.ACTIVE);
+
+    private ClientStateHandler inactiveHandler = new ClientStateHandler(ClientStateHandler.INACTIVE);
+
+    @Override
+    protected void setUp() throws Exception {
+        sessionContext = TestSessionContext.createWithStanzaReceiverRelayAuthenticated();
+        sessionContext.setInitiatingEntity(user.getBareJID());
+    }
+
+    private Stanza nonza(String name) {
+        return new StanzaBuilder(name, NamespaceURIs.URN_XMPP_CSI).build();
+    }
+
+    private void execute(ClientStateHandler handler) throws Exception {
+        assertNull(handler.execute(nonza(handler.getName()), sessionContext.getServerRuntimeContext(), true,
+                sessionContext, null));
+    }
+
+    private Stanza presence(Entity from, String status) {
+        return StanzaBuilder.createPresenceStanza(from, user, null, null, null, status).build();
+    }
+
+    private Stanza chatState(Entity from) {
+        return StanzaBuilder.createMessageStanza(from, user, null, null).startInnerElement("composing",
+                NamespaceURIs.XEP0085_CHAT_STATES).endInnerElement().build();
+    }
+
+    public void testVerify() {
+        assertTrue(activeHandler.verify(nonza("active")));
+        assertFalse(activeHandler.verify(nonza("inactive")));
+        assertTrue(inactiveHandler.verify(nonza("inactive")));
+        assertFalse(inactiveHandler.verify(new StanzaBuilder("inactive", NamespaceURIs.JABBER_CLIENT).build()));
+    }
+
+    public void testActiveSessionIsNotFiltered() throws Exception {
+        execute(activeHandler);
+        sessionContext.getResponseWriter().write(presence(contact1, "s1"));
+        sessionContext.getResponseWriter().write(chatState(contact1));
+        assertEquals(2, sessionContext.getRecordedResponsesTotal());
+    }
+
+    public void testInactiveBuffersPresenceAndDropsChatStates() throws Exception {
+        execute(inactiveHandler);
+        ClientStateWriter writer = (ClientStateWriter) sessionContext.getResponseWriterFilter();
+        assertTrue(writer.isInactive());
+
+        sessionContext.getResponseWriter().write(presence(contact1, "s1"));
+        sessionContext.getResponseWriter().write(presence(contact2, "s2"));
+        sessionContext.getResponseWriter().write(presence(contact1, "s3"));
+        sessionContext.getResponseWriter().write(chatState(contact1));
+        assertNull(sessionContext.getNextRecordedResponse());
+        assertEquals(2, writer.getBufferedPresenceCount());
+        assertEquals(1, writer.getDroppedChatStateCount());
+
+        // subscription requests are never held back
+        Stanza subscribe = StanzaBuilder.createPresenceStanza(contact1.getBareJID(), user.getBareJID(), null,
+                PresenceStanzaType.SUBSCRIBE, null, null).build();
+        sessionContext.getResponseWriter().write(subscribe);
+        assertSame(subscribe, sessionContext.getNextRecordedResponse());
+
+        // becoming active flushes the collapsed presences in order of their last update
+        execute(activeHandler);
+        assertFalse(writer.isInactive());
+        assertSame(writer, sessionContext.getResponseWriterFilter());
+        assertEquals("s2", sessionContext.getNextRecordedResponse().getInnerElementsNamed("status").get(0)
+                .getInnerText().getText());
+        assertEquals("s3", sessionContext.getNextRecordedResponse().getInnerElementsNamed("status").get(0)
+                .getInnerText().getText());
+        assertNull(sessionContext.getNextRecordedResponse());
+    }
+
+    public void testMessageFlushesPresences() throws Exception {
+        execute(inactiveHandler);
+        sessionContext.getResponseWriter().write(presence(contact1, "s1"));
+
+        Stanza message = StanzaBuilder.createMessageStanza(contact2, user, null, "hello").build();
+        sessionContext.getResponseWriter().write(message);
+        assertEquals("presence", sessionContext.getNextRecordedResponse().getName());
+        assertSame(message, sessionContext.getNextRecordedResponse());
+        assertNull(sessionContext.getNextRecordedResponse());
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.vysper.xmpp.modules.roster;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import org.apache.vysper.xmpp.addressing.Entity;
+import org.apache.vysper.xmpp.addressing.EntityImpl;
+import org.apache.vysper.xmpp.modules.roster.persistence.MemoryRosterManager;
+import org.apache.vysper.xmpp.server.TestSessionContext;
+import org.apache.vysper.xmpp.state.resourcebinding.DefaultResourceRegistry;
+
+/**
+ */
+public class RosterSubscriptionIndexTestCase extends TestCase {
+
+    private MemoryRosterManager rosterManager;
+
+    private RosterSubscriptionIndex index;
+
+    private final Entity user = EntityImpl.parseUnchecked("user@vysper.org");
+
+    private final Entity from = EntityImpl.parseUnchecked("from@vysper.org");
+
+    private final Entity to = EntityImpl.parseUnchecked("to@vysper.org");
+
+    private final Entity both = EntityImpl.parseUnchecked("both@vysper.org");
+
+    private final Entity none = EntityImpl.parseUnchecked("none@vysper.org");
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        rosterManager = new MemoryRosterManager();
+        index = rosterManager.getSubscriptionIndex();
+        rosterManager.addContact(user, new RosterItem(from, SubscriptionType.FROM));
+        rosterManager.addContact(user, new RosterItem(to, SubscriptionType.TO));
+        rosterManager.addContact(user, new RosterItem(both, SubscriptionType.BOTH));
+        rosterManager.addContact(user, new RosterItem(none, SubscriptionType.NONE));
+    }
+
+    public void testLoadedFromRoster() throws Exception {
+        assertEquals(0, index.size());
+        assertEquals(Arrays.asList(from, both), index.getSubscribers(user));
+        assertEquals(Arrays.asList(to, both), index.getSubscriptions(user));
+        assertEquals(1, index.size());
+
+        // resource is ignored
+        assertEquals(Arrays.asList(from, both), index.getSubscribers(new EntityImpl(user, "res")));
+    }
+
+    public void testUpdatedIncrementally() throws Exception {
+        index.getSubscribers(user);
+
+        RosterItem noneItem = rosterManager.getContact(user, none);
+        RosterSubscriptionMutator.getInstance().add(noneItem, SubscriptionType.FROM);
+        rosterManager.addContact(user, noneItem);
+        assertEquals(Arrays.asList(from, both, none), index.getSubscribers(user));
+        assertEquals(Arrays.asList(to, both), index.getSubscriptions(user));
+
+        RosterItem bothItem = rosterManager.getContact(user, both);
+        RosterSubscriptionMutator.getInstance().remove(bothItem, SubscriptionType.FROM);
+        rosterManager.addContact(user, bothItem);
+        assertEquals(Arrays.asList(from, none), index.getSubscribers(user));
+        assertEquals(Arrays.asList(to, both), index.getSubscriptions(user));
+
+        rosterManager.removeContact(user, to);
+        assertEquals(Arrays.asList(both), index.getSubscriptions(user));
+
+        // the index reflects the roster
+        index.invalidate(user);
+        assertEquals(Arrays.asList(from, none), index.getSubscribers(user));
+        assertEquals(Arrays.asList(both), index.getSubscriptions(user));
+    }
+
+    public void testSnapshotsAreReadOnly() throws Exception {
+        try {
+            index.getSubscribers(user).add(none);
+            fail("must not be modifiable");
+        } catch (UnsupportedOperationException e) {
+            // fine
+        }
+    }
+
+    public void testOnlyOnlineUsersAreKept() throws Exception {
+        DefaultResourceRegistry registry = new DefaultResourceRegistry();
+        rosterManager.setResourceRegistry(registry);
+
+        // an offline user's subscriptions are read, but not kept
+        assertEquals(Arrays.asList(from, both), index.getSubscribers(user));
+        assertEquals(0, index.size());
+
+        TestSessionContext sessionContext = TestSessionContext.createSessionContext(user);
+        registry.bindSession(sessionContext);
+        index.getSubscribers(user);
+        assertEquals(1, index.size());
+
+        // dropped when the session has ended
+        rosterManager.evictIfOffline(user);
+        assertEquals(1, index.size());
+        registry.unbindSession(sessionContext);
+        rosterManager.evictIfOffline(user);
+        assertEquals(0, index.size());
+    }
+}
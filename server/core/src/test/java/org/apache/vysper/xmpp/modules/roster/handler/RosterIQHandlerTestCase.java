@@ -22,12 +22,20 @@ package org.apache.vysper.xmpp.modules.roster.handler;
 import junit.framework.TestCase;
 
 import org.apache.vysper.storage.OpenStorageProviderRegistry;
+import org.apache.vysper.xml.fragment.XMLElement;
+import org.apache.vysper.xmpp.addressing.Entity;
 import org.apache.vysper.xmpp.addressing.EntityImpl;
+import org.apache.vysper.xmpp.modules.roster.Roster;
+import org.apache.vysper.xmpp.modules.roster.RosterItem;
+import org.apache.vysper.xmpp.modules.roster.RosterUtils;
+import org.apache.vysper.xmpp.modules.roster.SubscriptionType;
 import org.apache.vysper.xmpp.modules.roster.persistence.MemoryRosterManager;
 import org.apache.vysper.xmpp.protocol.NamespaceURIs;
+import org.apache.vysper.xmpp.protocol.ResponseStanzaContainer;
 import org.apache.vysper.xmpp.server.DefaultServerRuntimeContext;
 import org.apache.vysper.xmpp.server.TestSessionContext;
 import org.apache.vysper.xmpp.stanza.IQStanzaType;
+import org.apache.vysper.xmpp.stanza.Stanza;
 import org.apache.vysper.xmpp.stanza.StanzaBuilder;
 import org.apache.vysper.xmpp.state.resourcebinding.ResourceState;
 
@@ -43,6 +51,8 @@ public class RosterIQHandlerTestCase extends TestCase {
 
     protected EntityImpl client;
 
+    protected Entity contact = EntityImpl.parseUnchecked("contact@vysper.org");
+
     protected RosterIQHandler handler;
 
     @Override
@@ -90,6 +100,102 @@ public class RosterIQHandlerTestCase extends TestCase {
         assertEquals(ResourceState.AVAILABLE_INTERESTED, getResourceState());
     }
 
+    public void testVersionedRosterGet_Full() throws Exception {
+        rosterManager.addContact(client, new RosterItem(contact, SubscriptionType.BOTH));
+
+        Stanza response = executeRosterGet("");
+        XMLElement query = response.getSingleInnerElementsNamed("query");
+        assertEquals(rosterManager.getVersionLog().getVersion(client), query.getAttributeValue("ver"));
+        assertEquals(1, query.getInnerElementsNamed("item").size());
+        assertNull(sessionContext.getNextRecordedResponse());
+    }
+
+    public void testVersionedRosterGet_Current() throws Exception {
+        rosterManager.addContact(client, new RosterItem(contact, SubscriptionType.BOTH));
+
+        assertNull(executeRosterGet(rosterManager.getVersionLog().getVersion(client)));
+        Stanza result = sessionContext.getNextRecordedResponse();
+        assertEquals("result", result.getAttributeValue("type"));
+        assertTrue(result.getInnerElements().isEmpty());
+        assertNull(sessionContext.getNextRecordedResponse());
+    }
+
+    public void testVersionedRosterGet_Changes() throws Exception {
+        Entity otherContact = EntityImpl.parse("other@vysper.org");
+        rosterManager.addContact(client, new RosterItem(contact, SubscriptionType.BOTH));
+        String clientVersion = rosterManager.getVersionLog().getVersion(client);
+        rosterManager.addContact(client, new RosterItem(otherContact, SubscriptionType.TO));
+        String otherContactVersion = rosterManager.getVersionLog().getVersion(client);
+        rosterManager.removeContact(client, contact);
+
+        assertNull(executeRosterGet(clientVersion));
+        assertTrue(sessionContext.getNextRecordedResponse().getInnerElements().isEmpty());
+        String currentVersion = rosterManager.getVersionLog().getVersion(client);
+        // each push carries the version after its own change
+        assertPush(sessionContext.getNextRecordedResponse(), otherContact, "to", otherContactVersion);
+        assertPush(sessionContext.getNextRecordedResponse(), contact, "remove", currentVersion);
+        assertNull(sessionContext.getNextRecordedResponse());
+    }
+
+    public void testVersionedRosterGet_ChangesDoNotLoadRoster() throws Exception {
+        final int[] loads = new int[1];
+        rosterManager = new MemoryRosterManager() {
+            @Override
+            public Roster retrieve(Entity jid) {
+                loads[0]++;
+                return super.retrieve(jid);
+            }
+        };
+        OpenStorageProviderRegistry storageProviderRegistry = new OpenStorageProviderRegistry();
+        storageProviderRegistry.add(rosterManager);
+        ((DefaultServerRuntimeContext) sessionContext.getServerRuntimeContext())
+                .setStorageProviderRegistry(storageProviderRegistry);
+        String clientVersion = rosterManager.getVersionLog().getVersion(client);
+        rosterManager.addContact(client, new RosterItem(contact, SubscriptionType.BOTH));
+
+        assertNull(executeRosterGet(clientVersion));
+        assertEquals(0, loads[0]);
+        assertNotNull(executeRosterGet(""));
+        assertEquals(1, loads[0]);
+    }
+
+    public void testVersionedRosterGet_UnknownVersion() throws Exception {
+        rosterManager.addContact(client, new RosterItem(contact, SubscriptionType.BOTH));
+
+        Stanza response = executeRosterGet("unknown-1");
+        XMLElement query = response.getSingleInnerElementsNamed("query");
+        assertEquals(rosterManager.getVersionLog().getVersion(client), query.getAttributeValue("ver"));
+        assertEquals(1, query.getInnerElementsNamed("item").size());
+    }
+
+    public void testRosterGetWithoutVersion() throws Exception {
+        Stanza response = executeRosterGet(null);
+        assertNull(response.getSingleInnerElementsNamed("query").getAttributeValue("ver"));
+        assertNull(sessionContext.getAttribute(RosterUtils.SESSION_ATTRIBUTE_ROSTER_VERSIONING));
+    }
+
+    private void assertPush(Stanza push, Entity contact, String subscription, String version) throws Exception {
+        assertEquals("set", push.getAttributeValue("type"));
+        XMLElement query = push.getSingleInnerElementsNamed("query");
+        assertEquals(version, query.getAttributeValue("ver"));
+        XMLElement item = query.getSingleInnerElementsNamed("item");
+        assertEquals(contact.getFullQualifiedName(), item.getAttributeValue("jid"));
+        assertEquals(subscription, item.getAttributeValue("subscription"));
+    }
+
+    private Stanza executeRosterGet(String version) {
+        StanzaBuilder stanzaBuilder = StanzaBuilder.createIQStanza(new EntityImpl(client, boundResourceId), null,
+                IQStanzaType.GET, "id1");
+        stanzaBuilder.startInnerElement("query", NamespaceURIs.JABBER_IQ_ROSTER);
+        if (version != null) {
+            stanzaBuilder.addAttribute("ver", version);
+        }
+        stanzaBuilder.endInnerElement();
+        ResponseStanzaContainer container = handler.execute(stanzaBuilder.build(), sessionContext
+                .getServerRuntimeContext(), true, sessionContext, null);
+        return container == null ? null : container.getResponseStanza();
+    }
+
     private StanzaBuilder createRosterGet() {
         StanzaBuilder stanzaBuilder = StanzaBuilder.createIQStanza(new EntityImpl(client, boundResourceId), null,
                 IQStanzaType.GET, "id1");
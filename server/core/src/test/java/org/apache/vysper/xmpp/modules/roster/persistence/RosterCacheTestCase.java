@@ -0,0 +1,223 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.vysper.xmpp.modules.roster.persistence;
+
+import java.util.Iterator;
+
+import junit.framework.TestCase;
+
+import org.apache.vysper.xmpp.addressing.Entity;
+import org.apache.vysper.xmpp.addressing.EntityImpl;
+import org.apache.vysper.xmpp.modules.roster.AskSubscriptionType;
+import org.apache.vysper.xmpp.modules.roster.MutableRoster;
+import org.apache.vysper.xmpp.modules.roster.Roster;
+import org.apache.vysper.xmpp.modules.roster.RosterItem;
+import org.apache.vysper.xmpp.modules.roster.SubscriptionType;
+import org.apache.vysper.xmpp.server.TestSessionContext;
+import org.apache.vysper.xmpp.server.metrics.StageLatencies;
+import org.apache.vysper.xmpp.state.resourcebinding.DefaultResourceRegistry;
+
+/**
+ */
+public class RosterCacheTestCase extends TestCase {
+
+    private Entity user = EntityImpl.parseUnchecked("user@vysper.org");
+
+    private Entity other = EntityImpl.parseUnchecked("other@vysper.org");
+
+    private Entity contact1 = EntityImpl.parseUnchecked("contact1@vysper.org");
+
+    private Entity contact2 = EntityImpl.parseUnchecked("contact2@vysper.org");
+
+    private RosterItem item(Entity contact, SubscriptionType subscriptionType) {
+        return new RosterItem(contact, subscriptionType, AskSubscriptionType.NOT_SET);
+    }
+
+    private MutableRoster roster(RosterItem... items) {
+        MutableRoster roster = new MutableRoster();
+        for (RosterItem item : items) {
+            roster.addItem(item);
+        }
+        return roster;
+    }
+
+    public void testLeastRecentlyUsedIsEvicted() {
+        RosterCache cache = new RosterCache(2, 60000);
+        cache.put(user, roster(), cache.getWriteStamp(user));
+        cache.put(other, roster(), cache.getWriteStamp(other));
+        assertNotNull(cache.get(user));
+        cache.put(contact1, roster(), cache.getWriteStamp(contact1));
+
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getEvictions());
+        assertNull(cache.get(other));
+        assertNotNull(cache.get(user));
+        assertEquals(2, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    public void testExpiry() throws Exception {
+        RosterCache cache = new RosterCache(10, 20);
+        cache.put(user, roster(), cache.getWriteStamp(user));
+        Thread.sleep(50);
+        assertNull(cache.get(user));
+        assertEquals(1, cache.getExpirations());
+        assertEquals(0, cache.size());
+    }
+
+    public void testLoadRacingWriteIsNotCached() {
+        RosterCache cache = new RosterCache();
+        long writeStamp = cache.getWriteStamp(user);
+        cache.update(user, item(contact1, SubscriptionType.BOTH));
+        assertFalse(cache.put(user, roster(), writeStamp));
+        assertNull(cache.get(user));
+    }
+
+    public void testUpdatesReplaceCachedRoster() {
+        RosterCache cache = new RosterCache();
+        MutableRoster loaded = roster(item(contact1, SubscriptionType.TO));
+        cache.put(user, loaded, cache.getWriteStamp(user));
+
+        cache.update(user, item(contact2, SubscriptionType.BOTH));
+        Roster updated = cache.get(user);
+        assertNotSame(loaded, updated);
+        assertNull("the loaded roster is left untouched", loaded.getEntry(contact2));
+        assertEquals(SubscriptionType.BOTH, updated.getEntry(contact2).getSubscriptionType());
+
+        cache.remove(user, contact1);
+        assertNull(cache.get(user).getEntry(contact1));
+        assertNotNull(updated.getEntry(contact1));
+
+        // writes to rosters not cached do not cache them
+        cache.update(other, item(contact1, SubscriptionType.BOTH));
+        assertNull(cache.get(other));
+    }
+
+    public void testManagerCachesOnlineUsers() throws Exception {
+        DefaultResourceRegistry registry = new DefaultResourceRegistry();
+        MemoryRosterManager rosterManager = new MemoryRosterManager();
+        rosterManager.addContact(user, item(contact1, SubscriptionType.BOTH));
+        rosterManager.addContact(other, item(contact1, SubscriptionType.BOTH));
+
+        // without registry, nothing is cached
+        rosterManager.retrieve(user);
+        assertEquals(0, rosterManager.getRosterCache().size());
+
+        rosterManager.setResourceRegistry(registry);
+        TestSessionContext sessionContext = TestSessionContext.createSessionContext(user);
+        registry.bindSession(sessionContext);
+
+        rosterManager.retrieve(user);
+        Roster roster = rosterManager.retrieve(user);
+        assertSame(roster, rosterManager.retrieve(new EntityImpl(user, "phone")));
+        rosterManager.retrieve(other);
+        assertEquals(1, rosterManager.getRosterCache().size());
+        RosterCache cache = rosterManager.getRosterCache();
+        assertEquals(2, cache.getHits());
+        StageLatencies metrics = new StageLatencies();
+        rosterManager.registerMetrics(metrics);
+        assertEquals(2, metrics.getGauge("rosterCache.hits"));
+        assertEquals(2, metrics.getGauge("rosterCache.misses"));
+
+        // writes go through to storage and to the cached roster
+        rosterManager.addContact(user, item(contact2, SubscriptionType.TO));
+        assertEquals(SubscriptionType.TO, rosterManager.retrieve(user).getEntry(contact2).getSubscriptionType());
+        rosterManager.removeContact(user, contact1);
+        assertNull(rosterManager.retrieve(user).getEntry(contact1));
+        rosterManager.setRosterCache(null);
+        assertNull(rosterManager.retrieve(user).getEntry(contact1));
+        assertNotNull(rosterManager.retrieve(user).getEntry(contact2));
+        rosterManager.setRosterCache(cache);
+
+        // the roster is dropped once the user goes offline
+        rosterManager.evictIfOffline(user);
+        assertEquals(1, cache.size());
+        registry.unbindSession(sessionContext);
+        rosterManager.evictIfOffline(user);
+        assertEquals(0, cache.size());
+    }
+
+    public void testCachedItemsAreCopies() {
+        RosterCache cache = new RosterCache();
+        RosterItem loadedItem = item(contact1, SubscriptionType.TO);
+        MutableRoster loaded = roster(loadedItem);
+        cache.put(user, loaded, cache.getWriteStamp(user));
+        RosterItem writtenItem = item(contact2, SubscriptionType.BOTH);
+        cache.update(user, writtenItem);
+
+        // changes to the stored roster and the written items do not reach the cache
+        loaded.removeItem(contact1);
+        writtenItem.setName("changed");
+        Roster cached = cache.get(user);
+        assertNotSame(loadedItem, cached.getEntry(contact1));
+        assertNotNull(cached.getEntry(contact1));
+        assertNull(cached.getEntry(contact2).getName());
+    }
+
+    public void testWriteOnlyPreventsCachingOfItsRoster() {
+        RosterCache cache = new RosterCache();
+        long userStamp = cache.getWriteStamp(user);
+        long otherStamp = cache.getWriteStamp(other);
+        cache.update(user, item(contact1, SubscriptionType.BOTH));
+        assertEquals(otherStamp, cache.getWriteStamp(other));
+        assertTrue(cache.put(other, roster(), otherStamp));
+        assertFalse(cache.put(user, roster(), userStamp));
+    }
+
+    public void testContactsAreCopies() throws Exception {
+        DefaultResourceRegistry registry = new DefaultResourceRegistry();
+        MemoryRosterManager rosterManager = new MemoryRosterManager();
+        rosterManager.setResourceRegistry(registry);
+        registry.bindSession(TestSessionContext.createSessionContext(user));
+        rosterManager.addContact(user, item(contact1, SubscriptionType.BOTH));
+
+        RosterItem contact = rosterManager.getContact(user, contact1);
+        contact.setName("changed");
+        assertNull(rosterManager.retrieve(user).getEntry(contact1).getName());
+        assertNull(rosterManager.getContact(user, contact1).getName());
+    }
+
+    public void testConcurrentUpdatesAreNotLost() throws Exception {
+        final RosterCache cache = new RosterCache();
+        cache.put(user, roster(), cache.getWriteStamp(user));
+        Thread[] writers = new Thread[4];
+        for (int i = 0; i < writers.length; i++) {
+            final int writer = i;
+            writers[i] = new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 50; j++) {
+                        Entity contact = EntityImpl.parseUnchecked("contact" + writer + "-" + j + "@vysper.org");
+                        cache.update(user, item(contact, SubscriptionType.BOTH));
+                    }
+                }
+            };
+            writers[i].start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        int count = 0;
+        for (Iterator<RosterItem> items = cache.get(user).iterator(); items.hasNext(); items.next()) {
+            count++;
+        }
+        assertEquals(200, count);
+    }
+}
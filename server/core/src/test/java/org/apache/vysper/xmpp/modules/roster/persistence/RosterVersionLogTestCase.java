@@ -0,0 +1,156 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.vysper.xmpp.modules.roster.persistence;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.vysper.xmpp.addressing.Entity;
+import org.apache.vysper.xmpp.addressing.EntityImpl;
+import org.apache.vysper.xmpp.modules.roster.RosterItem;
+import org.apache.vysper.xmpp.modules.roster.SubscriptionType;
+
+/**
+ */
+public class RosterVersionLogTestCase extends TestCase {
+
+    private Entity user = EntityImpl.parseUnchecked("user@vysper.org/resource");
+
+    private Entity other = EntityImpl.parseUnchecked("other@vysper.org");
+
+    private Entity contact1 = EntityImpl.parseUnchecked("contact1@vysper.org");
+
+    private Entity contact2 = EntityImpl.parseUnchecked("contact2@vysper.org");
+
+    public void testVersionChangesWithEveryChange() {
+        RosterVersionLog log = new RosterVersionLog();
+        String initial = log.getVersion(user);
+        assertEquals(initial, log.getVersion(user.getBareJID()));
+
+        String updated = log.recordUpdate(user, new RosterItem(contact1, SubscriptionType.NONE));
+        assertFalse(initial.equals(updated));
+        assertEquals(updated, log.getVersion(user));
+        String removed = log.recordRemove(user, contact1);
+        assertFalse(updated.equals(removed));
+
+        assertFalse(log.getVersion(other).equals(log.getVersion(user)));
+    }
+
+    public void testCurrentClientGetsNoChanges() {
+        RosterVersionLog log = new RosterVersionLog();
+        log.recordUpdate(user, new RosterItem(contact1, SubscriptionType.NONE));
+        assertTrue(log.getChangesSince(user, log.getVersion(user)).isEmpty());
+    }
+
+    public void testChangesAreCollapsedPerContact() {
+        RosterVersionLog log = new RosterVersionLog();
+        String clientVersion = log.getVersion(user);
+        log.recordUpdate(user, new RosterItem(contact1, SubscriptionType.NONE));
+        log.recordUpdate(user, new RosterItem(contact2, SubscriptionType.TO));
+        log.recordUpdate(user, new RosterItem(contact1, SubscriptionType.BOTH));
+
+        List<RosterItem> changes = log.getChangesSince(user, clientVersion);
+        assertEquals(2, changes.size());
+        assertEquals(contact2, changes.get(0).getJid());
+        assertEquals(contact1, changes.get(1).getJid());
+        assertEquals(SubscriptionType.BOTH, changes.get(1).getSubscriptionType());
+
+        log.recordRemove(user, contact2);
+        changes = log.getChangesSince(user, clientVersion);
+        assertEquals(contact2, changes.get(1).getJid());
+        assertEquals(SubscriptionType.REMOVE, changes.get(1).getSubscriptionType());
+    }
+
+    public void testVersionsNotCoveredByLog() {
+        RosterVersionLog log = new RosterVersionLog(10, 2);
+        String clientVersion = log.getVersion(user);
+        log.recordUpdate(user, new RosterItem(contact1, SubscriptionType.NONE));
+        String coveredVersion = log.getVersion(user);
+        log.recordUpdate(user, new RosterItem(contact2, SubscriptionType.NONE));
+        log.recordUpdate(user, new RosterItem(contact1, SubscriptionType.BOTH));
+
+        assertNull(log.getChangesSince(user, clientVersion));
+        assertEquals(2, log.getChangesSince(user, coveredVersion).size());
+        assertNull(log.getChangesSince(user, ""));
+        assertNull(log.getChangesSince(user, "unknown-1"));
+        assertNull(log.getChangesSince(user, log.getVersion(other)));
+    }
+
+    public void testEvictedRosterGetsNewVersions() {
+        RosterVersionLog log = new RosterVersionLog(1, 10);
+        String clientVersion = log.getVersion(user);
+        log.getVersion(other);
+        assertEquals(1, log.size());
+
+        assertFalse(clientVersion.equals(log.getVersion(user)));
+        assertNull(log.getChangesSince(user, clientVersion));
+    }
+
+    public void testDeltaCarriesVersionOfItsChanges() {
+        RosterVersionLog log = new RosterVersionLog();
+        String clientVersion = log.getVersion(user);
+        log.recordUpdate(user, new RosterItem(contact1, SubscriptionType.NONE));
+
+        RosterVersionLog.Delta delta = log.getDelta(user, clientVersion);
+        assertEquals(1, delta.getChanges().size());
+        assertEquals(log.getVersion(user), delta.getVersion());
+        assertNull(log.getDelta(user, "unknown-1"));
+    }
+
+    public void testDeltaChangesCarryTheirOwnVersion() {
+        RosterVersionLog log = new RosterVersionLog();
+        String clientVersion = log.getVersion(user);
+        log.recordUpdate(user, new RosterItem(contact1, SubscriptionType.NONE));
+        log.recordUpdate(user, new RosterItem(contact2, SubscriptionType.TO));
+        String afterContact1 = log.recordUpdate(user, new RosterItem(contact1, SubscriptionType.BOTH));
+        String current = log.recordRemove(user, contact2);
+
+        RosterVersionLog.Delta delta = log.getDelta(user, clientVersion);
+        assertEquals(contact1, delta.getChanges().get(0).getJid());
+        assertEquals(afterContact1, delta.getChangeVersion(0));
+        assertEquals(contact2, delta.getChanges().get(1).getJid());
+        assertEquals(current, delta.getChangeVersion(1));
+        assertEquals(current, delta.getVersion());
+    }
+
+    public void testRecordedItemsAreCopies() {
+        RosterVersionLog log = new RosterVersionLog();
+        String clientVersion = log.getVersion(user);
+        RosterItem rosterItem = new RosterItem(contact1, SubscriptionType.NONE);
+        log.recordUpdate(user, rosterItem);
+        rosterItem.setName("changed");
+
+        RosterItem change = log.getChangesSince(user, clientVersion).get(0);
+        assertNotSame(rosterItem, change);
+        assertNull(change.getName());
+    }
+
+    public void testRemovingMissingContactKeepsVersion() throws Exception {
+        MemoryRosterManager rosterManager = new MemoryRosterManager();
+        rosterManager.addContact(user, new RosterItem(contact1, SubscriptionType.BOTH));
+        String version = rosterManager.getVersionLog().getVersion(user);
+
+        rosterManager.removeContact(user, contact2);
+        assertEquals(version, rosterManager.getVersionLog().getVersion(user));
+        rosterManager.removeContact(user, contact1);
+        assertFalse(version.equals(rosterManager.getVersionLog().getVersion(user)));
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.vysper.xmpp.protocol;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import junit.framework.TestCase;
+
+import org.apache.vysper.xmpp.addressing.EntityImpl;
+import org.apache.vysper.xmpp.server.ServerRuntimeContext;
+import org.apache.vysper.xmpp.server.SessionContext;
+import org.apache.vysper.xmpp.server.TestSessionContext;
+import org.apache.vysper.xmpp.stanza.IQStanzaType;
+import org.apache.vysper.xmpp.stanza.Stanza;
+import org.apache.vysper.xmpp.stanza.StanzaBuilder;
+
+/**
+ */
+public class QueuedStanzaProcessorTestCase extends TestCase {
+
+    private TestSessionContext sessionContext;
+
+    private QueuedStanzaProcessor processor;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        sessionContext = TestSessionContext.createWithStanzaReceiverRelayAuthenticated();
+        processor = new QueuedStanzaProcessor(new StanzaProcessor() {
+            public void processStanza(ServerRuntimeContext serverRuntimeContext, SessionContext sessionContext,
+                    Stanza stanza, SessionStateHolder sessionStateHolder) {
+                fail("stanza must not be processed");
+            }
+
+            public void processTLSEstablished(SessionContext sessionContext, SessionStateHolder sessionStateHolder) {
+                // not used
+            }
+        });
+        // an executor which has been shut down rejects everything
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        executor.shutdown();
+        processor.executor = executor;
+    }
+
+    public void testRejectedIQIsAnswered() throws Exception {
+        Stanza iq = StanzaBuilder.createIQStanza(EntityImpl.parse("user@vysper.org/res"), null, IQStanzaType.GET,
+                "iq1").startInnerElement("query", "jabber:iq:version").endInnerElement().build();
+        processor.processStanza(sessionContext.getServerRuntimeContext(), sessionContext, iq, null);
+
+        Stanza error = sessionContext.getNextRecordedResponse();
+        assertNotNull(error);
+        assertEquals("error", error.getAttributeValue("type"));
+        assertEquals("iq1", error.getAttributeValue("id"));
+    }
+
+    public void testRejectedPresenceIsDropped() throws Exception {
+        Stanza presence = StanzaBuilder.createPresenceStanza(EntityImpl.parse("user@vysper.org/res"), null, null,
+                null, null, null).build();
+        processor.processStanza(sessionContext.getServerRuntimeContext(), sessionContext, presence, null);
+
+        assertNull(sessionContext.getNextRecordedResponse());
+    }
+}
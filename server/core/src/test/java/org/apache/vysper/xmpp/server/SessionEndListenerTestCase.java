@@ -0,0 +1,97 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.vysper.xmpp.server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.vysper.xmpp.addressing.Entity;
+import org.apache.vysper.xmpp.addressing.EntityImpl;
+import org.apache.vysper.xmpp.server.SessionContext.SessionTerminationCause;
+
+/**
+ */
+public class SessionEndListenerTestCase extends TestCase {
+
+    private static class RecordingListener implements SessionEndListener {
+
+        boolean keep = false;
+
+        final List<String> calls = new ArrayList<String>();
+
+        List<Entity> resources;
+
+        boolean boundWhenEnded;
+
+        public boolean sessionEnding(AbstractSessionContext sessionContext, SessionTerminationCause terminationCause) {
+            calls.add("ending " + terminationCause);
+            return keep;
+        }
+
+        public void sessionEnded(AbstractSessionContext sessionContext, List<Entity> resources) {
+            calls.add("ended");
+            this.resources = resources;
+            List<String> bound = sessionContext.getServerRuntimeContext().getResourceRegistry()
+                    .getResourcesForSession(sessionContext);
+            boundWhenEnded = bound != null && !bound.isEmpty();
+        }
+    }
+
+    private TestSessionContext sessionContext;
+
+    private String resourceId;
+
+    @Override
+    protected void setUp() throws Exception {
+        sessionContext = TestSessionContext.createWithStanzaReceiverRelayAuthenticated();
+        sessionContext.setInitiatingEntity(EntityImpl.parseUnchecked("user@vysper.org"));
+        resourceId = sessionContext.bindResource();
+    }
+
+    public void testEnded() {
+        RecordingListener listener = new RecordingListener();
+        sessionContext.getServerRuntimeContext().registerSessionEndListener(listener);
+
+        sessionContext.endSession(SessionTerminationCause.CLIENT_BYEBYE);
+        assertEquals(2, listener.calls.size());
+        assertEquals("ending " + SessionTerminationCause.CLIENT_BYEBYE, listener.calls.get(0));
+        assertEquals("ended", listener.calls.get(1));
+        assertEquals(1, listener.resources.size());
+        assertEquals(new EntityImpl("user", "vysper.org", resourceId), listener.resources.get(0));
+        assertFalse(listener.boundWhenEnded);
+        assertEquals(SessionState.CLOSED, sessionContext.getState());
+    }
+
+    public void testKept() {
+        RecordingListener keeping = new RecordingListener();
+        keeping.keep = true;
+        RecordingListener other = new RecordingListener();
+        sessionContext.getServerRuntimeContext().registerSessionEndListener(keeping);
+        sessionContext.getServerRuntimeContext().registerSessionEndListener(other);
+
+        sessionContext.endSession(SessionTerminationCause.CONNECTION_ABORT);
+        assertEquals(1, keeping.calls.size());
+        assertTrue(other.calls.isEmpty());
+        assertEquals(SessionState.AUTHENTICATED, sessionContext.getState());
+        assertNotNull(sessionContext.getServerRuntimeContext().getResourceRegistry().getSessionContext(resourceId));
+    }
+}
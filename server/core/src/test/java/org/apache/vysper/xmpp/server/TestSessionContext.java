@@ -163,7 +163,7 @@ public class TestSessionContext extends AbstractSessionContext implements Stanza
     }
 
     public StanzaWriter getResponseWriter() {
-        return this;
+        return filterResponseWriter(this);
     }
 
     public void switchToTLS(boolean delayed, boolean clientTls) {
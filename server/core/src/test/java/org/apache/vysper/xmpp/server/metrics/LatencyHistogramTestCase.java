@@ -0,0 +1,116 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.vysper.xmpp.server.metrics;
+
+import junit.framework.TestCase;
+
+import org.apache.vysper.xmpp.addressing.EntityImpl;
+import org.apache.vysper.xmpp.stanza.Stanza;
+import org.apache.vysper.xmpp.stanza.StanzaBuilder;
+import org.apache.vysper.xmpp.stanza.XMPPCoreStanzaKind;
+
+/**
+ */
+public class LatencyHistogramTestCase extends TestCase {
+
+    public void testBucketsAreMonotonicAndPrecise() {
+        int lastIndex = -1;
+        for (long value = 0; value < 100000; value++) {
+            int index = LatencyHistogram.bucketIndex(value);
+            assertTrue(index >= lastIndex);
+            long highest = LatencyHistogram.highestValueInBucket(index);
+            assertTrue(highest >= value);
+            // relative error is bounded by the sub bucket resolution
+            assertTrue(highest - value <= value / 16);
+            lastIndex = index;
+        }
+        assertTrue(LatencyHistogram.bucketIndex(Long.MAX_VALUE) >= lastIndex);
+    }
+
+    public void testBucketBoundaries() {
+        // small values are counted exactly
+        for (int value = 0; value < 16; value++) {
+            assertEquals(value, LatencyHistogram.bucketIndex(value));
+            assertEquals(value, LatencyHistogram.highestValueInBucket(value));
+        }
+        assertEquals(0, LatencyHistogram.bucketIndex(-5));
+
+        // each power of two starts a new range of 16 sub buckets
+        for (int exponent = 4; exponent < 62; exponent++) {
+            long powerOfTwo = 1L << exponent;
+            int index = LatencyHistogram.bucketIndex(powerOfTwo);
+            assertEquals(index - 1, LatencyHistogram.bucketIndex(powerOfTwo - 1));
+            assertEquals(powerOfTwo - 1, LatencyHistogram.highestValueInBucket(index - 1));
+            assertEquals(index + 15, LatencyHistogram.bucketIndex(2 * powerOfTwo - 1));
+        }
+    }
+
+    public void testRecordingNanosAndNegativeValues() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.recordNanos(2500000);
+        histogram.recordMicros(-10);
+
+        assertEquals(2, histogram.getCount());
+        assertEquals(2500, histogram.getMaxMicros());
+        assertEquals(0, histogram.getValueAtPercentile(50));
+        assertEquals(2500, histogram.getValueAtPercentile(100));
+    }
+
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getValueAtPercentile(99));
+
+        for (int i = 1; i <= 100; i++) {
+            histogram.recordMicros(i);
+        }
+        histogram.recordMicros(10000);
+
+        assertEquals(101, histogram.getCount());
+        assertEquals(10000, histogram.getMaxMicros());
+        assertEquals((5050 + 10000) / 101, histogram.getMeanMicros());
+
+        long p50 = histogram.getValueAtPercentile(50);
+        assertTrue(p50 >= 51 && p50 <= 54);
+        long p99 = histogram.getValueAtPercentile(99);
+        assertTrue(p99 >= 100 && p99 <= 103);
+        assertEquals(10000, histogram.getValueAtPercentile(100));
+
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMaxMicros());
+    }
+
+    public void testStageLatenciesPerKind() {
+        StageLatencies stageLatencies = new StageLatencies();
+        Stanza message = StanzaBuilder.createMessageStanza(EntityImpl.parseUnchecked("from@vysper.org"),
+                EntityImpl.parseUnchecked("to@vysper.org"), null, "hello").build();
+
+        stageLatencies.record(StageLatencies.Stage.HANDLER, message, System.nanoTime() - 5000000);
+        stageLatencies.record(StageLatencies.Stage.HANDLER, new StanzaBuilder("stream").build(), System.nanoTime());
+
+        LatencyHistogram histogram = stageLatencies.getHistogram(StageLatencies.Stage.HANDLER,
+                XMPPCoreStanzaKind.MESSAGE);
+        assertEquals(1, histogram.getCount());
+        assertTrue(histogram.getMaxMicros() >= 5000);
+        assertEquals(1, stageLatencies.getCount("handler", "other"));
+        assertEquals(0, stageLatencies.getCount("decode", "message"));
+        assertTrue(stageLatencies.getReport().startsWith("handler message:"));
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.vysper.xmpp.server.metrics;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import junit.framework.TestCase;
+
+import org.apache.vysper.xmpp.addressing.Entity;
+import org.apache.vysper.xmpp.addressing.EntityImpl;
+import org.apache.vysper.xmpp.stanza.IQStanzaType;
+import org.apache.vysper.xmpp.stanza.Stanza;
+import org.apache.vysper.xmpp.stanza.StanzaBuilder;
+import org.apache.vysper.xmpp.stanza.XMPPCoreStanza;
+import org.apache.vysper.xmpp.stanza.XMPPCoreStanzaKind;
+
+/**
+ */
+public class StageLatenciesTestCase extends TestCase {
+
+    private static final String[] STRING_PARAMS = { String.class.getName(), String.class.getName() };
+
+    private Entity from = EntityImpl.parseUnchecked("from@vysper.org/res");
+
+    private Entity to = EntityImpl.parseUnchecked("to@vysper.org");
+
+    public void testEveryStageIsRecordedSeparately() {
+        StageLatencies stageLatencies = new StageLatencies();
+        Stanza message = StanzaBuilder.createMessageStanza(from, to, null, "hello").build();
+
+        for (StageLatencies.Stage stage : StageLatencies.Stage.values()) {
+            stageLatencies.record(stage, message, System.nanoTime() - (stage.ordinal() + 1) * 1000000L);
+        }
+
+        for (StageLatencies.Stage stage : StageLatencies.Stage.values()) {
+            LatencyHistogram histogram = stageLatencies.getHistogram(stage, XMPPCoreStanzaKind.MESSAGE);
+            assertEquals(1, histogram.getCount());
+            assertTrue(histogram.getMaxMicros() >= (stage.ordinal() + 1) * 1000);
+            assertEquals(0, stageLatencies.getHistogram(stage, XMPPCoreStanzaKind.IQ).getCount());
+        }
+    }
+
+    public void testStanzaKinds() {
+        StageLatencies stageLatencies = new StageLatencies();
+        Stanza iq = StanzaBuilder.createIQStanza(from, to, IQStanzaType.GET, "id1").build();
+        Stanza presence = StanzaBuilder.createPresenceStanza(from, to, null, null, null, null).build();
+        // untyped stanzas are classified by name
+        Stanza untypedMessage = new StanzaBuilder("message").build();
+
+        stageLatencies.record(StageLatencies.Stage.DECODE, iq, System.nanoTime());
+        stageLatencies.record(StageLatencies.Stage.DECODE, XMPPCoreStanza.getWrapper(presence), System.nanoTime());
+        stageLatencies.record(StageLatencies.Stage.DECODE, untypedMessage, System.nanoTime());
+        stageLatencies.record(StageLatencies.Stage.DECODE, null, System.nanoTime());
+
+        assertEquals(1, stageLatencies.getCount("decode", "iq"));
+        assertEquals(1, stageLatencies.getCount("decode", "presence"));
+        assertEquals(1, stageLatencies.getCount("decode", "message"));
+        assertEquals(1, stageLatencies.getCount("decode", "other"));
+
+        stageLatencies.reset();
+        assertEquals(0, stageLatencies.getCount("decode", "iq"));
+        assertEquals("", stageLatencies.getReport());
+    }
+
+    public void testMBeanAttributesAndOperations() throws Exception {
+        StageLatencies.registerMBean();
+        // registering twice is tolerated
+        StageLatencies.registerMBean();
+
+        StageLatencies instance = StageLatencies.getInstance();
+        instance.reset();
+        try {
+            Stanza message = StanzaBuilder.createMessageStanza(from, to, null, "hello").build();
+            instance.record(StageLatencies.Stage.WRITE, message, System.nanoTime() - 3000000);
+
+            MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName(StageLatencies.OBJECT_NAME);
+            assertTrue(mBeanServer.isRegistered(objectName));
+
+            String report = (String) mBeanServer.getAttribute(objectName, "Report");
+            assertTrue(report.startsWith("write message:\tcount=1 "));
+
+            Object[] params = { "write", "message" };
+            assertEquals(1L, mBeanServer.invoke(objectName, "getCount", params, STRING_PARAMS));
+            assertTrue((Long) mBeanServer.invoke(objectName, "getMaxMicros", params, STRING_PARAMS) >= 3000);
+            assertTrue((Long) mBeanServer.invoke(objectName, "getMeanMicros", params, STRING_PARAMS) >= 3000);
+            assertTrue((Long) mBeanServer.invoke(objectName, "getPercentileMicros", new Object[] { "write",
+                    "message", 99.0 }, new String[] { String.class.getName(), String.class.getName(),
+                    double.class.getName() }) >= 3000);
+
+            mBeanServer.invoke(objectName, "reset", new Object[0], new String[0]);
+            assertEquals(0, instance.getCount("write", "message"));
+        } finally {
+            instance.reset();
+        }
+    }
+}
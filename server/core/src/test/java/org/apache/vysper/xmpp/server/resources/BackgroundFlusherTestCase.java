@@ -0,0 +1,138 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.vysper.xmpp.server.resources;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+/**
+ */
+public class BackgroundFlusherTestCase extends TestCase {
+
+    private static final Integer FAIL = Integer.valueOf(-1);
+
+    private static class QueueFlusher extends BackgroundFlusher {
+
+        final BlockingQueue<Integer> queue = new LinkedBlockingQueue<Integer>();
+
+        final AtomicInteger written = new AtomicInteger();
+
+        final int threadCount;
+
+        volatile CountDownLatch blocker;
+
+        volatile Thread remainingWriter;
+
+        QueueFlusher(int threadCount) {
+            super("QueueFlusher", threadCount);
+            this.threadCount = threadCount;
+        }
+
+        @Override
+        protected void flushRound() throws InterruptedException {
+            Integer next = queue.poll(10, TimeUnit.SECONDS);
+            if (next == FAIL) {
+                throw new IllegalStateException("failing round");
+            }
+            if (next != null) {
+                if (blocker != null) {
+                    blocker.await();
+                }
+                written.incrementAndGet();
+            }
+        }
+
+        @Override
+        protected void wakeUp() {
+            for (int i = 0; i < threadCount; i++) {
+                queue.add(Integer.valueOf(0));
+            }
+        }
+
+        @Override
+        protected void flushRemaining() {
+            written.addAndGet(queue.size());
+            queue.clear();
+            remainingWriter = Thread.currentThread();
+        }
+    }
+
+    public void testFailingRoundDoesNotEndThread() throws InterruptedException {
+        QueueFlusher flusher = new QueueFlusher(1);
+        flusher.start();
+        flusher.queue.add(FAIL);
+        flusher.queue.add(Integer.valueOf(1));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (flusher.written.get() < 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, flusher.written.get());
+        assertTrue(flusher.stop(5000));
+    }
+
+    public void testRemainingIsWrittenAfterThreadsLeft() {
+        QueueFlusher flusher = new QueueFlusher(3);
+        flusher.start();
+        assertTrue(flusher.stop(5000));
+        assertTrue(flusher.isStopped());
+        assertSame(Thread.currentThread(), flusher.remainingWriter);
+        assertTrue(flusher.queue.isEmpty());
+    }
+
+    public void testRemainingIsWrittenByBusyThread() throws InterruptedException {
+        QueueFlusher flusher = new QueueFlusher(1);
+        flusher.blocker = new CountDownLatch(1);
+        flusher.start();
+        flusher.queue.add(Integer.valueOf(1));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!flusher.queue.isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertFalse(flusher.stop(100));
+        assertNull(flusher.remainingWriter);
+
+        flusher.blocker.countDown();
+        deadline = System.currentTimeMillis() + 5000;
+        while (flusher.remainingWriter == null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertNotNull(flusher.remainingWriter);
+        assertNotSame(Thread.currentThread(), flusher.remainingWriter);
+        assertEquals(2, flusher.written.get());
+    }
+
+    public void testRemainingIsWrittenWithoutThreads() {
+        QueueFlusher flusher = new QueueFlusher(1);
+        flusher.queue.add(Integer.valueOf(1));
+        flusher.queue.add(Integer.valueOf(2));
+        assertTrue(flusher.stop(5000));
+        assertSame(Thread.currentThread(), flusher.remainingWriter);
+        assertEquals(2, flusher.written.get());
+
+        // stopped flushers are not started anymore
+        flusher.start();
+        assertTrue(flusher.stop(5000));
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.vysper.xmpp.server.resources;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.vysper.xmpp.addressing.Entity;
+import org.apache.vysper.xmpp.addressing.EntityImpl;
+import org.apache.vysper.xmpp.protocol.NamespaceURIs;
+import org.apache.vysper.xmpp.stanza.IQStanzaType;
+import org.apache.vysper.xmpp.stanza.Stanza;
+import org.apache.vysper.xmpp.stanza.StanzaBuilder;
+
+/**
+ */
+public class StanzaLaneQueueTestCase extends TestCase {
+
+    private static final Entity FROM = EntityImpl.parseUnchecked("from@vysper.org");
+
+    private static final Entity TO = EntityImpl.parseUnchecked("to@vysper.org");
+
+    private static class NamedTask implements Runnable {
+        private final String name;
+
+        NamedTask(String name) {
+            this.name = name;
+        }
+
+        public void run() {
+            // empty
+        }
+    }
+
+    private StanzaLaneTask<Object> task(String name, StanzaLane lane) {
+        return new StanzaLaneTask<Object>(new NamedTask(name), lane);
+    }
+
+    public void testClassify() {
+        Stanza message = StanzaBuilder.createMessageStanza(FROM, TO, "en", "Hello").build();
+        assertEquals(StanzaLane.MESSAGE, StanzaLane.classify(message));
+
+        Stanza event = StanzaBuilder.createMessageStanza(FROM, TO, null, null)
+                .startInnerElement("event", NamespaceURIs.XEP0060_PUBSUB_EVENT).endInnerElement().build();
+        assertEquals(StanzaLane.PUBSUB_EVENT, StanzaLane.classify(event));
+
+        Stanza presence = StanzaBuilder.createPresenceStanza(FROM, TO, null, null, null, null).build();
+        assertEquals(StanzaLane.PRESENCE, StanzaLane.classify(presence));
+
+        Stanza iq = StanzaBuilder.createIQStanza(FROM, TO, IQStanzaType.GET, "id1").build();
+        assertEquals(StanzaLane.IQ, StanzaLane.classify(iq));
+    }
+
+    public void testWeightedFairOrder() {
+        StanzaLaneQueue queue = new StanzaLaneQueue();
+        queue.setWeight(StanzaLane.IQ, 1);
+        queue.setWeight(StanzaLane.MESSAGE, 2);
+        queue.setWeight(StanzaLane.PRESENCE, 1);
+
+        for (int i = 0; i < 10; i++) {
+            assertTrue(queue.offer(task("p" + i, StanzaLane.PRESENCE)));
+        }
+        for (int i = 0; i < 4; i++) {
+            assertTrue(queue.offer(task("m" + i, StanzaLane.MESSAGE)));
+        }
+        assertEquals(14, queue.size());
+        assertEquals(10, queue.size(StanzaLane.PRESENCE));
+
+        List<StanzaLane> order = new ArrayList<StanzaLane>();
+        Runnable runnable;
+        while ((runnable = queue.poll()) != null) {
+            order.add(((StanzaLaneTask<?>) runnable).getLane());
+        }
+        assertEquals(14, order.size());
+        // messages are not queued behind the presence burst, but get two slots per round
+        assertEquals(StanzaLane.MESSAGE, order.get(0));
+        assertEquals(StanzaLane.MESSAGE, order.get(1));
+        assertEquals(StanzaLane.PRESENCE, order.get(2));
+        assertEquals(StanzaLane.MESSAGE, order.get(3));
+        assertEquals(StanzaLane.MESSAGE, order.get(4));
+        for (int i = 5; i < 14; i++) {
+            assertEquals(StanzaLane.PRESENCE, order.get(i));
+        }
+        assertEquals(0, queue.size());
+    }
+
+    public void testLaneCapacity() {
+        StanzaLaneQueue queue = new StanzaLaneQueue();
+        queue.setCapacity(StanzaLane.PRESENCE, 2);
+
+        assertTrue(queue.offer(task("p1", StanzaLane.PRESENCE)));
+        assertTrue(queue.offer(task("p2", StanzaLane.PRESENCE)));
+        assertFalse(queue.offer(task("p3", StanzaLane.PRESENCE)));
+        assertEquals(1, queue.getRejectedCount(StanzaLane.PRESENCE));
+
+        // other lanes are not affected
+        assertTrue(queue.offer(task("m1", StanzaLane.MESSAGE)));
+        // plain runnables go to the default lane
+        assertTrue(queue.offer(new NamedTask("plain")));
+        assertEquals(1, queue.size(StanzaLane.IQ));
+        assertEquals(4, queue.size());
+
+        List<Runnable> drained = new ArrayList<Runnable>();
+        assertEquals(4, queue.drainTo(drained));
+        assertTrue(queue.isEmpty());
+    }
+
+    public void testLaneCapacityIsChargedByCost() {
+        StanzaLaneQueue queue = new StanzaLaneQueue();
+        queue.setCapacity(StanzaLane.PRESENCE, 5);
+
+        StanzaLaneTask<Object> fanOut = new StanzaLaneTask<Object>(new NamedTask("f1"), StanzaLane.PRESENCE, 4);
+        assertTrue(queue.offer(fanOut));
+        assertEquals(4, queue.getLoad(StanzaLane.PRESENCE));
+        assertFalse(queue.offer(new StanzaLaneTask<Object>(new NamedTask("f2"), StanzaLane.PRESENCE, 2)));
+        assertTrue(queue.offer(task("p1", StanzaLane.PRESENCE)));
+        assertEquals(5, queue.getLoad(StanzaLane.PRESENCE));
+        assertEquals(2, queue.size(StanzaLane.PRESENCE));
+
+        assertSame(fanOut, queue.poll());
+        assertEquals(1, queue.getLoad(StanzaLane.PRESENCE));
+        assertTrue(queue.remove(queue.peek()));
+        assertEquals(0, queue.getLoad(StanzaLane.PRESENCE));
+
+        // a task costing more than the capacity is only taken by an empty lane
+        assertTrue(queue.offer(new StanzaLaneTask<Object>(new NamedTask("f3"), StanzaLane.PRESENCE, 10)));
+        assertFalse(queue.offer(task("p2", StanzaLane.PRESENCE)));
+        assertEquals(2, queue.getRejectedCount(StanzaLane.PRESENCE));
+    }
+}
@@ -19,9 +19,13 @@
  */
 package org.apache.vysper.xmpp.stanza;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import junit.framework.Assert;
 import junit.framework.TestCase;
 
+import org.apache.vysper.xml.fragment.Attribute;
 import org.apache.vysper.xml.fragment.Renderer;
 import org.apache.vysper.xml.fragment.XMLElement;
 import org.apache.vysper.xml.fragment.XMLSemanticError;
@@ -86,4 +90,60 @@ public class StanzaBuilderTestCase extends TestCase {
         Assert.assertEquals("attribute", bar.getAttributeValue("inner"));
         Assert.assertEquals("inner text", bar.getInnerText().getText());
     }
+
+    public void testBuildsTypedCoreStanzas() {
+        Stanza message = StanzaBuilder.createMessageStanza(FROM, TO, MessageStanzaType.CHAT, LANG, BODY).build();
+        assertTrue(message instanceof MessageStanza);
+        assertSame(message, XMPPCoreStanza.getWrapper(message));
+        assertEquals(XMPPCoreStanzaKind.MESSAGE, ((MessageStanza) message).getKind());
+        assertEquals(MessageStanzaType.CHAT, ((MessageStanza) message).getMessageType());
+
+        Stanza iq = StanzaBuilder.createIQStanza(FROM, TO, IQStanzaType.GET, "id1").build();
+        assertTrue(iq instanceof IQStanza);
+        assertEquals(IQStanzaType.GET, ((IQStanza) iq).getIQType());
+
+        Stanza presence = StanzaBuilder.createPresenceStanza(FROM, TO, null, null, null, null).build();
+        assertTrue(presence instanceof PresenceStanza);
+        assertNull(((PresenceStanza) presence).getPresenceType());
+
+        Stanza other = new StanzaBuilder("foo").build();
+        assertFalse(other instanceof XMPPCoreStanza);
+        assertNull(XMPPCoreStanza.getWrapper(other));
+    }
+
+    public void testWrapRewrittenNamespace() {
+        Stanza stanza = StanzaBuilder.createMessageStanza(FROM, TO, LANG, BODY).build();
+        Stanza rewritten = StanzaBuilder.rewriteNamespace(stanza, NamespaceURIs.JABBER_CLIENT,
+                NamespaceURIs.JABBER_SERVER);
+
+        XMPPCoreStanza wrapped = XMPPCoreStanza.getWrapper(rewritten);
+        assertTrue(wrapped instanceof MessageStanza);
+        assertEquals(NamespaceURIs.JABBER_SERVER, wrapped.getNamespaceURI());
+        assertEquals(NamespaceURIs.JABBER_SERVER, wrapped.getFirstInnerElement().getNamespaceURI());
+    }
+
+    public void testAttributeOverlay() {
+        Entity newTo = EntityImpl.parseUnchecked("other@vysper.org/res");
+        Stanza stanza = StanzaBuilder.createMessageStanza(FROM, TO, MessageStanzaType.CHAT, LANG, BODY).build();
+
+        List<Attribute> replacements = new ArrayList<Attribute>();
+        replacements.add(new Attribute("to", newTo.getFullQualifiedName()));
+        replacements.add(new Attribute("extra", "value"));
+        Stanza overlay = StanzaBuilder.createAttributeOverlay(stanza, replacements);
+
+        assertTrue(overlay instanceof MessageStanza);
+        assertEquals(MessageStanzaType.CHAT, ((MessageStanza) overlay).getMessageType());
+        assertEquals(FROM, overlay.getFrom());
+        assertEquals(newTo, overlay.getTo());
+        assertEquals("value", overlay.getAttributeValue("extra"));
+        assertEquals(stanza.getAttributes().size() + 1, overlay.getAttributes().size());
+        // children are shared, not copied
+        assertSame(stanza.getFirstInnerElement(), overlay.getFirstInnerElement());
+        // the original is unchanged
+        assertEquals(TO, stanza.getTo());
+
+        Stanza clone = StanzaBuilder.createClone(stanza, true, replacements).build();
+        assertEquals(clone, overlay);
+        assertEquals(new Renderer(clone).getComplete(), new Renderer(overlay).getComplete());
+    }
 }
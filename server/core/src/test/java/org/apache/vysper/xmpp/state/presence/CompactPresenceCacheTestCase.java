@@ -0,0 +1,150 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.vysper.xmpp.state.presence;
+
+import org.apache.vysper.xml.fragment.Renderer;
+import org.apache.vysper.xmpp.addressing.Entity;
+import org.apache.vysper.xmpp.addressing.EntityImpl;
+import org.apache.vysper.xmpp.stanza.PresenceStanza;
+import org.apache.vysper.xmpp.stanza.StanzaBuilder;
+
+/**
+ */
+public class CompactPresenceCacheTestCase extends LatestPresenceCacheTestCase {
+
+    protected final CompactPresenceCache compactPresenceCache = new CompactPresenceCache();
+
+    private final Entity bareJID = EntityImpl.parseUnchecked("user@vysper.org");
+
+    private final Entity res1 = new EntityImpl(bareJID, "res1");
+
+    private final Entity res2 = new EntityImpl(bareJID, "res2");
+
+    @Override
+    protected LatestPresenceCache getCache() {
+        return compactPresenceCache;
+    }
+
+    public void testRehydrateFromOffHeap() throws Exception {
+        OffHeapSlabAllocator allocator = new OffHeapSlabAllocator(OffHeapSlabAllocator.DEFAULT_SLAB_SIZE);
+        CompactPresenceCache cache = new CompactPresenceCache(0, allocator);
+
+        PresenceStanza presence1 = createPresence(res1, "in a meeting");
+        PresenceStanza presence2 = createPresence(res2, "lunch");
+        cache.put(res1, presence1);
+        cache.put(res2, presence2);
+        assertEquals(0, cache.getHotEntryCount());
+        assertTrue(allocator.getUsedBytes() > 0);
+
+        PresenceStanza rehydrated = cache.get(res1);
+        assertNotSame(presence1, rehydrated);
+        assertEquals(render(presence1), render(rehydrated));
+        assertEquals("in a meeting", rehydrated.getStatus(null));
+        assertEquals(render(presence2), render(cache.getForBareJID(bareJID)));
+
+        // the older resource becomes the most recent one
+        cache.remove(res2);
+        assertNull(cache.get(res2));
+        assertEquals(render(presence1), render(cache.getForBareJID(bareJID)));
+
+        cache.remove(res1);
+        assertNull(cache.getForBareJID(bareJID));
+        assertEquals(0, cache.getBareJIDCount());
+        assertEquals(0, allocator.getUsedBytes());
+    }
+
+    public void testReplacingReusesChunks() throws Exception {
+        OffHeapSlabAllocator allocator = new OffHeapSlabAllocator(OffHeapSlabAllocator.DEFAULT_SLAB_SIZE);
+        CompactPresenceCache cache = new CompactPresenceCache(0, allocator);
+
+        cache.put(res1, createPresence(res1, "status 0"));
+        long usedBytes = allocator.getUsedBytes();
+        for (int i = 1; i < 1000; i++) {
+            cache.put(res1, createPresence(res1, "status " + (i % 10)));
+        }
+        assertEquals(usedBytes, allocator.getUsedBytes());
+        assertEquals(OffHeapSlabAllocator.DEFAULT_SLAB_SIZE, allocator.getReservedBytes());
+        assertEquals("status 9", cache.get(res1).getStatus(null));
+    }
+
+    public void testFallbackToHeap() throws Exception {
+        OffHeapSlabAllocator allocator = new OffHeapSlabAllocator(OffHeapSlabAllocator.MAX_CHUNK_SIZE,
+                OffHeapSlabAllocator.MAX_CHUNK_SIZE);
+        CompactPresenceCache cache = new CompactPresenceCache(0, allocator);
+
+        StringBuilder longStatus = new StringBuilder();
+        for (int i = 0; i < OffHeapSlabAllocator.MAX_CHUNK_SIZE; i++) {
+            longStatus.append('x');
+        }
+        cache.put(res1, createPresence(res1, longStatus.toString()));
+        assertEquals(0, allocator.getUsedBytes());
+        assertEquals(longStatus.toString(), cache.get(res1).getStatus(null));
+
+        // slab space exhausted
+        cache.put(res2, createPresence(res2, "first"));
+        for (int i = 0; i < 100; i++) {
+            Entity resource = new EntityImpl(bareJID, "more" + i);
+            cache.put(resource, createPresence(resource, "status " + i));
+        }
+        assertEquals(OffHeapSlabAllocator.MAX_CHUNK_SIZE, allocator.getReservedBytes());
+        assertEquals("status 99", cache.getForBareJID(bareJID).getStatus(null));
+        assertEquals("first", cache.get(res2).getStatus(null));
+    }
+
+    public void testHotEntries() {
+        CompactPresenceCache cache = new CompactPresenceCache(1, null);
+        PresenceStanza presence1 = createPresence(res1, "one");
+        PresenceStanza presence2 = createPresence(res2, "two");
+        cache.put(res1, presence1);
+        cache.put(res2, presence2);
+        assertEquals(1, cache.getHotEntryCount());
+
+        assertSame(presence2, cache.get(res2));
+        PresenceStanza rehydrated = cache.get(res1);
+        assertNotSame(presence1, rehydrated);
+        // now hot
+        assertSame(rehydrated, cache.get(res1));
+        assertNotSame(presence2, cache.get(res2));
+    }
+
+    public void testReferencedEntryStaysHot() {
+        CompactPresenceCache cache = new CompactPresenceCache(2, null);
+        PresenceStanza presence1 = createPresence(res1, "one");
+        PresenceStanza presence2 = createPresence(res2, "two");
+        Entity res3 = new EntityImpl(bareJID, "res3");
+        cache.put(res1, presence1);
+        cache.put(res2, presence2);
+        assertSame(presence1, cache.get(res1));
+
+        // the unreferenced entry makes room
+        cache.put(res3, createPresence(res3, "three"));
+        assertEquals(2, cache.getHotEntryCount());
+        assertSame(presence1, cache.get(res1));
+        assertNotSame(presence2, cache.get(res2));
+    }
+
+    private PresenceStanza createPresence(Entity from, String status) {
+        return new PresenceStanza(StanzaBuilder.createPresenceStanza(from, null, null, null, null, status).build());
+    }
+
+    private String render(PresenceStanza presenceStanza) {
+        return new Renderer(presenceStanza).getComplete();
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.vysper.xmpp.state.presence;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.vysper.xmpp.addressing.Entity;
+import org.apache.vysper.xmpp.addressing.EntityImpl;
+import org.apache.vysper.xmpp.stanza.PresenceStanza;
+import org.apache.vysper.xmpp.stanza.StanzaBuilder;
+
+/**
+ */
+public class ConcurrentPresenceCacheTestCase extends LatestPresenceCacheTestCase {
+
+    protected final ConcurrentPresenceCache concurrentPresenceCache = new ConcurrentPresenceCache();
+
+    @Override
+    protected LatestPresenceCache getCache() {
+        return concurrentPresenceCache;
+    }
+
+    public void testRemoveFallsBackToMostRecentResource() {
+        Entity bareJID = EntityImpl.parseUnchecked("user@vysper.org");
+        Entity res1 = new EntityImpl(bareJID, "res1");
+        Entity res2 = new EntityImpl(bareJID, "res2");
+        Entity res3 = new EntityImpl(bareJID, "res3");
+
+        PresenceStanza presence1 = createPresence(res1);
+        PresenceStanza presence2 = createPresence(res2);
+        PresenceStanza presence3 = createPresence(res3);
+        concurrentPresenceCache.put(res1, presence1);
+        concurrentPresenceCache.put(res2, presence2);
+        concurrentPresenceCache.put(res3, presence3);
+        assertSame(presence3, concurrentPresenceCache.getForBareJID(bareJID));
+        assertSame(presence3, concurrentPresenceCache.getForBareJID(res1));
+
+        concurrentPresenceCache.remove(res3);
+        assertNull(concurrentPresenceCache.get(res3));
+        assertSame(presence2, concurrentPresenceCache.getForBareJID(bareJID));
+
+        // removing an older resource keeps the most recent one
+        concurrentPresenceCache.remove(res1);
+        assertSame(presence2, concurrentPresenceCache.getForBareJID(bareJID));
+        assertEquals(1, concurrentPresenceCache.getBareJIDCount());
+
+        concurrentPresenceCache.remove(res2);
+        assertNull(concurrentPresenceCache.getForBareJID(bareJID));
+        assertEquals(0, concurrentPresenceCache.getBareJIDCount());
+
+        // removing unknown entries is a no-op
+        concurrentPresenceCache.remove(res2);
+        concurrentPresenceCache.remove(bareJID);
+    }
+
+    public void testConcurrentPutAndRemove() throws Exception {
+        final Entity bareJID = EntityImpl.parseUnchecked("user@vysper.org");
+        final int threadCount = 8;
+        final int iterations = 2000;
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threadCount);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+        for (int t = 0; t < threadCount; t++) {
+            final Entity resource = new EntityImpl(bareJID, "res" + t);
+            final PresenceStanza presence = createPresence(resource);
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < iterations; i++) {
+                            concurrentPresenceCache.put(resource, presence);
+                            assertSame(presence, concurrentPresenceCache.get(resource));
+                            assertNotNull(concurrentPresenceCache.getForBareJID(bareJID));
+                            concurrentPresenceCache.remove(resource);
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        start.countDown();
+        done.await();
+
+        assertNull(failure.get());
+        assertNull(concurrentPresenceCache.getForBareJID(bareJID));
+        assertEquals(0, concurrentPresenceCache.getBareJIDCount());
+    }
+
+    private PresenceStanza createPresence(Entity from) {
+        return new PresenceStanza(StanzaBuilder.createPresenceStanza(from, null, null, null, null, null).build());
+    }
+}
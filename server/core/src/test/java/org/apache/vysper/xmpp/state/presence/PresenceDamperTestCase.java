@@ -0,0 +1,134 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.vysper.xmpp.state.presence;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.apache.vysper.xmpp.addressing.Entity;
+import org.apache.vysper.xmpp.addressing.EntityImpl;
+import org.apache.vysper.xmpp.server.resources.StanzaExecutor;
+
+/**
+ */
+public class PresenceDamperTestCase extends TestCase {
+
+    private static final long WINDOW = 200;
+
+    private final Entity resource = EntityImpl.parseUnchecked("user@vysper.org/res");
+
+    private PresenceDamper damper;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        damper = new PresenceDamper(WINDOW);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        damper.close();
+        super.tearDown();
+    }
+
+    public void testFirstUpdateNotDeferred() {
+        CountingBroadcast broadcast = new CountingBroadcast();
+        assertFalse(damper.defer(resource, "away", broadcast));
+        // the next one is
+        assertTrue(damper.defer(resource, "dnd", broadcast));
+        assertEquals(0, broadcast.count.get());
+    }
+
+    public void testLatestDeferredUpdateIsBroadcasted() throws Exception {
+        damper.recordBroadcast(resource, "");
+        CountingBroadcast away = new CountingBroadcast();
+        CountingBroadcast dnd = new CountingBroadcast();
+        assertTrue(damper.defer(resource, "away", away));
+        assertTrue(damper.defer(resource, "dnd", dnd));
+
+        Thread.sleep(WINDOW * 3);
+        assertEquals(0, away.count.get());
+        assertEquals(1, dnd.count.get());
+        assertEquals(1, damper.getCoalescedCount());
+    }
+
+    public void testFlapBackIsSuppressed() throws Exception {
+        damper.recordBroadcast(resource, "");
+        CountingBroadcast away = new CountingBroadcast();
+        CountingBroadcast available = new CountingBroadcast();
+        assertTrue(damper.defer(resource, "away", away));
+        // back to what has been broadcasted last
+        assertTrue(damper.defer(resource, "", available));
+
+        Thread.sleep(WINDOW * 3);
+        assertEquals(0, away.count.get());
+        assertEquals(0, available.count.get());
+    }
+
+    public void testCancelDropsDeferredUpdate() throws Exception {
+        damper.recordBroadcast(resource, "");
+        CountingBroadcast away = new CountingBroadcast();
+        assertTrue(damper.defer(resource, "away", away));
+        damper.cancel(resource);
+
+        Thread.sleep(WINDOW * 3);
+        assertEquals(0, away.count.get());
+        // starting over
+        assertFalse(damper.defer(resource, "dnd", away));
+    }
+
+    public void testBroadcastIsHandedToExecutor() throws Exception {
+        final List<Runnable> tasks = Collections.synchronizedList(new ArrayList<Runnable>());
+        damper.setStanzaExecutor(new StanzaExecutor(new Executor() {
+            public void execute(Runnable command) {
+                tasks.add(command);
+            }
+        }));
+        damper.recordBroadcast(resource, "");
+        CountingBroadcast away = new CountingBroadcast();
+        assertTrue(damper.defer(resource, "away", away));
+
+        Thread.sleep(WINDOW * 3);
+        // not run on the timer thread
+        assertEquals(0, away.count.get());
+        assertEquals(1, tasks.size());
+        tasks.get(0).run();
+        assertEquals(1, away.count.get());
+    }
+
+    public void testNotDeferredAfterClose() {
+        damper.recordBroadcast(resource, "");
+        damper.close();
+        assertFalse(damper.defer(resource, "away", new CountingBroadcast()));
+    }
+
+    static class CountingBroadcast implements Runnable {
+        final AtomicInteger count = new AtomicInteger();
+
+        public void run() {
+            count.incrementAndGet();
+        }
+    }
+}
@@ -19,7 +19,9 @@
  */
 package org.apache.vysper.xmpp.state.resourcebinding;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
 
 import junit.framework.TestCase;
 
@@ -203,4 +205,94 @@ public class ResourceRegistryTestCase extends TestCase {
         assertFalse("resource ids actually differ", resourceId1.equals(resourceId2));
         assertNull("resource id no longer unique", resourceRegistry.getUniqueResourceForSession(sessionContext));
     }
+
+    public void testHighestPrioPrefersAvailableResources() throws EntityFormatException {
+        EntityImpl entity = EntityImpl.parse("me@test");
+        TestSessionContext sessionContext1 = TestSessionContext.createSessionContext(entity);
+        String resourceId1 = resourceRegistry.bindSession(sessionContext1);
+        TestSessionContext sessionContext2 = TestSessionContext.createSessionContext(entity);
+        String resourceId2 = resourceRegistry.bindSession(sessionContext2);
+
+        resourceRegistry.setResourceState(resourceId2, ResourceState.AVAILABLE);
+        List<SessionContext> highestPrioSessions = resourceRegistry.getHighestPrioSessions(entity, 0);
+        assertEquals(2, highestPrioSessions.size());
+        assertSame(sessionContext2, highestPrioSessions.get(0));
+
+        resourceRegistry.setResourcePriority(resourceId1, 1);
+        highestPrioSessions = resourceRegistry.getHighestPrioSessions(entity, 0);
+        assertEquals(1, highestPrioSessions.size());
+        assertSame(sessionContext1, highestPrioSessions.get(0));
+        assertEquals(1, resourceRegistry.getSessions(entity, 1).size());
+        assertEquals(2, resourceRegistry.getSessions(entity, 0).size());
+
+        // lookups of the full JID ignore priorities
+        EntityImpl fullJID = new EntityImpl(entity, resourceId2);
+        assertSame(sessionContext2, resourceRegistry.getHighestPrioSessions(fullJID, 1).get(0));
+        assertEquals(0, resourceRegistry.getSessions(new EntityImpl(EntityImpl.parse("other@test"), resourceId2))
+                .size());
+
+        resourceRegistry.unbindResource(resourceId1);
+        assertEquals(0, resourceRegistry.getHighestPrioSessions(entity, 1).size());
+        assertSame(sessionContext2, resourceRegistry.getHighestPrioSessions(entity, 0).get(0));
+    }
+
+    public void testTransferSession() throws EntityFormatException {
+        EntityImpl entity = EntityImpl.parse("me@test");
+        TestSessionContext sessionContext1 = TestSessionContext.createSessionContext(entity);
+        String resourceId1 = resourceRegistry.bindSession(sessionContext1);
+        resourceRegistry.setResourceState(resourceId1, ResourceState.AVAILABLE);
+        resourceRegistry.setResourcePriority(resourceId1, 5);
+        TestSessionContext sessionContext2 = TestSessionContext.createSessionContext(entity);
+
+        assertFalse(resourceRegistry.transferSession(sessionContext2, sessionContext1));
+        assertTrue(resourceRegistry.transferSession(sessionContext1, sessionContext2));
+
+        assertSame(sessionContext2, resourceRegistry.getSessionContext(resourceId1));
+        assertEquals(resourceId1, resourceRegistry.getUniqueResourceForSession(sessionContext2));
+        assertEquals(0, resourceRegistry.getResourcesForSession(sessionContext1).size());
+        assertEquals(ResourceState.AVAILABLE, resourceRegistry.getResourceState(resourceId1));
+        assertSame(sessionContext2, resourceRegistry.getHighestPrioSessions(entity, 5).get(0));
+        assertEquals(1, resourceRegistry.getSessions(entity).size());
+
+        resourceRegistry.unbindSession(sessionContext2);
+        assertEquals(0, resourceRegistry.getBoundResources(entity).size());
+    }
+
+    public void testConcurrentBindAndUnbind() throws Exception {
+        final EntityImpl entity = EntityImpl.parse("me@test");
+        final int threadCount = 8;
+        final int rounds = 200;
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Throwable> failures = new ArrayList<Throwable>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < threadCount; i++) {
+            Thread thread = new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                        for (int round = 0; round < rounds; round++) {
+                            TestSessionContext sessionContext = TestSessionContext.createSessionContext(entity);
+                            String resourceId = resourceRegistry.bindSession(sessionContext);
+                            resourceRegistry.setResourcePriority(resourceId, round % 3);
+                            assertTrue(resourceRegistry.getBoundResources(entity).contains(resourceId));
+                            resourceRegistry.unbindSession(sessionContext);
+                        }
+                    } catch (Throwable e) {
+                        synchronized (failures) {
+                            failures.add(e);
+                        }
+                    }
+                }
+            };
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(0, failures.size());
+        assertEquals(0, resourceRegistry.getBoundResources(entity).size());
+        assertEquals(0, resourceRegistry.getSessionCount());
+    }
 }
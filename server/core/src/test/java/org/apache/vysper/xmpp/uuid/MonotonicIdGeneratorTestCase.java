@@ -0,0 +1,51 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.vysper.xmpp.uuid;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+/**
+ */
+public class MonotonicIdGeneratorTestCase extends TestCase {
+
+    public void testPrefix() {
+        UUIDGenerator generator = new MonotonicIdGenerator("id-");
+        assertEquals("id-1", generator.create());
+        assertEquals("id-2", generator.create());
+    }
+
+    public void testUnique() {
+        UUIDGenerator generator = new MonotonicIdGenerator();
+        Set<String> ids = new HashSet<String>();
+        for (int i = 0; i < 10000; i++) {
+            assertTrue(ids.add(generator.create()));
+        }
+    }
+
+    public void testSamePrefixWithinJVM() {
+        String id1 = new MonotonicIdGenerator().create();
+        String id2 = new MonotonicIdGenerator().create();
+        assertEquals(id1, id2);
+        assertEquals(9, id1.length());
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.vysper.xmpp.uuid;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+/**
+ */
+public class ThreadLocalSecureRandomUUIDGeneratorTestCase extends TestCase {
+
+    private UUIDGenerator generator = new ThreadLocalSecureRandomUUIDGenerator();
+
+    public void testFormat() {
+        String id = generator.create();
+        assertEquals(32, id.length());
+        assertTrue(id, id.matches("[0-9a-f]{12}4[0-9a-f]{3}[89ab][0-9a-f]{15}"));
+    }
+
+    public void testUnique() {
+        Set<String> ids = new HashSet<String>();
+        for (int i = 0; i < 10000; i++) {
+            assertTrue(ids.add(generator.create()));
+        }
+    }
+
+    public void testUniqueAcrossThreads() throws InterruptedException {
+        final Set<String> ids = new HashSet<String>();
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                public void run() {
+                    for (int j = 0; j < 1000; j++) {
+                        String id = generator.create();
+                        synchronized (ids) {
+                            ids.add(id);
+                        }
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(4000, ids.size());
+    }
+}
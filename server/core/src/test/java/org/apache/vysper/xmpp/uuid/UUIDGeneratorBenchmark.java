@@ -0,0 +1,77 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.vysper.xmpp.uuid;
+
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * compares the throughput of the id generators with concurrent callers. 
+ * not run as part of the tests, start with: UUIDGeneratorBenchmark [threads] [ids per thread]
+ *
+ * @author The Apache MINA Project (dev@mina.apache.org)
+ */
+public class UUIDGeneratorBenchmark {
+
+    public static void main(String[] args) throws InterruptedException {
+        int threadCount = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        int idsPerThread = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+
+        UUIDGenerator[] generators = new UUIDGenerator[] { new JVMBuiltinUUIDGenerator(),
+                new ThreadLocalSecureRandomUUIDGenerator(), new MonotonicIdGenerator() };
+
+        // first round warms up
+        for (int round = 0; round < 2; round++) {
+            for (UUIDGenerator generator : generators) {
+                long nanos = run(generator, threadCount, idsPerThread);
+                if (round > 0) {
+                    long ids = (long) threadCount * idsPerThread;
+                    System.out.println(generator.getClass().getSimpleName() + ": " + threadCount + " threads, "
+                            + ids + " ids, " + (nanos / 1000000) + " ms, " + (ids * 1000000000L / nanos)
+                            + " ids/s");
+                }
+            }
+        }
+    }
+
+    private static long run(final UUIDGenerator generator, int threadCount, final int idsPerThread)
+            throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threadCount);
+        for (int i = 0; i < threadCount; i++) {
+            new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int j = 0; j < idsPerThread; j++) {
+                        generator.create();
+                    }
+                    done.countDown();
+                }
+            }.start();
+        }
+        long started = System.nanoTime();
+        start.countDown();
+        done.await();
+        return System.nanoTime() - started;
+    }
+}
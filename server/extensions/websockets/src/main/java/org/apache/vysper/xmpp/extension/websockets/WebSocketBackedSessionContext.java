@@ -82,7 +82,7 @@ public class WebSocketBackedSessionContext extends AbstractSessionContext implem
      * {@inheritDoc}
      */
     public StanzaWriter getResponseWriter() {
-        return this;
+        return filterResponseWriter(this);
     }
 
     /**
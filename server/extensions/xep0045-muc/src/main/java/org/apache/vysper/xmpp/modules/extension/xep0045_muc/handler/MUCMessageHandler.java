@@ -143,16 +143,14 @@ public class MUCMessageHandler extends DefaultMessageHandler {
             }
 
             logger.debug("Relaying message to all room occupants");
+            List<Entity> occupantJids = new ArrayList<Entity>();
             for (Occupant occupent : room.getOccupants()) {
                 logger.debug("Relaying message to  {}", occupent);
-                List<Attribute> replaceAttributes = new ArrayList<Attribute>();
-                replaceAttributes.add(new Attribute("from", roomAndSendingNick.getFullQualifiedName()));
-                replaceAttributes.add(new Attribute("to", occupent.getJid().getFullQualifiedName()));
-
-                relayStanza(occupent.getJid(), StanzaBuilder.createClone(stanza, true, replaceAttributes)
-                        .build(), serverRuntimeContext);
-
+                occupantJids.add(occupent.getJid());
             }
+            // the relay puts in the 'to' for every occupant
+            relayStanzaToMany(occupantJids, StanzaBuilder.createForwardStanza(stanza, roomAndSendingNick, null),
+                    serverRuntimeContext);
 
             // add to discussion history
             room.getHistory().append(stanza, sendingOccupant);
@@ -207,8 +205,8 @@ public class MUCMessageHandler extends DefaultMessageHandler {
                 replaceAttributes
                         .add(new Attribute("to", receivingOccupant.getJid().getFullQualifiedName()));
 
-                relayStanza(receivingOccupant.getJid(), StanzaBuilder.createClone(stanza, true,
-                        replaceAttributes).build(), serverRuntimeContext);
+                relayStanza(receivingOccupant.getJid(), StanzaBuilder.createAttributeOverlay(stanza,
+                        replaceAttributes), serverRuntimeContext);
             }
         }
 
@@ -303,6 +301,14 @@ public class MUCMessageHandler extends DefaultMessageHandler {
 
     }
 
+    protected void relayStanzaToMany(List<Entity> receivers, Stanza stanza, ServerRuntimeContext serverRuntimeContext) {
+        try {
+            serverRuntimeContext.getStanzaRelay().relayToMany(receivers, stanza, new IgnoreFailureStrategy());
+        } catch (DeliveryException e) {
+            logger.warn("message relaying failed ", e);
+        }
+    }
+
     protected void relayStanza(Entity receiver, Stanza stanza, ServerRuntimeContext serverRuntimeContext) {
         try {
             serverRuntimeContext.getStanzaRelay().relay(receiver, stanza, new IgnoreFailureStrategy());
@@ -19,6 +19,11 @@
  */
 package org.apache.vysper.xmpp.modules.extension.xep0060_pubsub;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
 import org.apache.vysper.compliance.SpecCompliant;
 import org.apache.vysper.xml.fragment.XMLElement;
 import org.apache.vysper.xmpp.addressing.Entity;
@@ -34,6 +39,8 @@ import org.slf4j.LoggerFactory;
 
 /**
  * This visitor sends each visited entity the XMLElement specified via the constructor.
+ * The visited entities are collected and notified all at once by {@link #relayNotifications()}, 
+ * so that the relay can fan out the notification in batches.
  * 
  * @author The Apache MINA Project (http://mina.apache.org)
  */
@@ -53,6 +60,9 @@ public class SubscriberPayloadNotificationVisitor implements SubscriberVisitor {
     // The server JID
     private Entity serverJID;
 
+    // The subscribers visited so far, per node
+    private Map<String, List<Entity>> subscribersByNode = new LinkedHashMap<String, List<Entity>>();
+
     /**
      * Initialize the visitor with the StanzaRelay and payload.
      * @param stanzaRelay relay for sending the messages.
@@ -65,37 +75,50 @@ public class SubscriberPayloadNotificationVisitor implements SubscriberVisitor {
     }
 
     /**
-     * Send each visited subscriber a notification with the configured payload included.
+     * Remember each visited subscriber for a notification with the configured payload included.
      * 
      * @param nodeJID the node from which the message comes from
      * @param subscriptionID the subscription ID
      * @param subscriber the receiver of the notification
      */
     public void visit(String nodeName, String subscriptionID, Entity subscriber) {
-        Stanza event = createMessageEventStanza(nodeName, subscriber, "en", item); // TODO extract the hardcoded "en"
+        List<Entity> subscribers = subscribersByNode.get(nodeName);
+        if (subscribers == null) {
+            subscribers = new ArrayList<Entity>();
+            subscribersByNode.put(nodeName, subscribers);
+        }
+        subscribers.add(subscriber);
+    }
+
+    /**
+     * Send all subscribers visited so far a notification with the configured payload included.
+     */
+    public void relayNotifications() {
+        for (Map.Entry<String, List<Entity>> entry : subscribersByNode.entrySet()) {
+            Stanza event = createMessageEventStanza(entry.getKey(), "en", item); // TODO extract the hardcoded "en"
 
-        try {
-            stanzaRelay.relay(subscriber, event, dfs);
-        } catch (DeliveryException e1) {
-            if (logger.isTraceEnabled())
-                logger.trace("Couldn't deliver message to " + subscriber.getFullQualifiedName(), e1);
-            // TODO we don't care - do we?
+            try {
+                stanzaRelay.relayToMany(entry.getValue(), event, dfs);
+            } catch (DeliveryException e1) {
+                if (logger.isTraceEnabled())
+                    logger.trace("Couldn't deliver message to all subscribers of " + entry.getKey(), e1);
+                // TODO we don't care - do we?
+            }
         }
+        subscribersByNode.clear();
     }
 
     /**
-     * Creates the stanza for notifying the subscriber including payload.
+     * Creates the stanza for notifying the subscribers including payload, the relay adds the 'to' per subscriber.
      * 
      * @param from the node JID which sends the notification
-     * @param to the receiver of the notification (subscriber)
      * @param lang the language of the stanza text-content.
      * @param item the payload as XMLElement
      * @return the prepared Stanza object.
      */
-    private Stanza createMessageEventStanza(String nodeName, Entity to, String lang, XMLElement item) {
+    private Stanza createMessageEventStanza(String nodeName, String lang, XMLElement item) {
         StanzaBuilder stanzaBuilder = new StanzaBuilder("message", NamespaceURIs.JABBER_CLIENT);
         stanzaBuilder.addAttribute("from", serverJID.getFullQualifiedName());
-        stanzaBuilder.addAttribute("to", to.getFullQualifiedName());
         stanzaBuilder.addAttribute(NamespaceURIs.XML, "lang", lang);
         stanzaBuilder.startInnerElement("event", NamespaceURIs.XEP0060_PUBSUB_EVENT);
         stanzaBuilder.startInnerElement("items", NamespaceURIs.XEP0060_PUBSUB_EVENT);
@@ -196,8 +196,10 @@ public class LeafNode {
      * @param item the payload of the message.
      */
     protected void sendMessageToSubscriber(StanzaRelay stanzaRelay, XMLElement item) {
-        storage.acceptForEachSubscriber(name, new SubscriberPayloadNotificationVisitor(serviceConfiguration
-                .getDomainJID(), stanzaRelay, item));
+        SubscriberPayloadNotificationVisitor notificationVisitor = new SubscriberPayloadNotificationVisitor(
+                serviceConfiguration.getDomainJID(), stanzaRelay, item);
+        storage.acceptForEachSubscriber(name, notificationVisitor);
+        notificationVisitor.relayNotifications();
     }
 
     /**
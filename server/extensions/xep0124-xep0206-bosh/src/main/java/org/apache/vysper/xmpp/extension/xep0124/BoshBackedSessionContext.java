@@ -180,7 +180,7 @@ public class BoshBackedSessionContext extends AbstractSessionContext implements
     }
 
     public StanzaWriter getResponseWriter() {
-        return this;
+        return filterResponseWriter(this);
     }
 
     public void setIsReopeningXMLStream() {